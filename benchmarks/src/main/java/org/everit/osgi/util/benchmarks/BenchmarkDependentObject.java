@@ -0,0 +1,47 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * A dependent object of the benchmarks that needs a service with a specific driver name, like a persistence unit that
+ * needs a DataSourceFactory.
+ */
+public class BenchmarkDependentObject {
+
+    private final int id;
+
+    private final String driverName;
+
+    public BenchmarkDependentObject(final int id, final String driverName) {
+        this.id = id;
+        this.driverName = driverName;
+    }
+
+    public String getDriverName() {
+        return driverName;
+    }
+
+    @Override
+    public String toString() {
+        return "BenchmarkDependentObject [id=" + id + ", driverName=" + driverName + "]";
+    }
+}
@@ -0,0 +1,155 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tracker of the benchmarks. A reference is suitable for a dependent object if its driver name property equals the
+ * driver name of the dependent object.
+ */
+public class BenchmarkRequisiteTracker extends AbstractRequisiteTracker<BenchmarkDependentObject> {
+
+    /**
+     * A tracker that indexes the dependent objects and references by the driver name.
+     */
+    public static class Indexed extends BenchmarkRequisiteTracker {
+
+        public Indexed(final BundleContext context) throws InvalidSyntaxException {
+            super(context);
+        }
+
+        @Override
+        protected Object[] getIndexValues(final BenchmarkDependentObject dependentObject) {
+            return new Object[] { dependentObject.getDriverName() };
+        }
+
+        @Override
+        protected String[] getIndexedPropertyKeys() {
+            return new String[] { DRIVER_NAME };
+        }
+    }
+
+    public static final String DRIVER_NAME = "driverName";
+
+    public static final String SERVICE_CLASS = "org.everit.osgi.util.benchmarks.BenchmarkService";
+
+    public static final String FILTER = "(objectClass=" + SERVICE_CLASS + ")";
+
+    public BenchmarkRequisiteTracker(final BundleContext context) throws InvalidSyntaxException {
+        super(context, FILTER);
+    }
+
+    /**
+     * Creates a tracker.
+     * 
+     * @param context
+     *            The context of the tracker.
+     * @param indexed
+     *            Whether the tracker should use the driver name index.
+     */
+    public static BenchmarkRequisiteTracker create(final BundleContext context, final boolean indexed) {
+        try {
+            if (indexed) {
+                return new Indexed(context);
+            }
+            return new BenchmarkRequisiteTracker(context);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates dependent objects that are spread evenly over the driver names.
+     */
+    public static List<BenchmarkDependentObject> createDependentObjects(final int count, final int driverCount) {
+        List<BenchmarkDependentObject> result = new ArrayList<BenchmarkDependentObject>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new BenchmarkDependentObject(i, driverName(i % driverCount)));
+        }
+        return result;
+    }
+
+    public static Hashtable<String, Object> driverProperties(final String driverName) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(DRIVER_NAME, driverName);
+        return properties;
+    }
+
+    public static String driverName(final int index) {
+        return "driver" + index;
+    }
+
+    /**
+     * The references of the registrations in the same order.
+     */
+    public static List<ServiceReference> getReferences(final List<ServiceRegistration> registrations) {
+        List<ServiceReference> result = new ArrayList<ServiceReference>(registrations.size());
+        for (ServiceRegistration registration : registrations) {
+            result.add(registration.getReference());
+        }
+        return result;
+    }
+
+    /**
+     * Registers services that are spread evenly over the driver names.
+     */
+    public static List<ServiceRegistration> registerServices(final BundleContext context, final int count,
+            final int driverCount) {
+        List<ServiceRegistration> result = new ArrayList<ServiceRegistration>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(context.registerService(SERVICE_CLASS, new Object(),
+                    driverProperties(driverName(i % driverCount))));
+        }
+        return result;
+    }
+
+    @Override
+    protected Comparable<ServiceReference> createComparableFromReference(final ServiceReference reference) {
+        final Object driverName = reference.getProperty(DRIVER_NAME);
+        return new Comparable<ServiceReference>() {
+
+            @Override
+            public int compareTo(final ServiceReference o) {
+                Object newDriverName = o.getProperty(DRIVER_NAME);
+                if ((driverName == null) ? (newDriverName == null) : driverName.equals(newDriverName)) {
+                    return 0;
+                }
+                return 1;
+            }
+        };
+    }
+
+    @Override
+    protected boolean isReferenceSuitable(final BenchmarkDependentObject dependentObject,
+            final ServiceReference reference) {
+        return dependentObject.getDriverName().equals(reference.getProperty(DRIVER_NAME));
+    }
+}
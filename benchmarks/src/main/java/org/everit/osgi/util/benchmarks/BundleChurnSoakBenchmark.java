@@ -0,0 +1,182 @@
+package org.everit.osgi.util.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.core.AbstractBundleTrackerCustomizer;
+import org.everit.osgi.util.testsupport.InMemoryBundle;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.util.tracker.BundleTracker;
+
+/**
+ * Soak test of an {@link AbstractBundleTrackerCustomizer} under sustained bundle update churn. Every operation
+ * updates a random bundle, so its tracked bundle service is unregistered and registered again. After every iteration
+ * the number of services in the framework and the retained heap are checked: both must stay flat, the benchmark
+ * fails if the services of the updated bundles leak.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 10, time = 10)
+@Fork(1)
+public class BundleChurnSoakBenchmark {
+
+    /**
+     * A customizer that processes every bundle.
+     */
+    public static class ProcessingBundleTrackerCustomizer extends AbstractBundleTrackerCustomizer {
+
+        public ProcessingBundleTrackerCustomizer(final BundleContext bundleContext) {
+            super(bundleContext, "soak");
+        }
+
+        @Override
+        protected boolean handleBundleAdded(final Bundle bundle) {
+            return true;
+        }
+
+        @Override
+        protected boolean handleBundleChanged(final BundleEvent event) {
+            return true;
+        }
+    }
+
+    /**
+     * A framework with started bundles and an open bundle tracker.
+     */
+    @State(Scope.Thread)
+    public static class ChurnState {
+
+        /**
+         * The retained heap may grow this much over the first measured iteration before the benchmark fails. Leaves
+         * room for the noise of the collector and the lazily initialized parts of the JVM.
+         */
+        private static final long HEAP_TOLERANCE = 16L * 1024 * 1024;
+
+        @Param({ "1000" })
+        public int bundleCount;
+
+        @Param({ "false", "true" })
+        public boolean aggregated;
+
+        private InMemoryFramework framework;
+
+        private List<InMemoryBundle> bundles;
+
+        private ProcessingBundleTrackerCustomizer customizer;
+
+        private BundleTracker bundleTracker;
+
+        private Random random;
+
+        private int expectedServiceCount;
+
+        /**
+         * The retained heap after the first iteration or -1 if it is not measured yet.
+         */
+        private long baselineHeap = -1;
+
+        private static long retainedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        @TearDown(Level.Iteration)
+        public void checkFlat() {
+            int serviceCount = framework.getServiceCount();
+            if (serviceCount != expectedServiceCount) {
+                throw new IllegalStateException("Service registry grew from " + expectedServiceCount + " to "
+                        + serviceCount + " services");
+            }
+            if (customizer.getRegisteredServiceCount() > bundleTracker.size()) {
+                throw new IllegalStateException("More tracked bundle registrations than bundles: "
+                        + customizer.getRegisteredServiceCount());
+            }
+            long heap = retainedHeap();
+            if (baselineHeap < 0) {
+                baselineHeap = heap;
+            } else if (heap > (baselineHeap + HEAP_TOLERANCE)) {
+                throw new IllegalStateException("Retained heap grew from " + baselineHeap + " to " + heap
+                        + " bytes");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            bundleTracker.close();
+        }
+
+        @Setup(Level.Trial)
+        public void setUp() throws BundleException {
+            framework = new InMemoryFramework();
+            bundles = new ArrayList<InMemoryBundle>(bundleCount);
+            for (int i = 0; i < bundleCount; i++) {
+                InMemoryBundle bundle = framework.installBundle("soak.bundle" + i, "1.0.0");
+                bundle.start();
+                bundles.add(bundle);
+            }
+            BundleContext context = framework.getSystemBundleContext();
+            customizer = new ProcessingBundleTrackerCustomizer(context);
+            customizer.setAggregated(aggregated);
+            bundleTracker = new BundleTracker(context, Bundle.ACTIVE | Bundle.STARTING, customizer);
+            bundleTracker.open();
+            expectedServiceCount = framework.getServiceCount();
+            random = new Random(1);
+        }
+    }
+
+    /**
+     * Updating a random bundle, which removes it from the tracker and adds it again.
+     */
+    @Benchmark
+    public long updateBundle(final ChurnState state) throws BundleException {
+        InMemoryBundle bundle = state.bundles.get(state.random.nextInt(state.bundleCount));
+        bundle.update();
+        return bundle.getLastModified();
+    }
+}
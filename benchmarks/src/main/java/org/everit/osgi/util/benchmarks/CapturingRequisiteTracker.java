@@ -0,0 +1,58 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * A tracker that does not pair anything, it only stores the listeners of the added dependent objects so a benchmark can
+ * call them directly.
+ */
+public class CapturingRequisiteTracker extends BenchmarkRequisiteTracker {
+
+    private final Map<BenchmarkDependentObject, RequisiteListener<BenchmarkDependentObject>> listeners =
+            new ConcurrentHashMap<BenchmarkDependentObject, RequisiteListener<BenchmarkDependentObject>>();
+
+    public CapturingRequisiteTracker(final BundleContext context) throws InvalidSyntaxException {
+        super(context);
+    }
+
+    @Override
+    public void addDependentObject(final BenchmarkDependentObject dependentObject,
+            final RequisiteListener<BenchmarkDependentObject> requisiteListener) {
+        listeners.put(dependentObject, requisiteListener);
+    }
+
+    public RequisiteListener<BenchmarkDependentObject> getListener(final BenchmarkDependentObject dependentObject) {
+        return listeners.get(dependentObject);
+    }
+
+    @Override
+    public void removeDependentObject(final BenchmarkDependentObject dependentObject) {
+        listeners.remove(dependentObject);
+    }
+}
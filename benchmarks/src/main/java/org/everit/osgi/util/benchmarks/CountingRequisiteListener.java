@@ -0,0 +1,55 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A {@link RequisiteListener} that only counts the notifications.
+ */
+public class CountingRequisiteListener implements RequisiteListener<BenchmarkDependentObject> {
+
+    private final AtomicLong availableCount = new AtomicLong();
+
+    private final AtomicLong removedCount = new AtomicLong();
+
+    public long getAvailableCount() {
+        return availableCount.get();
+    }
+
+    public long getRemovedCount() {
+        return removedCount.get();
+    }
+
+    @Override
+    public void requisiteAvailable(final BenchmarkDependentObject dependentObject, final ServiceReference requisite) {
+        availableCount.incrementAndGet();
+    }
+
+    @Override
+    public void requisiteRemoved(final BenchmarkDependentObject dependentObject, final ServiceReference requisite) {
+        removedCount.incrementAndGet();
+    }
+}
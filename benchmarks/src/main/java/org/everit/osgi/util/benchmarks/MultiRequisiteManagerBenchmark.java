@@ -0,0 +1,186 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Cost of the requisite callbacks of {@link MultiRequisiteManager}. Every thread toggles the first requisite of its
+ * own dependent object. Run with <code>-prof gc</code> to see the allocation per callback: the benchmarks without
+ * start and stop transitions must not allocate as the INFO level is off with slf4j-nop. The in-memory tests check
+ * this with the allocation counter of the thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiRequisiteManagerBenchmark {
+
+    /**
+     * The manager that is shared by the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class ManagerState {
+
+        private static final String FIRST = "first";
+
+        private static final String SECOND = "second";
+
+        private final AtomicInteger dependentObjectIdSequence = new AtomicInteger();
+
+        private final AtomicLong startCount = new AtomicLong();
+
+        private MultiRequisiteManager<BenchmarkDependentObject> manager;
+
+        private CapturingRequisiteTracker firstTracker;
+
+        private CapturingRequisiteTracker secondTracker;
+
+        private ServiceReference reference;
+
+        /**
+         * Registers a new dependent object.
+         * 
+         * @param secondAvailable
+         *            Whether the second requisite should be available.
+         * @return The registered dependent object.
+         */
+        public BenchmarkDependentObject registerDependentObject(final boolean secondAvailable) {
+            BenchmarkDependentObject dependentObject = new BenchmarkDependentObject(
+                    dependentObjectIdSequence.incrementAndGet(), BenchmarkRequisiteTracker.driverName(0));
+            Map<String, AbstractRequisiteTracker<BenchmarkDependentObject>> requisiteTrackers =
+                    new HashMap<String, AbstractRequisiteTracker<BenchmarkDependentObject>>();
+            requisiteTrackers.put(FIRST, firstTracker);
+            requisiteTrackers.put(SECOND, secondTracker);
+            manager.registerDependentObject(dependentObject, requisiteTrackers);
+            if (secondAvailable) {
+                secondTracker.getListener(dependentObject).requisiteAvailable(dependentObject, reference);
+            }
+            return dependentObject;
+        }
+
+        @Setup
+        public void setUp() throws InvalidSyntaxException {
+            manager = new MultiRequisiteManager<BenchmarkDependentObject>(
+                    new MultiRequisiteListener<BenchmarkDependentObject>() {
+
+                        @Override
+                        public void startDependentObject(final BenchmarkDependentObject dependentObject,
+                                final Map<String, ServiceReference> references) {
+                            startCount.incrementAndGet();
+                        }
+
+                        @Override
+                        public void stopDependentObject(final BenchmarkDependentObject dependentObject) {
+                        }
+                    });
+            BundleContext context = new InMemoryFramework().getSystemBundleContext();
+            firstTracker = new CapturingRequisiteTracker(context);
+            secondTracker = new CapturingRequisiteTracker(context);
+            reference = context.registerService(BenchmarkRequisiteTracker.SERVICE_CLASS, new Object(), null)
+                    .getReference();
+        }
+    }
+
+    /**
+     * A dependent object of a thread whose second requisite is never available.
+     */
+    @State(Scope.Thread)
+    public static class WaitingDependentObjectState {
+
+        private RequisiteListener<BenchmarkDependentObject> listener;
+
+        private BenchmarkDependentObject dependentObject;
+
+        @Setup
+        public void setUp(final ManagerState managerState) {
+            dependentObject = managerState.registerDependentObject(false);
+            listener = managerState.firstTracker.getListener(dependentObject);
+        }
+    }
+
+    /**
+     * A dependent object of a thread whose second requisite is available, so every toggle starts and stops it.
+     */
+    @State(Scope.Thread)
+    public static class StartingDependentObjectState {
+
+        private RequisiteListener<BenchmarkDependentObject> listener;
+
+        private BenchmarkDependentObject dependentObject;
+
+        @Setup
+        public void setUp(final ManagerState managerState) {
+            dependentObject = managerState.registerDependentObject(true);
+            listener = managerState.firstTracker.getListener(dependentObject);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void concurrentStartStopToggle(final ManagerState managerState, final StartingDependentObjectState state) {
+        startStopToggle(managerState, state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void concurrentWaitingToggle(final ManagerState managerState, final WaitingDependentObjectState state) {
+        waitingToggle(managerState, state);
+    }
+
+    @Benchmark
+    public void startStopToggle(final ManagerState managerState, final StartingDependentObjectState state) {
+        state.listener.requisiteAvailable(state.dependentObject, managerState.reference);
+        state.listener.requisiteRemoved(state.dependentObject, managerState.reference);
+    }
+
+    @Benchmark
+    public void waitingToggle(final ManagerState managerState, final WaitingDependentObjectState state) {
+        state.listener.requisiteAvailable(state.dependentObject, managerState.reference);
+        state.listener.requisiteRemoved(state.dependentObject, managerState.reference);
+    }
+}
@@ -0,0 +1,154 @@
+package org.everit.osgi.util.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Wall clock time of a service storm when {@link BenchmarkRequisiteTracker#isReferenceSuitable} is expensive, with the
+ * suitability evaluated on the event thread or on a {@link ForkJoinPool}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelSuitabilityBenchmark {
+
+    /**
+     * A tracker that burns CPU in every suitability check.
+     */
+    public static class ExpensiveRequisiteTracker extends BenchmarkRequisiteTracker {
+
+        private final long suitabilityCost;
+
+        public ExpensiveRequisiteTracker(final BundleContext context, final long suitabilityCost)
+                throws InvalidSyntaxException {
+            super(context);
+            this.suitabilityCost = suitabilityCost;
+        }
+
+        @Override
+        protected boolean isReferenceSuitable(final BenchmarkDependentObject dependentObject,
+                final ServiceReference reference) {
+            Blackhole.consumeCPU(suitabilityCost);
+            return super.isReferenceSuitable(dependentObject, reference);
+        }
+    }
+
+    /**
+     * Waiting dependent objects on a fresh tracker and the references that are not tracked yet.
+     */
+    @State(Scope.Thread)
+    public static class StormState {
+
+        @Param({ "200" })
+        public int dependentObjectCount;
+
+        @Param({ "20" })
+        public int referenceCount;
+
+        @Param({ "10" })
+        public int driverCount;
+
+        /**
+         * The cost of one suitability check in {@link Blackhole#consumeCPU(long)} tokens.
+         */
+        @Param({ "10000" })
+        public long suitabilityCost;
+
+        /**
+         * The parallelism of the pool or 0 to evaluate on the event thread.
+         */
+        @Param({ "0", "4" })
+        public int parallelism;
+
+        private ForkJoinPool pool;
+
+        private ExpensiveRequisiteTracker tracker;
+
+        private List<ServiceReference> references;
+
+        private CountingRequisiteListener listener;
+
+        @Setup(Level.Trial)
+        public void createPool() {
+            if (parallelism > 0) {
+                pool = new ForkJoinPool(parallelism);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void shutdownPool() {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() throws InvalidSyntaxException {
+            InMemoryFramework framework = new InMemoryFramework();
+            tracker = new ExpensiveRequisiteTracker(framework.getSystemBundleContext(), suitabilityCost);
+            tracker.setSuitabilityExecutor(pool);
+            listener = new CountingRequisiteListener();
+            for (BenchmarkDependentObject dependentObject : BenchmarkRequisiteTracker.createDependentObjects(
+                    dependentObjectCount, driverCount)) {
+                tracker.addDependentObject(dependentObject, listener);
+            }
+            references = BenchmarkRequisiteTracker.getReferences(BenchmarkRequisiteTracker.registerServices(
+                    framework.getSystemBundleContext(), referenceCount, driverCount));
+        }
+    }
+
+    /**
+     * Tracking every reference while all dependent objects are waiting.
+     */
+    @Benchmark
+    public long serviceStorm(final StormState state) {
+        for (ServiceReference reference : state.references) {
+            state.tracker.addingService(reference);
+        }
+        return state.listener.getAvailableCount();
+    }
+}
@@ -0,0 +1,201 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Pairing cost of {@link org.everit.osgi.util.core.requisite.AbstractRequisiteTracker} with different amount of
+ * dependent objects and references. Every benchmark method processes a whole storm of events on a fresh tracker.
+ * The services are registered in an {@link InMemoryFramework} but the tracker is not opened: the benchmarks call the
+ * tracker callbacks directly, so the event delivery of the framework is not measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequisiteTrackerBenchmark {
+
+    /**
+     * Common parameters and fixtures of the storms.
+     */
+    @State(Scope.Thread)
+    public abstract static class StormState {
+
+        @Param({ "100", "1000" })
+        public int dependentObjectCount;
+
+        @Param({ "10", "100" })
+        public int referenceCount;
+
+        @Param({ "10" })
+        public int driverCount;
+
+        @Param({ "false", "true" })
+        public boolean indexed;
+
+        protected BenchmarkRequisiteTracker tracker;
+
+        protected List<BenchmarkDependentObject> dependentObjects;
+
+        protected List<ServiceRegistration> registrations;
+
+        protected List<ServiceReference> references;
+
+        protected CountingRequisiteListener listener;
+
+        protected void addDependentObjects() {
+            for (BenchmarkDependentObject dependentObject : dependentObjects) {
+                tracker.addDependentObject(dependentObject, listener);
+            }
+        }
+
+        protected void addReferences() {
+            for (ServiceReference reference : references) {
+                tracker.addingService(reference);
+            }
+        }
+
+        protected void createFixtures() {
+            InMemoryFramework framework = new InMemoryFramework();
+            tracker = BenchmarkRequisiteTracker.create(framework.getSystemBundleContext(), indexed);
+            dependentObjects = BenchmarkRequisiteTracker.createDependentObjects(dependentObjectCount, driverCount);
+            registrations = BenchmarkRequisiteTracker.registerServices(framework.getSystemBundleContext(),
+                    referenceCount, driverCount);
+            references = BenchmarkRequisiteTracker.getReferences(registrations);
+            listener = new CountingRequisiteListener();
+        }
+    }
+
+    /**
+     * All dependent objects are waiting, the references are not tracked yet.
+     */
+    @State(Scope.Thread)
+    public static class WaitingDependentObjectsState extends StormState {
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            createFixtures();
+            addDependentObjects();
+        }
+    }
+
+    /**
+     * The references are tracked, the dependent objects are not added yet.
+     */
+    @State(Scope.Thread)
+    public static class TrackedReferencesState extends StormState {
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            createFixtures();
+            addReferences();
+        }
+    }
+
+    /**
+     * All dependent objects are paired.
+     */
+    @State(Scope.Thread)
+    public static class PairedState extends StormState {
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            createFixtures();
+            addReferences();
+            addDependentObjects();
+        }
+    }
+
+    /**
+     * Adding the dependent objects in one batch when the references are available already.
+     */
+    @Benchmark
+    public long bulkDependentObjectStorm(final TrackedReferencesState state) {
+        Map<BenchmarkDependentObject, RequisiteListener<BenchmarkDependentObject>> dependentObjectsWithListeners =
+                new LinkedHashMap<BenchmarkDependentObject, RequisiteListener<BenchmarkDependentObject>>();
+        for (BenchmarkDependentObject dependentObject : state.dependentObjects) {
+            dependentObjectsWithListeners.put(dependentObject, state.listener);
+        }
+        state.tracker.addDependentObjects(dependentObjectsWithListeners);
+        return state.listener.getAvailableCount();
+    }
+
+    /**
+     * Adding the dependent objects when the references are available already.
+     */
+    @Benchmark
+    public long dependentObjectStorm(final TrackedReferencesState state) {
+        state.addDependentObjects();
+        return state.listener.getAvailableCount();
+    }
+
+    /**
+     * Changing the driver name of every reference and back, so every modification is relevant for the tracker.
+     */
+    @Benchmark
+    public long modifyStorm(final PairedState state) {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < state.references.size(); i++) {
+                ServiceReference reference = state.references.get(i);
+                int driverIndex = (i + 1 - round) % state.driverCount;
+                state.registrations.get(i).setProperties(BenchmarkRequisiteTracker.driverProperties(
+                        BenchmarkRequisiteTracker.driverName(driverIndex)));
+                state.tracker.modifiedService(reference, reference);
+            }
+        }
+        return state.listener.getAvailableCount();
+    }
+
+    /**
+     * Registering all references and unregistering them again while all dependent objects are waiting.
+     */
+    @Benchmark
+    public long serviceEventStorm(final WaitingDependentObjectsState state) {
+        state.addReferences();
+        for (ServiceReference reference : state.references) {
+            state.tracker.removedService(reference, reference);
+        }
+        return state.listener.getRemovedCount();
+    }
+}
@@ -0,0 +1,154 @@
+package org.everit.osgi.util.benchmarks;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.core.requisite.trace.Trace;
+import org.everit.osgi.util.core.requisite.trace.TraceRecorder;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.everit.osgi.util.testsupport.TraceReplayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Throughput of a recorded mix of service registrations, modifications, unregistrations and dependent object churn,
+ * replayed into a fresh tracker at full speed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceReplayBenchmark {
+
+    /**
+     * The recorded trace and a fresh tracker to replay it into.
+     */
+    @State(Scope.Thread)
+    public static class ReplayState {
+
+        private static final String SOURCE_NAME = "tracker";
+
+        @Param({ "5000" })
+        public int stepCount;
+
+        @Param({ "500" })
+        public int dependentObjectCount;
+
+        @Param({ "10" })
+        public int driverCount;
+
+        @Param({ "true" })
+        public boolean indexed;
+
+        private Trace trace;
+
+        /**
+         * The dependent objects by their id in the trace. The recorder assigns the ids in the order the objects are
+         * added first.
+         */
+        private List<BenchmarkDependentObject> dependentObjects;
+
+        private TraceReplayer<BenchmarkDependentObject> replayer;
+
+        @Setup(Level.Trial)
+        public void record() throws IOException {
+            dependentObjects = BenchmarkRequisiteTracker.createDependentObjects(dependentObjectCount, driverCount);
+            InMemoryFramework framework = new InMemoryFramework();
+            BundleContext context = framework.getSystemBundleContext();
+            BenchmarkRequisiteTracker tracker = BenchmarkRequisiteTracker.create(context, indexed);
+            TraceRecorder traceRecorder = new TraceRecorder(stepCount * 8);
+            tracker.setTraceRecorder(traceRecorder, SOURCE_NAME);
+            tracker.open();
+            CountingRequisiteListener listener = new CountingRequisiteListener();
+            for (BenchmarkDependentObject dependentObject : dependentObjects) {
+                tracker.addDependentObject(dependentObject, listener);
+            }
+            Random random = new Random(1);
+            List<ServiceRegistration> registrations = new ArrayList<ServiceRegistration>();
+            for (int i = 0; i < stepCount; i++) {
+                int operation = random.nextInt(4);
+                if ((operation == 0) || registrations.isEmpty()) {
+                    registrations.add(context.registerService(BenchmarkRequisiteTracker.SERVICE_CLASS, new Object(),
+                            BenchmarkRequisiteTracker.driverProperties(BenchmarkRequisiteTracker.driverName(random
+                                    .nextInt(driverCount)))));
+                } else if (operation == 1) {
+                    registrations.remove(random.nextInt(registrations.size())).unregister();
+                } else if (operation == 2) {
+                    registrations.get(random.nextInt(registrations.size())).setProperties(
+                            BenchmarkRequisiteTracker.driverProperties(BenchmarkRequisiteTracker.driverName(random
+                                    .nextInt(driverCount))));
+                } else {
+                    BenchmarkDependentObject dependentObject = dependentObjects.get(random
+                            .nextInt(dependentObjectCount));
+                    tracker.removeDependentObject(dependentObject);
+                    tracker.addDependentObject(dependentObject, listener);
+                }
+            }
+            ByteArrayOutputStream dump = new ByteArrayOutputStream();
+            traceRecorder.dump(dump);
+            trace = Trace.read(new ByteArrayInputStream(dump.toByteArray()));
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            InMemoryFramework framework = new InMemoryFramework();
+            BenchmarkRequisiteTracker tracker = BenchmarkRequisiteTracker.create(framework.getSystemBundleContext(),
+                    indexed);
+            tracker.open();
+            replayer = new TraceReplayer<BenchmarkDependentObject>(framework,
+                    new TraceReplayer.DependentObjectFactory<BenchmarkDependentObject>() {
+                        @Override
+                        public BenchmarkDependentObject createDependentObject(final int dependentObjectId,
+                                final String label) {
+                            return dependentObjects.get(dependentObjectId);
+                        }
+                    });
+            replayer.addTracker(SOURCE_NAME, tracker);
+        }
+    }
+
+    @Benchmark
+    public TraceReplayer.ReplayResult replay(final ReplayState state) {
+        return state.replayer.replay(state.trace);
+    }
+}
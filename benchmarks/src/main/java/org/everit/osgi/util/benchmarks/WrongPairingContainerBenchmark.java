@@ -0,0 +1,128 @@
+package org.everit.osgi.util.benchmarks;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.core.requisite.AbstractWrongPairingContainer;
+import org.everit.osgi.util.core.requisite.CompactWrongPairingContainer;
+import org.everit.osgi.util.core.requisite.WrongPairingContainer;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Lookup and modification cost of the {@link AbstractWrongPairingContainer} implementations filled like after a failed
+ * rollout where every dependent object rejected every reference.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WrongPairingContainerBenchmark {
+
+    @Param({ "default", "compact" })
+    public String container;
+
+    @Param({ "1000", "5000" })
+    public int dependentObjectCount;
+
+    @Param({ "100", "500" })
+    public int referenceCount;
+
+    private AbstractWrongPairingContainer<BenchmarkDependentObject> wrongPairingContainer;
+
+    private List<BenchmarkDependentObject> dependentObjects;
+
+    private List<ServiceReference> references;
+
+    /**
+     * The lookups of the concurrent benchmarks.
+     */
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public boolean concurrentLookup() {
+        return lookup();
+    }
+
+    /**
+     * Removes a reference and adds its wrong pairings again while the lookups are running.
+     */
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void concurrentReferenceChurn() {
+        ServiceReference reference = references.get(ThreadLocalRandom.current().nextInt(referenceCount));
+        wrongPairingContainer.removeReference(reference);
+        for (BenchmarkDependentObject dependentObject : dependentObjects) {
+            wrongPairingContainer.addWrongPairing(dependentObject, reference);
+        }
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return wrongPairingContainer.isWrongPairing(dependentObjects.get(random.nextInt(dependentObjectCount)),
+                references.get(random.nextInt(referenceCount)));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean parallelLookup() {
+        return lookup();
+    }
+
+    @Setup
+    public void setUp() {
+        if ("compact".equals(container)) {
+            wrongPairingContainer = new CompactWrongPairingContainer<BenchmarkDependentObject>();
+        } else {
+            wrongPairingContainer = new WrongPairingContainer<BenchmarkDependentObject>();
+        }
+        dependentObjects = BenchmarkRequisiteTracker.createDependentObjects(dependentObjectCount, 1);
+        references = BenchmarkRequisiteTracker.getReferences(BenchmarkRequisiteTracker.registerServices(
+                new InMemoryFramework().getSystemBundleContext(), referenceCount, 1));
+        for (BenchmarkDependentObject dependentObject : dependentObjects) {
+            for (ServiceReference reference : references) {
+                wrongPairingContainer.addWrongPairing(dependentObject, reference);
+            }
+        }
+    }
+}
@@ -21,43 +21,170 @@ package org.everit.osgi.util.core;
  * MA 02110-1301  USA
  */
 
+import java.io.File;
+import java.io.Serializable;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
 
+import org.everit.osgi.util.core.requisite.LatencyHistogram;
+import org.everit.osgi.util.core.requisite.SerialExecutor;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
-import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * An abstract bundle tracker customizer that handles the bundle state and its change.
+ * <p>
+ * By default the bundles are handled on the thread of the bundle event, and when the bundle tracker opens, the
+ * existing bundles are handled one after the other on the opening thread. With
+ * {@link #setScanExecutor(Executor)} the handling of the bundles runs parallel on the executor. The events of the
+ * same bundle are still handled one after the other in the order they arrived.
+ * <p>
+ * Every processed bundle has a {@link TrackedBundle} service that is registered when the bundle is
+ * {@link TrackedBundleState#PROCESSED} and unregistered when it is skipped, fails or is removed. With
+ * {@link #setLifecyclePublished(boolean)} the service is registered when the handling of the bundle starts instead,
+ * and its {@link #STATE} property follows every {@link TrackedBundleState} of the bundle by modifying the properties
+ * of the service, so orchestration tools can wait for a state with a service tracker and a filter on the property.
+ * <p>
+ * In aggregated mode (see {@link #setAggregated(boolean)}) the customizer registers one {@link TrackedBundleRegistry}
+ * service that holds the states of all handled bundles instead of a service per bundle.
  */
 public abstract class AbstractBundleTrackerCustomizer implements BundleTrackerCustomizer {
 
+    /**
+     * The {@link TrackedBundle} service of a bundle with the properties it was registered with.
+     */
+    private static class TrackedBundleRegistration {
+
+        private final ServiceRegistration serviceRegistration;
+
+        private final Dictionary<String, String> properties;
+
+        public TrackedBundleRegistration(final ServiceRegistration serviceRegistration,
+                final Dictionary<String, String> properties) {
+            this.serviceRegistration = serviceRegistration;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractBundleTrackerCustomizer.class);
+
     private static final String SYMBOLIC_NAME = "symbolicName";
 
     private static final String BUNDLE_ID = "bundleId";
 
     private static final String PROCESSD_BY = "processdBy";
 
+    /**
+     * The service property that holds the {@link TrackedBundleState} of the bundle.
+     */
+    public static final String STATE = TrackedBundleState.class.getName();
+
+    /**
+     * The service property that describes the error of a bundle in {@link TrackedBundleState#FAILED} state.
+     */
+    public static final String FAILURE = "failure";
+
     /**
      * The set of the processed bundle IDs. The bundle id will be added if addingBundle does not fail and the bundle id
      * will be removed if removedBundle invoked.
      */
     private final Set<Long> processedBundles = new ConcurrentSkipListSet<Long>();
 
-    private final Map<Long, ServiceRegistration> registeredServices = new ConcurrentHashMap<Long, ServiceRegistration>();
+    /**
+     * The {@link TrackedBundle} services of the bundles. A bundle has at most one registration that lives until the
+     * bundle is removed or, unless the lifecycle is published, leaves the {@link TrackedBundleState#PROCESSED} state.
+     * Modified under the registration helper.
+     */
+    private final Map<Long, TrackedBundleRegistration> registeredServices =
+            new ConcurrentHashMap<Long, TrackedBundleRegistration>();
+
+    /**
+     * Helper object that guards the registration and unregistration of the {@link TrackedBundle} services, so the
+     * events of a bundle that arrive on different threads cannot register a second service for the bundle.
+     */
+    private final Object registrationHelper = new Object();
 
     private final BundleContext bundleContext;
 
     private final String id;
 
+    /**
+     * Whether the states of the bundles are published in one {@link TrackedBundleRegistry} service instead of a
+     * {@link TrackedBundle} service per bundle.
+     */
+    private boolean aggregated = false;
+
+    /**
+     * Whether the {@link TrackedBundle} service of a bundle is registered in every {@link TrackedBundleState} instead
+     * of the {@link TrackedBundleState#PROCESSED} state only.
+     */
+    private boolean lifecyclePublished = false;
+
+    private final DefaultTrackedBundleRegistry trackedBundleRegistry = new DefaultTrackedBundleRegistry();
+
+    /**
+     * The registration of the {@link TrackedBundleRegistry} service or <code>null</code> if it is not registered.
+     * Guarded by the registry helper.
+     */
+    private ServiceRegistration registryRegistration;
+
+    /**
+     * Helper object that guards the registration of the {@link TrackedBundleRegistry} service.
+     */
+    private final Object registryHelper = new Object();
+
+    /**
+     * Executor that handles the bundles or <code>null</code> if they are handled on the thread of the event.
+     */
+    private Executor scanExecutor;
+
+    /**
+     * The queues of the events of the bundles that are handled on the scan executor. Guarded by the queue helper.
+     */
+    private final Map<Long, SerialExecutor> bundleQueues = new HashMap<Long, SerialExecutor>();
+
+    /**
+     * Helper object that guards the bundle queues, so a queue is not dropped while an event is added to it.
+     */
+    private final Object queueHelper = new Object();
+
+    /**
+     * The time it took to handle the last event of the bundles in nanos.
+     */
+    private final Map<Long, Long> processingNanos = new ConcurrentHashMap<Long, Long>();
+
+    private final LatencyHistogram processingTime = new LatencyHistogram();
+
+    /**
+     * Cache of the scan results or <code>null</code> if every added bundle is scanned.
+     */
+    private BundleScanCache scanCache;
+
+    /**
+     * Helper object that guards the number of pending initial scans.
+     */
+    private final Object scanHelper = new Object();
+
+    /**
+     * The number of bundles that were present when the tracker opened and are not handled yet. Guarded by the scan
+     * helper.
+     */
+    private int pendingInitialScanCount = 0;
+
     /**
      * Default constructor.
      */
@@ -69,44 +196,160 @@ public abstract class AbstractBundleTrackerCustomizer implements BundleTrackerCu
 
     @Override
     public Object addingBundle(final Bundle bundle, final BundleEvent event) {
-        Long bundleId = Long.valueOf(bundle.getBundleId());
-        if (processedBundles.contains(bundleId)) {
-            // bundle processed already, we are not interested in
+        // The state is read at the time of the event, the bundle may change until it is handled on the scan executor
+        final int bundleState = bundle.getState();
+        if (scanExecutor == null) {
+            processAddingBundle(bundle, event, bundleState);
             return bundle;
         }
-        if ((event == null) || (bundle.getState() == Bundle.ACTIVE) || (bundle.getState() == Bundle.STARTING)) {
-            boolean registerService = handleBundleAdded(bundle);
-            if (registerService) {
-                registerService(bundle);
+        final boolean initialScan = event == null;
+        if (initialScan) {
+            synchronized (scanHelper) {
+                pendingInitialScanCount++;
             }
-        } else if ((event.getType() == BundleEvent.LAZY_ACTIVATION) || (event.getType() == BundleEvent.STARTED)) {
-            unregisterService(event.getBundle());
-            boolean registerService = handleBundleChanged(event);
-            if (registerService) {
-                registerService(event.getBundle());
+        }
+        try {
+            enqueue(bundle, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processAddingBundle(bundle, event, bundleState);
+                    } finally {
+                        if (initialScan) {
+                            initialScanFinished();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // The scan will not run, so it must not be waited for
+            if (initialScan) {
+                initialScanFinished();
             }
+            throw e;
         }
-        processedBundles.add(bundleId);
         return bundle;
     }
 
+    /**
+     * Runs the handling of an event of the bundle on the scan executor after the previous events of the same bundle.
+     */
+    private void enqueue(final Bundle bundle, final Runnable task) {
+        Long bundleId = Long.valueOf(bundle.getBundleId());
+        synchronized (queueHelper) {
+            SerialExecutor bundleQueue = bundleQueues.get(bundleId);
+            if (bundleQueue == null) {
+                bundleQueue = new SerialExecutor(scanExecutor);
+                bundleQueues.put(bundleId, bundleQueue);
+            }
+            bundleQueue.execute(task);
+        }
+    }
+
+    /**
+     * The states of the handled bundles. Filled in aggregated mode only (see {@link #setAggregated(boolean)}).
+     */
+    public TrackedBundleRegistry getTrackedBundleRegistry() {
+        return trackedBundleRegistry;
+    }
+
+    /**
+     * The time it took to handle the last event of the bundle in nanos, including the registration of the
+     * {@link TrackedBundle} service.
+     * 
+     * @return The time or <code>-1</code> if the bundle is not handled yet or it is removed.
+     */
+    public long getProcessingNanos(final long bundleId) {
+        Long result = processingNanos.get(Long.valueOf(bundleId));
+        if (result == null) {
+            return -1;
+        }
+        return result.longValue();
+    }
+
+    /**
+     * The distribution of the times it took to handle the events of the bundles.
+     */
+    public LatencyHistogram getProcessingTime() {
+        return processingTime;
+    }
+
+    /**
+     * Creates the result of the scan of the bundle that is stored in the scan cache (see {@link #enableScanCache()}).
+     * Invoked after {@link #handleBundleAdded(Bundle)} if the cache is enabled. On the next start the result is passed
+     * to {@link #handleCachedBundle(Bundle, Serializable)} if the bundle did not change.
+     * 
+     * @param bundle
+     *            The bundle that was scanned.
+     * @return The result or <code>null</code> if nothing should be cached. By default <code>null</code>.
+     */
+    protected Serializable createScanResult(final Bundle bundle) {
+        return null;
+    }
+
+    /**
+     * Enables the scan cache in the data area of the bundle of the customizer. The results of the scans are kept
+     * between the restarts of the framework, keyed by the symbolic name and version of the scanned bundles and
+     * invalidated when {@link Bundle#getLastModified()} of a bundle changes, so the unchanged bundles are not scanned
+     * again. The subclass has to implement {@link #createScanResult(Bundle)} and
+     * {@link #handleCachedBundle(Bundle, Serializable)}. The results of the bundles that are not installed anymore are
+     * dropped. Must be called before the tracker is opened.
+     * 
+     * @return <code>false</code> if the framework does not support a file system and the cache could not be enabled.
+     */
+    public boolean enableScanCache() {
+        File dataFile = bundleContext.getDataFile("scan-cache-" + id.replaceAll("[^A-Za-z0-9._-]", "_") + ".bin");
+        if (dataFile == null) {
+            return false;
+        }
+        BundleScanCache cache = new BundleScanCache(dataFile, getClass().getClassLoader());
+        cache.retainAll(bundleContext.getBundles());
+        scanCache = cache;
+        return true;
+    }
+
+    /**
+     * The scan cache or <code>null</code> if it is not enabled.
+     */
+    public BundleScanCache getScanCache() {
+        return scanCache;
+    }
+
     /**
      * Event handler invoked when the bundle is added. Will be invoked if the event is null, the bundle state is ACTIVE
      * or STARTING.
      * 
      * @param bundle
      *            The bundle itself.
-     * @return <code>true</code> if a {@link TrackedBundle} service should be created, otherwise <code>false</code>.
+     * @return <code>true</code> if the bundle is processed, <code>false</code> if it is skipped. See
+     *         {@link TrackedBundleState}.
      */
     protected abstract boolean handleBundleAdded(Bundle bundle);
 
+    /**
+     * Handles an added bundle that did not change since its scan result was stored in the scan cache (see
+     * {@link #enableScanCache()}). Invoked instead of {@link #handleBundleAdded(Bundle)}, so the subclass can restore
+     * its state from the result without scanning the bundle. By default it calls {@link #handleBundleAdded(Bundle)}.
+     * 
+     * @param bundle
+     *            The bundle itself.
+     * @param scanResult
+     *            The result that {@link #createScanResult(Bundle)} returned for the bundle.
+     * @return <code>true</code> if the bundle is processed, <code>false</code> if it is skipped. See
+     *         {@link TrackedBundleState}.
+     */
+    protected boolean handleCachedBundle(final Bundle bundle, final Serializable scanResult) {
+        return handleBundleAdded(bundle);
+    }
+
     /**
      * Event handler invoked when the bundle is changed. Will be invoked if the event type is LAZY_ACTIVATION or
      * STARTED.
      * 
      * @param event
      *            The bundle event. The source bundle can be read by {@link BundleEvent#getBundle()}.
-     * @return <code>true</code> if a {@link TrackedBundle} service should be created, otherwise <code>false</code>.
+     * @return <code>true</code> if the bundle is processed, <code>false</code> if it is skipped. See
+     *         {@link TrackedBundleState}.
      */
     protected abstract boolean handleBundleChanged(BundleEvent event);
 
@@ -116,40 +359,317 @@ public abstract class AbstractBundleTrackerCustomizer implements BundleTrackerCu
             // cannot think of why we would be interested in a modified bundle with no bundle event
             return;
         }
-        unregisterService(event.getBundle());
-        handleBundleChanged(event);
-        registerService(event.getBundle());
+        if (scanExecutor == null) {
+            processModifiedBundle(event);
+            return;
+        }
+        enqueue(bundle, new Runnable() {
+            @Override
+            public void run() {
+                processModifiedBundle(event);
+            }
+        });
+    }
+
+    private void processAddingBundle(final Bundle bundle, final BundleEvent event, final int bundleState) {
+        long startTime = System.nanoTime();
+        Long bundleId = Long.valueOf(bundle.getBundleId());
+        if (processedBundles.contains(bundleId)) {
+            // bundle processed already, we are not interested in
+            return;
+        }
+        if ((event == null) || (bundleState == Bundle.ACTIVE) || (bundleState == Bundle.STARTING)) {
+            publishState(bundle, TrackedBundleState.PROCESSING, null);
+            try {
+                publishResult(bundle, scanBundle(bundle));
+            } catch (RuntimeException e) {
+                publishFailure(bundle, e);
+            }
+        } else if ((event.getType() == BundleEvent.LAZY_ACTIVATION) || (event.getType() == BundleEvent.STARTED)) {
+            publishState(bundle, TrackedBundleState.PROCESSING, null);
+            try {
+                publishResult(bundle, handleBundleChanged(event));
+            } catch (RuntimeException e) {
+                publishFailure(bundle, e);
+            }
+        }
+        processedBundles.add(bundleId);
+        recordProcessingTime(bundleId, startTime);
     }
 
-    private void registerService(final Bundle bundle) {
-        Dictionary<String, String> props = new Hashtable<String, String>();
+    private void processModifiedBundle(final BundleEvent event) {
+        long startTime = System.nanoTime();
+        invalidateScanResult(event);
+        Bundle bundle = event.getBundle();
+        publishState(bundle, TrackedBundleState.PROCESSING, null);
+        try {
+            publishResult(bundle, handleBundleChanged(event));
+        } catch (RuntimeException e) {
+            publishFailure(bundle, e);
+        }
+        recordProcessingTime(Long.valueOf(event.getBundle().getBundleId()), startTime);
+    }
+
+    private void processRemovedBundle(final Bundle bundle, final BundleEvent event) {
+        invalidateScanResult(event);
+        unregisterService(bundle);
+        processedBundles.remove(bundle.getBundleId());
+        processingNanos.remove(Long.valueOf(bundle.getBundleId()));
+    }
+
+    private void initialScanFinished() {
+        synchronized (scanHelper) {
+            pendingInitialScanCount--;
+            scanHelper.notifyAll();
+        }
+    }
+
+    private void invalidateScanResult(final BundleEvent event) {
+        if ((scanCache != null) && (event != null)
+                && ((event.getType() == BundleEvent.UPDATED) || (event.getType() == BundleEvent.UNINSTALLED))) {
+            scanCache.invalidate(event.getBundle());
+        }
+    }
+
+    private void recordProcessingTime(final Long bundleId, final long startTime) {
+        long nanos = System.nanoTime() - startTime;
+        processingNanos.put(bundleId, Long.valueOf(nanos));
+        processingTime.record(nanos);
+    }
+
+    private void publishFailure(final Bundle bundle, final RuntimeException e) {
+        LOGGER.error("Error during processing bundle {}", bundle, e);
+        publishState(bundle, TrackedBundleState.FAILED, e.toString());
+    }
+
+    private void publishResult(final Bundle bundle, final boolean processed) {
+        if (processed) {
+            publishState(bundle, TrackedBundleState.PROCESSED, null);
+        } else {
+            publishState(bundle, TrackedBundleState.SKIPPED, null);
+        }
+    }
+
+    /**
+     * Publishes the state of the bundle in the properties of its {@link TrackedBundle} service. The service is
+     * registered at the first published state of the bundle and the later states only modify its properties, which is
+     * much cheaper for the framework and the service listeners than registering a new service for every state. Unless
+     * the lifecycle is published, the service is registered in the {@link TrackedBundleState#PROCESSED} state only.
+     * A processed bundle that is handled again keeps its service in the {@link TrackedBundleState#PROCESSING} state,
+     * and the service is unregistered only if the bundle is not processed anymore or it is removed.
+     * 
+     * @param failure
+     *            The description of the error in {@link TrackedBundleState#FAILED} state, otherwise
+     *            <code>null</code>.
+     */
+    private void publishState(final Bundle bundle, final TrackedBundleState state, final String failure) {
         long bundleId = bundle.getBundleId();
-        props.put(BUNDLE_ID, "" + bundleId);
-        props.put(PROCESSD_BY, id);
-        props.put(SYMBOLIC_NAME, bundle.getSymbolicName());
-        props.put(TrackedBundleState.class.getName(), TrackedBundleState.PROCESSED.toString());
-        // FIXME handle more TrackedBundleState
-        ServiceRegistration serviceRegistration =
-                bundleContext.registerService(TrackedBundle.class.getName(), new TrackedBundle() {
-                }, props);
-        registeredServices.put(bundleId, serviceRegistration);
+        if (aggregated) {
+            trackedBundleRegistry.setState(bundleId, bundle.getSymbolicName(), state, failure);
+            synchronized (registryHelper) {
+                if (registryRegistration == null) {
+                    Dictionary<String, String> props = new Hashtable<String, String>();
+                    props.put(PROCESSD_BY, id);
+                    registryRegistration = bundleContext.registerService(TrackedBundleRegistry.class.getName(),
+                            trackedBundleRegistry, props);
+                }
+            }
+            return;
+        }
+        synchronized (registrationHelper) {
+            TrackedBundleRegistration trackedBundleRegistration = registeredServices.get(bundleId);
+            if (!lifecyclePublished && (state != TrackedBundleState.PROCESSED)
+                    && ((trackedBundleRegistration == null) || (state != TrackedBundleState.PROCESSING))) {
+                if (trackedBundleRegistration != null) {
+                    registeredServices.remove(bundleId);
+                    unregister(trackedBundleRegistration.serviceRegistration);
+                }
+                return;
+            }
+            if (trackedBundleRegistration == null) {
+                Dictionary<String, String> props = new Hashtable<String, String>();
+                props.put(BUNDLE_ID, "" + bundleId);
+                props.put(PROCESSD_BY, id);
+                props.put(SYMBOLIC_NAME, bundle.getSymbolicName());
+                props.put(STATE, state.toString());
+                if (failure != null) {
+                    props.put(FAILURE, failure);
+                }
+                ServiceRegistration serviceRegistration =
+                        bundleContext.registerService(TrackedBundle.class.getName(), new TrackedBundle() {
+                        }, props);
+                registeredServices.put(bundleId, new TrackedBundleRegistration(serviceRegistration, props));
+                return;
+            }
+            Dictionary<String, String> props = trackedBundleRegistration.properties;
+            props.put(STATE, state.toString());
+            if (failure != null) {
+                props.put(FAILURE, failure);
+            } else {
+                props.remove(FAILURE);
+            }
+            trackedBundleRegistration.serviceRegistration.setProperties(props);
+        }
+    }
+
+    /**
+     * The number of the registered {@link TrackedBundle} services. It is at most the number of the tracked bundles,
+     * as every bundle has at most one registration.
+     */
+    public int getRegisteredServiceCount() {
+        return registeredServices.size();
     }
 
     @Override
     public void removedBundle(final Bundle bundle, final BundleEvent event, final Object object) {
-        unregisterService(bundle);
-        processedBundles.remove(bundle.getBundleId());
+        if (scanExecutor == null) {
+            processRemovedBundle(bundle, event);
+            return;
+        }
+        final Long bundleId = Long.valueOf(bundle.getBundleId());
+        enqueue(bundle, new Runnable() {
+            @Override
+            public void run() {
+                processRemovedBundle(bundle, event);
+                synchronized (queueHelper) {
+                    if (bundleQueues.get(bundleId).getQueuedCount() == 0) {
+                        // No further event of the bundle, the next one gets a new queue
+                        bundleQueues.remove(bundleId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles an added bundle with the cached scan result if there is a valid one, otherwise scans it and stores the
+     * result.
+     */
+    private boolean scanBundle(final Bundle bundle) {
+        if (scanCache == null) {
+            return handleBundleAdded(bundle);
+        }
+        Serializable scanResult = scanCache.get(bundle);
+        if (scanResult != null) {
+            return handleCachedBundle(bundle, scanResult);
+        }
+        boolean registerService = handleBundleAdded(bundle);
+        scanResult = createScanResult(bundle);
+        if (scanResult != null) {
+            scanCache.put(bundle, scanResult);
+        }
+        return registerService;
+    }
+
+    /**
+     * Makes the customizer publish the states of the bundles in one {@link TrackedBundleRegistry} service instead of
+     * registering a {@link TrackedBundle} service for every bundle. With many bundles and customizers this keeps the
+     * service registry small and the service listeners of the framework are not called for every state of every
+     * bundle. The registry service is registered when the first bundle is handled and unregistered when the last one
+     * is removed. Must be called before the tracker is opened.
+     * 
+     * @param aggregated
+     *            <code>true</code> to register the {@link TrackedBundleRegistry} service.
+     */
+    public void setAggregated(final boolean aggregated) {
+        this.aggregated = aggregated;
+    }
+
+    /**
+     * Makes the customizer register the {@link TrackedBundle} service of a bundle when its handling starts and keep it
+     * until the bundle is removed, so the {@link #STATE} property shows every {@link TrackedBundleState} of the bundle,
+     * including {@link TrackedBundleState#SKIPPED} and {@link TrackedBundleState#FAILED}. By default only the processed
+     * bundles have a service. Must be called before the tracker is opened.
+     * 
+     * @param lifecyclePublished
+     *            <code>true</code> to publish every state of the bundles.
+     */
+    public void setLifecyclePublished(final boolean lifecyclePublished) {
+        this.lifecyclePublished = lifecyclePublished;
+    }
+
+    /**
+     * Makes the customizer handle the bundles parallel on the executor instead of the thread of the bundle event. The
+     * events of the same bundle are handled one after the other in the order they arrived, and the
+     * {@link TrackedBundle} service of a bundle is registered in the thread that handles it. The implementations of
+     * {@link #handleBundleAdded(Bundle)} and {@link #handleBundleChanged(BundleEvent)} must be thread safe in this
+     * case. An executor with a bounded number of threads, e.g. one thread per processor, is a good choice. Must be
+     * called before the tracker is opened.
+     * 
+     * @param scanExecutor
+     *            The executor or <code>null</code> to handle the bundles on the thread of the event.
+     */
+    public void setScanExecutor(final Executor scanExecutor) {
+        this.scanExecutor = scanExecutor;
+    }
+
+    /**
+     * Waits until the bundles that were present when the tracker opened are handled. Returns immediately if there is
+     * no scan executor, as the bundles are handled by the time the tracker is opened.
+     * 
+     * @throws InterruptedException
+     *             If the waiting thread is interrupted.
+     */
+    public void waitForInitialScan() throws InterruptedException {
+        synchronized (scanHelper) {
+            while (pendingInitialScanCount > 0) {
+                scanHelper.wait();
+            }
+        }
+    }
+
+    /**
+     * Waits until the bundles that were present when the tracker opened are handled, but not longer than the timeout.
+     * 
+     * @param timeoutMillis
+     *            The maximum time to wait in milliseconds.
+     * @return <code>true</code> if the initial scan is finished, <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException
+     *             If the waiting thread is interrupted.
+     */
+    public boolean waitForInitialScan(final long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (scanHelper) {
+            while (pendingInitialScanCount > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                scanHelper.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private void unregister(final ServiceRegistration serviceRegistration) {
+        try {
+            serviceRegistration.unregister();
+        } catch (IllegalStateException e) {
+            // The framework unregistered the service already as the bundle of the customizer is stopping
+            LOGGER.debug("Service is unregistered already: {}", serviceRegistration, e);
+        }
     }
 
     private void unregisterService(final Bundle bundle) {
         long bundleId = bundle.getBundleId();
-        if (!registeredServices.containsKey(bundleId)) {
+        if (aggregated) {
+            trackedBundleRegistry.remove(bundleId);
+            synchronized (registryHelper) {
+                if ((registryRegistration != null) && (trackedBundleRegistry.size() == 0)) {
+                    unregister(registryRegistration);
+                    registryRegistration = null;
+                }
+            }
             return;
         }
-        ServiceRegistration serviceRegistration = registeredServices.get(bundleId);
-        ServiceReference reference = serviceRegistration.getReference();
-        bundleContext.ungetService(reference);
-        registeredServices.remove(bundleId);
+        TrackedBundleRegistration trackedBundleRegistration;
+        synchronized (registrationHelper) {
+            trackedBundleRegistration = registeredServices.remove(bundleId);
+        }
+        if (trackedBundleRegistration != null) {
+            unregister(trackedBundleRegistration.serviceRegistration);
+        }
     }
 
+
 }
@@ -0,0 +1,441 @@
+package org.everit.osgi.util.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the results of bundle scans in a file, so they can be reused after a restart instead of scanning the bundles
+ * again. The results are keyed by the symbolic name and version of the bundle and they are valid as long as
+ * {@link Bundle#getLastModified()} of the bundle does not change. See
+ * {@link AbstractBundleTrackerCustomizer#enableScanCache()}.
+ * <p>
+ * The file is a log of records that is only appended while the cache is in use, so storing a result costs one write
+ * of the record. A record is either a result or an invalidation, the later records override the earlier ones of the
+ * same bundle. When the cache is opened, the file is memory mapped and indexed, and the results are deserialized from
+ * the mapped buffer only when they are requested. If the file contains more overridden records than valid ones, it is
+ * compacted before it is mapped. A file that cannot be read is dropped and the cache starts empty.
+ */
+public class BundleScanCache {
+
+    /**
+     * The location of a result in the mapped file or the serialized result that was stored since the file was mapped.
+     */
+    private static class CachedResult {
+
+        private final long lastModified;
+
+        private final int offset;
+
+        private final int length;
+
+        private final byte[] bytes;
+
+        public CachedResult(final long lastModified, final int offset, final int length, final byte[] bytes) {
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.length = length;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Resolves the classes of the results with the class loader of the cache owner.
+     */
+    private static class ResultInputStream extends ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        public ResultInputStream(final InputStream in, final ClassLoader classLoader) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleScanCache.class);
+
+    /**
+     * The first bytes of the file: "ESC" and the format version.
+     */
+    private static final int MAGIC = 0x45534301;
+
+    private static final byte RECORD_RESULT = 1;
+
+    private static final byte RECORD_INVALIDATION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private final ClassLoader classLoader;
+
+    /**
+     * The valid results by bundle key. Guarded by the cache itself.
+     */
+    private final Map<String, CachedResult> results = new HashMap<String, CachedResult>();
+
+    /**
+     * The mapped content of the file at the time the cache was opened or <code>null</code> if the file was empty.
+     */
+    private final ByteBuffer mappedFile;
+
+    private int hitCount = 0;
+
+    private int missCount = 0;
+
+    /**
+     * Opens the cache. The file is created on the first stored result.
+     * 
+     * @param file
+     *            The file of the cache.
+     * @param classLoader
+     *            The class loader that resolves the classes of the stored results.
+     */
+    public BundleScanCache(final File file, final ClassLoader classLoader) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        this.file = file;
+        this.classLoader = classLoader;
+        mappedFile = load();
+    }
+
+    private static String createKey(final Bundle bundle) {
+        return bundle.getSymbolicName() + ";" + bundle.getVersion();
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static byte[] serialize(final Serializable scanResult) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(scanResult);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static void writeRecord(final DataOutputStream out, final String key, final CachedResult result,
+            final byte[] bytes) throws IOException {
+        if (result == null) {
+            out.writeByte(RECORD_INVALIDATION);
+            writeString(out, key);
+            return;
+        }
+        out.writeByte(RECORD_RESULT);
+        writeString(out, key);
+        out.writeLong(result.lastModified);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private void append(final String key, final CachedResult result, final byte[] bytes) {
+        boolean newFile = !file.exists() || (file.length() == 0);
+        try {
+            File parent = file.getParentFile();
+            if ((parent != null) && !parent.exists()) {
+                parent.mkdirs();
+            }
+            OutputStream fout = new FileOutputStream(file, true);
+            try {
+                // Written in one piece, so a record is not broken by a failed write in the middle
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bout);
+                if (newFile) {
+                    out.writeInt(MAGIC);
+                }
+                writeRecord(out, key, result, bytes);
+                out.flush();
+                fout.write(bout.toByteArray());
+            } finally {
+                fout.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write scan cache file {}", file, e);
+        }
+    }
+
+    /**
+     * Rewrites the file with the valid results only. The new content is written to a temporary file that is renamed
+     * over the old one, so a crash during the compaction leaves either the old or the new file behind. The old file is
+     * deleted first only if the platform cannot rename over an existing file.
+     */
+    private void compact(final ByteBuffer buffer) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            for (Entry<String, CachedResult> entry : results.entrySet()) {
+                CachedResult result = entry.getValue();
+                byte[] bytes = new byte[result.length];
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(result.offset);
+                slice.get(bytes);
+                writeRecord(out, entry.getKey(), result, bytes);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file) && (!file.delete() || !tempFile.renameTo(file))) {
+            if (!tempFile.delete()) {
+                LOGGER.warn("Cannot delete temporary scan cache file {}", tempFile);
+            }
+            throw new IOException("Cannot replace scan cache file " + file + " with " + tempFile);
+        }
+    }
+
+    private void drop() {
+        results.clear();
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete scan cache file {}", file);
+        }
+    }
+
+    /**
+     * Returns the result stored for the bundle if the bundle did not change since then.
+     * 
+     * @param bundle
+     *            The bundle.
+     * @return The result or <code>null</code> if there is no valid result for the bundle.
+     */
+    public synchronized Serializable get(final Bundle bundle) {
+        CachedResult result = results.get(createKey(bundle));
+        if ((result == null) || (result.lastModified != bundle.getLastModified())) {
+            missCount++;
+            return null;
+        }
+        InputStream in;
+        if (result.bytes != null) {
+            in = new ByteArrayInputStream(result.bytes);
+        } else {
+            byte[] bytes = new byte[result.length];
+            ByteBuffer slice = mappedFile.duplicate();
+            slice.position(result.offset);
+            slice.get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        try {
+            ObjectInputStream oin = new ResultInputStream(in, classLoader);
+            Serializable scanResult = (Serializable) oin.readObject();
+            hitCount++;
+            return scanResult;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot read the cached scan result of bundle {}, scanning it again", bundle, e);
+            results.remove(createKey(bundle));
+            missCount++;
+            return null;
+        }
+    }
+
+    /**
+     * The number of lookups that returned a result.
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of lookups that did not find a valid result.
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of the stored results, including the ones of bundles that changed since then.
+     */
+    public synchronized int getSize() {
+        return results.size();
+    }
+
+    /**
+     * Drops the result of the bundle, e.g. because the bundle was updated or uninstalled.
+     */
+    public synchronized void invalidate(final Bundle bundle) {
+        String key = createKey(bundle);
+        if (results.remove(key) != null) {
+            append(key, null, null);
+        }
+    }
+
+    private ByteBuffer load() {
+        if (!file.exists() || (file.length() == 0)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = map();
+            int recordCount = 0;
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    LOGGER.warn("Unknown scan cache file format, dropping {}", file);
+                    drop();
+                    return null;
+                }
+                while (buffer.hasRemaining()) {
+                    byte type = buffer.get();
+                    String key = readString(buffer);
+                    if (type == RECORD_RESULT) {
+                        long lastModified = buffer.getLong();
+                        int length = buffer.getInt();
+                        int offset = buffer.position();
+                        buffer.position(offset + length);
+                        results.put(key, new CachedResult(lastModified, offset, length, null));
+                    } else if (type == RECORD_INVALIDATION) {
+                        results.remove(key);
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                    recordCount++;
+                }
+            } catch (BufferUnderflowException e) {
+                // A record at the end was not written completely, the ones before are valid
+                LOGGER.warn("Scan cache file {} is truncated", file);
+                recordCount = Integer.MAX_VALUE;
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Scan cache file {} is truncated", file);
+                recordCount = Integer.MAX_VALUE;
+            }
+            if (recordCount > (results.size() * 2)) {
+                compact(buffer);
+                buffer = map();
+                // The compacted file contains the valid results in the order of the map
+                buffer.getInt();
+                for (Entry<String, CachedResult> entry : results.entrySet()) {
+                    buffer.get();
+                    readString(buffer);
+                    long lastModified = buffer.getLong();
+                    int length = buffer.getInt();
+                    entry.setValue(new CachedResult(lastModified, buffer.position(), length, null));
+                    buffer.position(buffer.position() + length);
+                }
+            }
+            return buffer;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read scan cache file, dropping {}", file, e);
+            drop();
+            return null;
+        }
+    }
+
+    /**
+     * Drops the results of the bundles that are not in the array.
+     * 
+     * @param bundles
+     *            The bundles that are installed.
+     */
+    public synchronized void retainAll(final Bundle[] bundles) {
+        Set<String> installedKeys = new HashSet<String>();
+        for (Bundle bundle : bundles) {
+            installedKeys.add(createKey(bundle));
+        }
+        Iterator<String> keyIterator = results.keySet().iterator();
+        while (keyIterator.hasNext()) {
+            String key = keyIterator.next();
+            if (!installedKeys.contains(key)) {
+                keyIterator.remove();
+                append(key, null, null);
+            }
+        }
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            FileChannel channel = fin.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            fin.close();
+        }
+    }
+
+    /**
+     * Stores the result of the scan of the bundle.
+     * 
+     * @param bundle
+     *            The scanned bundle.
+     * @param scanResult
+     *            The result.
+     */
+    public synchronized void put(final Bundle bundle, final Serializable scanResult) {
+        byte[] bytes;
+        try {
+            bytes = serialize(scanResult);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot serialize the scan result of bundle {}, it is not cached", bundle, e);
+            return;
+        }
+        String key = createKey(bundle);
+        CachedResult result = new CachedResult(bundle.getLastModified(), 0, bytes.length, bytes);
+        results.put(key, result);
+        append(key, result, bytes);
+    }
+}
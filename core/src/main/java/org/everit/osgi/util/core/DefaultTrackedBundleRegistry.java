@@ -0,0 +1,233 @@
+package org.everit.osgi.util.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link TrackedBundleRegistry} of an {@link AbstractBundleTrackerCustomizer}. The bundle ids are indexed by state
+ * and by symbolic name, so the lookups do not scan every bundle. The entries and the indexes are changed together
+ * under the helper, while the lookups read them without locking.
+ */
+class DefaultTrackedBundleRegistry implements TrackedBundleRegistry {
+
+    /**
+     * The state of a bundle in the registry. Immutable, a new instance replaces it at every change.
+     */
+    private static class TrackedBundleEntry {
+
+        private final String symbolicName;
+
+        private final TrackedBundleState state;
+
+        private final String failure;
+
+        public TrackedBundleEntry(final String symbolicName, final TrackedBundleState state, final String failure) {
+            this.symbolicName = symbolicName;
+            this.state = state;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefaultTrackedBundleRegistry.class);
+
+    private final Map<Long, TrackedBundleEntry> entries = new ConcurrentHashMap<Long, TrackedBundleEntry>();
+
+    /**
+     * The ids of the bundles by state. Every state has a set, so the map itself does not change.
+     */
+    private final Map<TrackedBundleState, Set<Long>> bundleIdsByState =
+            new EnumMap<TrackedBundleState, Set<Long>>(TrackedBundleState.class);
+
+    /**
+     * The ids of the bundles by symbolic name. The bundles without symbolic name are not indexed.
+     */
+    private final Map<String, Set<Long>> bundleIdsBySymbolicName = new ConcurrentHashMap<String, Set<Long>>();
+
+    /**
+     * Helper object that guards the changes of the entries and the indexes.
+     */
+    private final Object helper = new Object();
+
+    private final List<TrackedBundleListener> listeners = new CopyOnWriteArrayList<TrackedBundleListener>();
+
+    /**
+     * Constructor.
+     */
+    public DefaultTrackedBundleRegistry() {
+        for (TrackedBundleState state : TrackedBundleState.values()) {
+            bundleIdsByState.put(state, createBundleIdSet());
+        }
+    }
+
+    private static Set<Long> createBundleIdSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    }
+
+    @Override
+    public void addTrackedBundleListener(final TrackedBundleListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        listeners.add(listener);
+    }
+
+    @Override
+    public Collection<Long> getBundleIds() {
+        return new ArrayList<Long>(entries.keySet());
+    }
+
+    @Override
+    public Collection<Long> getBundleIdsByState(final TrackedBundleState state) {
+        if (state == null) {
+            return new ArrayList<Long>();
+        }
+        return new ArrayList<Long>(bundleIdsByState.get(state));
+    }
+
+    @Override
+    public Collection<Long> getBundleIdsBySymbolicName(final String symbolicName) {
+        if (symbolicName == null) {
+            return new ArrayList<Long>();
+        }
+        Set<Long> bundleIds = bundleIdsBySymbolicName.get(symbolicName);
+        if (bundleIds == null) {
+            return new ArrayList<Long>();
+        }
+        return new ArrayList<Long>(bundleIds);
+    }
+
+    @Override
+    public String getFailure(final long bundleId) {
+        TrackedBundleEntry entry = entries.get(Long.valueOf(bundleId));
+        if (entry == null) {
+            return null;
+        }
+        return entry.failure;
+    }
+
+    @Override
+    public TrackedBundleState getState(final long bundleId) {
+        TrackedBundleEntry entry = entries.get(Long.valueOf(bundleId));
+        if (entry == null) {
+            return null;
+        }
+        return entry.state;
+    }
+
+    @Override
+    public String getSymbolicName(final long bundleId) {
+        TrackedBundleEntry entry = entries.get(Long.valueOf(bundleId));
+        if (entry == null) {
+            return null;
+        }
+        return entry.symbolicName;
+    }
+
+    /**
+     * Removes the bundle and notifies the listeners if it was in the registry.
+     */
+    public void remove(final long bundleId) {
+        Long id = Long.valueOf(bundleId);
+        synchronized (helper) {
+            TrackedBundleEntry entry = entries.remove(id);
+            if (entry == null) {
+                return;
+            }
+            removeFromIndexes(id, entry);
+        }
+        for (TrackedBundleListener listener : listeners) {
+            try {
+                listener.trackedBundleRemoved(bundleId);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during notifying tracked bundle listener of removing bundle {}", bundleId, e);
+            }
+        }
+    }
+
+    private void removeFromIndexes(final Long bundleId, final TrackedBundleEntry entry) {
+        bundleIdsByState.get(entry.state).remove(bundleId);
+        if (entry.symbolicName != null) {
+            Set<Long> bundleIds = bundleIdsBySymbolicName.get(entry.symbolicName);
+            bundleIds.remove(bundleId);
+            if (bundleIds.isEmpty()) {
+                bundleIdsBySymbolicName.remove(entry.symbolicName);
+            }
+        }
+    }
+
+    @Override
+    public void removeTrackedBundleListener(final TrackedBundleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stores the new state of the bundle and notifies the listeners.
+     */
+    public void setState(final long bundleId, final String symbolicName, final TrackedBundleState state,
+            final String failure) {
+        Long id = Long.valueOf(bundleId);
+        TrackedBundleEntry entry = new TrackedBundleEntry(symbolicName, state, failure);
+        synchronized (helper) {
+            TrackedBundleEntry previousEntry = entries.put(id, entry);
+            if (previousEntry != null) {
+                removeFromIndexes(id, previousEntry);
+            }
+            bundleIdsByState.get(state).add(id);
+            if (symbolicName != null) {
+                Set<Long> bundleIds = bundleIdsBySymbolicName.get(symbolicName);
+                if (bundleIds == null) {
+                    bundleIds = createBundleIdSet();
+                    bundleIdsBySymbolicName.put(symbolicName, bundleIds);
+                }
+                bundleIds.add(id);
+            }
+        }
+        for (TrackedBundleListener listener : listeners) {
+            try {
+                listener.trackedBundleStateChanged(bundleId, state);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during notifying tracked bundle listener of bundle {}", bundleId, e);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+}
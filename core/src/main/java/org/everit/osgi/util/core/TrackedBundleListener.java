@@ -0,0 +1,49 @@
+package org.everit.osgi.util.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+/**
+ * Listener of the changes of a {@link TrackedBundleRegistry}. The methods are called on the thread that handles the
+ * bundle, so they should return quickly.
+ */
+public interface TrackedBundleListener {
+
+    /**
+     * Notification that a bundle is removed from the registry.
+     * 
+     * @param bundleId
+     *            The id of the bundle.
+     */
+    void trackedBundleRemoved(long bundleId);
+
+    /**
+     * Notification that a bundle got a new state. Called for the first state of the bundle as well.
+     * 
+     * @param bundleId
+     *            The id of the bundle.
+     * @param state
+     *            The new state of the bundle.
+     */
+    void trackedBundleStateChanged(long bundleId, TrackedBundleState state);
+}
@@ -0,0 +1,80 @@
+package org.everit.osgi.util.core;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.Collection;
+
+/**
+ * The states of all bundles handled by an {@link AbstractBundleTrackerCustomizer} in one service. It is registered
+ * instead of the {@link TrackedBundle} services if the customizer is switched to aggregated mode (see
+ * {@link AbstractBundleTrackerCustomizer#setAggregated(boolean)}). The service has the same <code>processdBy</code>
+ * property as the {@link TrackedBundle} services.
+ */
+public interface TrackedBundleRegistry {
+
+    void addTrackedBundleListener(TrackedBundleListener listener);
+
+    /**
+     * The ids of all bundles in the registry. The returned collection is a snapshot.
+     */
+    Collection<Long> getBundleIds();
+
+    /**
+     * The ids of the bundles that are in the given state. The returned collection is a snapshot.
+     */
+    Collection<Long> getBundleIdsByState(TrackedBundleState state);
+
+    /**
+     * The ids of the bundles that have the given symbolic name. The returned collection is a snapshot.
+     */
+    Collection<Long> getBundleIdsBySymbolicName(String symbolicName);
+
+    /**
+     * The description of the error of a bundle in {@link TrackedBundleState#FAILED} state.
+     * 
+     * @return The description or <code>null</code> if the bundle is not in the registry or it is not failed.
+     */
+    String getFailure(long bundleId);
+
+    /**
+     * The state of the bundle.
+     * 
+     * @return The state or <code>null</code> if the bundle is not in the registry.
+     */
+    TrackedBundleState getState(long bundleId);
+
+    /**
+     * The symbolic name of the bundle.
+     * 
+     * @return The symbolic name or <code>null</code> if the bundle is not in the registry.
+     */
+    String getSymbolicName(long bundleId);
+
+    void removeTrackedBundleListener(TrackedBundleListener listener);
+
+    /**
+     * The number of bundles in the registry.
+     */
+    int size();
+}
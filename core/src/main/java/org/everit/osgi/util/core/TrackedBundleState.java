@@ -21,8 +21,31 @@ package org.everit.osgi.util.core;
  * MA 02110-1301  USA
  */
 
+/**
+ * The state of a bundle handled by an {@link AbstractBundleTrackerCustomizer}, published in the
+ * {@link AbstractBundleTrackerCustomizer#STATE} property of the {@link TrackedBundle} service of the bundle.
+ */
 public enum TrackedBundleState {
 
-    PROCESSED;
+    /**
+     * The bundle is being handled.
+     */
+    PROCESSING,
+
+    /**
+     * The bundle was handled successfully.
+     */
+    PROCESSED,
+
+    /**
+     * The handling of the bundle threw an exception. The {@link AbstractBundleTrackerCustomizer#FAILURE} property
+     * describes the error.
+     */
+    FAILED,
+
+    /**
+     * The bundle was handled but the customizer is not interested in it.
+     */
+    SKIPPED;
 
 }
@@ -21,11 +21,29 @@ package org.everit.osgi.util.core.requisite;
  * MA 02110-1301  USA
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.everit.osgi.util.core.requisite.trace.TraceEventType;
+import org.everit.osgi.util.core.requisite.trace.TraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,10 +59,176 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
  */
 public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
 
+    /**
+     * A dependent object that uses a reference with the listener it was notified through.
+     */
+    private class Pairing {
+
+        private final ServiceReference reference;
+
+        /**
+         * The listener of the dependent object. Set by the notifying thread before the listener is called.
+         */
+        private RequisiteListener<D> requisiteListener;
+
+        /**
+         * The thread that notifies the listener about the pairing while the pairing is not stored yet.
+         */
+        private final Thread notifyingThread = Thread.currentThread();
+
+        /**
+         * Whether the listener cancelled the pairing during the notification.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Whether the pairing is stored or rolled back.
+         */
+        private boolean settled = false;
+
+        /**
+         * Whether the dependent object was removed during the notification.
+         */
+        private boolean removed = false;
+
+        /**
+         * Whether the dependent object was added again after it was removed during the notification.
+         */
+        private boolean readded = false;
+
+        public Pairing(final ServiceReference reference) {
+            this.reference = reference;
+        }
+
+        /**
+         * Makes the dependent object waiting again when the pairing is settled instead of the caller, so the new
+         * registration is not paired before the notifying thread ended the pairing of the removed one.
+         * 
+         * @return <code>false</code> if the pairing is settled already and the caller has to do it.
+         */
+        public synchronized boolean deferRelease() {
+            if (settled) {
+                return false;
+            }
+            readded = true;
+            return true;
+        }
+
+        public synchronized boolean isRemoved() {
+            return removed;
+        }
+
+        /**
+         * Marks the dependent object removed, so the notifying thread ends the pairing after the notification.
+         */
+        public synchronized void markRemoved() {
+            if (!settled) {
+                removed = true;
+            }
+        }
+
+        /**
+         * Marks the pairing stored or rolled back.
+         * 
+         * @return <code>true</code> if the dependent object was added again and the notifying thread has to make it
+         *         waiting.
+         */
+        public synchronized boolean settle() {
+            settled = true;
+            return readded;
+        }
+    }
+
+    /**
+     * The dependent objects that use a reference. The set is closed when the reference is removed, so no pairing can
+     * be added to a reference that is not tracked anymore. Only the users of the same reference wait for each other.
+     */
+    private class ReferenceUsers {
+
+        private final Set<D> users = new HashSet<D>();
+
+        private boolean closed = false;
+
+        /**
+         * Adds the dependent object to the users.
+         * 
+         * @return <code>false</code> if the set is closed and the dependent object was not added.
+         */
+        public synchronized boolean add(final D dependentObject) {
+            if (closed) {
+                return false;
+            }
+            users.add(dependentObject);
+            return true;
+        }
+
+        /**
+         * Closes the set.
+         * 
+         * @return The users at the time of closing.
+         */
+        public synchronized List<D> close() {
+            closed = true;
+            return new ArrayList<D>(users);
+        }
+
+        public synchronized List<D> getUsers() {
+            return new ArrayList<D>(users);
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public synchronized void remove(final D dependentObject) {
+            users.remove(dependentObject);
+        }
+
+        public synchronized int size() {
+            return users.size();
+        }
+    }
+
+    /**
+     * Listener wrapper that reports the duration of the calls to the metrics.
+     */
+    private class MeasuredRequisiteListener implements RequisiteListener<D> {
+
+        private final RequisiteListener<D> requisiteListener;
+
+        public MeasuredRequisiteListener(final RequisiteListener<D> requisiteListener) {
+            this.requisiteListener = requisiteListener;
+        }
+
+        @Override
+        public void requisiteAvailable(final D dependentObject, final ServiceReference requisite) {
+            long startTime = System.nanoTime();
+            boolean successful = false;
+            try {
+                requisiteListener.requisiteAvailable(dependentObject, requisite);
+                successful = true;
+            } finally {
+                metrics.listenerNotified(System.nanoTime() - startTime, successful);
+            }
+        }
+
+        @Override
+        public void requisiteRemoved(final D dependentObject, final ServiceReference requisite) {
+            long startTime = System.nanoTime();
+            boolean successful = false;
+            try {
+                requisiteListener.requisiteRemoved(dependentObject, requisite);
+                successful = true;
+            } finally {
+                metrics.listenerNotified(System.nanoTime() - startTime, successful);
+            }
+        }
+    }
+
     /** 
      * Logger. 
      */
-    private static final Logger LOGGER = LoggerFactory.getLogger("org.apache.aries.jpa.container");
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractRequisiteTracker.class);
 
     /**
      * Stores the saved comparable for the currently tracked service references.
@@ -57,22 +241,116 @@ public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
     private Map<D, Boolean> awaitingObjects = new ConcurrentHashMap<D, Boolean>();
 
     /**
-     * Components that got requirements from this manager and till now they accepted it.
+     * Components that got requirements from this manager and till now they accepted it. A pairing is put here after
+     * the listener was notified and the thread that removes it is the one that notifies the listener about the end of
+     * the pairing, so the transitions of a dependent object happen exactly once without a global lock.
      */
-    private Map<D, ServiceReference> referenceByUsingObject = new ConcurrentHashMap<D, ServiceReference>();
+    private ConcurrentMap<D, Pairing> pairingByUsingObject = new ConcurrentHashMap<D, Pairing>();
+
+    /**
+     * The pairings whose listeners are being notified, so a listener can cancel the pairing it is notified about.
+     */
+    private ConcurrentMap<D, Pairing> notifiedPairings = new ConcurrentHashMap<D, Pairing>();
 
     /**
      * Components by the requirements they use.
      */
-    private Map<ServiceReference, Set<D>> objectsThatUseReferences = new ConcurrentHashMap<ServiceReference, Set<D>>();
+    private ConcurrentMap<ServiceReference, ReferenceUsers> objectsThatUseReferences =
+            new ConcurrentHashMap<ServiceReference, ReferenceUsers>();
+
+    private Map<D, RequisiteListener<D>> requisiteListenersOfDependentObjets =
+            new ConcurrentHashMap<D, RequisiteListener<D>>();
 
-    private Map<D, RequisiteListener> requisiteListenersOfDependentObjets = new ConcurrentHashMap<D, RequisiteListener>();
+    private AbstractWrongPairingContainer<D> wrongPairingContainer = new WrongPairingContainer<D>();
 
-    private WrongPairingContainer<D> wrongPairingContainer = new WrongPairingContainer<D>();
+    /**
+     * Index of the dependent objects and references by the property values they are matched on or <code>null</code>
+     * if the subclass does not support indexing.
+     */
+    private final RequisiteIndex<D> requisiteIndex;
+
+    /**
+     * Dispatcher that notifies the listeners asynchronously or <code>null</code> if the listeners are called on the
+     * thread of the event.
+     */
+    private AsyncRequisiteDispatcher<D> requisiteDispatcher;
+
+    /**
+     * Scheduler of the batch flushes or <code>null</code> if the new references are paired one by one.
+     */
+    private ScheduledExecutorService batchScheduler;
+
+    private long batchWindowMillis;
+
+    private int batchMaxSize;
+
+    /**
+     * References that are tracked already but not offered to the waiting dependent objects yet.
+     */
+    private final Set<ServiceReference> pendingReferences = Collections
+            .newSetFromMap(new ConcurrentHashMap<ServiceReference, Boolean>());
+
+    private final AtomicBoolean batchFlushScheduled = new AtomicBoolean(false);
+
+    /**
+     * Helper object that makes batch flushes run one after the other.
+     */
+    private final Object batchHelper = new Object();
+
+    private PairingStrategy pairingStrategy = DefaultPairingStrategy.FIRST_FIT;
+
+    /**
+     * Executor that processes the changes of the state one after the other or <code>null</code> if they are processed
+     * on the calling thread.
+     */
+    private SerialExecutor serialExecutor;
+
+    /**
+     * Executor that evaluates the suitability of the references parallel or <code>null</code> if the evaluation runs
+     * on the calling thread.
+     */
+    private ExecutorService suitabilityExecutor;
+
+    /**
+     * Cache of the suitability verdicts or <code>null</code> if every pair is evaluated.
+     */
+    private SuitabilityVerdictCache<D> verdictCache;
+
+    /**
+     * Receiver of the measured events or <code>null</code> if nothing is measured.
+     */
+    private RequisiteTrackerMetrics metrics;
+
+    /**
+     * Recorder of the events or <code>null</code> if nothing is recorded.
+     */
+    private TraceRecorder traceRecorder;
+
+    private String traceSourceName;
+
+    private int traceSourceId;
+
+    private final PairingStrategy.ReferenceUsage referenceUsage = new PairingStrategy.ReferenceUsage() {
+
+        @Override
+        public int getUserCount(final ServiceReference reference) {
+            ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(reference);
+            if (objectsThatUseReference == null) {
+                return 0;
+            }
+            return objectsThatUseReference.size();
+        }
+    };
 
     public AbstractRequisiteTracker(final BundleContext context, final String filter)
             throws InvalidSyntaxException {
         super(context, context.createFilter(filter), null);
+        String[] indexedPropertyKeys = getIndexedPropertyKeys();
+        if ((indexedPropertyKeys != null) && (indexedPropertyKeys.length > 0)) {
+            requisiteIndex = new RequisiteIndex<D>(indexedPropertyKeys);
+        } else {
+            requisiteIndex = null;
+        }
     }
 
     /**
@@ -82,29 +360,66 @@ public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
      */
     public void addDependentObject(final D dependentObject,
             final RequisiteListener<D> requisiteListener) {
-        if (objectsThatUseReferences.containsKey(dependentObject)) {
-            LOGGER.warn("addDependentObject was called with an already satisfied object. Do nothing: "
-                    + dependentObject.toString());
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    addDependentObject(dependentObject, requisiteListener);
+                }
+            });
             return;
         }
-        if (awaitingObjects.put(dependentObject, Boolean.TRUE) != null) {
-            LOGGER.warn("addDependentObject was called with an already waiting object: "
-                    + dependentObject.toString());
+        if (registerDependentObject(dependentObject, requisiteListener)) {
+            foundReqiurmentForDependObject(dependentObject);
         }
-        requisiteListenersOfDependentObjets.put(dependentObject,
-                requisiteListener);
+    }
 
-        foundReqiurmentForDependObject(dependentObject);
+    /**
+     * Adds more dependent objects in one pass. The dependent objects are paired one after the other in the iteration
+     * order of the map. If a suitability executor is set (see {@link #setSuitabilityExecutor(ExecutorService)}), the
+     * suitability of every candidate reference is evaluated for the whole batch parallel first and the pairings are
+     * committed in the same order afterwards, so the result does not depend on the order the evaluations finished.
+     * 
+     * @param dependentObjectsWithListeners
+     *            The dependent objects and their listeners.
+     */
+    public void addDependentObjects(final Map<D, RequisiteListener<D>> dependentObjectsWithListeners) {
+        if (isSerialized()) {
+            final Map<D, RequisiteListener<D>> copy =
+                    new LinkedHashMap<D, RequisiteListener<D>>(dependentObjectsWithListeners);
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    addDependentObjects(copy);
+                }
+            });
+            return;
+        }
+        List<D> dependentObjects = new ArrayList<D>(dependentObjectsWithListeners.size());
+        for (Entry<D, RequisiteListener<D>> entry : dependentObjectsWithListeners.entrySet()) {
+            if (registerDependentObject(entry.getKey(), entry.getValue())) {
+                dependentObjects.add(entry.getKey());
+            }
+        }
+        pairDependentObjects(dependentObjects, null);
     }
 
     private void foundReqiurmentForDependObject(final D dependentObject) {
-        Iterator<ServiceReference> referenceIterator = referencesWithComparators
-                .keySet().iterator();
+        foundReqiurmentForDependObject(dependentObject, getCandidateReferences(dependentObject));
+    }
+
+    /**
+     * Offers the references to the dependent object in the order of the pairing strategy until one is accepted.
+     */
+    private void foundReqiurmentForDependObject(final D dependentObject,
+            final Collection<ServiceReference> references) {
+        Iterator<ServiceReference> referenceIterator = pairingStrategy.orderCandidates(references, referenceUsage)
+                .iterator();
         boolean foundRequirement = false;
-        while (referenceIterator.hasNext() && !foundRequirement) {
+        while (referenceIterator.hasNext() && !foundRequirement && awaitingObjects.containsKey(dependentObject)) {
             ServiceReference requirement = referenceIterator.next();
-            if (!wrongPairingContainer.isWrongPairing(dependentObject,
-                    requirement)) {
+            if (referencesWithComparators.containsKey(requirement)
+                    && !wrongPairingContainer.isWrongPairing(dependentObject, requirement)) {
                 foundRequirement = tryPairing(dependentObject, requirement);
             }
         }
@@ -112,17 +427,57 @@ public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
 
     /**
      * Clever subclasses may override this function and instead of iterating they simply call tryRequirement with the
-     * components they know as well.
+     * components they know as well. Subclasses that support indexing (see {@link #getIndexedPropertyKeys()}) get only
+     * the candidate components offered.
      */
     @Override
     public Object addingService(final ServiceReference reference) {
-        for (D component : awaitingObjects.keySet()) {
-            if (!wrongPairingContainer.isWrongPairing(component, reference)) {
-                tryPairing(component, reference);
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    addingService(reference);
+                }
+            });
+            return reference;
+        }
+        trace(TraceEventType.SERVICE_ADDING, reference, null);
+        if (batchScheduler != null) {
+            referencesWithComparators.put(reference, createComparableFromReference(reference));
+            if (requisiteIndex != null) {
+                requisiteIndex.addReference(reference);
             }
+            pendingReferences.add(reference);
+            if (pendingReferences.size() >= batchMaxSize) {
+                flushPendingReferences();
+            } else if (batchFlushScheduled.compareAndSet(false, true)) {
+                try {
+                    batchScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushPendingReferences();
+                        }
+                    }, batchWindowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Nobody would flush the batch, so the references are offered now
+                    LOGGER.warn("Batch scheduler rejected the flush, flushing the pending references immediately", e);
+                    batchFlushScheduled.set(false);
+                    flushPendingReferences();
+                }
+            }
+            return reference;
         }
+        // The reference must be tracked before it is offered, pairings with untracked references are rolled back
         referencesWithComparators.put(reference,
                 createComparableFromReference(reference));
+        Collection<D> candidates;
+        if (requisiteIndex != null) {
+            requisiteIndex.addReference(reference);
+            candidates = requisiteIndex.getCandidateDependentObjects(reference);
+        } else {
+            candidates = awaitingObjects.keySet();
+        }
+        offerReference(getAwaitingObjects(candidates, reference), reference);
         return reference;
     }
 
@@ -141,8 +496,516 @@ public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
     protected abstract Comparable<ServiceReference> createComparableFromReference(
             ServiceReference reference);
 
+    /**
+     * Creates the key of the reference in the verdict cache (see {@link #setVerdictCache(SuitabilityVerdictCache)}).
+     * Two references must have equal fingerprints only if {@link #isReferenceSuitable(Object, ServiceReference)}
+     * gives the same verdict for them for every dependent object, so the fingerprint should contain the values of
+     * every property the check reads. The function is called for every evaluation so it should be cheap.
+     * 
+     * @param reference
+     *            The reference.
+     * @return The fingerprint or <code>null</code> if the verdicts of the reference must not be cached. By default
+     *         <code>null</code>.
+     */
+    protected Object createSuitabilityFingerprint(final ServiceReference reference) {
+        return null;
+    }
+
+    /**
+     * Offers the references that arrived in batching mode and are not offered yet to the waiting dependent objects in
+     * one pass. Called automatically when the batch window elapses or the batch is full, but it can be called any time
+     * to pair the pending references immediately.
+     */
+    public void flushPendingReferences() {
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingReferences();
+                }
+            });
+            return;
+        }
+        synchronized (batchHelper) {
+            batchFlushScheduled.set(false);
+            if (pendingReferences.isEmpty()) {
+                return;
+            }
+            List<ServiceReference> references = new ArrayList<ServiceReference>();
+            Iterator<ServiceReference> pendingIterator = pendingReferences.iterator();
+            while (pendingIterator.hasNext()) {
+                references.add(pendingIterator.next());
+                pendingIterator.remove();
+            }
+
+            Collection<D> candidates;
+            if (requisiteIndex != null) {
+                Set<D> candidateSet = new LinkedHashSet<D>();
+                for (ServiceReference reference : references) {
+                    candidateSet.addAll(requisiteIndex.getCandidateDependentObjects(reference));
+                }
+                candidates = candidateSet;
+            } else {
+                candidates = new ArrayList<D>(awaitingObjects.keySet());
+            }
+            List<D> awaitingCandidates = new ArrayList<D>();
+            for (D dependentObject : candidates) {
+                if (awaitingObjects.containsKey(dependentObject)) {
+                    awaitingCandidates.add(dependentObject);
+                }
+            }
+            pairDependentObjects(awaitingCandidates, references);
+        }
+    }
+
+    /**
+     * Claims the waiting dependent object, notifies the listener and stores the pairing. Only the thread that removes
+     * the dependent object from the waiting ones may pair it. If the listener throws an exception or cancels the
+     * pairing, the dependent object waits again. If the reference was removed or modified, or the dependent object was
+     * removed while the pairing was not stored yet, the pairing is rolled back here.
+     * 
+     * @return <code>true</code> if the dependent object uses the reference.
+     */
+    private boolean commitPairing(final D dependentObject, final ServiceReference reference) {
+        if (awaitingObjects.remove(dependentObject) == null) {
+            return false;
+        }
+        // Published before the registration is checked, so a removal of the dependent object can mark it
+        Pairing pairing = new Pairing(reference);
+        notifiedPairings.put(dependentObject, pairing);
+        boolean retry = false;
+        try {
+            pairing.requisiteListener = requisiteListenersOfDependentObjets.get(dependentObject);
+            if (pairing.requisiteListener == null) {
+                // Removed since it was claimed
+                return false;
+            }
+            ReferenceUsers objectsThatUseReference = getReferenceUsers(reference);
+            if ((objectsThatUseReference == null) || !objectsThatUseReference.add(dependentObject)) {
+                retry = true;
+                return false;
+            }
+            try {
+                fireRequisiteAvailable(pairing.requisiteListener, dependentObject, reference);
+            } catch (Exception e) {
+                LOGGER.error("Exception during notifying the requisite listener of component: "
+                        + "[requirement: {}, compoenent: {}]", new Object[] { reference, dependentObject, e });
+                wrongPairingContainer.addWrongPairing(dependentObject, reference);
+                pairing.cancelled = true;
+            }
+            if (pairing.cancelled) {
+                objectsThatUseReference.remove(dependentObject);
+                retry = true;
+                return false;
+            }
+            pairingByUsingObject.put(dependentObject, pairing);
+            if (metrics != null) {
+                metrics.paired();
+            }
+
+            // Transitions that ran while the pairing was not stored could not see it
+            boolean referenceLost = objectsThatUseReference.isClosed()
+                    || !referencesWithComparators.containsKey(reference)
+                    || wrongPairingContainer.isWrongPairing(dependentObject, reference);
+            if ((referenceLost || pairing.isRemoved()
+                    || !requisiteListenersOfDependentObjets.containsKey(dependentObject))
+                    && pairingByUsingObject.remove(dependentObject, pairing)) {
+                objectsThatUseReference.remove(dependentObject);
+                fireRequisiteRemoved(pairing.requisiteListener, dependentObject, reference);
+                retry = referenceLost;
+                return false;
+            }
+            return true;
+        } finally {
+            notifiedPairings.remove(dependentObject, pairing);
+            if (pairing.settle()) {
+                retry = true;
+            }
+            if (retry) {
+                retryPairing(dependentObject);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the candidate references of the dependent objects on the suitability executor. The references that are
+     * not suitable are stored as wrong pairings.
+     * 
+     * @param references
+     *            The references to evaluate or <code>null</code> to evaluate every candidate reference.
+     * @return The suitable references of each dependent object in the same order as the dependent objects.
+     */
+    private List<Collection<ServiceReference>> evaluateDependentObjects(final List<D> dependentObjects,
+            final Collection<ServiceReference> references) {
+        List<Callable<Collection<ServiceReference>>> tasks =
+                new ArrayList<Callable<Collection<ServiceReference>>>(dependentObjects.size());
+        for (final D dependentObject : dependentObjects) {
+            tasks.add(new Callable<Collection<ServiceReference>>() {
+                @Override
+                public Collection<ServiceReference> call() {
+                    if (references == null) {
+                        return findSuitableReferences(dependentObject, getCandidateReferences(dependentObject));
+                    }
+                    return findSuitableReferences(dependentObject, references);
+                }
+            });
+        }
+        return runSuitabilityTasks(tasks);
+    }
+
+    /**
+     * Evaluates the suitability of the reference for the dependent objects on the suitability executor.
+     * 
+     * @return The verdicts in the same order as the dependent objects.
+     */
+    private List<Boolean> evaluateSuitability(final List<D> dependentObjects, final ServiceReference reference) {
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(dependentObjects.size());
+        for (final D dependentObject : dependentObjects) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Boolean.valueOf(evaluateSuitability(dependentObject, reference));
+                }
+            });
+        }
+        return runSuitabilityTasks(tasks);
+    }
+
+    /**
+     * Evaluates every candidate reference of the dependent object that is not a wrong pairing yet.
+     */
+    private Collection<ServiceReference> findSuitableReferences(final D dependentObject,
+            final Collection<ServiceReference> references) {
+        List<ServiceReference> result = new ArrayList<ServiceReference>();
+        for (ServiceReference reference : references) {
+            if (!wrongPairingContainer.isWrongPairing(dependentObject, reference)) {
+                if (evaluateSuitability(dependentObject, reference)) {
+                    result.add(reference);
+                } else {
+                    wrongPairingContainer.addWrongPairing(dependentObject, reference);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void fireRequisiteAvailable(final RequisiteListener<D> requisiteListener, final D dependentObject,
+            final ServiceReference reference) {
+        trace(TraceEventType.REQUISITE_AVAILABLE, reference, dependentObject);
+        RequisiteListener<D> listener = measure(requisiteListener);
+        if (requisiteDispatcher != null) {
+            requisiteDispatcher.dispatchRequisiteAvailable(listener, dependentObject, reference);
+        } else {
+            listener.requisiteAvailable(dependentObject, reference);
+        }
+    }
+
+    /**
+     * Notifies the listener about the end of a pairing. If the dispatcher rejects the notification, the listener is
+     * called on this thread. A failure of the listener is logged and not thrown, so the other users of a removed
+     * reference are released as well.
+     */
+    private void fireRequisiteRemoved(final RequisiteListener<D> requisiteListener, final D dependentObject,
+            final ServiceReference reference) {
+        if (metrics != null) {
+            metrics.unpaired();
+        }
+        trace(TraceEventType.REQUISITE_REMOVED, reference, dependentObject);
+        RequisiteListener<D> listener = measure(requisiteListener);
+        try {
+            if (requisiteDispatcher != null) {
+                try {
+                    requisiteDispatcher.dispatchRequisiteRemoved(listener, dependentObject, reference);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    LOGGER.warn("Dispatcher rejected the notification, notifying on the calling thread: "
+                            + "[requirement: {}, component: {}]", new Object[] { reference, dependentObject, e });
+                }
+            }
+            listener.requisiteRemoved(dependentObject, reference);
+        } catch (RuntimeException e) {
+            LOGGER.error("Exception during notifying the requisite listener about the removal: "
+                    + "[requirement: {}, component: {}]", new Object[] { reference, dependentObject, e });
+        }
+    }
+
+    /**
+     * Makes the tracker collect the new references and offer them to the waiting dependent objects in one pass at the
+     * end of a time window or when enough references arrived. This is useful at startup when lots of services are
+     * registered in a short time. Removed references are handled immediately as the dependent objects must stop using
+     * them before the service is unregistered. Dependent objects that are added in the meantime see the pending
+     * references immediately. If the scheduler rejects the flush, e.g. because it is shut down, the pending references
+     * are flushed on the thread of the service event. Must be called before the tracker is opened.
+     * 
+     * @param batchScheduler
+     *            The scheduler that flushes the batch at the end of the window or <code>null</code> to switch batching
+     *            off.
+     * @param batchWindowMillis
+     *            The time in milliseconds the references are collected after the first pending one arrived.
+     * @param batchMaxSize
+     *            The number of pending references that triggers the flush before the window elapses.
+     */
+    public void setBatching(final ScheduledExecutorService batchScheduler, final long batchWindowMillis,
+            final int batchMaxSize) {
+        if ((batchScheduler != null) && ((batchWindowMillis < 0) || (batchMaxSize < 1))) {
+            throw new IllegalArgumentException("Invalid batch window or size: " + batchWindowMillis + ", "
+                    + batchMaxSize);
+        }
+        this.batchScheduler = batchScheduler;
+        this.batchWindowMillis = batchWindowMillis;
+        this.batchMaxSize = batchMaxSize;
+    }
+
+    /**
+     * Sets the strategy that decides which reference is offered first to a dependent object when more references are
+     * available. By default {@link DefaultPairingStrategy#FIRST_FIT}.
+     * 
+     * @param pairingStrategy
+     *            The strategy.
+     */
+    public void setPairingStrategy(final PairingStrategy pairingStrategy) {
+        if (pairingStrategy == null) {
+            throw new IllegalArgumentException("Pairing strategy cannot be null");
+        }
+        this.pairingStrategy = pairingStrategy;
+    }
+
+    /**
+     * Makes the tracker notify the {@link RequisiteListener}s via the dispatcher instead of calling them on the thread
+     * of the service event. The notifications of a dependent object keep their order. In this mode an exception of
+     * {@link RequisiteListener#requisiteAvailable(Object, ServiceReference)} does not cancel the pairing, it is only
+     * logged. If the executor of the dispatcher rejects a {@link RequisiteListener#requisiteRemoved(Object,
+     * ServiceReference)} call, the listener is called on the thread of the change instead.
+     * <p>
+     * {@link #removedService(ServiceReference, Object)} does not wait for the queued
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)} calls, as a listener that unregisters a
+     * service on the executor would wait for itself. The framework may therefore unget the service while the users
+     * are still being notified about its removal: the listeners must not call the service in
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)}. Do not set a dispatcher if the users must
+     * release the service before the framework ungets it. Must be called before the tracker is opened and any
+     * dependent object is added.
+     * 
+     * @param requisiteDispatcher
+     *            The dispatcher or <code>null</code> to call the listeners synchronously.
+     */
+    public void setRequisiteDispatcher(final AsyncRequisiteDispatcher<D> requisiteDispatcher) {
+        this.requisiteDispatcher = requisiteDispatcher;
+    }
+
+    /**
+     * Makes the tracker process every change of its state on the serial executor: the service events, the added and
+     * removed dependent objects, the cancelled acceptances and the batch flushes. The calling thread only enqueues the
+     * change and returns, so the framework thread that dispatches the service events does not wait for the pairing
+     * and the listeners and the changes do not contend with each other. The only exception is the removal of a
+     * service: the framework may unget the service as soon as {@link #removedService(ServiceReference, Object)}
+     * returns, so the calling thread waits until the removal was run and the users of the service got
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)}. The listeners are called on the executor,
+     * the calls they make to the tracker run directly. The getters of the state show the result of the changes that
+     * were run already, {@link SerialExecutor#awaitIdle(long)} waits for the rest. One executor may be shared by several
+     * trackers, e.g. the ones of a {@link MultiRequisiteManager}, so their changes run one after the other as well.
+     * Must be called before the tracker is opened and any dependent object is added.
+     * 
+     * @param serialExecutor
+     *            The executor or <code>null</code> to process the changes on the calling thread.
+     */
+    public void setSerialExecutor(final SerialExecutor serialExecutor) {
+        this.serialExecutor = serialExecutor;
+    }
+
+    /**
+     * Makes the tracker evaluate {@link #isReferenceSuitable(Object, ServiceReference)} parallel on the executor,
+     * which is worth when the check is expensive, e.g. it opens a test connection. A new, modified or removed reference
+     * and a batch of dependent objects added by {@link #addDependentObjects(Map)} is evaluated for every candidate
+     * pair parallel first. The pairings are committed afterwards on the calling thread in the same order as without
+     * the executor, so the result does not depend on the order the evaluations finished. A
+     * <code>ForkJoinPool</code> is a good choice on Java 7 and later. The implementation of
+     * {@link #isReferenceSuitable(Object, ServiceReference)} must be thread safe in this case. Must be called before
+     * the tracker is opened and any dependent object is added.
+     * 
+     * @param suitabilityExecutor
+     *            The executor or <code>null</code> to evaluate on the calling thread.
+     */
+    public void setSuitabilityExecutor(final ExecutorService suitabilityExecutor) {
+        this.suitabilityExecutor = suitabilityExecutor;
+    }
+
+    /**
+     * Makes the tracker remember the verdicts of {@link #isReferenceSuitable(Object, ServiceReference)} by dependent
+     * object and reference fingerprint, so a restarted provider with the same properties is paired again without
+     * evaluating the suitability. Only works if the subclass implements
+     * {@link #createSuitabilityFingerprint(ServiceReference)}. The verdicts of a dependent object are dropped when it
+     * is removed. A cache must not be shared by trackers with different suitability rules. Must be called before the
+     * tracker is opened and any dependent object is added.
+     * 
+     * @param verdictCache
+     *            The cache or <code>null</code> to evaluate every pair.
+     */
+    public void setVerdictCache(final SuitabilityVerdictCache<D> verdictCache) {
+        this.verdictCache = verdictCache;
+    }
+
+    /**
+     * Makes the tracker report the suitability evaluations, the pairings and the listener calls. The default
+     * implementation is {@link RequisiteTrackerStatistics} that can be registered as an MBean. Must be called before
+     * the tracker is opened.
+     * 
+     * @param metrics
+     *            The receiver of the events or <code>null</code> to measure nothing.
+     */
+    public void setMetrics(final RequisiteTrackerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Makes the tracker record the service events, the added and removed dependent objects and the listener
+     * notifications. Several trackers and managers may record to the same recorder. Must be called before the tracker
+     * is opened.
+     * 
+     * @param traceRecorder
+     *            The recorder or <code>null</code> to record nothing.
+     * @param sourceName
+     *            The name of the tracker in the recorded events. A replay finds the tracker by this name.
+     */
+    public void setTraceRecorder(final TraceRecorder traceRecorder, final String sourceName) {
+        if (traceRecorder != null) {
+            traceSourceId = traceRecorder.registerSource(sourceName);
+        }
+        traceSourceName = sourceName;
+        this.traceRecorder = traceRecorder;
+    }
+
+    /**
+     * Replaces the container that stores the pairings that surely not work together, for example with a
+     * {@link CompactWrongPairingContainer} if there are a lot of dependent objects and references. Must be called
+     * before the tracker is opened and any dependent object is added.
+     * 
+     * @param wrongPairingContainer
+     *            The new container.
+     */
+    public void setWrongPairingContainer(final AbstractWrongPairingContainer<D> wrongPairingContainer) {
+        if (wrongPairingContainer == null) {
+            throw new IllegalArgumentException("Wrong pairing container cannot be null");
+        }
+        this.wrongPairingContainer = wrongPairingContainer;
+    }
+
+    /**
+     * The candidates that are waiting for a reference and did not reject the reference yet.
+     */
+    private List<D> getAwaitingObjects(final Collection<D> candidates, final ServiceReference reference) {
+        List<D> result = new ArrayList<D>();
+        for (D dependentObject : candidates) {
+            if (awaitingObjects.containsKey(dependentObject)
+                    && !wrongPairingContainer.isWrongPairing(dependentObject, reference)) {
+                result.add(dependentObject);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The users of the reference. The set is created if the reference does not have users yet.
+     * 
+     * @return The users or <code>null</code> if the reference is not tracked.
+     */
+    private ReferenceUsers getReferenceUsers(final ServiceReference reference) {
+        ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(reference);
+        if (objectsThatUseReference == null) {
+            if (!referencesWithComparators.containsKey(reference)) {
+                return null;
+            }
+            ReferenceUsers newObjectsThatUseReference = new ReferenceUsers();
+            objectsThatUseReference = objectsThatUseReferences.putIfAbsent(reference, newObjectsThatUseReference);
+            if (objectsThatUseReference == null) {
+                objectsThatUseReference = newObjectsThatUseReference;
+            }
+        }
+        return objectsThatUseReference;
+    }
+
+    /**
+     * The references that may be suitable for the dependent object.
+     */
+    private Collection<ServiceReference> getCandidateReferences(final D dependentObject) {
+        Collection<ServiceReference> candidates = null;
+        if (requisiteIndex != null) {
+            candidates = requisiteIndex.getCandidateReferences(dependentObject);
+        }
+        if (candidates == null) {
+            candidates = referencesWithComparators.keySet();
+        }
+        return candidates;
+    }
+
+    /**
+     * The keys of the service properties that the tracker matches on. If a subclass returns keys, the tracker keeps a
+     * hash index of the dependent objects and references by the values of these properties and calls
+     * {@link #isReferenceSuitable(Object, ServiceReference)} only for the pairs where the values equal. The function is
+     * called from the constructor so it must not rely on the state of the subclass.
+     * 
+     * @return The property keys or <code>null</code> if indexing is not supported. By default <code>null</code>.
+     */
+    protected String[] getIndexedPropertyKeys() {
+        return null;
+    }
+
+    /**
+     * The values that a service reference must have in the properties returned by {@link #getIndexedPropertyKeys()}
+     * to be suitable for the dependent object. Only called if the subclass supports indexing.
+     * 
+     * @param dependentObject
+     *            The component.
+     * @return The required property values in the same order as the keys or <code>null</code> if the dependent object
+     *         should be offered every reference.
+     */
+    protected Object[] getIndexValues(final D dependentObject) {
+        return null;
+    }
+
+    /**
+     * The number of dependent objects that wait for a suitable reference.
+     */
+    public int getAwaitingObjectCount() {
+        return awaitingObjects.size();
+    }
+
+    /**
+     * The number of dependent objects that use a reference.
+     */
+    public int getPairedObjectCount() {
+        return pairingByUsingObject.size();
+    }
+
+    /**
+     * The number of references that are tracked, including the ones that are not offered yet due to batching.
+     */
+    public int getTrackedReferenceCount() {
+        return referencesWithComparators.size();
+    }
+
+    /**
+     * The number of dependent object-reference pairs that are known to be not suitable.
+     */
+    public int getWrongPairingCount() {
+        return wrongPairingContainer.getWrongPairingCount();
+    }
+
+    /**
+     * The name of the tracker in the recorded events or <code>null</code> if the tracker does not record.
+     */
+    String getTraceSourceName() {
+        if (traceRecorder == null) {
+            return null;
+        }
+        return traceSourceName;
+    }
+
     public ServiceReference getServiceReferenceByComponent(final D component) {
-        return referenceByUsingObject.get(component);
+        Pairing pairing = pairingByUsingObject.get(component);
+        if (pairing == null) {
+            return null;
+        }
+        return pairing.reference;
     }
 
     /**
@@ -159,95 +1022,435 @@ public abstract class AbstractRequisiteTracker<D> extends ServiceTracker {
     protected abstract boolean isReferenceSuitable(D dependentObject,
             ServiceReference reference);
 
+    /**
+     * Calls {@link #isReferenceSuitable(Object, ServiceReference)} or takes the verdict from the cache and handles an
+     * exception as not suitable. Verdicts of failed evaluations are not cached.
+     */
+    private boolean evaluateSuitability(final D dependentObject, final ServiceReference reference) {
+        try {
+            Object fingerprint = null;
+            if (verdictCache != null) {
+                fingerprint = createSuitabilityFingerprint(reference);
+                if (fingerprint != null) {
+                    Boolean verdict = verdictCache.get(dependentObject, fingerprint);
+                    if (verdict != null) {
+                        return verdict.booleanValue();
+                    }
+                }
+            }
+            boolean suitable = false;
+            if (metrics != null) {
+                long startTime = System.nanoTime();
+                try {
+                    suitable = isReferenceSuitable(dependentObject, reference);
+                } finally {
+                    metrics.suitabilityEvaluated(System.nanoTime() - startTime, suitable);
+                }
+            } else {
+                suitable = isReferenceSuitable(dependentObject, reference);
+            }
+            if (fingerprint != null) {
+                verdictCache.put(dependentObject, fingerprint, suitable);
+            }
+            return suitable;
+        } catch (Exception e) {
+            LOGGER.error("Exception during trying if a requirement matches for persistence component: "
+                    + "[requirement: {}, compoenent: {}]", new Object[] { reference, dependentObject, e });
+            return false;
+        }
+    }
+
+    /**
+     * A modification that is relevant according to the comparable of the reference is handled incrementally. Only the
+     * dependent objects that use the reference and the ones that did not accept it are checked again. The users that
+     * still accept the reference keep it without any notification, the others get
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)} and look for another reference.
+     */
     @Override
     public void modifiedService(final ServiceReference reference, final Object service) {
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    modifiedService(reference, service);
+                }
+            });
+            return;
+        }
+        trace(TraceEventType.SERVICE_MODIFIED, reference, null);
         Comparable<ServiceReference> comparable = referencesWithComparators
                 .get(reference);
-        if (comparable.compareTo(reference) != 0) {
-            removedService(reference, service);
-            addingService(reference);
+        if (comparable.compareTo(reference) == 0) {
+            return;
+        }
+        referencesWithComparators.put(reference, createComparableFromReference(reference));
+        Collection<D> rejectingObjects = wrongPairingContainer.getWrongPairedDependentObjects(reference);
+        wrongPairingContainer.removeReference(reference);
+        if (requisiteIndex != null) {
+            requisiteIndex.removeReference(reference);
+            requisiteIndex.addReference(reference);
+        }
+        if (pendingReferences.contains(reference)) {
+            // Not offered to anybody yet, the new properties will be checked when the batch is flushed
+            return;
+        }
+
+        List<D> leavingObjects = new ArrayList<D>();
+        ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(reference);
+        if (objectsThatUseReference != null) {
+            List<D> users = objectsThatUseReference.getUsers();
+            List<Boolean> verdicts = evaluateSuitability(users, reference);
+            for (int i = 0; i < users.size(); i++) {
+                D dependentObject = users.get(i);
+                if (!verdicts.get(i).booleanValue()) {
+                    wrongPairingContainer.addWrongPairing(dependentObject, reference);
+                    if (unpair(dependentObject, reference)) {
+                        leavingObjects.add(dependentObject);
+                    }
+                }
+            }
         }
+
+        Collection<D> candidates = rejectingObjects;
+        if (requisiteIndex != null) {
+            // Dependent objects that match the new index values were never offered the reference
+            Set<D> candidateSet = new LinkedHashSet<D>(rejectingObjects);
+            candidateSet.addAll(requisiteIndex.getCandidateDependentObjects(reference));
+            candidates = candidateSet;
+        }
+        offerReference(getAwaitingObjects(candidates, reference), reference);
+        pairDependentObjects(leavingObjects, null);
     }
 
+    /**
+     * Offers the reference to the dependent objects. With a suitability executor the suitability is evaluated parallel
+     * first and the pairings are committed in the order of the list afterwards.
+     */
+    private void offerReference(final List<D> dependentObjects, final ServiceReference reference) {
+        if (suitabilityExecutor == null) {
+            for (D dependentObject : dependentObjects) {
+                if (awaitingObjects.containsKey(dependentObject)
+                        && !wrongPairingContainer.isWrongPairing(dependentObject, reference)) {
+                    tryPairing(dependentObject, reference);
+                }
+            }
+            return;
+        }
+        List<Boolean> verdicts = evaluateSuitability(dependentObjects, reference);
+        for (int i = 0; i < dependentObjects.size(); i++) {
+            D dependentObject = dependentObjects.get(i);
+            if (!verdicts.get(i).booleanValue()) {
+                wrongPairingContainer.addWrongPairing(dependentObject, reference);
+            } else if (awaitingObjects.containsKey(dependentObject)
+                    && !wrongPairingContainer.isWrongPairing(dependentObject, reference)) {
+                commitPairing(dependentObject, reference);
+            }
+        }
+    }
+
+    /**
+     * Looks for a reference for each waiting dependent object in the order of the list. With a suitability executor
+     * the suitability of the references is evaluated parallel first and the pairings are committed in the order of
+     * the list afterwards, so the result does not depend on the order the evaluations finished.
+     * 
+     * @param references
+     *            The references to offer or <code>null</code> to offer every candidate reference.
+     */
+    private void pairDependentObjects(final List<D> dependentObjects, final Collection<ServiceReference> references) {
+        if (suitabilityExecutor == null) {
+            for (D dependentObject : dependentObjects) {
+                if (references == null) {
+                    foundReqiurmentForDependObject(dependentObject);
+                } else {
+                    foundReqiurmentForDependObject(dependentObject, references);
+                }
+            }
+            return;
+        }
+        List<Collection<ServiceReference>> suitableReferences = evaluateDependentObjects(dependentObjects,
+                references);
+        for (int i = 0; i < dependentObjects.size(); i++) {
+            D dependentObject = dependentObjects.get(i);
+            Iterator<ServiceReference> referenceIterator = pairingStrategy.orderCandidates(suitableReferences.get(i),
+                    referenceUsage).iterator();
+            boolean foundRequirement = false;
+            while (referenceIterator.hasNext() && !foundRequirement
+                    && awaitingObjects.containsKey(dependentObject)) {
+                ServiceReference reference = referenceIterator.next();
+                if (referencesWithComparators.containsKey(reference)
+                        && !wrongPairingContainer.isWrongPairing(dependentObject, reference)) {
+                    foundRequirement = commitPairing(dependentObject, reference);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the listener to measure its calls if there are metrics.
+     */
+    private RequisiteListener<D> measure(final RequisiteListener<D> requisiteListener) {
+        if (metrics == null) {
+            return requisiteListener;
+        }
+        return new MeasuredRequisiteListener(requisiteListener);
+    }
+
+    /**
+     * Stores the dependent object and its listener.
+     * 
+     * @return <code>false</code> if the dependent object uses a reference already and nothing was changed.
+     */
+    private boolean registerDependentObject(final D dependentObject, final RequisiteListener<D> requisiteListener) {
+        trace(TraceEventType.DEPENDENT_OBJECT_ADDED, null, dependentObject);
+        // The pairing of the removed registration might be stored until its notification returns
+        Pairing notifiedPairing = notifiedPairings.get(dependentObject);
+        boolean readding = (notifiedPairing != null) && notifiedPairing.isRemoved();
+        if (!readding && pairingByUsingObject.containsKey(dependentObject)) {
+            LOGGER.warn("addDependentObject was called with an already satisfied object. Do nothing: {}",
+                    dependentObject);
+            return false;
+        }
+        requisiteListenersOfDependentObjets.put(dependentObject,
+                requisiteListener);
+        if (requisiteIndex != null) {
+            requisiteIndex.addDependentObject(dependentObject, getIndexValues(dependentObject));
+        }
+        if (readding && notifiedPairing.deferRelease()) {
+            return true;
+        }
+        // Published last, a dependent object can be claimed for pairing as soon as it is waiting
+        if (awaitingObjects.put(dependentObject, Boolean.TRUE) != null) {
+            LOGGER.warn("addDependentObject was called with an already waiting object: {}", dependentObject);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the reference as not suitable for the dependent object. If the dependent object uses the reference, it
+     * stops using it without a notification and waits for another reference. Can be called from
+     * {@link RequisiteListener#requisiteAvailable(Object, ServiceReference)} as well.
+     */
     public void referenceAcceptanceCancelled(final D dependentObject,
             final ServiceReference reference) {
-        referenceByUsingObject.remove(dependentObject);
-        objectsThatUseReferences.remove(reference);
-        awaitingObjects.put(dependentObject, Boolean.TRUE);
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    referenceAcceptanceCancelled(dependentObject, reference);
+                }
+            });
+            return;
+        }
         wrongPairingContainer.addWrongPairing(dependentObject, reference);
+        Pairing notifiedPairing = notifiedPairings.get(dependentObject);
+        if ((notifiedPairing != null) && (notifiedPairing.reference == reference)
+                && (notifiedPairing.notifyingThread == Thread.currentThread())) {
+            // Called from the listener, the pairing is not stored yet
+            notifiedPairing.cancelled = true;
+            return;
+        }
+        Pairing pairing = pairingByUsingObject.get(dependentObject);
+        if ((pairing != null) && (pairing.reference == reference)
+                && pairingByUsingObject.remove(dependentObject, pairing)) {
+            ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(reference);
+            if (objectsThatUseReference != null) {
+                objectsThatUseReference.remove(dependentObject);
+            }
+            if (metrics != null) {
+                metrics.unpaired();
+            }
+            releaseDependentObject(dependentObject);
+        }
+    }
+
+    /**
+     * Makes a dependent object waiting again after a failed pairing and looks for a reference for it. The references
+     * that were offered while the dependent object was claimed did not see it.
+     */
+    private void retryPairing(final D dependentObject) {
+        releaseDependentObject(dependentObject);
+        foundReqiurmentForDependObject(dependentObject);
     }
 
     /**
-     * Should be called when this manager should not take care of the requirements of this component anymore.
+     * Makes a dependent object that is not paired waiting again, unless it has been removed meanwhile.
+     */
+    private void releaseDependentObject(final D dependentObject) {
+        awaitingObjects.put(dependentObject, Boolean.TRUE);
+        if (!requisiteListenersOfDependentObjets.containsKey(dependentObject)) {
+            // Removed concurrently, the removal might have run before the put
+            awaitingObjects.remove(dependentObject);
+        }
+    }
+
+    /**
+     * Should be called when this manager should not take care of the requirements of this component anymore. If the
+     * listener of the dependent object is being notified about a reference on another thread at the moment, this call
+     * does not wait for the notification, the notifying thread calls
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)} when the listener returned. Therefore the
+     * listener may call the tracker or hold locks that the caller of this method is waiting for.
      * 
      * @param dependentObject
      *            The component.
      */
     public void removeDependentObject(final D dependentObject) {
-        RequisiteListener requisiteListener = requisiteListenersOfDependentObjets.remove(dependentObject);
-        ServiceReference reference = referenceByUsingObject
-                .remove(dependentObject);
-
-        if ((reference != null) && (requisiteListener != null)) {
-            requisiteListener.requisiteRemoved(dependentObject, reference);
-        } else {
-            awaitingObjects.remove(dependentObject);
+        if (isSerialized()) {
+            serialExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    removeDependentObject(dependentObject);
+                }
+            });
+            return;
         }
-
-        if (reference != null) {
-            objectsThatUseReferences.get(reference).remove(dependentObject);
+        trace(TraceEventType.DEPENDENT_OBJECT_REMOVED, null, dependentObject);
+        // Pairings in progress see that the dependent object is not registered anymore and roll back
+        requisiteListenersOfDependentObjets.remove(dependentObject);
+        awaitingObjects.remove(dependentObject);
+        Pairing notifiedPairing = notifiedPairings.get(dependentObject);
+        if (notifiedPairing != null) {
+            // The notifying thread ends the pairing after the notification
+            notifiedPairing.markRemoved();
+        }
+        Pairing pairing = pairingByUsingObject.remove(dependentObject);
+        if (pairing != null) {
+            ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(pairing.reference);
+            if (objectsThatUseReference != null) {
+                objectsThatUseReference.remove(dependentObject);
+            }
+            fireRequisiteRemoved(pairing.requisiteListener, dependentObject, pairing.reference);
         }
         wrongPairingContainer.removeDependentObject(dependentObject);
+        if (requisiteIndex != null) {
+            requisiteIndex.removeDependentObject(dependentObject);
+        }
+        if (verdictCache != null) {
+            verdictCache.removeDependentObject(dependentObject);
+        }
+    }
+
+    /**
+     * Removes more dependent objects. The ones that use a reference get
+     * {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)} in the iteration order of the collection.
+     * 
+     * @param dependentObjects
+     *            The components.
+     */
+    public void removeDependentObjects(final Collection<D> dependentObjects) {
+        for (D dependentObject : dependentObjects) {
+            removeDependentObject(dependentObject);
+        }
     }
 
     @Override
     public void removedService(final ServiceReference reference, final Object service) {
+        if (isSerialized()) {
+            // The users must release the service before the framework ungets it
+            serialExecutor.executeAndAwait(new Runnable() {
+                @Override
+                public void run() {
+                    removedService(reference, service);
+                }
+            });
+            return;
+        }
+        trace(TraceEventType.SERVICE_REMOVED, reference, null);
+        pendingReferences.remove(reference);
+        // Untracked first, so pairings in progress with the reference roll back
+        referencesWithComparators.remove(reference);
+        if (requisiteIndex != null) {
+            requisiteIndex.removeReference(reference);
+        }
         wrongPairingContainer.removeReference(reference);
 
-        Set<D> objectsThatUseReference = objectsThatUseReferences
+        List<D> leavingObjects = new ArrayList<D>();
+        ReferenceUsers objectsThatUseReference = objectsThatUseReferences
                 .remove(reference);
         if (objectsThatUseReference != null) {
-            for (D dependentObject : objectsThatUseReference) {
-                requisiteListenersOfDependentObjets.get(dependentObject)
-                        .requisiteRemoved(dependentObject, reference);
-                referenceByUsingObject.remove(dependentObject);
-                awaitingObjects.put(dependentObject, Boolean.TRUE);
+            for (D dependentObject : objectsThatUseReference.close()) {
+                if (unpair(dependentObject, reference)) {
+                    leavingObjects.add(dependentObject);
+                }
+            }
+        }
+        pairDependentObjects(leavingObjects, null);
+    }
 
+    /**
+     * Runs the tasks on the suitability executor if there is one and returns their results in the same order. The
+     * tasks run on the calling thread if there is no executor, the executor does not accept them or the thread is
+     * interrupted while waiting.
+     */
+    private <T> List<T> runSuitabilityTasks(final List<Callable<T>> tasks) {
+        List<T> result = new ArrayList<T>(tasks.size());
+        if ((suitabilityExecutor != null) && (tasks.size() > 1)) {
+            try {
+                for (Future<T> future : suitabilityExecutor.invokeAll(tasks)) {
+                    result.add(future.get());
+                }
+                return result;
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Suitability executor rejected the evaluation, evaluating on the calling thread", e);
+                result.clear();
+            } catch (InterruptedException e) {
+                // The wrong pairings found so far are kept, the rest is evaluated on this thread
+                Thread.currentThread().interrupt();
+                result.clear();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Error during evaluating the suitability of references", e.getCause());
             }
         }
-        referencesWithComparators.remove(reference);
-        if (objectsThatUseReference != null) {
-            for (D dependentObject : objectsThatUseReference) {
-                foundReqiurmentForDependObject(dependentObject);
+        for (Callable<T> task : tasks) {
+            try {
+                result.add(task.call());
+            } catch (Exception e) {
+                throw new IllegalStateException("Error during evaluating the suitability of references", e);
             }
         }
+        return result;
     }
 
-    protected boolean tryPairing(final D dependentObject, final ServiceReference reference) {
-        try {
-            if (isReferenceSuitable(dependentObject, reference)) {
-                requisiteListenersOfDependentObjets.get(dependentObject)
-                        .requisiteAvailable(dependentObject, reference);
-                referenceByUsingObject.put(dependentObject, reference);
-                Set<D> objectsThatUseReference = objectsThatUseReferences
-                        .get(reference);
-                if (objectsThatUseReference == null) {
-                    objectsThatUseReference = new HashSet<D>();
-                    objectsThatUseReferences.put(reference,
-                            objectsThatUseReference);
-                }
-                objectsThatUseReference.add(dependentObject);
-                awaitingObjects.remove(dependentObject);
-                return true;
-            } else {
-                referenceAcceptanceCancelled(dependentObject, reference);
-                return false;
-            }
-        } catch (Exception e) {
-            LOGGER.error("Exception during trying if a requirement matches for persistence component: [requirement: "
-                            + reference.toString() + ", compoenent: " + dependentObject.toString() + "]", e);
-            referenceAcceptanceCancelled(dependentObject, reference);
+    /**
+     * Ends the pairing of the dependent object with the reference if it still exists and notifies the listener. The
+     * dependent object waits again only after the notification was dispatched, so its listener cannot get the next
+     * reference before the removal of this one. The notification does not throw, so the dependent object is never left
+     * neither paired nor waiting.
+     * 
+     * @return <code>true</code> if the pairing was ended by this call and the dependent object is waiting again.
+     */
+    private boolean unpair(final D dependentObject, final ServiceReference reference) {
+        Pairing pairing = pairingByUsingObject.get(dependentObject);
+        if ((pairing == null) || (pairing.reference != reference)
+                || !pairingByUsingObject.remove(dependentObject, pairing)) {
             return false;
         }
+        ReferenceUsers objectsThatUseReference = objectsThatUseReferences.get(reference);
+        if (objectsThatUseReference != null) {
+            objectsThatUseReference.remove(dependentObject);
+        }
+        fireRequisiteRemoved(pairing.requisiteListener, dependentObject, reference);
+        releaseDependentObject(dependentObject);
+        return true;
+    }
+
+    /**
+     * Whether the change must be enqueued on the serial executor instead of processing it on the calling thread.
+     */
+    private boolean isSerialized() {
+        return (serialExecutor != null) && !serialExecutor.isExecutingThread();
+    }
+
+    private void trace(final TraceEventType type, final ServiceReference reference, final D dependentObject) {
+        if (traceRecorder != null) {
+            traceRecorder.record(type, traceSourceId, reference, dependentObject, null);
+        }
+    }
+
+    protected boolean tryPairing(final D dependentObject, final ServiceReference reference) {
+        if (evaluateSuitability(dependentObject, reference)) {
+            return commitPairing(dependentObject, reference);
+        }
+        referenceAcceptanceCancelled(dependentObject, reference);
+        return false;
     }
 }
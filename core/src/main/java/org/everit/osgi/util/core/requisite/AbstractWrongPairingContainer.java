@@ -0,0 +1,68 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.Collection;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Stores the dependentObject-reference pairs that surely not work together, so the tracker does not evaluate them
+ * again. The implementations hold their own state: the default {@link WrongPairingContainer} with lock-free lookups
+ * and the {@link CompactWrongPairingContainer} for a large amount of dependent objects and references.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public abstract class AbstractWrongPairingContainer<D> {
+
+    /**
+     * Stores a pair that does not work together. Storing a pair again has no effect.
+     */
+    public abstract void addWrongPairing(D dependentObject, ServiceReference reference);
+
+    /**
+     * The dependent objects that do not work together with the reference. The returned collection is a snapshot.
+     */
+    public abstract Collection<D> getWrongPairedDependentObjects(ServiceReference reference);
+
+    /**
+     * The number of stored dependentObject-reference pairs.
+     */
+    public abstract int getWrongPairingCount();
+
+    /**
+     * Whether the pair is stored as one that does not work together.
+     */
+    public abstract boolean isWrongPairing(D dependentObject, ServiceReference reference);
+
+    /**
+     * Drops every stored pair of the dependent object.
+     */
+    public abstract void removeDependentObject(D dependentObject);
+
+    /**
+     * Drops every stored pair of the reference.
+     */
+    public abstract void removeReference(ServiceReference reference);
+}
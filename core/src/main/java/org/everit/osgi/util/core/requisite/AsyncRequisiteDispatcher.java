@@ -0,0 +1,296 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls {@link RequisiteListener}s on an {@link Executor} instead of the thread of the service event. The
+ * notifications of the same dependent object are delivered one after the other in the order they were dispatched, the
+ * notifications of different dependent objects may run parallel. The number of notifications that are waiting for
+ * delivery is bounded, the dispatching thread blocks when the limit is reached.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class AsyncRequisiteDispatcher<D> {
+
+    /**
+     * The notifications of one dependent object that wait for delivery.
+     */
+    private class DependentObjectQueue implements Runnable {
+
+        private final D dependentObject;
+
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        /**
+         * Whether a drain of this queue is scheduled on the executor.
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Whether the queue is removed from the map of the queues. No task can be added to a retired queue.
+         */
+        private boolean retired = false;
+
+        public DependentObjectQueue(final D dependentObject) {
+            this.dependentObject = dependentObject;
+        }
+
+        /**
+         * Adds the task to the queue.
+         *
+         * @return <code>false</code> if the queue is retired and the task was not added.
+         * @throws RejectedExecutionException
+         *             If the executor rejected the drain of the queue. The task is dropped in this case.
+         */
+        public boolean offer(final Runnable task) {
+            boolean schedule;
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    boolean drain;
+                    synchronized (this) {
+                        tasks.remove(task);
+                        drain = !tasks.isEmpty();
+                        if (!drain) {
+                            scheduled = false;
+                            retired = true;
+                            queues.remove(dependentObject, this);
+                        }
+                    }
+                    if (drain) {
+                        // The tasks offered in the meantime rely on the drain, so they are delivered on this thread
+                        run();
+                    }
+                    throw e;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        retired = true;
+                        queues.remove(dependentObject, this);
+                        return;
+                    }
+                }
+                // The slot is given back before the call so a listener that dispatches cannot wait for itself
+                queuedCount.decrementAndGet();
+                permits.release();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    failedCount.incrementAndGet();
+                    LOGGER.error("Error during notifying requisite listener of {}", dependentObject, e);
+                } finally {
+                    dispatchedCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRequisiteDispatcher.class);
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final Semaphore permits;
+
+    private final ConcurrentMap<D, DependentObjectQueue> queues = new ConcurrentHashMap<D, DependentObjectQueue>();
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    private final AtomicInteger maxQueuedCount = new AtomicInteger();
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param executor
+     *            The executor that calls the listeners.
+     * @param capacity
+     *            The maximum number of notifications that wait for delivery.
+     */
+    public AsyncRequisiteDispatcher(final Executor executor, final int capacity) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    private void dispatch(final D dependentObject, final Runnable task) {
+        if (!permits.tryAcquire()) {
+            blockedCount.incrementAndGet();
+            long startTime = System.nanoTime();
+            permits.acquireUninterruptibly();
+            blockedNanos.addAndGet(System.nanoTime() - startTime);
+        }
+        int queued = queuedCount.incrementAndGet();
+        int max = maxQueuedCount.get();
+        while ((queued > max) && !maxQueuedCount.compareAndSet(max, queued)) {
+            max = maxQueuedCount.get();
+        }
+
+        boolean offered = false;
+        try {
+            while (!offered) {
+                DependentObjectQueue queue = queues.get(dependentObject);
+                if (queue == null) {
+                    DependentObjectQueue newQueue = new DependentObjectQueue(dependentObject);
+                    queue = queues.putIfAbsent(dependentObject, newQueue);
+                    if (queue == null) {
+                        queue = newQueue;
+                    }
+                }
+                offered = queue.offer(task);
+            }
+        } catch (RejectedExecutionException e) {
+            queuedCount.decrementAndGet();
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules the {@link RequisiteListener#requisiteAvailable(Object, ServiceReference)} call.
+     *
+     * @throws RejectedExecutionException
+     *             If the executor rejected the delivery. The notification is dropped.
+     */
+    public void dispatchRequisiteAvailable(final RequisiteListener<D> requisiteListener, final D dependentObject,
+            final ServiceReference reference) {
+        dispatch(dependentObject, new Runnable() {
+            @Override
+            public void run() {
+                requisiteListener.requisiteAvailable(dependentObject, reference);
+            }
+        });
+    }
+
+    /**
+     * Schedules the {@link RequisiteListener#requisiteRemoved(Object, ServiceReference)} call.
+     *
+     * @throws RejectedExecutionException
+     *             If the executor rejected the delivery. The notification is dropped.
+     */
+    public void dispatchRequisiteRemoved(final RequisiteListener<D> requisiteListener, final D dependentObject,
+            final ServiceReference reference) {
+        dispatch(dependentObject, new Runnable() {
+            @Override
+            public void run() {
+                requisiteListener.requisiteRemoved(dependentObject, reference);
+            }
+        });
+    }
+
+    /**
+     * The number of times a dispatching thread had to wait because the queue was full.
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * The sum of the time the dispatching threads waited because the queue was full in nanoseconds.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of delivered notifications including the failed ones.
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * The number of notifications where the listener threw an exception.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * The highest number of notifications that waited for delivery at the same time.
+     */
+    public int getMaxQueuedCount() {
+        return maxQueuedCount.get();
+    }
+
+    /**
+     * The number of notifications that wait for delivery at the moment.
+     */
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+}
@@ -0,0 +1,283 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A wrong pairing container for large amount of dependent objects and references. Dependent objects and references
+ * get dense int ids and the wrong pairings are stored in one {@link BitSet} per dependent object and one per
+ * reference. Ids are recycled when an object has no wrong pairings anymore, so the bitsets stay as short as the number
+ * of live objects.
+ * <p>
+ * The ids and the bitsets are guarded by a read-write lock, so the lookups of this container take the read lock and
+ * wait while a modification is running. The default {@link WrongPairingContainer} uses more memory per pair, but its
+ * lookups are lock-free. Use this container when the memory of the pairs matters more than the lookups on the pairing
+ * path.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class CompactWrongPairingContainer<D> extends AbstractWrongPairingContainer<D> {
+
+    /**
+     * Estimated size of a {@link HashMap} entry with its key reference and the boxed id in bytes.
+     */
+    private static final int ESTIMATED_ID_ENTRY_SIZE = 48;
+
+    /**
+     * Estimated size of an empty {@link BitSet} with its array header in bytes.
+     */
+    private static final int ESTIMATED_BITSET_OVERHEAD = 40;
+
+    /**
+     * Int ids and bitsets of one side of the pairings.
+     */
+    private static class IdSpace<T> {
+
+        private final Map<T, Integer> idsByObject = new HashMap<T, Integer>();
+
+        private final List<T> objectsById = new ArrayList<T>();
+
+        private final List<BitSet> bitSetsById = new ArrayList<BitSet>();
+
+        private final BitSet freeIds = new BitSet();
+
+        public int acquireId(final T object) {
+            Integer id = idsByObject.get(object);
+            if (id != null) {
+                return id.intValue();
+            }
+            int newId = freeIds.nextSetBit(0);
+            if (newId >= 0) {
+                freeIds.clear(newId);
+                objectsById.set(newId, object);
+                bitSetsById.set(newId, new BitSet());
+            } else {
+                newId = bitSetsById.size();
+                objectsById.add(object);
+                bitSetsById.add(new BitSet());
+            }
+            idsByObject.put(object, Integer.valueOf(newId));
+            return newId;
+        }
+
+        public BitSet getBitSet(final int id) {
+            return bitSetsById.get(id);
+        }
+
+        public long getFootprint() {
+            long footprint = ((long) idsByObject.size()) * ESTIMATED_ID_ENTRY_SIZE;
+            footprint += bitSetsById.size() * 8L;
+            for (BitSet bitSet : bitSetsById) {
+                if (bitSet != null) {
+                    footprint += ESTIMATED_BITSET_OVERHEAD + (bitSet.size() / 8);
+                }
+            }
+            return footprint + ESTIMATED_BITSET_OVERHEAD + (freeIds.size() / 8);
+        }
+
+        public int getId(final T object) {
+            Integer id = idsByObject.get(object);
+            if (id == null) {
+                return -1;
+            }
+            return id.intValue();
+        }
+
+        public T getObject(final int id) {
+            return objectsById.get(id);
+        }
+
+        public void releaseId(final int id) {
+            idsByObject.remove(objectsById.get(id));
+            if (id == (bitSetsById.size() - 1)) {
+                removeLast();
+                // Trailing free ids can be dropped as well
+                int lastId = bitSetsById.size() - 1;
+                while ((lastId >= 0) && freeIds.get(lastId)) {
+                    freeIds.clear(lastId);
+                    removeLast();
+                    lastId--;
+                }
+            } else {
+                objectsById.set(id, null);
+                bitSetsById.set(id, null);
+                freeIds.set(id);
+            }
+        }
+
+        private void removeLast() {
+            int lastId = bitSetsById.size() - 1;
+            objectsById.remove(lastId);
+            bitSetsById.remove(lastId);
+        }
+    }
+
+    private final IdSpace<D> dependentObjects = new IdSpace<D>();
+
+    private final IdSpace<ServiceReference> references = new IdSpace<ServiceReference>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The number of stored pairs. Guarded by the lock.
+     */
+    private int wrongPairingCount = 0;
+
+    @Override
+    public void addWrongPairing(final D dependentObject, final ServiceReference reference) {
+        lock.writeLock().lock();
+        try {
+            int dependentObjectId = dependentObjects.acquireId(dependentObject);
+            int referenceId = references.acquireId(reference);
+            BitSet wrongReferenceIds = dependentObjects.getBitSet(dependentObjectId);
+            if (!wrongReferenceIds.get(referenceId)) {
+                wrongReferenceIds.set(referenceId);
+                references.getBitSet(referenceId).set(dependentObjectId);
+                wrongPairingCount++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The estimated heap usage of the stored wrong pairings in bytes.
+     */
+    public long getFootprint() {
+        lock.readLock().lock();
+        try {
+            return dependentObjects.getFootprint() + references.getFootprint();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getWrongPairingCount() {
+        lock.readLock().lock();
+        try {
+            return wrongPairingCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<D> getWrongPairedDependentObjects(final ServiceReference reference) {
+        lock.readLock().lock();
+        try {
+            int referenceId = references.getId(reference);
+            if (referenceId < 0) {
+                return Collections.emptyList();
+            }
+            BitSet notSatisfyingObjectIds = references.getBitSet(referenceId);
+            List<D> result = new ArrayList<D>(notSatisfyingObjectIds.cardinality());
+            for (int dependentObjectId = notSatisfyingObjectIds.nextSetBit(0); dependentObjectId >= 0;
+                    dependentObjectId = notSatisfyingObjectIds.nextSetBit(dependentObjectId + 1)) {
+                result.add(dependentObjects.getObject(dependentObjectId));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isWrongPairing(final D dependentObject, final ServiceReference reference) {
+        lock.readLock().lock();
+        try {
+            int dependentObjectId = dependentObjects.getId(dependentObject);
+            if (dependentObjectId < 0) {
+                return false;
+            }
+            int referenceId = references.getId(reference);
+            if (referenceId < 0) {
+                return false;
+            }
+            return dependentObjects.getBitSet(dependentObjectId).get(referenceId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeDependentObject(final D dependentObject) {
+        lock.writeLock().lock();
+        try {
+            int dependentObjectId = dependentObjects.getId(dependentObject);
+            if (dependentObjectId < 0) {
+                return;
+            }
+            BitSet wrongReferenceIds = dependentObjects.getBitSet(dependentObjectId);
+            wrongPairingCount -= wrongReferenceIds.cardinality();
+            dependentObjects.releaseId(dependentObjectId);
+            for (int referenceId = wrongReferenceIds.nextSetBit(0); referenceId >= 0; referenceId = wrongReferenceIds
+                    .nextSetBit(referenceId + 1)) {
+                BitSet notSatisfyingObjectIds = references.getBitSet(referenceId);
+                notSatisfyingObjectIds.clear(dependentObjectId);
+                if (notSatisfyingObjectIds.isEmpty()) {
+                    // The reference is not in any wrong pairing anymore, it gives back its id
+                    references.releaseId(referenceId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeReference(final ServiceReference reference) {
+        lock.writeLock().lock();
+        try {
+            int referenceId = references.getId(reference);
+            if (referenceId < 0) {
+                return;
+            }
+            BitSet notSatisfyingObjectIds = references.getBitSet(referenceId);
+            wrongPairingCount -= notSatisfyingObjectIds.cardinality();
+            references.releaseId(referenceId);
+            for (int dependentObjectId = notSatisfyingObjectIds.nextSetBit(0); dependentObjectId >= 0;
+                    dependentObjectId = notSatisfyingObjectIds.nextSetBit(dependentObjectId + 1)) {
+                BitSet wrongReferenceIds = dependentObjects.getBitSet(dependentObjectId);
+                wrongReferenceIds.clear(referenceId);
+                if (wrongReferenceIds.isEmpty()) {
+                    // The dependent object is not in any wrong pairing anymore, it gives back its id
+                    dependentObjects.releaseId(dependentObjectId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
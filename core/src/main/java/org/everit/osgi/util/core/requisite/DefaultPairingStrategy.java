@@ -0,0 +1,101 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The built-in {@link PairingStrategy} implementations.
+ */
+public enum DefaultPairingStrategy implements PairingStrategy {
+
+    /**
+     * Tries the references in the order the tracker stores them. This is the cheapest strategy but the result is not
+     * deterministic.
+     */
+    FIRST_FIT {
+        @Override
+        public Collection<ServiceReference> orderCandidates(final Collection<ServiceReference> candidates,
+                final ReferenceUsage referenceUsage) {
+            return candidates;
+        }
+    },
+
+    /**
+     * Tries the references with the highest service ranking first. In case of equal ranking the reference with the
+     * lower service id comes first, like at {@link ServiceReference#compareTo(Object)}.
+     */
+    HIGHEST_RANKING {
+        @Override
+        public Collection<ServiceReference> orderCandidates(final Collection<ServiceReference> candidates,
+                final ReferenceUsage referenceUsage) {
+            List<ServiceReference> result = new ArrayList<ServiceReference>(candidates);
+            Collections.sort(result, RANKING_DESCENDING);
+            return result;
+        }
+    },
+
+    /**
+     * Tries the references that have the least users first, so the dependent objects spread evenly over the equivalent
+     * references. References with the same number of users are ordered by ranking.
+     */
+    LEAST_LOADED {
+        @Override
+        public Collection<ServiceReference> orderCandidates(final Collection<ServiceReference> candidates,
+                final ReferenceUsage referenceUsage) {
+            List<ServiceReference> result = new ArrayList<ServiceReference>(candidates);
+            final Map<ServiceReference, Integer> userCounts = new HashMap<ServiceReference, Integer>();
+            for (ServiceReference reference : result) {
+                userCounts.put(reference, Integer.valueOf(referenceUsage.getUserCount(reference)));
+            }
+            Collections.sort(result, new Comparator<ServiceReference>() {
+                @Override
+                public int compare(final ServiceReference o1, final ServiceReference o2) {
+                    int result = userCounts.get(o1).compareTo(userCounts.get(o2));
+                    if (result != 0) {
+                        return result;
+                    }
+                    return RANKING_DESCENDING.compare(o1, o2);
+                }
+            });
+            return result;
+        }
+    };
+
+    /**
+     * Orders the references from the highest ranking to the lowest.
+     */
+    private static final Comparator<ServiceReference> RANKING_DESCENDING = new Comparator<ServiceReference>() {
+        @Override
+        public int compare(final ServiceReference o1, final ServiceReference o2) {
+            return o2.compareTo(o1);
+        }
+    };
+}
@@ -0,0 +1,109 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the readiness of a dependent object in a {@link MultiRequisiteManager}. Times are wall clock
+ * milliseconds, durations are milliseconds since the registration of the dependent object.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class DependentObjectReadiness<D> {
+
+    private final D dependentObject;
+
+    private final long registrationTime;
+
+    private final Map<String, Long> satisfactionDurations;
+
+    private final List<String> missingRequisiteIds;
+
+    private final long timeToReady;
+
+    /**
+     * Constructor.
+     *
+     * @param dependentObject
+     *            The dependent object.
+     * @param registrationTime
+     *            The time the dependent object was registered.
+     * @param satisfactionDurations
+     *            The time each available requisite was satisfied since the registration by requisite id.
+     * @param missingRequisiteIds
+     *            The ids of the requisites that are not available.
+     * @param timeToReady
+     *            The time it took until all requisites were available first or <code>-1</code> if the dependent
+     *            object has never been ready.
+     */
+    public DependentObjectReadiness(final D dependentObject, final long registrationTime,
+            final Map<String, Long> satisfactionDurations, final List<String> missingRequisiteIds,
+            final long timeToReady) {
+        this.dependentObject = dependentObject;
+        this.registrationTime = registrationTime;
+        this.satisfactionDurations = Collections.unmodifiableMap(satisfactionDurations);
+        this.missingRequisiteIds = Collections.unmodifiableList(missingRequisiteIds);
+        this.timeToReady = timeToReady;
+    }
+
+    public D getDependentObject() {
+        return dependentObject;
+    }
+
+    public List<String> getMissingRequisiteIds() {
+        return missingRequisiteIds;
+    }
+
+    public long getRegistrationTime() {
+        return registrationTime;
+    }
+
+    public Map<String, Long> getSatisfactionDurations() {
+        return satisfactionDurations;
+    }
+
+    /**
+     * The time in milliseconds it took until all requisites were available first or <code>-1</code> if the dependent
+     * object has never been ready.
+     */
+    public long getTimeToReady() {
+        return timeToReady;
+    }
+
+    /**
+     * Whether all requisites are available at the moment.
+     */
+    public boolean isSatisfied() {
+        return missingRequisiteIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return dependentObject + " registered at " + registrationTime + ", satisfied " + satisfactionDurations
+                + ", missing " + missingRequisiteIds;
+    }
+}
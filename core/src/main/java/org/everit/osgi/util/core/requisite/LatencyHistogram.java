@@ -0,0 +1,143 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds with power of two buckets. Bucket <code>i</code> counts the
+ * durations between <code>2^i</code> and <code>2^(i+1) - 1</code> nanoseconds, the first bucket counts the zero
+ * durations as well. The resolution is a factor of two which is enough to see whether something takes microseconds or
+ * seconds, while recording costs a few atomic increments.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets, one for each bit of a positive long.
+     */
+    public static final int BUCKET_COUNT = 63;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static int bucketIndex(final long nanos) {
+        if (nanos <= 1) {
+            return 0;
+        }
+        return 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * The number of recorded durations in each bucket. The returned array is a snapshot.
+     */
+    public long[] getBucketCounts() {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * The average of the recorded durations in nanoseconds or zero if nothing was recorded.
+     */
+    public double getMeanNanos() {
+        long currentCount = count.get();
+        if (currentCount == 0) {
+            return 0;
+        }
+        return ((double) totalNanos.get()) / currentCount;
+    }
+
+    /**
+     * The upper bound of the bucket that contains the given percentile of the recorded durations. The result is never
+     * higher than the longest recorded duration.
+     *
+     * @param percentile
+     *            A value between 0 and 100.
+     * @return The duration in nanoseconds or zero if nothing was recorded.
+     */
+    public long getPercentileNanos(final double percentile) {
+        if ((percentile < 0) || (percentile > 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        long[] bucketCounts = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : bucketCounts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil((total * percentile) / 100);
+        long seen = 0;
+        int i = 0;
+        while ((i < (BUCKET_COUNT - 1)) && ((seen + bucketCounts[i]) < threshold)) {
+            seen += bucketCounts[i];
+            i++;
+        }
+        long upperBound = (i == (BUCKET_COUNT - 1)) ? Long.MAX_VALUE : ((1L << (i + 1)) - 1);
+        return Math.min(upperBound, maxNanos.get());
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public void record(final long nanos) {
+        long value = (nanos < 0) ? 0 : nanos;
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max = maxNanos.get();
+        while ((value > max) && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Clears the recorded durations. Durations that are recorded during the reset may be lost partially.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -21,133 +21,655 @@ package org.everit.osgi.util.core.requisite;
  * MA 02110-1301  USA
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.everit.osgi.util.core.requisite.trace.TraceEventType;
+import org.everit.osgi.util.core.requisite.trace.TraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.osgi.framework.ServiceReference;
 
+/**
+ * Starts a dependent object when all of its requisites are available and stops it when one of them goes away. Every
+ * dependent object has its own state with one slot per requisite and an atomic counter of the satisfied slots, so the
+ * callbacks of different dependent objects never block each other. The transitions of a dependent object are applied
+ * one at a time by the thread that changed the counter: if a
+ * {@link MultiRequisiteListener#startDependentObject(Object, Map)} or
+ * {@link MultiRequisiteListener#stopDependentObject(Object)} call of the dependent object is running, the other
+ * threads only mark the state changed and the running thread applies the change after its call returned. Therefore
+ * the calls alternate and a stop never overtakes the start it belongs to, even if the callbacks of the trackers arrive
+ * concurrently.
+ * <p>
+ * The registrations and removals of a dependent object run one after the other as well. The calling thread runs its
+ * own call and the calls of the same dependent object that other threads made meanwhile, the other threads return
+ * immediately. No lock is held while the trackers are called, so a listener may register or remove dependent objects
+ * from its callbacks.
+ * <p>
+ * The manager records when the dependent objects were registered, when their requisites were satisfied and how long
+ * it took until they were ready first. The dependent objects that miss requisites are kept in a separate map, so
+ * {@link #getUnsatisfiedDependentObjects()} only visits those and can be polled frequently.
+ */
 public class MultiRequisiteManager<D> {
 
+    /**
+     * The requisites of one dependent object.
+     */
+    private class DependentObjectState {
+
+        private final D dependentObject;
+
+        private final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers;
+
+        private final String[] requisiteIds;
+
+        private final AtomicReferenceArray<ServiceReference> references;
+
+        private final AtomicInteger satisfiedCount = new AtomicInteger();
+
+        private final long registrationTime = System.currentTimeMillis();
+
+        private final long registrationNanos = System.nanoTime();
+
+        /**
+         * The nanos since the registration when the requisites were satisfied last time.
+         */
+        private final AtomicLongArray satisfactionNanos;
+
+        /**
+         * The nanos it took until all requisites were available first or <code>-1</code>.
+         */
+        private final AtomicLong timeToReadyNanos = new AtomicLong(-1);
+
+        /**
+         * Whether the dependent object is removed from the manager. Guarded by the state itself.
+         */
+        private boolean removed = false;
+
+        /**
+         * Whether the dependent object was started by the last start or stop call. Guarded by the state itself.
+         */
+        private boolean started = false;
+
+        /**
+         * Whether a thread is applying the transitions of the dependent object. Guarded by the state itself.
+         */
+        private boolean transitioning = false;
+
+        public DependentObjectState(final D dependentObject,
+                final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers) {
+            this.dependentObject = dependentObject;
+            this.requisiteTrackers = requisiteTrackers;
+            this.requisiteIds = requisiteTrackers.keySet().toArray(new String[requisiteTrackers.size()]);
+            this.references = new AtomicReferenceArray<ServiceReference>(requisiteIds.length);
+            this.satisfactionNanos = new AtomicLongArray(requisiteIds.length);
+        }
+
+        public DependentObjectReadiness<D> createReadiness() {
+            Map<String, Long> satisfactionDurations = new LinkedHashMap<String, Long>();
+            List<String> missingRequisiteIds = new ArrayList<String>();
+            for (int i = 0; i < requisiteIds.length; i++) {
+                if (references.get(i) != null) {
+                    satisfactionDurations.put(requisiteIds[i],
+                            Long.valueOf(TimeUnit.NANOSECONDS.toMillis(satisfactionNanos.get(i))));
+                } else {
+                    missingRequisiteIds.add(requisiteIds[i]);
+                }
+            }
+            long timeToReady = timeToReadyNanos.get();
+            if (timeToReady >= 0) {
+                timeToReady = TimeUnit.NANOSECONDS.toMillis(timeToReady);
+            }
+            return new DependentObjectReadiness<D>(dependentObject, registrationTime, satisfactionDurations,
+                    missingRequisiteIds, timeToReady);
+        }
+
+        /**
+         * Puts the state into the map of the unsatisfied states or removes it from there based on the current
+         * satisfied count. Every change of the count is followed by a refresh, and the refreshes of the same state do
+         * not overlap, so the last one always sees the final count.
+         */
+        public synchronized void refreshSatisfaction() {
+            if (removed) {
+                return;
+            }
+            if (satisfiedCount.get() < requisiteIds.length) {
+                unsatisfiedDependentObjectStates.put(dependentObject, this);
+            } else {
+                unsatisfiedDependentObjectStates.remove(dependentObject);
+            }
+        }
+
+        public synchronized void remove() {
+            removed = true;
+            unsatisfiedDependentObjectStates.remove(dependentObject);
+        }
+
+        /**
+         * Calls the start or stop functions of the listener until the dependent object is started exactly when all of
+         * its requisites are available. Only one thread applies the transitions at a time, if another thread is doing
+         * it already, that thread will see the new counter when its current call returned. If a call throws an
+         * exception, the transitioning is given up and the next change of the counter tries again.
+         */
+        public void applyTransitions() {
+            synchronized (this) {
+                if (transitioning) {
+                    return;
+                }
+                transitioning = true;
+            }
+            boolean start = false;
+            try {
+                while (true) {
+                    synchronized (this) {
+                        start = satisfiedCount.get() == requisiteIds.length;
+                        if (start == started) {
+                            transitioning = false;
+                            return;
+                        }
+                        started = start;
+                    }
+                    if (start) {
+                        multiRequisiteListener.startDependentObject(dependentObject, createReferenceMap());
+                    } else {
+                        multiRequisiteListener.stopDependentObject(dependentObject);
+                    }
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    if (start) {
+                        // The dependent object did not start
+                        started = false;
+                    }
+                    transitioning = false;
+                }
+                throw e;
+            }
+        }
+
+        public Map<String, ServiceReference> createReferenceMap() {
+            Map<String, ServiceReference> result = new HashMap<String, ServiceReference>();
+            for (int i = 0; i < requisiteIds.length; i++) {
+                ServiceReference reference = references.get(i);
+                if (reference != null) {
+                    result.put(requisiteIds[i], reference);
+                }
+            }
+            return result;
+        }
+
+        public List<String> getMissingRequisiteIds() {
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < requisiteIds.length; i++) {
+                if (references.get(i) == null) {
+                    result.add(requisiteIds[i]);
+                }
+            }
+            return result;
+        }
+    }
+
     private class InnerRequisiteListener implements RequisiteListener<D> {
 
-        private final String requisiteId;
+        private final DependentObjectState state;
 
-        public InnerRequisiteListener(final String requisiteId) {
-            this.requisiteId = requisiteId;
+        /**
+         * The index of the requisite in the slots of the state.
+         */
+        private final int slot;
+
+        public InnerRequisiteListener(final DependentObjectState state, final int slot) {
+            this.state = state;
+            this.slot = slot;
         }
 
         @Override
         public void requisiteAvailable(final D dependentObject, final ServiceReference reference) {
-            Map<String, ServiceReference> allReferences = null;
-            StringBuilder sb = new StringBuilder();
-            sb.append("Service reference '").append(reference.toString()).append("' with requisite id '")
-                    .append(requisiteId).append("' available for ").append(dependentObject.toString())
-                    .append(" in multi requisite tracker.");
-            synchronized (helper) {
-                Map<String, ServiceReference> references = dependentObjectWithReferences.get(dependentObject);
-                if (references == null) {
-                    references = new HashMap<String, ServiceReference>();
-                    dependentObjectWithReferences.put(dependentObject, references);
+            boolean satisfied = false;
+            boolean changed = state.references.getAndSet(slot, reference) == null;
+            if (changed) {
+                long satisfactionNanos = System.nanoTime() - state.registrationNanos;
+                state.satisfactionNanos.set(slot, satisfactionNanos);
+                int satisfiedCount = state.satisfiedCount.incrementAndGet();
+                if (satisfiedCount == state.requisiteIds.length) {
+                    satisfied = true;
+                    if (state.timeToReadyNanos.compareAndSet(-1, satisfactionNanos)) {
+                        timeToReady.record(satisfactionNanos);
+                    }
+                    state.refreshSatisfaction();
                 }
-                references.put(requisiteId, reference);
-                Map<String, AbstractRequisiteTracker<D>> dObjectByRequisiteId = dependentObjectWithRequisiteTrackers
-                        .get(dependentObject);
-                if (references.size() == dependentObjectWithRequisiteTrackers.get(dependentObject).size()) {
-                    allReferences = references;
-                    sb.append(" At this time all requisites are available. Starting dependent object.");
+            }
+            if (LOGGER.isInfoEnabled()) {
+                String status;
+                if (satisfied) {
+                    status = "At this time all requisites are available. Starting dependent object.";
                 } else {
-                    if (LOGGER.isInfoEnabled()) {
-                        Set<String> necessaryRequisiteIds = new HashSet<String>(dObjectByRequisiteId.keySet());
-                        Set<String> availableRequiesiteIds = references.keySet();
-                        necessaryRequisiteIds.removeAll(availableRequiesiteIds);
-                        sb.append(" Waiting for the following requiesites: ").append(necessaryRequisiteIds.toString());
-                    }
+                    status = "Waiting for the following requiesites: " + state.getMissingRequisiteIds();
                 }
+                LOGGER.info("Service reference '{}' with requisite id '{}' available for {} in multi requisite tracker."
+                        + " {}", new Object[] { reference, state.requisiteIds[slot], dependentObject, status });
             }
-            if (allReferences != null) {
-                multiRequisiteListener.startDependentObject(dependentObject, allReferences);
+            if (changed) {
+                state.applyTransitions();
             }
-            LOGGER.info(sb.toString());
         }
 
         @Override
         public void requisiteRemoved(final D dependentObject, final ServiceReference reference) {
             if (reference == null) {
-                LOGGER.info("Requisite removed from dependent object: " + dependentObject.toString()
-                        + " when removed bundle from tracking");
+                LOGGER.info("Requisite removed from dependent object: {} when removed bundle from tracking",
+                        dependentObject);
             } else {
-                LOGGER.info("Requisite '" + reference.toString()
-                        + "' removed that was registered for dependent object " + dependentObject.toString());
+                LOGGER.info("Requisite '{}' removed that was registered for dependent object {}", reference,
+                        dependentObject);
             }
 
-            boolean stoppingEvent = false;
-            synchronized (helper) {
-                Map<String, ServiceReference> references = dependentObjectWithReferences.get(dependentObject);
-                int referencesSize = references.size();
-                int requisiteTrackersCount = dependentObjectWithRequisiteTrackers.get(dependentObject).size();
-                if (referencesSize == requisiteTrackersCount) {
-                    stoppingEvent = true;
-                }
-                if (reference != null) {
-                    references.remove(requisiteId);
+            if (state.references.getAndSet(slot, null) != null) {
+                if (state.satisfiedCount.getAndDecrement() == state.requisiteIds.length) {
+                    state.refreshSatisfaction();
                 }
+                state.applyTransitions();
             }
-            if (stoppingEvent) {
-                multiRequisiteListener.stopDependentObject(dependentObject);
+        }
+
+    }
+
+    /**
+     * The registrations and removals of one dependent object that wait until the thread that runs the current one
+     * finished. The queue is in the map of the queues while a thread owns it.
+     */
+    private class RegistrationQueue {
+
+        private final D dependentObject;
+
+        private final Queue<Runnable> operations = new LinkedList<Runnable>();
+
+        /**
+         * Whether the queue is removed from the map of the queues. No operation can be added to a retired queue.
+         * Guarded by the queue itself.
+         */
+        private boolean retired = false;
+
+        public RegistrationQueue(final D dependentObject) {
+            this.dependentObject = dependentObject;
+        }
+
+        /**
+         * Adds the operation to the queue.
+         *
+         * @return <code>false</code> if the queue is retired and the operation was not added.
+         */
+        public synchronized boolean offer(final Runnable operation) {
+            if (retired) {
+                return false;
             }
+            operations.add(operation);
+            return true;
         }
 
+        /**
+         * Runs the operations that other threads added while the owner ran its own one and retires the queue. The
+         * callers of these operations returned already, so their exceptions are only logged.
+         */
+        public void release() {
+            while (true) {
+                Runnable operation;
+                synchronized (this) {
+                    operation = operations.poll();
+                    if (operation == null) {
+                        retired = true;
+                        registrationQueues.remove(dependentObject, this);
+                        return;
+                    }
+                }
+                try {
+                    operation.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during registering or removing dependent object {}", dependentObject, e);
+                }
+            }
+        }
     }
 
     /** Logger */
-    private static final Logger LOGGER = LoggerFactory.getLogger("org.apache.aries.jpa.container");
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiRequisiteManager.class);
 
     private MultiRequisiteListener<D> multiRequisiteListener;
 
-    private Map<D, Map<String, ServiceReference>> dependentObjectWithReferences = new ConcurrentHashMap<D, Map<String, ServiceReference>>();
+    private Map<D, DependentObjectState> dependentObjectStates = new ConcurrentHashMap<D, DependentObjectState>();
 
-    private Map<D, Map<String, AbstractRequisiteTracker<D>>> dependentObjectWithRequisiteTrackers = new ConcurrentHashMap<D, Map<String, AbstractRequisiteTracker<D>>>();
+    /**
+     * The states of the dependent objects that do not have all of their requisites.
+     */
+    private Map<D, DependentObjectState> unsatisfiedDependentObjectStates =
+            new ConcurrentHashMap<D, DependentObjectState>();
+
+    /**
+     * The time it took until the dependent objects had all of their requisites first since their registration.
+     */
+    private final LatencyHistogram timeToReady = new LatencyHistogram();
 
     /**
-     * Helper object for thread synchronization.
+     * Recorder of the registrations and removals or <code>null</code> if nothing is recorded.
      */
-    private Object helper = new Object();
+    private TraceRecorder traceRecorder;
+
+    private int traceSourceId;
+
+    /**
+     * The queues of the dependent objects that are being registered or removed by a thread at the moment.
+     */
+    private final ConcurrentMap<D, RegistrationQueue> registrationQueues =
+            new ConcurrentHashMap<D, RegistrationQueue>();
 
     public MultiRequisiteManager(final MultiRequisiteListener<D> multiRequisiteListener) {
         this.multiRequisiteListener = multiRequisiteListener;
     }
 
+    /**
+     * Makes the manager record the registered and removed dependent objects with the trace source names of their
+     * trackers. The trackers should record to the same recorder, otherwise the registrations cannot be replayed. Must
+     * be called before any dependent object is registered.
+     * 
+     * @param traceRecorder
+     *            The recorder or <code>null</code> to record nothing.
+     * @param sourceName
+     *            The name of the manager in the recorded events.
+     */
+    public void setTraceRecorder(final TraceRecorder traceRecorder, final String sourceName) {
+        if (traceRecorder != null) {
+            traceSourceId = traceRecorder.registerSource(sourceName);
+        }
+        this.traceRecorder = traceRecorder;
+    }
+
+    private void traceRegistration(final D dependentObject,
+            final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers) {
+        if (traceRecorder != null) {
+            Map<String, Object> trackerNames = new LinkedHashMap<String, Object>();
+            for (Entry<String, AbstractRequisiteTracker<D>> entry : requisiteTrackers.entrySet()) {
+                trackerNames.put(entry.getKey(), entry.getValue().getTraceSourceName());
+            }
+            traceRecorder.record(TraceEventType.MULTI_DEPENDENT_OBJECT_REGISTERED, traceSourceId, null,
+                    dependentObject, trackerNames);
+        }
+    }
+
+    private void traceRemoval(final D dependentObject) {
+        if (traceRecorder != null) {
+            traceRecorder.record(TraceEventType.MULTI_DEPENDENT_OBJECT_REMOVED, traceSourceId, null, dependentObject,
+                    null);
+        }
+    }
+
+    public int getDependentObjectCount() {
+        return dependentObjectStates.size();
+    }
+
+    /**
+     * The readiness of a registered dependent object.
+     * 
+     * @return The snapshot or <code>null</code> if the dependent object is not registered.
+     */
+    public DependentObjectReadiness<D> getReadiness(final D dependentObject) {
+        DependentObjectState state = dependentObjectStates.get(dependentObject);
+        if (state == null) {
+            return null;
+        }
+        return state.createReadiness();
+    }
+
+    /**
+     * The time it took until the dependent objects had all of their requisites first since their registration. A
+     * dependent object that is restarted later is not recorded again.
+     */
+    public LatencyHistogram getTimeToReady() {
+        return timeToReady;
+    }
+
+    public int getUnsatisfiedDependentObjectCount() {
+        return unsatisfiedDependentObjectStates.size();
+    }
+
+    /**
+     * The readiness of the dependent objects that do not have all of their requisites at the moment. The cost depends
+     * on the number of unsatisfied dependent objects only.
+     */
+    public List<DependentObjectReadiness<D>> getUnsatisfiedDependentObjects() {
+        List<DependentObjectReadiness<D>> result = new ArrayList<DependentObjectReadiness<D>>();
+        for (DependentObjectState state : unsatisfiedDependentObjectStates.values()) {
+            DependentObjectReadiness<D> readiness = state.createReadiness();
+            // The state may have been satisfied since it was found
+            if (!readiness.isSatisfied()) {
+                result.add(readiness);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes the queue of the dependent object or adds the operation to the queue of the thread that owns it.
+     *
+     * @return The queue that the calling thread owns and must release or <code>null</code> if the operation was
+     *         queued.
+     */
+    private RegistrationQueue claimOrOffer(final D dependentObject, final Runnable operation) {
+        while (true) {
+            RegistrationQueue newQueue = new RegistrationQueue(dependentObject);
+            RegistrationQueue queue = registrationQueues.putIfAbsent(dependentObject, newQueue);
+            if (queue == null) {
+                return newQueue;
+            }
+            if (queue.offer(operation)) {
+                return null;
+            }
+        }
+    }
+
+    private DependentObjectState createState(final D dependentObject,
+            final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers) {
+        traceRegistration(dependentObject, requisiteTrackers);
+        DependentObjectState state = new DependentObjectState(dependentObject, requisiteTrackers);
+        dependentObjectStates.put(dependentObject, state);
+        state.refreshSatisfaction();
+        return state;
+    }
+
+    /**
+     * Runs the operation after the registrations and removals of the dependent object that other threads started
+     * before. If another thread is running one of them, the operation is queued and the function returns immediately.
+     */
+    private void runSerialized(final D dependentObject, final Runnable operation) {
+        RegistrationQueue queue = claimOrOffer(dependentObject, operation);
+        if (queue != null) {
+            try {
+                operation.run();
+            } finally {
+                queue.release();
+            }
+        }
+    }
+
+    private void doRegisterDependentObject(final D dependentObject,
+            final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers) {
+        DependentObjectState state = createState(dependentObject, requisiteTrackers);
+        for (int i = 0; i < state.requisiteIds.length; i++) {
+            requisiteTrackers.get(state.requisiteIds[i]).addDependentObject(dependentObject,
+                    new InnerRequisiteListener(state, i));
+        }
+    }
+
+    private void doRemoveDependentObject(final D dependentObject) {
+        traceRemoval(dependentObject);
+        DependentObjectState state = dependentObjectStates.get(dependentObject);
+        if (state != null) {
+            for (Entry<String, AbstractRequisiteTracker<D>> requisiteTrackerWithId : state.requisiteTrackers
+                    .entrySet()) {
+                requisiteTrackerWithId.getValue().removeDependentObject(dependentObject);
+            }
+            dependentObjectStates.remove(dependentObject);
+            state.remove();
+        } else {
+            LOGGER.warn("Removing was called on a dependentObject that is not "
+                    + "part of the MultiRequisiteManager: {}", dependentObject);
+        }
+    }
+
+    /**
+     * Registers the dependent object. If another thread is registering or removing the same dependent object at the
+     * moment, the registration is done by that thread after its own call and this call returns immediately.
+     * 
+     * @param dependentObject
+     *            The dependent object.
+     * @param requisiteTrackers
+     *            The requisite trackers by requisite id.
+     */
     public void registerDependentObject(final D dependentObject,
             final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers) {
-        synchronized (helper) {
-            dependentObjectWithRequisiteTrackers.put(dependentObject, requisiteTrackers);
-            for (Entry<String, AbstractRequisiteTracker<D>> requisiteTrackerWithId : requisiteTrackers.entrySet()) {
-                requisiteTrackerWithId.getValue().addDependentObject(dependentObject,
-                        new InnerRequisiteListener(requisiteTrackerWithId.getKey()));
+        runSerialized(dependentObject, new Runnable() {
+            @Override
+            public void run() {
+                doRegisterDependentObject(dependentObject, requisiteTrackers);
+            }
+        });
+    }
+
+    /**
+     * Registers more dependent objects. The dependent objects are grouped by their trackers and every tracker gets its
+     * group in one {@link AbstractRequisiteTracker#addDependentObjects(Map)} call, so the references of a tracker are
+     * matched against the whole group in one pass. The dependent objects that another thread is registering or
+     * removing at the moment are registered by that thread like at
+     * {@link #registerDependentObject(Object, Map)}.
+     * 
+     * @param requisiteTrackersOfDependentObjects
+     *            The requisite trackers by requisite id of each dependent object.
+     */
+    public void registerDependentObjects(
+            final Map<D, Map<String, AbstractRequisiteTracker<D>>> requisiteTrackersOfDependentObjects) {
+        List<RegistrationQueue> claimedQueues = new ArrayList<RegistrationQueue>();
+        try {
+            Map<AbstractRequisiteTracker<D>, Map<D, RequisiteListener<D>>> dependentObjectsByTracker =
+                    new LinkedHashMap<AbstractRequisiteTracker<D>, Map<D, RequisiteListener<D>>>();
+            for (Entry<D, Map<String, AbstractRequisiteTracker<D>>> entry : requisiteTrackersOfDependentObjects
+                    .entrySet()) {
+                final D dependentObject = entry.getKey();
+                final Map<String, AbstractRequisiteTracker<D>> requisiteTrackers = entry.getValue();
+                RegistrationQueue queue = claimOrOffer(dependentObject, new Runnable() {
+                    @Override
+                    public void run() {
+                        doRegisterDependentObject(dependentObject, requisiteTrackers);
+                    }
+                });
+                if (queue == null) {
+                    continue;
+                }
+                claimedQueues.add(queue);
+                DependentObjectState state = createState(dependentObject, requisiteTrackers);
+                for (int i = 0; i < state.requisiteIds.length; i++) {
+                    AbstractRequisiteTracker<D> requisiteTracker = state.requisiteTrackers.get(state.requisiteIds[i]);
+                    Map<D, RequisiteListener<D>> dependentObjects = dependentObjectsByTracker.get(requisiteTracker);
+                    if (dependentObjects == null) {
+                        dependentObjects = new LinkedHashMap<D, RequisiteListener<D>>();
+                        dependentObjectsByTracker.put(requisiteTracker, dependentObjects);
+                    }
+                    dependentObjects.put(dependentObject, new InnerRequisiteListener(state, i));
+                }
+            }
+            for (Entry<AbstractRequisiteTracker<D>, Map<D, RequisiteListener<D>>> entry : dependentObjectsByTracker
+                    .entrySet()) {
+                entry.getKey().addDependentObjects(entry.getValue());
+            }
+        } finally {
+            for (RegistrationQueue queue : claimedQueues) {
+                queue.release();
             }
         }
     }
 
+    /**
+     * Removes the dependent object. If another thread is registering or removing the same dependent object at the
+     * moment, the removal is done by that thread after its own call and this call returns immediately. This happens
+     * as well if a listener removes the dependent object from a callback of its registration.
+     * 
+     * @param dependentObject
+     *            The dependent object.
+     */
     public void removeDependentObject(final D dependentObject) {
-        synchronized (helper) {
-            Map<String, AbstractRequisiteTracker<D>> requisiteTrackers = dependentObjectWithRequisiteTrackers
-                    .get(dependentObject);
-            if (requisiteTrackers != null) {
-                for (Entry<String, AbstractRequisiteTracker<D>> requisiteTrackerWithId : requisiteTrackers.entrySet()) {
-                    requisiteTrackerWithId.getValue().removeDependentObject(dependentObject);
+        runSerialized(dependentObject, new Runnable() {
+            @Override
+            public void run() {
+                doRemoveDependentObject(dependentObject);
+            }
+        });
+    }
+
+    /**
+     * Removes more dependent objects. Every tracker gets the dependent objects that it tracks in one
+     * {@link AbstractRequisiteTracker#removeDependentObjects(Collection)} call. The dependent objects that another
+     * thread is registering or removing at the moment are removed by that thread like at
+     * {@link #removeDependentObject(Object)}.
+     * 
+     * @param dependentObjects
+     *            The dependent objects.
+     */
+    public void removeDependentObjects(final Collection<D> dependentObjects) {
+        List<RegistrationQueue> claimedQueues = new ArrayList<RegistrationQueue>();
+        try {
+            Map<AbstractRequisiteTracker<D>, List<D>> dependentObjectsByTracker =
+                    new LinkedHashMap<AbstractRequisiteTracker<D>, List<D>>();
+            List<DependentObjectState> removedStates = new ArrayList<DependentObjectState>();
+            for (final D dependentObject : dependentObjects) {
+                RegistrationQueue queue = claimOrOffer(dependentObject, new Runnable() {
+                    @Override
+                    public void run() {
+                        doRemoveDependentObject(dependentObject);
+                    }
+                });
+                if (queue == null) {
+                    continue;
                 }
-                dependentObjectWithReferences.remove(dependentObject);
-                dependentObjectWithRequisiteTrackers.remove(dependentObject);
-            } else {
-                LOGGER.warn("Removing was called on a dependentObject that is not "
-                        + "part of the MultiRequisiteManager: "
-                        + dependentObject.toString());
+                claimedQueues.add(queue);
+                traceRemoval(dependentObject);
+                DependentObjectState state = dependentObjectStates.get(dependentObject);
+                if (state == null) {
+                    LOGGER.warn("Removing was called on a dependentObject that is not "
+                            + "part of the MultiRequisiteManager: {}", dependentObject);
+                } else {
+                    removedStates.add(state);
+                    for (AbstractRequisiteTracker<D> requisiteTracker : state.requisiteTrackers.values()) {
+                        List<D> trackedObjects = dependentObjectsByTracker.get(requisiteTracker);
+                        if (trackedObjects == null) {
+                            trackedObjects = new ArrayList<D>();
+                            dependentObjectsByTracker.put(requisiteTracker, trackedObjects);
+                        }
+                        trackedObjects.add(dependentObject);
+                    }
+                }
+            }
+            for (Entry<AbstractRequisiteTracker<D>, List<D>> entry : dependentObjectsByTracker.entrySet()) {
+                entry.getKey().removeDependentObjects(entry.getValue());
+            }
+            for (DependentObjectState state : removedStates) {
+                dependentObjectStates.remove(state.dependentObject);
+                state.remove();
+            }
+        } finally {
+            for (RegistrationQueue queue : claimedQueues) {
+                queue.release();
             }
         }
     }
@@ -0,0 +1,127 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Standard MBean that shows the readiness of the dependent objects of a {@link MultiRequisiteManager}, so dependent
+ * objects that hang waiting for a requisite can be found without reading the logs:
+ *
+ * <pre>
+ * new MultiRequisiteManagerDiagnostics(manager).registerMBean(ManagementFactory.getPlatformMBeanServer(),
+ *         &quot;persistenceUnits&quot;);
+ * </pre>
+ */
+public class MultiRequisiteManagerDiagnostics implements MultiRequisiteManagerDiagnosticsMBean {
+
+    private final MultiRequisiteManager<?> multiRequisiteManager;
+
+    public MultiRequisiteManagerDiagnostics(final MultiRequisiteManager<?> multiRequisiteManager) {
+        if (multiRequisiteManager == null) {
+            throw new IllegalArgumentException("Multi requisite manager cannot be null");
+        }
+        this.multiRequisiteManager = multiRequisiteManager;
+    }
+
+    private static ObjectName createObjectName(final String name) throws MalformedObjectNameException {
+        return new ObjectName(RequisiteTrackerStatistics.OBJECT_NAME_DOMAIN + ":type=MultiRequisiteManager,name="
+                + ObjectName.quote(name));
+    }
+
+    private static long toMillis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public int getDependentObjectCount() {
+        return multiRequisiteManager.getDependentObjectCount();
+    }
+
+    @Override
+    public long getReadyCount() {
+        return multiRequisiteManager.getTimeToReady().getCount();
+    }
+
+    @Override
+    public long getTimeToReady99thPercentileMillis() {
+        return toMillis(multiRequisiteManager.getTimeToReady().getPercentileNanos(99));
+    }
+
+    @Override
+    public long getTimeToReadyMaxMillis() {
+        return toMillis(multiRequisiteManager.getTimeToReady().getMaxNanos());
+    }
+
+    @Override
+    public double getTimeToReadyMeanMillis() {
+        return multiRequisiteManager.getTimeToReady().getMeanNanos() / 1000000;
+    }
+
+    @Override
+    public int getUnsatisfiedDependentObjectCount() {
+        return multiRequisiteManager.getUnsatisfiedDependentObjectCount();
+    }
+
+    @Override
+    public String[] getUnsatisfiedDependentObjects() {
+        Collection<? extends DependentObjectReadiness<?>> unsatisfiedDependentObjects = multiRequisiteManager
+                .getUnsatisfiedDependentObjects();
+        long now = System.currentTimeMillis();
+        String[] result = new String[unsatisfiedDependentObjects.size()];
+        int i = 0;
+        for (DependentObjectReadiness<?> readiness : unsatisfiedDependentObjects) {
+            result[i] = readiness.getDependentObject() + " is missing " + readiness.getMissingRequisiteIds()
+                    + " for " + (now - readiness.getRegistrationTime()) + " ms";
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Registers the diagnostics to the server with the object name
+     * <code>org.everit.osgi.util.requisite:type=MultiRequisiteManager,name=&lt;name&gt;</code>.
+     *
+     * @return The object name of the registered MBean.
+     * @throws JMException
+     *             if the name is not valid or an MBean is already registered with the name.
+     */
+    public ObjectName registerMBean(final MBeanServer server, final String name) throws JMException {
+        ObjectName objectName = createObjectName(name);
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Unregisters the MBean that was registered with the name by {@link #registerMBean(MBeanServer, String)}.
+     */
+    public void unregisterMBean(final MBeanServer server, final String name) throws JMException {
+        server.unregisterMBean(createObjectName(name));
+    }
+}
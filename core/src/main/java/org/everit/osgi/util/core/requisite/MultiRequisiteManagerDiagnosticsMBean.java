@@ -0,0 +1,47 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Management interface of {@link MultiRequisiteManagerDiagnostics}. Durations are in milliseconds.
+ */
+public interface MultiRequisiteManagerDiagnosticsMBean {
+
+    int getDependentObjectCount();
+
+    long getReadyCount();
+
+    double getTimeToReadyMeanMillis();
+
+    long getTimeToReadyMaxMillis();
+
+    long getTimeToReady99thPercentileMillis();
+
+    int getUnsatisfiedDependentObjectCount();
+
+    /**
+     * The dependent objects that do not have all of their requisites with the missing requisite ids and the time they
+     * have been waiting for.
+     */
+    String[] getUnsatisfiedDependentObjects();
+}
@@ -0,0 +1,56 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collection;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Decides which reference an {@link AbstractRequisiteTracker} offers first to a dependent object when more references
+ * are available. The dependent object is paired with the first suitable reference in the returned order.
+ */
+public interface PairingStrategy {
+
+    /**
+     * Usage information of the references that a strategy can rely on.
+     */
+    interface ReferenceUsage {
+
+        /**
+         * The number of dependent objects that use the reference at the moment.
+         */
+        int getUserCount(ServiceReference reference);
+    }
+
+    /**
+     * Orders the candidate references.
+     * 
+     * @param candidates
+     *            The references that may be suitable for the dependent object.
+     * @param referenceUsage
+     *            The current usage of the references.
+     * @return The candidates in the order they should be tried.
+     */
+    Collection<ServiceReference> orderCandidates(Collection<ServiceReference> candidates,
+            ReferenceUsage referenceUsage);
+}
@@ -0,0 +1,201 @@
+package org.everit.osgi.util.core.requisite;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Hash index of the dependent objects and service references of an {@link AbstractRequisiteTracker} by the values of
+ * the service properties the tracker matches on. Dependent objects that do not provide index values are candidates of
+ * every reference.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+class RequisiteIndex<D> {
+
+    private final String[] propertyKeys;
+
+    private final Map<List<Object>, Set<D>> dependentObjectsByKey = new ConcurrentHashMap<List<Object>, Set<D>>();
+
+    private final Set<D> notIndexedDependentObjects = newConcurrentSet();
+
+    private final Map<D, List<Object>> keysOfDependentObjects = new ConcurrentHashMap<D, List<Object>>();
+
+    private final Map<List<Object>, Set<ServiceReference>> referencesByKey =
+            new ConcurrentHashMap<List<Object>, Set<ServiceReference>>();
+
+    private final Map<ServiceReference, List<Object>> keysOfReferences =
+            new ConcurrentHashMap<ServiceReference, List<Object>>();
+
+    private final Object helper = new Object();
+
+    public RequisiteIndex(final String[] propertyKeys) {
+        this.propertyKeys = propertyKeys.clone();
+    }
+
+    private static <E> Set<E> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+    }
+
+    /**
+     * Converts a property value to an object that has value based equals and hashCode.
+     */
+    private static Object normalize(final Object value) {
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value);
+        }
+        if ((value != null) && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            List<Object> result = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                result.add(Array.get(value, i));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    public void addDependentObject(final D dependentObject, final Object[] values) {
+        synchronized (helper) {
+            if (values == null) {
+                notIndexedDependentObjects.add(dependentObject);
+                return;
+            }
+            if (values.length != propertyKeys.length) {
+                throw new IllegalArgumentException("Expected " + propertyKeys.length
+                        + " index values for dependent object but got " + values.length + ": "
+                        + dependentObject.toString());
+            }
+            List<Object> key = createKey(values);
+            keysOfDependentObjects.put(dependentObject, key);
+            Set<D> dependentObjects = dependentObjectsByKey.get(key);
+            if (dependentObjects == null) {
+                dependentObjects = newConcurrentSet();
+                dependentObjectsByKey.put(key, dependentObjects);
+            }
+            dependentObjects.add(dependentObject);
+        }
+    }
+
+    public void addReference(final ServiceReference reference) {
+        synchronized (helper) {
+            List<Object> key = createKeyOfReference(reference);
+            keysOfReferences.put(reference, key);
+            Set<ServiceReference> references = referencesByKey.get(key);
+            if (references == null) {
+                references = newConcurrentSet();
+                referencesByKey.put(key, references);
+            }
+            references.add(reference);
+        }
+    }
+
+    private List<Object> createKey(final Object[] values) {
+        Object[] normalizedValues = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            normalizedValues[i] = normalize(values[i]);
+        }
+        return Arrays.asList(normalizedValues);
+    }
+
+    private List<Object> createKeyOfReference(final ServiceReference reference) {
+        Object[] values = new Object[propertyKeys.length];
+        for (int i = 0; i < propertyKeys.length; i++) {
+            values[i] = reference.getProperty(propertyKeys[i]);
+        }
+        return createKey(values);
+    }
+
+    /**
+     * The dependent objects that may accept the reference. The returned collection is a snapshot.
+     */
+    public Collection<D> getCandidateDependentObjects(final ServiceReference reference) {
+        List<Object> key = keysOfReferences.get(reference);
+        if (key == null) {
+            key = createKeyOfReference(reference);
+        }
+        List<D> result = new ArrayList<D>(notIndexedDependentObjects);
+        Set<D> dependentObjects = dependentObjectsByKey.get(key);
+        if (dependentObjects != null) {
+            result.addAll(dependentObjects);
+        }
+        return result;
+    }
+
+    /**
+     * The references that may be accepted by the dependent object or <code>null</code> if the dependent object is not
+     * indexed and therefore every reference is a candidate.
+     */
+    public Collection<ServiceReference> getCandidateReferences(final D dependentObject) {
+        List<Object> key = keysOfDependentObjects.get(dependentObject);
+        if (key == null) {
+            return null;
+        }
+        Set<ServiceReference> references = referencesByKey.get(key);
+        if (references == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<ServiceReference>(references);
+    }
+
+    public void removeDependentObject(final D dependentObject) {
+        synchronized (helper) {
+            notIndexedDependentObjects.remove(dependentObject);
+            List<Object> key = keysOfDependentObjects.remove(dependentObject);
+            if (key != null) {
+                Set<D> dependentObjects = dependentObjectsByKey.get(key);
+                if (dependentObjects != null) {
+                    dependentObjects.remove(dependentObject);
+                    if (dependentObjects.isEmpty()) {
+                        dependentObjectsByKey.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    public void removeReference(final ServiceReference reference) {
+        synchronized (helper) {
+            List<Object> key = keysOfReferences.remove(reference);
+            if (key != null) {
+                Set<ServiceReference> references = referencesByKey.get(key);
+                if (references != null) {
+                    references.remove(reference);
+                    if (references.isEmpty()) {
+                        referencesByKey.remove(key);
+                    }
+                }
+            }
+        }
+    }
+}
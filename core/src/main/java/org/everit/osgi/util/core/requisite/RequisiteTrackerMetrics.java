@@ -0,0 +1,66 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Receives the events of an {@link AbstractRequisiteTracker} that are worth to be measured. The tracker calls the
+ * functions on the thread of the event, so implementations must be thread safe and fast. The sizes of the tracker (e.g.
+ * the number of waiting dependent objects) are not pushed, they can be queried from the tracker any time.
+ *
+ * @see RequisiteTrackerStatistics
+ */
+public interface RequisiteTrackerMetrics {
+
+    /**
+     * Called after {@link RequisiteListener#requisiteAvailable(Object, org.osgi.framework.ServiceReference)} or
+     * {@link RequisiteListener#requisiteRemoved(Object, org.osgi.framework.ServiceReference)} returned. If the tracker
+     * has an {@link AsyncRequisiteDispatcher}, the call is measured on the thread of the dispatcher.
+     *
+     * @param nanos
+     *            The time the listener took in nanoseconds.
+     * @param successful
+     *            <code>false</code> if the listener threw an exception.
+     */
+    void listenerNotified(long nanos, boolean successful);
+
+    /**
+     * Called when a dependent object started to use a reference.
+     */
+    void paired();
+
+    /**
+     * Called after {@link AbstractRequisiteTracker#isReferenceSuitable(Object, org.osgi.framework.ServiceReference)}
+     * returned. Verdicts that are taken from a {@link SuitabilityVerdictCache} are not reported.
+     *
+     * @param nanos
+     *            The time the evaluation took in nanoseconds.
+     * @param suitable
+     *            The verdict. An evaluation that threw an exception is reported as not suitable.
+     */
+    void suitabilityEvaluated(long nanos, boolean suitable);
+
+    /**
+     * Called when a dependent object stopped using a reference.
+     */
+    void unpaired();
+}
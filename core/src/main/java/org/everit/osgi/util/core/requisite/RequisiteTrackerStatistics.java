@@ -0,0 +1,231 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Default {@link RequisiteTrackerMetrics} that counts the events and records the latencies in
+ * {@link LatencyHistogram}s. It is a standard MBean that also shows the sizes of the tracker, so it can be registered
+ * to an {@link MBeanServer} to watch slow pairings and dependent objects that never get their requisite:
+ *
+ * <pre>
+ * RequisiteTrackerStatistics statistics = new RequisiteTrackerStatistics(tracker);
+ * tracker.setMetrics(statistics);
+ * statistics.registerMBean(ManagementFactory.getPlatformMBeanServer(), &quot;dataSourceTracker&quot;);
+ * </pre>
+ */
+public class RequisiteTrackerStatistics implements RequisiteTrackerMetrics, RequisiteTrackerStatisticsMBean {
+
+    /**
+     * The domain of the object names of the registered MBeans.
+     */
+    public static final String OBJECT_NAME_DOMAIN = "org.everit.osgi.util.requisite";
+
+    private final AbstractRequisiteTracker<?> tracker;
+
+    private final LatencyHistogram suitabilityLatency = new LatencyHistogram();
+
+    private final LatencyHistogram listenerLatency = new LatencyHistogram();
+
+    private final AtomicLong suitableVerdictCount = new AtomicLong();
+
+    private final AtomicLong failedListenerCallCount = new AtomicLong();
+
+    private final AtomicLong pairCount = new AtomicLong();
+
+    private final AtomicLong unpairCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param tracker
+     *            The tracker that the sizes are queried from. The statistics still has to be passed to
+     *            {@link AbstractRequisiteTracker#setMetrics(RequisiteTrackerMetrics)} to get the events.
+     */
+    public RequisiteTrackerStatistics(final AbstractRequisiteTracker<?> tracker) {
+        if (tracker == null) {
+            throw new IllegalArgumentException("Tracker cannot be null");
+        }
+        this.tracker = tracker;
+    }
+
+    private static long toMicros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public int getAwaitingObjectCount() {
+        return tracker.getAwaitingObjectCount();
+    }
+
+    @Override
+    public long getFailedListenerCallCount() {
+        return failedListenerCallCount.get();
+    }
+
+    @Override
+    public long getListenerCallCount() {
+        return listenerLatency.getCount();
+    }
+
+    public LatencyHistogram getListenerLatency() {
+        return listenerLatency;
+    }
+
+    @Override
+    public long getListenerLatency99thPercentileMicros() {
+        return toMicros(listenerLatency.getPercentileNanos(99));
+    }
+
+    @Override
+    public long getListenerLatencyMaxMicros() {
+        return toMicros(listenerLatency.getMaxNanos());
+    }
+
+    @Override
+    public double getListenerLatencyMeanMicros() {
+        return listenerLatency.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getPairCount() {
+        return pairCount.get();
+    }
+
+    @Override
+    public int getPairedObjectCount() {
+        return tracker.getPairedObjectCount();
+    }
+
+    @Override
+    public long getSuitabilityEvaluationCount() {
+        return suitabilityLatency.getCount();
+    }
+
+    public LatencyHistogram getSuitabilityLatency() {
+        return suitabilityLatency;
+    }
+
+    @Override
+    public long getSuitabilityLatency99thPercentileMicros() {
+        return toMicros(suitabilityLatency.getPercentileNanos(99));
+    }
+
+    @Override
+    public long getSuitabilityLatencyMaxMicros() {
+        return toMicros(suitabilityLatency.getMaxNanos());
+    }
+
+    @Override
+    public double getSuitabilityLatencyMeanMicros() {
+        return suitabilityLatency.getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getSuitableVerdictCount() {
+        return suitableVerdictCount.get();
+    }
+
+    @Override
+    public int getTrackedReferenceCount() {
+        return tracker.getTrackedReferenceCount();
+    }
+
+    @Override
+    public long getUnpairCount() {
+        return unpairCount.get();
+    }
+
+    @Override
+    public int getWrongPairingCount() {
+        return tracker.getWrongPairingCount();
+    }
+
+    @Override
+    public void listenerNotified(final long nanos, final boolean successful) {
+        listenerLatency.record(nanos);
+        if (!successful) {
+            failedListenerCallCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void paired() {
+        pairCount.incrementAndGet();
+    }
+
+    /**
+     * Registers the statistics to the server with the object name
+     * <code>org.everit.osgi.util.requisite:type=RequisiteTracker,name=&lt;name&gt;</code>.
+     *
+     * @return The object name of the registered MBean.
+     * @throws JMException
+     *             if the name is not valid or an MBean is already registered with the name.
+     */
+    public ObjectName registerMBean(final MBeanServer server, final String name) throws JMException {
+        ObjectName objectName = createObjectName(name);
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    private static ObjectName createObjectName(final String name) throws MalformedObjectNameException {
+        return new ObjectName(OBJECT_NAME_DOMAIN + ":type=RequisiteTracker,name=" + ObjectName.quote(name));
+    }
+
+    @Override
+    public void reset() {
+        suitabilityLatency.reset();
+        listenerLatency.reset();
+        suitableVerdictCount.set(0);
+        failedListenerCallCount.set(0);
+        pairCount.set(0);
+        unpairCount.set(0);
+    }
+
+    @Override
+    public void suitabilityEvaluated(final long nanos, final boolean suitable) {
+        suitabilityLatency.record(nanos);
+        if (suitable) {
+            suitableVerdictCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void unpaired() {
+        unpairCount.incrementAndGet();
+    }
+
+    /**
+     * Unregisters the MBean that was registered with the name by {@link #registerMBean(MBeanServer, String)}.
+     */
+    public void unregisterMBean(final MBeanServer server, final String name) throws JMException {
+        server.unregisterMBean(createObjectName(name));
+    }
+}
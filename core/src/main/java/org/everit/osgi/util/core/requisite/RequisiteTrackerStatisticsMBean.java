@@ -0,0 +1,67 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Management interface of {@link RequisiteTrackerStatistics}. Durations are in microseconds, counters are cumulative
+ * since the start or the last {@link #reset()}, so rates can be calculated by the monitoring system from two samples.
+ */
+public interface RequisiteTrackerStatisticsMBean {
+
+    int getAwaitingObjectCount();
+
+    long getFailedListenerCallCount();
+
+    long getListenerCallCount();
+
+    double getListenerLatencyMeanMicros();
+
+    long getListenerLatencyMaxMicros();
+
+    long getListenerLatency99thPercentileMicros();
+
+    long getPairCount();
+
+    int getPairedObjectCount();
+
+    long getSuitabilityEvaluationCount();
+
+    double getSuitabilityLatencyMeanMicros();
+
+    long getSuitabilityLatencyMaxMicros();
+
+    long getSuitabilityLatency99thPercentileMicros();
+
+    long getSuitableVerdictCount();
+
+    int getTrackedReferenceCount();
+
+    long getUnpairCount();
+
+    int getWrongPairingCount();
+
+    /**
+     * Clears the counters and histograms. The sizes of the tracker are not affected.
+     */
+    void reset();
+}
@@ -0,0 +1,255 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the submitted tasks one after the other in the order they were submitted on an underlying {@link Executor}.
+ * The underlying executor may have many threads, at most one task of this executor runs at a time and the tasks see
+ * the changes of the previous ones. The submitting thread only enqueues the task and returns, unless it calls
+ * {@link #executeAndAwait(Runnable)}. On Java 21 and later an
+ * executor that starts a virtual thread per task is a good choice, as no thread is kept while there is nothing to do.
+ * See {@link AbstractRequisiteTracker#setSerialExecutor(SerialExecutor)}.
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialExecutor.class);
+
+    /**
+     * Drains the queue on the underlying executor.
+     */
+    private class Drain implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (helper) {
+                runningThread = Thread.currentThread();
+            }
+            boolean drained = false;
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (helper) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            runningThread = null;
+                            scheduled = false;
+                            drained = true;
+                            helper.notifyAll();
+                            return;
+                        }
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        failedCount.incrementAndGet();
+                        LOGGER.error("Error during running serial task {}", task, e);
+                    } finally {
+                        executedCount.incrementAndGet();
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    synchronized (helper) {
+                        runningThread = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private final Executor executor;
+
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+    /**
+     * Helper object that guards the queue.
+     */
+    private final Object helper = new Object();
+
+    /**
+     * Whether a drain is scheduled on the underlying executor. Guarded by the helper.
+     */
+    private boolean scheduled = false;
+
+    /**
+     * The thread that runs the tasks at the moment or <code>null</code>. Written under the helper by the drain, so the
+     * drain that finished cannot clear the thread of the next one.
+     */
+    private volatile Thread runningThread;
+
+    private final Drain drain = new Drain();
+
+    private final AtomicLong executedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param executor
+     *            The executor that runs the tasks.
+     */
+    public SerialExecutor(final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Waits until every submitted task is run.
+     * 
+     * @param timeoutMillis
+     *            The maximum time to wait in milliseconds.
+     * @return <code>true</code> if there are no tasks left, <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException
+     *             If the waiting thread is interrupted.
+     */
+    public boolean awaitIdle(final long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (helper) {
+            while (scheduled) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                helper.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        boolean schedule;
+        synchronized (helper) {
+            tasks.add(task);
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            try {
+                executor.execute(drain);
+            } catch (RuntimeException e) {
+                synchronized (helper) {
+                    tasks.clear();
+                    scheduled = false;
+                    helper.notifyAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs the task after the tasks submitted before and waits until it finished. The task runs directly if the calling
+     * thread is running a task of this executor, as it would wait for itself otherwise. An exception of the task is
+     * logged like in case of {@link #execute(Runnable)}. The interrupt of the waiting thread is kept until the task
+     * finished.
+     * 
+     * @param task
+     *            The task to run.
+     */
+    public void executeAndAwait(final Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        if (isExecutingThread()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch finished = new CountDownLatch(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return task.toString();
+            }
+        });
+        boolean interrupted = false;
+        while (finished.getCount() > 0) {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The number of tasks that were run including the failed ones.
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * The number of tasks that threw an exception.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * The number of tasks that wait for running.
+     */
+    public int getQueuedCount() {
+        synchronized (helper) {
+            return tasks.size();
+        }
+    }
+
+    /**
+     * Whether the calling thread is running a task of this executor. Work that is started from a task can run directly
+     * in that case, as it cannot run parallel with the other tasks.
+     */
+    public boolean isExecutingThread() {
+        return runningThread == Thread.currentThread();
+    }
+}
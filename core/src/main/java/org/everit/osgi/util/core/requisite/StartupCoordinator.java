@@ -0,0 +1,504 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Starts the dependent objects of several {@link MultiRequisiteManager}s on a bounded pool instead of the thread of
+ * the service event that satisfied them, and learns the graph of the dependent objects from the services they publish.
+ * <p>
+ * The {@link MultiRequisiteListener} of each manager is wrapped by {@link #coordinate(MultiRequisiteListener)}. When a
+ * manager starts a dependent object, the start is enqueued and the event thread returns, so the independent branches
+ * of the graph start parallel. A dependent object is started only when all of its requisites are available, therefore
+ * the starts follow the topological order of the graph by construction. The start and the stop of the same dependent
+ * object run one after the other in the order they were requested.
+ * <p>
+ * The coordinator listens to the service registrations of the bundle context. A service that is registered on the
+ * thread of a start is attributed to the dependent object being started, and the dependent objects that get that
+ * service as a requisite later become its consumers. Based on this graph and the measured durations of the starts
+ * {@link #getCriticalPath()} tells which chain of starts determined the startup time of the container. The service
+ * events must be delivered synchronously on the registering thread, which every OSGi framework does for
+ * {@link ServiceListener}s. A dependent object leaves the graph when it is stopped and no start of it is requested,
+ * so the graph does not grow with the dependent objects that are not used anymore.
+ * <p>
+ * As the start runs after the manager was told that it returned, the manager cannot see when it throws an exception
+ * and calls the stop later as for a started dependent object. The coordinator records the failure and does not pass
+ * that stop to the wrapped listener, so only the dependent objects that were started are stopped. The failure is
+ * logged by the {@link SerialExecutor} of the dependent object and is available by {@link #getStartFailure(Object)}
+ * until the next start.
+ *
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class StartupCoordinator<D> {
+
+    /**
+     * A dependent object in the graph.
+     */
+    private class Node {
+
+        private final D dependentObject;
+
+        /**
+         * Runs the start and stop of the dependent object one after the other.
+         */
+        private final SerialExecutor transitions = new SerialExecutor(executor);
+
+        /**
+         * The dependent objects that published the requisites of the last start. They are looked up by the dependent
+         * object, so a producer that left the graph is not kept in the memory by its consumers.
+         */
+        private volatile Set<D> producers = Collections.emptySet();
+
+        /**
+         * The duration of the last start in nanos or <code>-1</code> if it did not finish yet.
+         */
+        private volatile long startNanos = -1;
+
+        /**
+         * The exception of the last start or <code>null</code> if it succeeded or did not run yet. Written by the
+         * transitions only, so the stop that follows a start sees the outcome of it.
+         */
+        private volatile RuntimeException startFailure;
+
+        /**
+         * The number of starts and stops that are requested but not finished. Guarded by the helper.
+         */
+        private int pendingTransitionCount = 0;
+
+        public Node(final D dependentObject) {
+            this.dependentObject = dependentObject;
+        }
+    }
+
+    /**
+     * The result of the critical path calculation of a node.
+     */
+    private class PathLength {
+
+        private final long nanos;
+
+        private final Node predecessor;
+
+        public PathLength(final long nanos, final Node predecessor) {
+            this.nanos = nanos;
+            this.predecessor = predecessor;
+        }
+    }
+
+    /**
+     * Attributes the registered services to the dependent object that is being started on the same thread.
+     */
+    private class RegistrationListener implements ServiceListener {
+
+        @Override
+        public void serviceChanged(final ServiceEvent event) {
+            Long serviceId = (Long) event.getServiceReference().getProperty(Constants.SERVICE_ID);
+            if (event.getType() == ServiceEvent.REGISTERED) {
+                Node startingNode = startingNodes.get();
+                if (startingNode != null) {
+                    producersByServiceId.put(serviceId, startingNode.dependentObject);
+                }
+            } else if (event.getType() == ServiceEvent.UNREGISTERING) {
+                producersByServiceId.remove(serviceId);
+            }
+        }
+    }
+
+    private final BundleContext context;
+
+    private final Executor executor;
+
+    private final ServiceListener registrationListener = new RegistrationListener();
+
+    private final ConcurrentMap<D, Node> nodes = new ConcurrentHashMap<D, Node>();
+
+    private final ConcurrentMap<Long, D> producersByServiceId = new ConcurrentHashMap<Long, D>();
+
+    /**
+     * The node that is being started on the current thread.
+     */
+    private final ThreadLocal<Node> startingNodes = new ThreadLocal<Node>();
+
+    /**
+     * Helper object that guards the pending counts and the changes of the nodes.
+     */
+    private final Object helper = new Object();
+
+    /**
+     * The number of starts that are requested but not finished. Guarded by the helper.
+     */
+    private int pendingStartCount = 0;
+
+    /**
+     * The nano time of the first start request since the coordinator was idle last time.
+     */
+    private final AtomicLong startupBeginNanos = new AtomicLong();
+
+    /**
+     * The duration from the first start request till the last finished start of the last startup.
+     */
+    private final AtomicLong startupNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param context
+     *            The context of which the service registrations are followed.
+     * @param executor
+     *            The bounded pool that runs the starts and stops, e.g. a fixed thread pool.
+     */
+    public StartupCoordinator(final BundleContext context, final Executor executor) {
+        if (context == null) {
+            throw new IllegalArgumentException("Bundle context cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.context = context;
+        this.executor = executor;
+    }
+
+    /**
+     * Waits until every requested start is finished.
+     *
+     * @param timeoutMillis
+     *            The maximum time to wait in milliseconds.
+     * @return <code>true</code> if no start is pending, <code>false</code> if the timeout elapsed.
+     * @throws InterruptedException
+     *             If the waiting thread is interrupted.
+     */
+    public boolean awaitStartup(final long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (helper) {
+            while (pendingStartCount > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                helper.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private PathLength calculatePathLength(final Node node, final Map<Node, PathLength> pathLengths,
+            final Set<Node> visitedNodes) {
+        PathLength pathLength = pathLengths.get(node);
+        if (pathLength != null) {
+            return pathLength;
+        }
+        if (!visitedNodes.add(node)) {
+            // Restarts may produce cycles in the graph, the edge that closes the cycle is ignored
+            return null;
+        }
+        Node predecessor = null;
+        long predecessorNanos = 0;
+        for (D producer : node.producers) {
+            Node producerNode = nodes.get(producer);
+            if (producerNode == null) {
+                // Stopped since then
+                continue;
+            }
+            PathLength producerPathLength = calculatePathLength(producerNode, pathLengths, visitedNodes);
+            if ((producerPathLength != null)
+                    && ((predecessor == null) || (producerPathLength.nanos > predecessorNanos))) {
+                predecessor = producerNode;
+                predecessorNanos = producerPathLength.nanos;
+            }
+        }
+        pathLength = new PathLength(predecessorNanos + Math.max(node.startNanos, 0), predecessor);
+        pathLengths.put(node, pathLength);
+        return pathLength;
+    }
+
+    private Map<Node, PathLength> calculatePathLengths() {
+        Map<Node, PathLength> pathLengths = new HashMap<Node, PathLength>();
+        for (Node node : nodes.values()) {
+            calculatePathLength(node, pathLengths, new HashSet<Node>());
+        }
+        return pathLengths;
+    }
+
+    /**
+     * The node of the dependent object with one more pending transition. The node is created if the dependent object
+     * is not in the graph.
+     */
+    private Node acquireNode(final D dependentObject) {
+        synchronized (helper) {
+            Node node = nodes.get(dependentObject);
+            if (node == null) {
+                node = new Node(dependentObject);
+                nodes.put(dependentObject, node);
+            }
+            node.pendingTransitionCount++;
+            return node;
+        }
+    }
+
+    /**
+     * Clears the learned edges and the measured durations. The dependent objects that are in the graph stay there
+     * without producers, so their next transitions keep the order with the running ones, and the services they
+     * published are still attributed to them.
+     */
+    public void clear() {
+        synchronized (helper) {
+            for (Node node : nodes.values()) {
+                node.producers = Collections.emptySet();
+                node.startNanos = -1;
+            }
+            startupNanos.set(0);
+        }
+    }
+
+    /**
+     * Stops following the service registrations.
+     */
+    public void close() {
+        context.removeServiceListener(registrationListener);
+    }
+
+    /**
+     * Wraps the listener of a {@link MultiRequisiteManager} so the starts and stops of its dependent objects are run by
+     * the coordinator.
+     *
+     * @param multiRequisiteListener
+     *            The listener that starts and stops the dependent objects.
+     * @return The listener to create the manager with.
+     */
+    public MultiRequisiteListener<D> coordinate(final MultiRequisiteListener<D> multiRequisiteListener) {
+        if (multiRequisiteListener == null) {
+            throw new IllegalArgumentException("Multi requisite listener cannot be null");
+        }
+        return new MultiRequisiteListener<D>() {
+
+            @Override
+            public void startDependentObject(final D dependentObject, final Map<String, ServiceReference> references) {
+                requestStart(multiRequisiteListener, dependentObject,
+                        new LinkedHashMap<String, ServiceReference>(references));
+            }
+
+            @Override
+            public void stopDependentObject(final D dependentObject) {
+                final Node node = acquireNode(dependentObject);
+                try {
+                    node.transitions.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (node.startFailure == null) {
+                                    multiRequisiteListener.stopDependentObject(dependentObject);
+                                }
+                            } finally {
+                                releaseNode(node, true);
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    releaseNode(node, false);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * The chain of starts with the largest sum of start durations, from the first started dependent object to the
+     * last one. Each dependent object in the chain got a requisite from the previous one. The chain is calculated
+     * from the last start of each dependent object.
+     */
+    public List<D> getCriticalPath() {
+        Node lastNode = null;
+        Map<Node, PathLength> pathLengths = calculatePathLengths();
+        for (Map.Entry<Node, PathLength> entry : pathLengths.entrySet()) {
+            if ((lastNode == null) || (entry.getValue().nanos > pathLengths.get(lastNode).nanos)) {
+                lastNode = entry.getKey();
+            }
+        }
+        List<D> result = new ArrayList<D>();
+        for (Node node = lastNode; node != null; node = pathLengths.get(node).predecessor) {
+            result.add(0, node.dependentObject);
+        }
+        return result;
+    }
+
+    /**
+     * The sum of the start durations along the critical path in nanos. This is the time the startup would take with
+     * an unlimited pool.
+     */
+    public long getCriticalPathNanos() {
+        long result = 0;
+        for (PathLength pathLength : calculatePathLengths().values()) {
+            result = Math.max(result, pathLength.nanos);
+        }
+        return result;
+    }
+
+    /**
+     * The number of starts that are requested but not finished yet.
+     */
+    public int getPendingStartCount() {
+        synchronized (helper) {
+            return pendingStartCount;
+        }
+    }
+
+    /**
+     * The dependent objects that published the requisites of the last start of the dependent object.
+     */
+    public Set<D> getProducers(final D dependentObject) {
+        Node node = nodes.get(dependentObject);
+        if (node == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<D>(node.producers);
+    }
+
+    /**
+     * The exception that the last start of the dependent object threw.
+     *
+     * @return The exception or <code>null</code> if the start succeeded, is not finished yet or the dependent object
+     *         is not in the graph.
+     */
+    public RuntimeException getStartFailure(final D dependentObject) {
+        Node node = nodes.get(dependentObject);
+        if (node == null) {
+            return null;
+        }
+        return node.startFailure;
+    }
+
+    /**
+     * The duration of the last start of the dependent object in nanos or <code>-1</code> if it was not started or the
+     * start is not finished yet.
+     */
+    public long getStartNanos(final D dependentObject) {
+        Node node = nodes.get(dependentObject);
+        if (node == null) {
+            return -1;
+        }
+        return node.startNanos;
+    }
+
+    /**
+     * The wall clock duration of the last startup in nanos, from the first start request after an idle period till
+     * the last start finished.
+     */
+    public long getStartupNanos() {
+        return startupNanos.get();
+    }
+
+    /**
+     * Starts following the service registrations. Must be called before the managers are opened.
+     */
+    public void open() {
+        context.addServiceListener(registrationListener);
+    }
+
+    /**
+     * Ends a pending transition of the node. The node leaves the graph after a stop if no other transition is pending.
+     */
+    private void releaseNode(final Node node, final boolean stopped) {
+        synchronized (helper) {
+            node.pendingTransitionCount--;
+            if (stopped && (node.pendingTransitionCount == 0)) {
+                nodes.remove(node.dependentObject, node);
+            }
+        }
+    }
+
+    private void requestStart(final MultiRequisiteListener<D> multiRequisiteListener, final D dependentObject,
+            final Map<String, ServiceReference> references) {
+        final Node node = acquireNode(dependentObject);
+        Set<D> producers = new HashSet<D>();
+        for (ServiceReference reference : references.values()) {
+            D producer = producersByServiceId.get(reference.getProperty(Constants.SERVICE_ID));
+            if ((producer != null) && !producer.equals(dependentObject)) {
+                producers.add(producer);
+            }
+        }
+        node.producers = producers;
+        node.startNanos = -1;
+
+        synchronized (helper) {
+            if (pendingStartCount == 0) {
+                startupBeginNanos.set(System.nanoTime());
+            }
+            pendingStartCount++;
+        }
+        try {
+            node.transitions.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Node previousNode = startingNodes.get();
+                    startingNodes.set(node);
+                    long startTime = System.nanoTime();
+                    node.startFailure = null;
+                    try {
+                        multiRequisiteListener.startDependentObject(dependentObject, references);
+                    } catch (RuntimeException e) {
+                        // The stop requested by the manager must not reach the listener
+                        node.startFailure = e;
+                        throw e;
+                    } finally {
+                        long endTime = System.nanoTime();
+                        node.startNanos = endTime - startTime;
+                        startingNodes.set(previousNode);
+                        synchronized (helper) {
+                            pendingStartCount--;
+                            startupNanos.set(endTime - startupBeginNanos.get());
+                            helper.notifyAll();
+                        }
+                        releaseNode(node, false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // The start will not run, so it must not be waited for
+            synchronized (helper) {
+                pendingStartCount--;
+                helper.notifyAll();
+            }
+            releaseNode(node, false);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.everit.osgi.util.core.requisite;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache of the verdicts of {@link AbstractRequisiteTracker#isReferenceSuitable(Object,
+ * org.osgi.framework.ServiceReference)} by dependent object and reference fingerprint (see
+ * {@link AbstractRequisiteTracker#createSuitabilityFingerprint(org.osgi.framework.ServiceReference)}). A provider that
+ * is restarted registers a new reference with the same properties, so the verdicts of its previous reference can be
+ * reused. The least recently used verdict is evicted when the cache is full.
+ * 
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class SuitabilityVerdictCache<D> {
+
+    /**
+     * Key of a verdict.
+     */
+    private static final class VerdictKey {
+
+        private final Object dependentObject;
+
+        private final Object fingerprint;
+
+        private final int hashCode;
+
+        public VerdictKey(final Object dependentObject, final Object fingerprint) {
+            this.dependentObject = dependentObject;
+            this.fingerprint = fingerprint;
+            this.hashCode = (31 * dependentObject.hashCode()) + fingerprint.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof VerdictKey)) {
+                return false;
+            }
+            VerdictKey other = (VerdictKey) obj;
+            return dependentObject.equals(other.dependentObject) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final int maxSize;
+
+    /**
+     * The verdicts in access order.
+     */
+    private final LinkedHashMap<VerdictKey, Boolean> verdicts;
+
+    /**
+     * The keys of the verdicts by dependent object, so the verdicts of a removed dependent object can be dropped
+     * without scanning the cache.
+     */
+    private final Map<D, Set<VerdictKey>> keysByDependentObject = new HashMap<D, Set<VerdictKey>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Helper object for thread synchronization of the cache access.
+     */
+    private final Object helper = new Object();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *            The maximum number of verdicts that are stored.
+     */
+    public SuitabilityVerdictCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.verdicts = new LinkedHashMap<VerdictKey, Boolean>(16, 0.75f, true);
+    }
+
+    /**
+     * Drops every verdict. The counters are kept.
+     */
+    public void clear() {
+        synchronized (helper) {
+            verdicts.clear();
+            keysByDependentObject.clear();
+        }
+    }
+
+    /**
+     * Returns the stored verdict and counts the hit or the miss.
+     * 
+     * @return The verdict or <code>null</code> if there is no verdict for the pair.
+     */
+    public Boolean get(final D dependentObject, final Object fingerprint) {
+        Boolean verdict;
+        synchronized (helper) {
+            verdict = verdicts.get(new VerdictKey(dependentObject, fingerprint));
+        }
+        if (verdict == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return verdict;
+    }
+
+    /**
+     * The number of verdicts that were evicted because the cache was full.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * The number of lookups that found a verdict.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * The number of lookups that did not find a verdict.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Stores a verdict and evicts the least recently used one if the cache is full.
+     */
+    public void put(final D dependentObject, final Object fingerprint, final boolean suitable) {
+        VerdictKey key = new VerdictKey(dependentObject, fingerprint);
+        synchronized (helper) {
+            if (verdicts.put(key, Boolean.valueOf(suitable)) == null) {
+                Set<VerdictKey> keys = keysByDependentObject.get(dependentObject);
+                if (keys == null) {
+                    keys = new HashSet<VerdictKey>();
+                    keysByDependentObject.put(dependentObject, keys);
+                }
+                keys.add(key);
+            }
+            if (verdicts.size() > maxSize) {
+                Iterator<Entry<VerdictKey, Boolean>> iterator = verdicts.entrySet().iterator();
+                VerdictKey eldestKey = iterator.next().getKey();
+                iterator.remove();
+                removeKeyOfDependentObject(eldestKey);
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the verdicts of the dependent object.
+     */
+    public void removeDependentObject(final D dependentObject) {
+        synchronized (helper) {
+            Set<VerdictKey> keys = keysByDependentObject.remove(dependentObject);
+            if (keys != null) {
+                for (VerdictKey key : keys) {
+                    verdicts.remove(key);
+                }
+            }
+        }
+    }
+
+    private void removeKeyOfDependentObject(final VerdictKey key) {
+        Set<VerdictKey> keys = keysByDependentObject.get(key.dependentObject);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByDependentObject.remove(key.dependentObject);
+            }
+        }
+    }
+
+    /**
+     * The number of stored verdicts.
+     */
+    public int size() {
+        synchronized (helper) {
+            return verdicts.size();
+        }
+    }
+}
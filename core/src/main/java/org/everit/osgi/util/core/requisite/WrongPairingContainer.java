@@ -21,81 +21,128 @@ package org.everit.osgi.util.core.requisite;
  * MA 02110-1301  USA
  */
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.ServiceReference;
 
 /**
- * Storing dependentObject-reference pairs that surely not work together.
+ * Storing dependentObject-reference pairs that surely not work together. Lookups are lock-free. Modifications are
+ * serialized so the two directions of the index are always consistent.
  */
-public class WrongPairingContainer<D> {
+public class WrongPairingContainer<D> extends AbstractWrongPairingContainer<D> {
 
-  private Map<D, Set<ServiceReference>> wrongReferencesOfDependentObjects = new HashMap<D, Set<ServiceReference>>();
+  private final Map<D, Set<ServiceReference>> wrongReferencesOfDependentObjects =
+      new ConcurrentHashMap<D, Set<ServiceReference>>();
 
-  private Map<ServiceReference, Set<D>> notSatisfyingObjectsOfReferences = new HashMap<ServiceReference, Set<D>>();
+  private final Map<ServiceReference, Set<D>> notSatisfyingObjectsOfReferences =
+      new ConcurrentHashMap<ServiceReference, Set<D>>();
 
-  private Object helper = new Object();
+  private final Object helper = new Object();
 
+  private final AtomicInteger wrongPairingCount = new AtomicInteger();
+
+  private static <E> Set<E> newConcurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+  }
+
+  /**
+   * The dependent objects that do not work together with the reference. The returned collection is a snapshot.
+   */
+  @Override
+  public Collection<D> getWrongPairedDependentObjects(ServiceReference reference) {
+    Set<D> dependentObjects = notSatisfyingObjectsOfReferences.get(reference);
+    if (dependentObjects == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<D>(dependentObjects);
+  }
+
+  /**
+   * The number of stored dependentObject-reference pairs.
+   */
+  @Override
+  public int getWrongPairingCount() {
+    return wrongPairingCount.get();
+  }
+
+  @Override
   public boolean isWrongPairing(D dependentObject, ServiceReference reference) {
-    synchronized (helper) {
-      Set<ServiceReference> wrongReferences = wrongReferencesOfDependentObjects.get(dependentObject);
-      if (wrongReferences != null) {
-        return wrongReferences.contains(reference);
-      } else {
-        return false;
-      }
+    Set<ServiceReference> wrongReferences = wrongReferencesOfDependentObjects.get(dependentObject);
+    if (wrongReferences != null) {
+      return wrongReferences.contains(reference);
+    } else {
+      return false;
     }
   }
 
+  @Override
   public void addWrongPairing(D dependentObject, ServiceReference reference) {
+    if (isWrongPairing(dependentObject, reference)) {
+      return;
+    }
     synchronized (helper) {
       Set<ServiceReference> references = wrongReferencesOfDependentObjects.get(dependentObject);
       if (references == null) {
-        references = new HashSet<ServiceReference>();
+        references = newConcurrentSet();
         wrongReferencesOfDependentObjects.put(dependentObject, references);
       }
-      references.add(reference);
 
       // Other way
       Set<D> dependentObjects = notSatisfyingObjectsOfReferences.get(reference);
       if (dependentObjects == null) {
-        dependentObjects = new HashSet<D>();
+        dependentObjects = newConcurrentSet();
         notSatisfyingObjectsOfReferences.put(reference, dependentObjects);
       }
       dependentObjects.add(dependentObject);
+
+      // Lookups use this direction so it is published last
+      if (references.add(reference)) {
+        wrongPairingCount.incrementAndGet();
+      }
     }
   }
 
+  @Override
   public void removeReference(ServiceReference reference) {
     synchronized (helper) {
-      Set<D> dependentObjects = notSatisfyingObjectsOfReferences.get(reference);
+      Set<D> dependentObjects = notSatisfyingObjectsOfReferences.remove(reference);
       if (dependentObjects != null) {
+        wrongPairingCount.addAndGet(-dependentObjects.size());
         for (D d : dependentObjects) {
           Set<ServiceReference> references = wrongReferencesOfDependentObjects.get(d);
           if (references != null) {
             references.remove(reference);
+            if (references.isEmpty()) {
+              wrongReferencesOfDependentObjects.remove(d);
+            }
           }
         }
       }
-      notSatisfyingObjectsOfReferences.remove(reference);
     }
   }
 
+  @Override
   public void removeDependentObject(D dependentObject) {
     synchronized (helper) {
-      Set<ServiceReference> references = wrongReferencesOfDependentObjects.get(dependentObject);
+      Set<ServiceReference> references = wrongReferencesOfDependentObjects.remove(dependentObject);
       if (references != null) {
+        wrongPairingCount.addAndGet(-references.size());
         for (ServiceReference reference : references) {
           Set<D> dependentObjects = notSatisfyingObjectsOfReferences.get(reference);
           if (dependentObjects != null) {
             dependentObjects.remove(dependentObject);
+            if (dependentObjects.isEmpty()) {
+              notSatisfyingObjectsOfReferences.remove(reference);
+            }
           }
         }
       }
-      wrongReferencesOfDependentObjects.remove(dependentObject);
     }
   }
 }
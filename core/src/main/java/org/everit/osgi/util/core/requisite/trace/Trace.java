@@ -0,0 +1,150 @@
+package org.everit.osgi.util.core.requisite.trace;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The events of a trace dump with the names of the sources and the labels of the dependent objects.
+ */
+public class Trace {
+
+    private final List<String> sourceNames;
+
+    private final Map<Integer, String> dependentObjectLabels;
+
+    private final List<TraceEvent> events;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceNames
+     *            The names of the sources by source id.
+     * @param dependentObjectLabels
+     *            The string representation of the dependent objects by id.
+     * @param events
+     *            The events in the order of the recording.
+     */
+    public Trace(final List<String> sourceNames, final Map<Integer, String> dependentObjectLabels,
+            final List<TraceEvent> events) {
+        this.sourceNames = Collections.unmodifiableList(new ArrayList<String>(sourceNames));
+        this.dependentObjectLabels = Collections.unmodifiableMap(new HashMap<Integer, String>(dependentObjectLabels));
+        this.events = Collections.unmodifiableList(new ArrayList<TraceEvent>(events));
+    }
+
+    /**
+     * Reads a dump that was written by {@link TraceRecorder#dump(java.io.OutputStream)}.
+     *
+     * @throws IOException
+     *             if the file cannot be read or it is not a trace dump.
+     */
+    public static Trace read(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a dump that was written by {@link TraceRecorder#dump(java.io.OutputStream)}. The stream is not closed.
+     *
+     * @throws IOException
+     *             if the stream cannot be read or it is not a trace dump.
+     */
+    public static Trace read(final InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != TraceFormat.MAGIC) {
+            throw new IOException("Not a requisite trace dump");
+        }
+        int version = in.readByte();
+        if (version != TraceFormat.VERSION) {
+            throw new IOException("Unsupported requisite trace version: " + version);
+        }
+        int sourceCount = TraceFormat.readVarInt(in);
+        List<String> sourceNames = new ArrayList<String>(sourceCount);
+        for (int i = 0; i < sourceCount; i++) {
+            sourceNames.add(TraceFormat.readString(in));
+        }
+        int labelCount = TraceFormat.readVarInt(in);
+        Map<Integer, String> dependentObjectLabels = new HashMap<Integer, String>();
+        for (int i = 0; i < labelCount; i++) {
+            int id = TraceFormat.readVarInt(in);
+            dependentObjectLabels.put(Integer.valueOf(id), TraceFormat.readString(in));
+        }
+        int eventCount = TraceFormat.readVarInt(in);
+        List<TraceEvent> events = new ArrayList<TraceEvent>(eventCount);
+        long sequence = 0;
+        long nanoTime = 0;
+        for (int i = 0; i < eventCount; i++) {
+            TraceEventType type = TraceEventType.valueOf(in.readByte());
+            sequence += TraceFormat.readVarLong(in);
+            nanoTime += TraceFormat.readVarLong(in);
+            long threadId = TraceFormat.readVarLong(in);
+            int sourceId = TraceFormat.readVarInt(in);
+            long serviceId = TraceFormat.readVarLong(in);
+            int dependentObjectId = TraceFormat.readVarInt(in);
+            Map<String, Object> attributes = TraceFormat.readAttributes(in);
+            events.add(new TraceEvent(sequence, type, nanoTime, threadId, sourceId, serviceId, dependentObjectId,
+                    dependentObjectLabels.get(Integer.valueOf(dependentObjectId)), attributes));
+        }
+        return new Trace(sourceNames, dependentObjectLabels, events);
+    }
+
+    /**
+     * The string representation of the dependent object at the time it was recorded first or <code>null</code> if
+     * the id is unknown.
+     */
+    public String getDependentObjectLabel(final int dependentObjectId) {
+        return dependentObjectLabels.get(Integer.valueOf(dependentObjectId));
+    }
+
+    public List<TraceEvent> getEvents() {
+        return events;
+    }
+
+    /**
+     * The name of the source or <code>null</code> if the id is unknown.
+     */
+    public String getSourceName(final int sourceId) {
+        if ((sourceId < 0) || (sourceId >= sourceNames.size())) {
+            return null;
+        }
+        return sourceNames.get(sourceId);
+    }
+
+    public List<String> getSourceNames() {
+        return sourceNames;
+    }
+}
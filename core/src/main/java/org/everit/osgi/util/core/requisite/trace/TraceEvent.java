@@ -0,0 +1,163 @@
+package org.everit.osgi.util.core.requisite.trace;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One recorded event. Events are immutable so they can be published to the ring buffer of the {@link TraceRecorder}
+ * without locking.
+ */
+public class TraceEvent {
+
+    private final long sequence;
+
+    private final TraceEventType type;
+
+    private final long nanoTime;
+
+    private final long threadId;
+
+    private final int sourceId;
+
+    private final long serviceId;
+
+    private final int dependentObjectId;
+
+    private final String dependentObjectLabel;
+
+    private final Map<String, Object> attributes;
+
+    /**
+     * Constructor.
+     *
+     * @param sequence
+     *            The position of the event in the order of the recording.
+     * @param type
+     *            The type of the event.
+     * @param nanoTime
+     *            The {@link System#nanoTime()} when the event was recorded.
+     * @param threadId
+     *            The id of the thread that recorded the event.
+     * @param sourceId
+     *            The id of the tracker or manager that recorded the event.
+     * @param serviceId
+     *            The service id of the reference or <code>-1</code> if the event is not about a reference.
+     * @param dependentObjectId
+     *            The id of the dependent object or <code>-1</code> if the event is not about a dependent object.
+     * @param attributes
+     *            The properties of the reference or the tracker names by requisite id, depending on the type.
+     */
+    public TraceEvent(final long sequence, final TraceEventType type, final long nanoTime, final long threadId,
+            final int sourceId, final long serviceId, final int dependentObjectId,
+            final Map<String, Object> attributes) {
+        this(sequence, type, nanoTime, threadId, sourceId, serviceId, dependentObjectId, null, attributes);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sequence
+     *            The position of the event in the order of the recording.
+     * @param type
+     *            The type of the event.
+     * @param nanoTime
+     *            The {@link System#nanoTime()} when the event was recorded.
+     * @param threadId
+     *            The id of the thread that recorded the event.
+     * @param sourceId
+     *            The id of the tracker or manager that recorded the event.
+     * @param serviceId
+     *            The service id of the reference or <code>-1</code> if the event is not about a reference.
+     * @param dependentObjectId
+     *            The id of the dependent object or <code>-1</code> if the event is not about a dependent object.
+     * @param dependentObjectLabel
+     *            The string representation of the dependent object or <code>null</code> if it is not known.
+     * @param attributes
+     *            The properties of the reference or the tracker names by requisite id, depending on the type.
+     */
+    public TraceEvent(final long sequence, final TraceEventType type, final long nanoTime, final long threadId,
+            final int sourceId, final long serviceId, final int dependentObjectId, final String dependentObjectLabel,
+            final Map<String, Object> attributes) {
+        this.sequence = sequence;
+        this.type = type;
+        this.nanoTime = nanoTime;
+        this.threadId = threadId;
+        this.sourceId = sourceId;
+        this.serviceId = serviceId;
+        this.dependentObjectId = dependentObjectId;
+        this.dependentObjectLabel = dependentObjectLabel;
+        if (attributes == null) {
+            this.attributes = Collections.emptyMap();
+        } else {
+            this.attributes = Collections.unmodifiableMap(attributes);
+        }
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public int getDependentObjectId() {
+        return dependentObjectId;
+    }
+
+    /**
+     * The string representation of the dependent object at the time it got its id or <code>null</code> if it is not
+     * known.
+     */
+    public String getDependentObjectLabel() {
+        return dependentObjectLabel;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getServiceId() {
+        return serviceId;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public TraceEventType getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + type + " [source: " + sourceId + ", service: " + serviceId + ", dependentObject: "
+                + dependentObjectId + ", thread: " + threadId + "] " + attributes;
+    }
+}
@@ -0,0 +1,101 @@
+package org.everit.osgi.util.core.requisite.trace;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * The kinds of events a {@link TraceRecorder} captures. The codes are stored in the dump files, so they must not be
+ * changed.
+ */
+public enum TraceEventType {
+
+    /**
+     * A tracker started to track a reference. The event holds the properties of the reference.
+     */
+    SERVICE_ADDING(1),
+
+    /**
+     * The properties of a tracked reference were modified. The event holds the new properties of the reference.
+     */
+    SERVICE_MODIFIED(2),
+
+    /**
+     * A tracker stopped tracking a reference.
+     */
+    SERVICE_REMOVED(3),
+
+    /**
+     * A dependent object was added to a tracker.
+     */
+    DEPENDENT_OBJECT_ADDED(4),
+
+    /**
+     * A dependent object was removed from a tracker.
+     */
+    DEPENDENT_OBJECT_REMOVED(5),
+
+    /**
+     * A tracker notified the listener of a dependent object that a reference is available.
+     */
+    REQUISITE_AVAILABLE(6),
+
+    /**
+     * A tracker notified the listener of a dependent object that its reference is removed.
+     */
+    REQUISITE_REMOVED(7),
+
+    /**
+     * A dependent object was registered to a multi requisite manager. The event holds the names of the trackers by
+     * requisite id.
+     */
+    MULTI_DEPENDENT_OBJECT_REGISTERED(8),
+
+    /**
+     * A dependent object was removed from a multi requisite manager.
+     */
+    MULTI_DEPENDENT_OBJECT_REMOVED(9);
+
+    private final int code;
+
+    private TraceEventType(final int code) {
+        this.code = code;
+    }
+
+    /**
+     * The type with the code.
+     *
+     * @throws IllegalArgumentException
+     *             if there is no type with the code.
+     */
+    public static TraceEventType valueOf(final int code) {
+        for (TraceEventType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown trace event type code: " + code);
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
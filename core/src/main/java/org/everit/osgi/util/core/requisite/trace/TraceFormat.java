@@ -0,0 +1,204 @@
+package org.everit.osgi.util.core.requisite.trace;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The binary format of the trace dumps. A dump starts with the magic number and the version, followed by the names of
+ * the sources, the labels of the dependent objects and the events. Numbers are stored as variable length integers and
+ * the times as the difference from the previous event, so an event without attributes takes a few bytes. Strings are
+ * stored as UTF-8 bytes after their length, so they can be of any length.
+ */
+final class TraceFormat {
+
+    public static final int MAGIC = 0x52515452;
+
+    public static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int VALUE_NULL = 0;
+
+    private static final int VALUE_STRING = 1;
+
+    private static final int VALUE_INTEGER = 2;
+
+    private static final int VALUE_LONG = 3;
+
+    private static final int VALUE_BOOLEAN = 4;
+
+    private static final int VALUE_DOUBLE = 5;
+
+    private static final int VALUE_FLOAT = 6;
+
+    private static final int VALUE_STRING_ARRAY = 7;
+
+    private TraceFormat() {
+    }
+
+    public static Map<String, Object> readAttributes(final DataInput in) throws IOException {
+        int size = readVarInt(in);
+        if (size == 0) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            result.put(key, readValue(in));
+        }
+        return result;
+    }
+
+    private static Object readValue(final DataInput in) throws IOException {
+        int valueType = in.readByte();
+        switch (valueType) {
+        case VALUE_NULL:
+            return null;
+        case VALUE_STRING:
+            return readString(in);
+        case VALUE_INTEGER:
+            return Integer.valueOf(in.readInt());
+        case VALUE_LONG:
+            return Long.valueOf(in.readLong());
+        case VALUE_BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+        case VALUE_DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case VALUE_FLOAT:
+            return Float.valueOf(in.readFloat());
+        case VALUE_STRING_ARRAY:
+            String[] array = new String[readVarInt(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = readString(in);
+            }
+            return array;
+        default:
+            throw new IOException("Unknown value type in trace: " + valueType);
+        }
+    }
+
+    public static String readString(final DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Malformed string length in trace: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    public static int readVarInt(final DataInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    public static long readVarLong(final DataInput in) throws IOException {
+        long zigZag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed variable length number in trace");
+            }
+            b = in.readByte();
+            zigZag |= ((long) (b & 0x7F)) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    public static void writeAttributes(final DataOutput out, final Map<String, Object> attributes)
+            throws IOException {
+        writeVarInt(out, attributes.size());
+        for (Entry<String, Object> entry : attributes.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the value with its type. Types that cannot be stored are written as their string representation.
+     */
+    private static void writeValue(final DataOutput out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(VALUE_INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat(((Float) value).floatValue());
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(VALUE_STRING_ARRAY);
+            writeVarInt(out, array.length);
+            for (String element : array) {
+                writeString(out, String.valueOf(element));
+            }
+        } else {
+            out.writeByte(VALUE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * Writes the string as its length and its UTF-8 bytes. Unlike {@link DataOutput#writeUTF(String)} this works for
+     * strings of any length.
+     */
+    public static void writeString(final DataOutput out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static void writeVarInt(final DataOutput out, final int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    /**
+     * Writes the number in zigzag encoding with seven bits per byte, so small negative numbers are short as well.
+     */
+    public static void writeVarLong(final DataOutput out, final long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+}
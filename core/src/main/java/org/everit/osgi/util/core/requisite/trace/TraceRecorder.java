@@ -0,0 +1,375 @@
+package org.everit.osgi.util.core.requisite.trace;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Records the events of requisite trackers and multi requisite managers into a ring buffer, so the interleaving that
+ * led to a wrong state can be dumped and replayed later. Recording is lock free: an event takes a sequence number from
+ * an atomic counter and is stored in the slot of the sequence, overwriting the oldest event when the buffer is full.
+ * The sequence numbers give the order of the events across threads.
+ * <p>
+ * Dependent objects are identified by int ids that the recorder assigns at the first event of the object. Equal
+ * dependent objects get the same id like they are the same for the trackers. The recorder references the dependent
+ * objects weakly, so it does not keep the removed ones in the memory. The id of a dependent object is forgotten when
+ * the object is garbage collected, an equal object that is recorded later gets a new id. The string representation of
+ * the dependent object is taken when it gets its id and it is stored in the events, so the dump contains the labels of
+ * the dependent objects that are in the buffer only.
+ */
+public class TraceRecorder {
+
+    /**
+     * The id and the label of a dependent object.
+     */
+    private static final class DependentObjectId {
+
+        private final int id;
+
+        private final String label;
+
+        public DependentObjectId(final int id, final String label) {
+            this.id = id;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Key of the map of the ids that references the dependent object weakly. The hash code is taken at creation, so
+     * the key can be removed after the dependent object is collected.
+     */
+    private static final class WeakDependentObjectKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        public WeakDependentObjectKey(final Object dependentObject, final ReferenceQueue<Object> queue) {
+            super(dependentObject, queue);
+            this.hash = dependentObject.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return (this == obj) || referentEquals(get(), obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Key that looks up the id of a dependent object without creating a weak reference.
+     */
+    private static final class LookupKey {
+
+        private final Object dependentObject;
+
+        public LookupKey(final Object dependentObject) {
+            this.dependentObject = dependentObject;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return (this == obj) || referentEquals(dependentObject, obj);
+        }
+
+        @Override
+        public int hashCode() {
+            return dependentObject.hashCode();
+        }
+    }
+
+    private final AtomicReferenceArray<TraceEvent> events;
+
+    private final int mask;
+
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    private final List<String> sourceNames = new CopyOnWriteArrayList<String>();
+
+    private final ConcurrentMap<Object, DependentObjectId> dependentObjectIds =
+            new ConcurrentHashMap<Object, DependentObjectId>();
+
+    /**
+     * The keys of the collected dependent objects that are still in the map of the ids.
+     */
+    private final ReferenceQueue<Object> collectedKeys = new ReferenceQueue<Object>();
+
+    private final AtomicInteger nextDependentObjectId = new AtomicInteger();
+
+    /**
+     * Helper object for thread synchronization of registering sources.
+     */
+    private final Object helper = new Object();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *            The number of the latest events that are kept. Rounded up to the next power of two.
+     */
+    public TraceRecorder(final int capacity) {
+        if ((capacity < 1) || (capacity > (1 << 30))) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.events = new AtomicReferenceArray<TraceEvent>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Whether the referent of a key equals the dependent object of another key.
+     */
+    private static boolean referentEquals(final Object referent, final Object otherKey) {
+        Object otherReferent;
+        if (otherKey instanceof WeakDependentObjectKey) {
+            otherReferent = ((WeakDependentObjectKey) otherKey).get();
+        } else if (otherKey instanceof LookupKey) {
+            otherReferent = ((LookupKey) otherKey).dependentObject;
+        } else {
+            return false;
+        }
+        return (referent != null) && (otherReferent != null) && referent.equals(otherReferent);
+    }
+
+    /**
+     * Forgets the recorded events and the ids of the dependent objects. Events that are recorded during the clear may
+     * be kept. The sources stay registered.
+     */
+    public void clear() {
+        for (int i = 0; i < events.length(); i++) {
+            events.set(i, null);
+        }
+        dependentObjectIds.clear();
+        removeCollectedKeys();
+    }
+
+    /**
+     * Writes the events that are in the buffer to the file.
+     *
+     * @see #dump(OutputStream)
+     */
+    public void dump(final File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the events that are in the buffer to the stream in the format that {@link Trace#read(java.io.InputStream)}
+     * reads. Recording can go on during the dump, the events that are overwritten meanwhile are left out. The stream
+     * is flushed but not closed.
+     */
+    public void dump(final OutputStream outputStream) throws IOException {
+        List<TraceEvent> snapshot = getEvents();
+        Map<Integer, String> labels = new LinkedHashMap<Integer, String>();
+        for (TraceEvent event : snapshot) {
+            String label = event.getDependentObjectLabel();
+            if (label != null) {
+                labels.put(Integer.valueOf(event.getDependentObjectId()), label);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(TraceFormat.MAGIC);
+        out.writeByte(TraceFormat.VERSION);
+        List<String> currentSourceNames = new ArrayList<String>(sourceNames);
+        TraceFormat.writeVarInt(out, currentSourceNames.size());
+        for (String sourceName : currentSourceNames) {
+            TraceFormat.writeString(out, sourceName);
+        }
+        TraceFormat.writeVarInt(out, labels.size());
+        for (Entry<Integer, String> label : labels.entrySet()) {
+            TraceFormat.writeVarInt(out, label.getKey().intValue());
+            TraceFormat.writeString(out, label.getValue());
+        }
+        TraceFormat.writeVarInt(out, snapshot.size());
+        long previousSequence = 0;
+        long previousNanoTime = 0;
+        for (TraceEvent event : snapshot) {
+            out.writeByte(event.getType().getCode());
+            TraceFormat.writeVarLong(out, event.getSequence() - previousSequence);
+            TraceFormat.writeVarLong(out, event.getNanoTime() - previousNanoTime);
+            TraceFormat.writeVarLong(out, event.getThreadId());
+            TraceFormat.writeVarInt(out, event.getSourceId());
+            TraceFormat.writeVarLong(out, event.getServiceId());
+            TraceFormat.writeVarInt(out, event.getDependentObjectId());
+            TraceFormat.writeAttributes(out, event.getAttributes());
+            previousSequence = event.getSequence();
+            previousNanoTime = event.getNanoTime();
+        }
+        out.flush();
+    }
+
+    public int getCapacity() {
+        return events.length();
+    }
+
+    /**
+     * The id of the dependent object in the recorded events. A new id is assigned if the object has no id yet.
+     */
+    public int getDependentObjectId(final Object dependentObject) {
+        return identify(dependentObject).id;
+    }
+
+    private DependentObjectId identify(final Object dependentObject) {
+        removeCollectedKeys();
+        DependentObjectId id = dependentObjectIds.get(new LookupKey(dependentObject));
+        if (id == null) {
+            DependentObjectId newId = new DependentObjectId(nextDependentObjectId.getAndIncrement(),
+                    String.valueOf(dependentObject));
+            id = dependentObjectIds.putIfAbsent(new WeakDependentObjectKey(dependentObject, collectedKeys), newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * The events that are in the buffer in the order of their sequence numbers. The returned list is a snapshot.
+     */
+    public List<TraceEvent> getEvents() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - events.length());
+        List<TraceEvent> result = new ArrayList<TraceEvent>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            TraceEvent event = events.get((int) (sequence & mask));
+            // Skip the slots that are still being written or have been overwritten by a newer event
+            if ((event != null) && (event.getSequence() == sequence)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of events that were recorded since the recorder was created, including the ones that are overwritten
+     * already.
+     */
+    public long getRecordedCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type
+     *            The type of the event.
+     * @param sourceId
+     *            The id of the tracker or manager returned by {@link #registerSource(String)}.
+     * @param reference
+     *            The reference the event is about or <code>null</code>. The properties of the reference are recorded
+     *            in case of {@link TraceEventType#SERVICE_ADDING} and {@link TraceEventType#SERVICE_MODIFIED}.
+     * @param dependentObject
+     *            The dependent object the event is about or <code>null</code>.
+     * @param attributes
+     *            Additional attributes of the event or <code>null</code>.
+     */
+    public void record(final TraceEventType type, final int sourceId, final ServiceReference reference,
+            final Object dependentObject, final Map<String, Object> attributes) {
+        long serviceId = -1;
+        Map<String, Object> eventAttributes = attributes;
+        if (reference != null) {
+            Object serviceIdProperty = reference.getProperty(Constants.SERVICE_ID);
+            if (serviceIdProperty instanceof Long) {
+                serviceId = ((Long) serviceIdProperty).longValue();
+            }
+            if ((type == TraceEventType.SERVICE_ADDING) || (type == TraceEventType.SERVICE_MODIFIED)) {
+                eventAttributes = new LinkedHashMap<String, Object>();
+                for (String key : reference.getPropertyKeys()) {
+                    eventAttributes.put(key, reference.getProperty(key));
+                }
+            }
+        }
+        int dependentObjectId = -1;
+        String dependentObjectLabel = null;
+        if (dependentObject != null) {
+            DependentObjectId id = identify(dependentObject);
+            dependentObjectId = id.id;
+            dependentObjectLabel = id.label;
+        }
+        long sequence = nextSequence.getAndIncrement();
+        events.set((int) (sequence & mask), new TraceEvent(sequence, type, System.nanoTime(),
+                Thread.currentThread().getId(), sourceId, serviceId, dependentObjectId, dependentObjectLabel,
+                eventAttributes));
+    }
+
+    private void removeCollectedKeys() {
+        Reference<? extends Object> key = collectedKeys.poll();
+        while (key != null) {
+            dependentObjectIds.remove(key);
+            key = collectedKeys.poll();
+        }
+    }
+
+    /**
+     * Registers a tracker or a manager that records events.
+     *
+     * @param name
+     *            The name of the source that is used to find the tracker or manager at replay.
+     * @return The id of the source. Registering the same name again returns the same id.
+     */
+    public int registerSource(final String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Source name cannot be null");
+        }
+        synchronized (helper) {
+            int id = sourceNames.indexOf(name);
+            if (id < 0) {
+                sourceNames.add(name);
+                id = sourceNames.size() - 1;
+            }
+            return id;
+        }
+    }
+}
@@ -23,6 +23,7 @@ package org.everit.osgi.util.tests.core;
 
 import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.WrongPairingContainer;
 import org.junit.Test;
 import org.osgi.framework.InvalidSyntaxException;
 
@@ -48,6 +49,18 @@ public interface SampleRequisite {
     @Test
     void testAbstractRequisiteTrackerWhitTwoService() throws InvalidSyntaxException;
 
+    /**
+     * Test the {@link AbstractRequisiteTracker} whit services and dependent objects that are added, modified and
+     * removed from multiple threads at the same time.
+     * 
+     * @throws InvalidSyntaxException
+     *             If invalid filter.
+     * @throws InterruptedException
+     *             If the test is interrupted.
+     */
+    @Test
+    void testAbstractRequisiteTrackerConcurrently() throws InvalidSyntaxException, InterruptedException;
+
     /**
      * Test the {@link MultiRequisiteManager} whit services.
      * 
@@ -56,4 +69,13 @@ public interface SampleRequisite {
      */
     @Test
     void testMultiRequisite() throws InvalidSyntaxException;
+
+    /**
+     * Test the {@link WrongPairingContainer} whit concurrent modifications from multiple threads.
+     * 
+     * @throws InterruptedException
+     *             If the test is interrupted.
+     */
+    @Test
+    void testWrongPairingContainerConcurrently() throws InterruptedException;
 }
@@ -21,13 +21,22 @@ package org.everit.osgi.util.tests.core;
  * MA 02110-1301  USA
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
 import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
 import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.everit.osgi.util.core.requisite.WrongPairingContainer;
 import org.junit.Assert;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -81,10 +90,45 @@ public class SampleRequisiteImpl implements SampleRequisite {
 
     }
 
+    /**
+     * {@link RequisiteListener} that checks that the notifications of a dependent object alternate and the dependent
+     * object gets only suitable references.
+     */
+    private static class AlternationCheckingRequisiteListener implements RequisiteListener<Integer> {
+
+        private final Map<Integer, ServiceReference> usedReferences = new ConcurrentHashMap<Integer, ServiceReference>();
+
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void requisiteAvailable(final Integer dependentObject, final ServiceReference requisite) {
+            if (usedReferences.put(dependentObject, requisite) != null) {
+                failures.add("Requisite available twice: " + dependentObject);
+            }
+        }
+
+        @Override
+        public void requisiteRemoved(final Integer dependentObject, final ServiceReference requisite) {
+            if (!requisite.equals(usedReferences.remove(dependentObject))) {
+                failures.add("Requisite removed without available: " + dependentObject);
+            }
+        }
+    }
+
     private static final String SECOND = "SECOND";
 
+    private static final String GROUP = "group";
+
+    private static final int STRESS_ITERATION_COUNT = 500;
+
     private static final String FIRST = "FIRST";
 
+    private static final int THREAD_COUNT = 8;
+
+    private static final int DEPENDENT_OBJECT_COUNT = 200;
+
+    private static final int REFERENCE_COUNT = 16;
+
     private int serviceListenerCounter = 0;
 
     private int multiServiceListenerCounter = 0;
@@ -149,6 +193,110 @@ public class SampleRequisiteImpl implements SampleRequisite {
         abstractRequisiteTrackerImpl.close();
     }
 
+    @Override
+    public void testAbstractRequisiteTrackerConcurrently() throws InvalidSyntaxException, InterruptedException {
+        final TestService testService = new TestService() {
+            @Override
+            public int getANumber() {
+                return 3;
+            }
+        };
+        // The dependent objects accept the references of their own group only
+        final AbstractRequisiteTrackerImpl<Integer> abstractRequisiteTrackerImpl =
+                new AbstractRequisiteTrackerImpl<Integer>(bundleContext,
+                        "(" + Constants.OBJECTCLASS + "=" + TestService.class.getName() + ")") {
+                    @Override
+                    protected boolean isReferenceSuitable(final Integer dependentObject,
+                            final ServiceReference reference) {
+                        return Integer.valueOf(dependentObject.intValue() % 2).equals(reference.getProperty(GROUP));
+                    }
+                };
+        abstractRequisiteTrackerImpl.open();
+        final AlternationCheckingRequisiteListener requisiteListener = new AlternationCheckingRequisiteListener();
+        final Map<Integer, Boolean> dependentObjects = new ConcurrentHashMap<Integer, Boolean>();
+        final List<ServiceRegistration> remainingServiceRegistrations = Collections
+                .synchronizedList(new ArrayList<ServiceRegistration>());
+
+        // Half of the threads register, modify and unregister services, the other half adds and removes dependent
+        // objects, so every kind of transition runs against each other
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < (THREAD_COUNT / 2); t++) {
+            final int threadIndex = t;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(threadIndex);
+                    List<ServiceRegistration> serviceRegistrations = new ArrayList<ServiceRegistration>();
+                    for (int i = 0; i < STRESS_ITERATION_COUNT; i++) {
+                        int action = random.nextInt(3);
+                        if ((action == 0) || serviceRegistrations.isEmpty()) {
+                            serviceRegistrations.add(bundleContext.registerService(TestService.class.getName(),
+                                    testService, createGroupProperties(random.nextInt(2))));
+                        } else if (action == 1) {
+                            serviceRegistrations.get(random.nextInt(serviceRegistrations.size())).setProperties(
+                                    createGroupProperties(random.nextInt(2)));
+                        } else {
+                            serviceRegistrations.remove(random.nextInt(serviceRegistrations.size())).unregister();
+                        }
+                    }
+                    // One service of both groups remains registered on every thread
+                    for (ServiceRegistration serviceRegistration : serviceRegistrations) {
+                        serviceRegistration.unregister();
+                    }
+                    remainingServiceRegistrations.add(bundleContext.registerService(TestService.class.getName(),
+                            testService, createGroupProperties(0)));
+                    remainingServiceRegistrations.add(bundleContext.registerService(TestService.class.getName(),
+                            testService, createGroupProperties(1)));
+                }
+            });
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(threadIndex);
+                    int stride = THREAD_COUNT / 2;
+                    for (int i = 0; i < STRESS_ITERATION_COUNT; i++) {
+                        Integer dependentObject = Integer.valueOf((random.nextInt(DEPENDENT_OBJECT_COUNT / stride)
+                                * stride) + threadIndex);
+                        if (dependentObjects.remove(dependentObject) != null) {
+                            abstractRequisiteTrackerImpl.removeDependentObject(dependentObject);
+                        } else {
+                            dependentObjects.put(dependentObject, Boolean.TRUE);
+                            abstractRequisiteTrackerImpl.addDependentObject(dependentObject, requisiteListener);
+                        }
+                    }
+                }
+            });
+        }
+        runConcurrently(tasks);
+        Assert.assertEquals(requisiteListener.failures.toString(), 0, requisiteListener.failures.size());
+
+        // Both groups have services, so every dependent object must be paired with a suitable reference
+        Assert.assertEquals(dependentObjects.keySet(), requisiteListener.usedReferences.keySet());
+        for (Integer dependentObject : dependentObjects.keySet()) {
+            ServiceReference reference = abstractRequisiteTrackerImpl.getServiceReferenceByComponent(dependentObject);
+            Assert.assertEquals(requisiteListener.usedReferences.get(dependentObject), reference);
+            Assert.assertEquals(Integer.valueOf(dependentObject.intValue() % 2), reference.getProperty(GROUP));
+            Assert.assertNotNull(reference.getBundle());
+        }
+        Assert.assertEquals(0, abstractRequisiteTrackerImpl.getAwaitingObjectCount());
+
+        for (Integer dependentObject : dependentObjects.keySet()) {
+            abstractRequisiteTrackerImpl.removeDependentObject(dependentObject);
+        }
+        Assert.assertEquals(0, requisiteListener.usedReferences.size());
+        Assert.assertEquals(0, abstractRequisiteTrackerImpl.getPairedObjectCount());
+        for (ServiceRegistration serviceRegistration : remainingServiceRegistrations) {
+            serviceRegistration.unregister();
+        }
+        abstractRequisiteTrackerImpl.close();
+    }
+
+    private static Hashtable<String, Object> createGroupProperties(final int group) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(GROUP, Integer.valueOf(group));
+        return properties;
+    }
+
     @Override
     public void testMultiRequisite() throws InvalidSyntaxException {
         OtherMultiTestService ortherMultiTestService = new OtherMultiTestService() {
@@ -202,4 +350,180 @@ public class SampleRequisiteImpl implements SampleRequisite {
         abstractRequisiteTrackerImplForMultiTestService.close();
         abstractRequisiteTrackerImplForOtherMultiTestService.close();
     }
+
+    /**
+     * Asserts that the two containers hold the same wrong pairings of the dependent objects and the references.
+     */
+    private void assertSameWrongPairings(final WrongPairingContainer<Integer> expected,
+            final WrongPairingContainer<Integer> actual, final List<ServiceReference> references) {
+        Assert.assertEquals(expected.getWrongPairingCount(), actual.getWrongPairingCount());
+        for (ServiceReference reference : references) {
+            Assert.assertEquals(new HashSet<Integer>(expected.getWrongPairedDependentObjects(reference)),
+                    new HashSet<Integer>(actual.getWrongPairedDependentObjects(reference)));
+            for (int d = 0; d < (DEPENDENT_OBJECT_COUNT * 3) / 2; d++) {
+                Assert.assertEquals(expected.isWrongPairing(Integer.valueOf(d), reference),
+                        actual.isWrongPairing(Integer.valueOf(d), reference));
+            }
+        }
+    }
+
+    private List<Runnable> createWrongPairingAddingTasks(final WrongPairingContainer<Integer> wrongPairingContainer,
+            final List<ServiceReference> references) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int offset = (t * DEPENDENT_OBJECT_COUNT) / THREAD_COUNT;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < DEPENDENT_OBJECT_COUNT; i++) {
+                        Integer dependentObject = Integer.valueOf((i + offset) % DEPENDENT_OBJECT_COUNT);
+                        for (ServiceReference reference : references) {
+                            wrongPairingContainer.addWrongPairing(dependentObject, reference);
+                        }
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Tasks whose result does not depend on their order: the added pairs are not removed by any of the tasks.
+     */
+    private List<Runnable> createWrongPairingMixedTasks(final WrongPairingContainer<Integer> wrongPairingContainer,
+            final List<ServiceReference> references) {
+        final int halfCount = DEPENDENT_OBJECT_COUNT / 2;
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int offset = (t * halfCount) / THREAD_COUNT;
+            final int referenceOffset = t;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < halfCount; i++) {
+                        wrongPairingContainer.removeDependentObject(Integer.valueOf((i + offset) % halfCount));
+                    }
+                }
+            });
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < halfCount; i++) {
+                        Integer dependentObject =
+                                Integer.valueOf(DEPENDENT_OBJECT_COUNT + ((i + offset) % halfCount));
+                        for (int r = 1; r < REFERENCE_COUNT; r += 2) {
+                            wrongPairingContainer.addWrongPairing(dependentObject, references.get(r));
+                        }
+                    }
+                }
+            });
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < REFERENCE_COUNT; i += 2) {
+                        wrongPairingContainer.removeReference(references.get((i + (referenceOffset * 2))
+                                % REFERENCE_COUNT));
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private List<Runnable> createWrongPairingReferenceRemovingTasks(
+            final WrongPairingContainer<Integer> wrongPairingContainer, final List<ServiceReference> references) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int referenceOffset = t;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < REFERENCE_COUNT; i++) {
+                        wrongPairingContainer.removeReference(references.get((i + referenceOffset) % REFERENCE_COUNT));
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Runs the tasks parallel on separate threads and waits until all of them are finished.
+     */
+    private void runConcurrently(final List<Runnable> tasks) throws InterruptedException {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Runnable task : tasks) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        task.run();
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(failures.toString(), 0, failures.size());
+    }
+
+    @Override
+    public void testWrongPairingContainerConcurrently() throws InterruptedException {
+        TestService testService = new TestService() {
+            @Override
+            public int getANumber() {
+                return 3;
+            }
+        };
+        List<ServiceRegistration> serviceRegistrations = new ArrayList<ServiceRegistration>();
+        final List<ServiceReference> references = new ArrayList<ServiceReference>();
+        for (int i = 0; i < REFERENCE_COUNT; i++) {
+            ServiceRegistration serviceRegistration = bundleContext.registerService(TestService.class.getName(),
+                    testService, null);
+            serviceRegistrations.add(serviceRegistration);
+            references.add(serviceRegistration.getReference());
+        }
+        WrongPairingContainer<Integer> wrongPairingContainer = new WrongPairingContainer<Integer>();
+        WrongPairingContainer<Integer> sequentialModel = new WrongPairingContainer<Integer>();
+
+        // Every thread adds every wrong pairing starting at another dependent object, so the threads race for the
+        // same keys
+        runConcurrently(createWrongPairingAddingTasks(wrongPairingContainer, references));
+        for (Runnable task : createWrongPairingAddingTasks(sequentialModel, references)) {
+            task.run();
+        }
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT * REFERENCE_COUNT, sequentialModel.getWrongPairingCount());
+        assertSameWrongPairings(sequentialModel, wrongPairingContainer, references);
+
+        // Every thread removes the even references and the first half of the dependent objects while the others add
+        // the wrong pairings of new dependent objects with the odd references
+        runConcurrently(createWrongPairingMixedTasks(wrongPairingContainer, references));
+        for (Runnable task : createWrongPairingMixedTasks(sequentialModel, references)) {
+            task.run();
+        }
+        assertSameWrongPairings(sequentialModel, wrongPairingContainer, references);
+
+        // Removing the remaining references works only if the reverse direction of the index is consistent
+        runConcurrently(createWrongPairingReferenceRemovingTasks(wrongPairingContainer, references));
+        for (Runnable task : createWrongPairingReferenceRemovingTasks(sequentialModel, references)) {
+            task.run();
+        }
+        Assert.assertEquals(0, sequentialModel.getWrongPairingCount());
+        assertSameWrongPairings(sequentialModel, wrongPairingContainer, references);
+
+        for (ServiceRegistration serviceRegistration : serviceRegistrations) {
+            serviceRegistration.unregister();
+        }
+    }
 }
@@ -0,0 +1,184 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.everit.osgi.util.core.requisite.AsyncRequisiteDispatcher;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the {@link AsyncRequisiteDispatcher}.
+ */
+public class AsyncRequisiteDispatcherTest {
+
+    /**
+     * Executor that collects the tasks and runs them on request or rejects them.
+     */
+    private static class ManualExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        private boolean rejecting = false;
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException("Rejecting");
+            }
+            tasks.add(command);
+        }
+
+        public void runAll() {
+            List<Runnable> currentTasks;
+            synchronized (this) {
+                currentTasks = new ArrayList<Runnable>(tasks);
+                tasks.clear();
+            }
+            for (Runnable task : currentTasks) {
+                task.run();
+            }
+        }
+
+        public synchronized void setRejecting(final boolean rejecting) {
+            this.rejecting = rejecting;
+        }
+    }
+
+    private static final TestDependentObject DEPENDENT_OBJECT = new TestDependentObject(0, "driver");
+
+    private static final int USER_COUNT = 3;
+
+    private static TestRequisiteTracker createTracker(final BundleContext context,
+            final AsyncRequisiteDispatcher<TestDependentObject> dispatcher) throws InvalidSyntaxException {
+        TestRequisiteTracker tracker = new TestRequisiteTracker(context, false);
+        tracker.setRequisiteDispatcher(dispatcher);
+        tracker.open();
+        return tracker;
+    }
+
+    private static ServiceRegistration registerService(final BundleContext context) {
+        return context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(DEPENDENT_OBJECT.getDriverName()));
+    }
+
+    @Test(timeout = 10000)
+    public void testNotificationsKeepTheOrderOfThePairings() throws InvalidSyntaxException {
+        ManualExecutor executor = new ManualExecutor();
+        BundleContext context = new InMemoryFramework().getSystemBundleContext();
+        TestRequisiteTracker tracker = createTracker(context,
+                new AsyncRequisiteDispatcher<TestDependentObject>(executor, 16));
+        try {
+            ServiceRegistration first = registerService(context);
+            RecordingRequisiteListener listener = new RecordingRequisiteListener();
+            tracker.addDependentObject(DEPENDENT_OBJECT, listener);
+
+            // Every change is queued before any of them is delivered
+            ServiceRegistration second = registerService(context);
+            first.unregister();
+            tracker.removeDependentObject(DEPENDENT_OBJECT);
+            tracker.addDependentObject(DEPENDENT_OBJECT, listener);
+            Assert.assertEquals(0, listener.getAvailableCount());
+            executor.runAll();
+
+            // Available and removed alternate, otherwise the listener records a failure
+            Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+            Assert.assertEquals(3, listener.getAvailableCount());
+            Assert.assertEquals(2, listener.getRemovedCount());
+            Assert.assertEquals(second.getReference(), listener.getUsedReference(DEPENDENT_OBJECT));
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedRemovalReleasesEveryUser() throws InvalidSyntaxException {
+        ManualExecutor executor = new ManualExecutor();
+        BundleContext context = new InMemoryFramework().getSystemBundleContext();
+        TestRequisiteTracker tracker = createTracker(context,
+                new AsyncRequisiteDispatcher<TestDependentObject>(executor, 16));
+        try {
+            ServiceRegistration registration = registerService(context);
+            RecordingRequisiteListener listener = new RecordingRequisiteListener();
+            for (int i = 0; i < USER_COUNT; i++) {
+                tracker.addDependentObject(new TestDependentObject(i, DEPENDENT_OBJECT.getDriverName()), listener);
+            }
+            executor.runAll();
+            Assert.assertEquals(USER_COUNT, listener.getAvailableCount());
+
+            // The removals are delivered on the unregistering thread
+            executor.setRejecting(true);
+            registration.unregister();
+            Assert.assertEquals(USER_COUNT, listener.getRemovedCount());
+            Assert.assertEquals(0, tracker.getPairedObjectCount());
+            Assert.assertEquals(USER_COUNT, tracker.getAwaitingObjectCount());
+
+            executor.setRejecting(false);
+            ServiceRegistration newRegistration = registerService(context);
+            executor.runAll();
+            Assert.assertEquals(USER_COUNT, tracker.getPairedObjectCount());
+            Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+            for (ServiceReference reference : listener.getUsedReferences().values()) {
+                Assert.assertEquals(newRegistration.getReference(), reference);
+            }
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedDeliveryIsRolledBack() {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncRequisiteDispatcher<TestDependentObject> dispatcher = new AsyncRequisiteDispatcher<TestDependentObject>(
+                executor, 1);
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        ServiceReference reference = new InMemoryFramework().getSystemBundleContext()
+                .registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(), null).getReference();
+
+        executor.setRejecting(true);
+        try {
+            dispatcher.dispatchRequisiteAvailable(listener, DEPENDENT_OBJECT, reference);
+            Assert.fail("Rejection expected");
+        } catch (RejectedExecutionException e) {
+            Assert.assertEquals(0, dispatcher.getQueuedCount());
+        }
+
+        // The permit of the rejected notification is given back, so this would block otherwise
+        executor.setRejecting(false);
+        dispatcher.dispatchRequisiteAvailable(listener, DEPENDENT_OBJECT, reference);
+        Assert.assertEquals(1, dispatcher.getQueuedCount());
+        executor.runAll();
+        Assert.assertEquals(0, dispatcher.getQueuedCount());
+        Assert.assertEquals(1, dispatcher.getDispatchedCount());
+        Assert.assertEquals(1, listener.getAvailableCount());
+        Assert.assertEquals(reference, listener.getUsedReference(DEPENDENT_OBJECT));
+    }
+}
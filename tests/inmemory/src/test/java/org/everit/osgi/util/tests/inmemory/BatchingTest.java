@@ -0,0 +1,138 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the batched pairing of the new references of the requisite tracker.
+ */
+public class BatchingTest extends RequisiteTrackerTestBase {
+
+    /**
+     * A window that does not elapse during a test.
+     */
+    private static final long LONG_WINDOW_MILLIS = 3600000;
+
+    private static final long SHORT_WINDOW_MILLIS = 200;
+
+    private ScheduledExecutorService batchScheduler;
+
+    private RecordingRequisiteListener listener;
+
+    private List<TestDependentObject> dependentObjects;
+
+    private void awaitPairedObjectCount(final TestRequisiteTracker tracker, final int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((tracker.getPairedObjectCount() < count) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, tracker.getPairedObjectCount());
+    }
+
+    private TestRequisiteTracker createBatchingTracker(final long batchWindowMillis, final int batchMaxSize) {
+        TestRequisiteTracker tracker = createTracker(true);
+        tracker.setBatching(batchScheduler, batchWindowMillis, batchMaxSize);
+        tracker.open();
+        listener = new RecordingRequisiteListener();
+        dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+        addDependentObjects(tracker, dependentObjects, listener);
+        return tracker;
+    }
+
+    private void registerService(final int driverIndex) {
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(driverIndex)));
+    }
+
+    @Before
+    public void startScheduler() {
+        batchScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void stopScheduler() {
+        batchScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testFullBatchIsFlushed() {
+        TestRequisiteTracker tracker = createBatchingTracker(LONG_WINDOW_MILLIS, DRIVER_COUNT);
+        for (int i = 0; i < (DRIVER_COUNT - 1); i++) {
+            registerService(i);
+        }
+        Assert.assertEquals(0, tracker.getPairedObjectCount());
+        Assert.assertEquals(DRIVER_COUNT - 1, tracker.size());
+
+        registerService(DRIVER_COUNT - 1);
+        assertPairedWithDriver(listener, dependentObjects);
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT, tracker.getPairedObjectCount());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testRejectedFlushIsRunImmediately() {
+        batchScheduler.shutdown();
+        TestRequisiteTracker tracker = createBatchingTracker(LONG_WINDOW_MILLIS, DEPENDENT_OBJECT_COUNT);
+        registerServices(1);
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT / DRIVER_COUNT, tracker.getPairedObjectCount());
+
+        // The flush is not considered scheduled, so the later references are not stuck either
+        registerServices(DRIVER_COUNT);
+        assertPairedWithDriver(listener, dependentObjects);
+    }
+
+    @Test
+    public void testReferenceRemovedWhilePending() {
+        TestRequisiteTracker tracker = createBatchingTracker(LONG_WINDOW_MILLIS, DEPENDENT_OBJECT_COUNT);
+        List<ServiceRegistration> registrations = registerServices(DRIVER_COUNT);
+        ServiceReference removedReference = registrations.get(0).getReference();
+        registrations.get(0).unregister();
+        tracker.flushPendingReferences();
+
+        Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+        Assert.assertFalse(listener.getUsedReferences().containsValue(removedReference));
+        int waitingCount = DEPENDENT_OBJECT_COUNT / DRIVER_COUNT;
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT - waitingCount, tracker.getPairedObjectCount());
+        Assert.assertEquals(waitingCount, tracker.getAwaitingObjectCount());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testWindowElapses() throws InterruptedException {
+        TestRequisiteTracker tracker = createBatchingTracker(SHORT_WINDOW_MILLIS, DEPENDENT_OBJECT_COUNT);
+        registerServices(DRIVER_COUNT);
+        Assert.assertEquals(0, tracker.getPairedObjectCount());
+
+        awaitPairedObjectCount(tracker, DEPENDENT_OBJECT_COUNT);
+        assertPairedWithDriver(listener, dependentObjects);
+    }
+}
@@ -0,0 +1,83 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the bulk registration and removal of dependent objects.
+ */
+public class BulkOperationTest extends MultiRequisiteManagerTestBase {
+
+    @Test
+    public void testBulkAddAndRemove() {
+        TestRequisiteTracker tracker = createTracker(true);
+        tracker.open();
+        registerServices(DRIVER_COUNT);
+        List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        Map<TestDependentObject, RequisiteListener<TestDependentObject>> dependentObjectsWithListeners =
+                new LinkedHashMap<TestDependentObject, RequisiteListener<TestDependentObject>>();
+        for (TestDependentObject dependentObject : dependentObjects) {
+            dependentObjectsWithListeners.put(dependentObject, listener);
+        }
+        tracker.addDependentObjects(dependentObjectsWithListeners);
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT, tracker.getPairedObjectCount());
+        assertPairedWithDriver(listener, dependentObjects);
+
+        tracker.removeDependentObjects(dependentObjects.subList(0, DEPENDENT_OBJECT_COUNT / 2));
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT / 2, tracker.getPairedObjectCount());
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT / 2, listener.getRemovedCount());
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT / 2, listener.getUsedReferences().size());
+        Assert.assertEquals(0, tracker.getAwaitingObjectCount());
+    }
+
+    @Test
+    public void testBulkRegistrationAndRemoval() {
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a"));
+        context.registerService(SECOND_SERVICE_CLASS, new Object(), TestRequisiteTracker.driverProperties("a"));
+        Map<TestDependentObject, Map<String, AbstractRequisiteTracker<TestDependentObject>>> dependentObjects =
+                new LinkedHashMap<TestDependentObject, Map<String, AbstractRequisiteTracker<TestDependentObject>>>();
+        for (int i = 0; i < 20; i++) {
+            dependentObjects.put(new TestDependentObject(i, (i % 2) == 0 ? "a" : "b"), requisiteTrackers());
+        }
+        manager.registerDependentObjects(dependentObjects);
+        Assert.assertEquals(20, manager.getDependentObjectCount());
+        Assert.assertEquals(10, startedObjects.size());
+        Assert.assertEquals(10, manager.getUnsatisfiedDependentObjectCount());
+
+        manager.removeDependentObjects(dependentObjects.keySet());
+        Assert.assertEquals(0, manager.getDependentObjectCount());
+        Assert.assertEquals(0, manager.getUnsatisfiedDependentObjectCount());
+        Assert.assertEquals(0, startedObjects.size());
+        Assert.assertEquals(0, firstTracker.getPairedObjectCount() + firstTracker.getAwaitingObjectCount());
+        Assert.assertEquals(0, secondTracker.getPairedObjectCount() + secondTracker.getAwaitingObjectCount());
+    }
+}
@@ -0,0 +1,187 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.everit.osgi.util.core.BundleScanCache;
+import org.everit.osgi.util.testsupport.InMemoryBundle;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+/**
+ * Tests of the file format of the {@link BundleScanCache}.
+ */
+public class BundleScanCacheTest {
+
+    private static final int OVERRIDE_COUNT = 10;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    private InMemoryBundle first;
+
+    private InMemoryBundle second;
+
+    private BundleScanCache open() {
+        return new BundleScanCache(file, getClass().getClassLoader());
+    }
+
+    @Before
+    public void setUp() {
+        file = new File(temporaryFolder.getRoot(), "scan-cache.bin");
+        InMemoryFramework framework = new InMemoryFramework();
+        first = framework.installBundle("first", "1.0.0");
+        second = framework.installBundle("second", "1.0.0");
+    }
+
+    @Test
+    public void testCompaction() {
+        BundleScanCache cache = open();
+        for (int i = 0; i < OVERRIDE_COUNT; i++) {
+            cache.put(first, "first" + i);
+        }
+        long uncompactedLength = file.length();
+
+        // A file with a single result has the same length
+        File compactedFile = file;
+        file = new File(temporaryFolder.getRoot(), "expected.bin");
+        open().put(first, "first" + (OVERRIDE_COUNT - 1));
+        long expectedLength = file.length();
+        file = compactedFile;
+
+        cache = open();
+        Assert.assertEquals(expectedLength, file.length());
+        Assert.assertTrue(file.length() < uncompactedLength);
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+        Assert.assertEquals("first" + (OVERRIDE_COUNT - 1), cache.get(first));
+
+        // The compacted file can be appended and read again
+        cache.put(second, "second");
+        cache = open();
+        Assert.assertEquals("first" + (OVERRIDE_COUNT - 1), cache.get(first));
+        Assert.assertEquals("second", cache.get(second));
+    }
+
+    @Test
+    public void testGarbageFileIsDropped() throws IOException {
+        writeFile(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        BundleScanCache cache = open();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertFalse(file.exists());
+
+        cache.put(first, "first");
+        Assert.assertEquals("first", open().get(first));
+
+        // A record of unknown type after the magic number
+        writeFile(new byte[] { 0x45, 0x53, 0x43, 0x01, 0x7F, 0, 0 });
+        Assert.assertEquals(0, open().getSize());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testInvalidation() throws BundleException {
+        BundleScanCache cache = open();
+        cache.put(first, "first");
+        cache.put(second, "second");
+        cache.invalidate(first);
+        Assert.assertNull(cache.get(first));
+
+        cache = open();
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertNull(cache.get(first));
+        Assert.assertEquals("second", cache.get(second));
+
+        // A changed bundle misses, an uninstalled one is dropped
+        second.update();
+        Assert.assertNull(cache.get(second));
+        cache.retainAll(new Bundle[] { first });
+        Assert.assertEquals(0, open().getSize());
+    }
+
+    @Test
+    public void testPutAndLoad() {
+        BundleScanCache cache = open();
+        Assert.assertNull(cache.get(first));
+        cache.put(first, "first");
+        cache.put(second, new String[] { "second" });
+        Assert.assertEquals("first", cache.get(first));
+
+        cache = open();
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertEquals("first", cache.get(first));
+        Assert.assertArrayEquals(new String[] { "second" }, (String[]) cache.get(second));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        BundleScanCache cache = open();
+        cache.put(first, "first");
+        cache.put(second, "second");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 3);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        // The records before the broken one are kept and the broken one is cut off
+        cache = open();
+        Assert.assertEquals("first", cache.get(first));
+        Assert.assertNull(cache.get(second));
+        cache.put(second, "second");
+        cache = open();
+        Assert.assertEquals("first", cache.get(first));
+        Assert.assertEquals("second", cache.get(second));
+    }
+
+    @Test
+    public void testUnknownFormatIsDropped() throws IOException {
+        // The magic number of an other version
+        writeFile(new byte[] { 0x45, 0x53, 0x43, 0x7F, 1, 0, 0 });
+        Assert.assertEquals(0, open().getSize());
+        Assert.assertFalse(file.exists());
+    }
+
+    private void writeFile(final byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
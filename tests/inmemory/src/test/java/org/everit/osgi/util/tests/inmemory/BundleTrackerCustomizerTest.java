@@ -0,0 +1,344 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.util.core.AbstractBundleTrackerCustomizer;
+import org.everit.osgi.util.core.TrackedBundle;
+import org.everit.osgi.util.core.TrackedBundleListener;
+import org.everit.osgi.util.core.TrackedBundleRegistry;
+import org.everit.osgi.util.core.TrackedBundleState;
+import org.everit.osgi.util.testsupport.InMemoryBundle;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.BundleTracker;
+
+/**
+ * Tests of the handling of the bundles and the publishing of their states by {@link AbstractBundleTrackerCustomizer}.
+ */
+public class BundleTrackerCustomizerTest {
+
+    /**
+     * Customizer that records the handled events and blocks the handling of the added bundles until it is released.
+     */
+    private static class BlockingBundleTrackerCustomizer extends AbstractBundleTrackerCustomizer {
+
+        private final List<String> handledEvents = Collections.synchronizedList(new ArrayList<String>());
+
+        private final CountDownLatch adding = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        public BlockingBundleTrackerCustomizer(final BundleContext bundleContext) {
+            super(bundleContext, "blocking");
+        }
+
+        @Override
+        protected boolean handleBundleAdded(final Bundle bundle) {
+            adding.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            handledEvents.add("added:" + bundle.getSymbolicName());
+            return true;
+        }
+
+        @Override
+        protected boolean handleBundleChanged(final BundleEvent event) {
+            handledEvents.add("changed:" + event.getBundle().getSymbolicName());
+            return true;
+        }
+    }
+
+    /**
+     * Customizer that skips the bundle named <code>skipped</code>, fails on the bundle named <code>failed</code> and
+     * processes the others.
+     */
+    private static class SelectiveBundleTrackerCustomizer extends AbstractBundleTrackerCustomizer {
+
+        public SelectiveBundleTrackerCustomizer(final BundleContext bundleContext) {
+            super(bundleContext, "selective");
+        }
+
+        @Override
+        protected boolean handleBundleAdded(final Bundle bundle) {
+            if ("failed".equals(bundle.getSymbolicName())) {
+                throw new IllegalStateException("Failed on purpose");
+            }
+            return !"skipped".equals(bundle.getSymbolicName());
+        }
+
+        @Override
+        protected boolean handleBundleChanged(final BundleEvent event) {
+            return handleBundleAdded(event.getBundle());
+        }
+    }
+
+    private static final long TIMEOUT = 10000;
+
+    private static final int THREAD_COUNT = 4;
+
+    private InMemoryFramework framework;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        framework = new InMemoryFramework();
+        executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testEventsDoNotOvertakeTheAddingOfTheBundle() throws BundleException, InterruptedException {
+        InMemoryBundle removedBundle = framework.installBundle("removed", "1.0.0");
+        removedBundle.start();
+        InMemoryBundle modifiedBundle = framework.installBundle("modified", "1.0.0");
+        modifiedBundle.start(Bundle.START_ACTIVATION_POLICY);
+        int serviceCount = framework.getServiceCount();
+        BlockingBundleTrackerCustomizer customizer =
+                new BlockingBundleTrackerCustomizer(framework.getSystemBundleContext());
+        customizer.setScanExecutor(executor);
+        BundleTracker bundleTracker = new BundleTracker(framework.getSystemBundleContext(),
+                Bundle.ACTIVE | Bundle.STARTING, customizer);
+        bundleTracker.open();
+        customizer.adding.await();
+
+        // Arrive while the bundles are being added on the executor
+        removedBundle.stop();
+        modifiedBundle.start();
+        customizer.released.countDown();
+        Assert.assertTrue(customizer.waitForInitialScan(TIMEOUT));
+        // Every event is queued already
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The starting and the started events
+        Assert.assertEquals(Arrays.asList("added:modified", "changed:modified", "changed:modified"),
+                filter(customizer.handledEvents, "modified"));
+        Assert.assertEquals(Arrays.asList("added:removed"), filter(customizer.handledEvents, "removed"));
+        // The removal ran after the adding, so the service of the removed bundle does not stay registered
+        Assert.assertEquals(-1, customizer.getProcessingNanos(removedBundle.getBundleId()));
+        Assert.assertEquals(bundleTracker.size(), customizer.getRegisteredServiceCount());
+        Assert.assertEquals(serviceCount + bundleTracker.size(), framework.getServiceCount());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testRejectedInitialScanIsNotAwaited() throws InterruptedException {
+        InMemoryBundle bundle = framework.installBundle("rejected", "1.0.0");
+        BlockingBundleTrackerCustomizer customizer =
+                new BlockingBundleTrackerCustomizer(framework.getSystemBundleContext());
+        customizer.setScanExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException("Shut down");
+            }
+        });
+        try {
+            customizer.addingBundle(bundle, null);
+            Assert.fail("The rejection is not reported");
+        } catch (RejectedExecutionException e) {
+            Assert.assertTrue(customizer.waitForInitialScan(TIMEOUT));
+        }
+    }
+
+    @Test
+    public void testOnlyProcessedBundlesAreRegistered() throws BundleException, InvalidSyntaxException {
+        startSelectiveBundles();
+        SelectiveBundleTrackerCustomizer customizer =
+                new SelectiveBundleTrackerCustomizer(framework.getSystemBundleContext());
+        BundleTracker bundleTracker = new BundleTracker(framework.getSystemBundleContext(), Bundle.ACTIVE, customizer);
+        bundleTracker.open();
+        Assert.assertEquals(TrackedBundleState.PROCESSED.toString(), getState("processed"));
+        Assert.assertNull(getState("skipped"));
+        Assert.assertNull(getState("failed"));
+        bundleTracker.close();
+        Assert.assertNull(getState("processed"));
+    }
+
+    /**
+     * The handling of a modified bundle that stays processed updates the service of the bundle instead of registering
+     * it again.
+     */
+    @Test
+    public void testModifiedBundleKeepsItsService() throws BundleException, InvalidSyntaxException {
+        BundleContext systemContext = framework.getSystemBundleContext();
+        final List<Integer> serviceEventTypes = Collections.synchronizedList(new ArrayList<Integer>());
+        systemContext.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(final ServiceEvent event) {
+                serviceEventTypes.add(Integer.valueOf(event.getType()));
+            }
+        }, "(&(objectClass=" + TrackedBundle.class.getName() + ")(symbolicName=processed))");
+        SelectiveBundleTrackerCustomizer customizer = new SelectiveBundleTrackerCustomizer(systemContext);
+        BundleTracker bundleTracker = new BundleTracker(systemContext, Bundle.ACTIVE | Bundle.STARTING, customizer);
+        bundleTracker.open();
+        InMemoryBundle bundle = framework.installBundle("processed", "1.0.0");
+        bundle.start(Bundle.START_ACTIVATION_POLICY);
+        Assert.assertEquals(Arrays.asList(Integer.valueOf(ServiceEvent.REGISTERED)), serviceEventTypes);
+
+        // The starting and the started events
+        bundle.start();
+        Assert.assertEquals(TrackedBundleState.PROCESSED.toString(), getState("processed"));
+        Assert.assertTrue(serviceEventTypes.size() > 1);
+        Assert.assertEquals(Arrays.asList(Integer.valueOf(ServiceEvent.REGISTERED)),
+                serviceEventTypes.subList(0, 1));
+        for (Integer serviceEventType : serviceEventTypes.subList(1, serviceEventTypes.size())) {
+            Assert.assertEquals(Integer.valueOf(ServiceEvent.MODIFIED), serviceEventType);
+        }
+        bundleTracker.close();
+        Assert.assertEquals(Integer.valueOf(ServiceEvent.UNREGISTERING),
+                serviceEventTypes.get(serviceEventTypes.size() - 1));
+    }
+
+    @Test
+    public void testLifecycleIsPublished() throws BundleException, InvalidSyntaxException {
+        startSelectiveBundles();
+        SelectiveBundleTrackerCustomizer customizer =
+                new SelectiveBundleTrackerCustomizer(framework.getSystemBundleContext());
+        customizer.setLifecyclePublished(true);
+        BundleTracker bundleTracker = new BundleTracker(framework.getSystemBundleContext(), Bundle.ACTIVE, customizer);
+        bundleTracker.open();
+        Assert.assertEquals(TrackedBundleState.PROCESSED.toString(), getState("processed"));
+        Assert.assertEquals(TrackedBundleState.SKIPPED.toString(), getState("skipped"));
+        Assert.assertEquals(TrackedBundleState.FAILED.toString(), getState("failed"));
+        bundleTracker.close();
+        Assert.assertNull(getState("skipped"));
+    }
+
+    /**
+     * In aggregated mode one registry service holds the states of the bundles and notifies its listeners about the
+     * changes.
+     */
+    @Test
+    public void testAggregatedRegistry() throws BundleException, InvalidSyntaxException {
+        startSelectiveBundles();
+        BundleContext systemContext = framework.getSystemBundleContext();
+        SelectiveBundleTrackerCustomizer customizer = new SelectiveBundleTrackerCustomizer(systemContext);
+        customizer.setAggregated(true);
+        BundleTracker bundleTracker = new BundleTracker(systemContext, Bundle.ACTIVE, customizer);
+        bundleTracker.open();
+        Assert.assertNull(getState("processed"));
+        ServiceReference[] references = systemContext.getServiceReferences(TrackedBundleRegistry.class.getName(),
+                null);
+        Assert.assertEquals(1, references.length);
+        TrackedBundleRegistry registry = (TrackedBundleRegistry) systemContext.getService(references[0]);
+        Assert.assertEquals(bundleTracker.size(), registry.size());
+        Collection<Long> failedBundleIds = registry.getBundleIdsByState(TrackedBundleState.FAILED);
+        Assert.assertEquals(registry.getBundleIdsBySymbolicName("failed"), failedBundleIds);
+        Assert.assertNotNull(registry.getFailure(failedBundleIds.iterator().next().longValue()));
+        Assert.assertEquals(1, registry.getBundleIdsByState(TrackedBundleState.SKIPPED).size());
+
+        final List<String> notifications = Collections.synchronizedList(new ArrayList<String>());
+        registry.addTrackedBundleListener(new TrackedBundleListener() {
+
+            @Override
+            public void trackedBundleRemoved(final long bundleId) {
+                notifications.add("removed:" + bundleId);
+            }
+
+            @Override
+            public void trackedBundleStateChanged(final long bundleId, final TrackedBundleState state) {
+                notifications.add(state + ":" + bundleId);
+            }
+        });
+        InMemoryBundle bundle = framework.installBundle("processed", "2.0.0");
+        bundle.start();
+        long bundleId = bundle.getBundleId();
+        Assert.assertEquals(Arrays.asList(TrackedBundleState.PROCESSING + ":" + bundleId,
+                TrackedBundleState.PROCESSED + ":" + bundleId), notifications);
+        Assert.assertEquals(2, registry.getBundleIdsBySymbolicName("processed").size());
+        Assert.assertTrue(registry.getBundleIdsByState(TrackedBundleState.PROCESSED).contains(Long.valueOf(bundleId)));
+
+        bundle.stop();
+        Assert.assertEquals("removed:" + bundleId, notifications.get(notifications.size() - 1));
+        Assert.assertNull(registry.getState(bundleId));
+        Assert.assertEquals(1, registry.getBundleIdsBySymbolicName("processed").size());
+        Assert.assertFalse(registry.getBundleIdsByState(TrackedBundleState.PROCESSED)
+                .contains(Long.valueOf(bundleId)));
+        Assert.assertEquals(bundleTracker.size(), registry.size());
+        Assert.assertEquals(1, systemContext.getServiceReferences(TrackedBundleRegistry.class.getName(), null).length);
+
+        bundleTracker.close();
+        Assert.assertNull(systemContext.getServiceReferences(TrackedBundleRegistry.class.getName(), null));
+        Assert.assertTrue(registry.getBundleIdsBySymbolicName("processed").isEmpty());
+        Assert.assertTrue(registry.getBundleIdsByState(TrackedBundleState.FAILED).isEmpty());
+    }
+
+    private void startSelectiveBundles() throws BundleException {
+        framework.installBundle("processed", "1.0.0").start();
+        framework.installBundle("skipped", "1.0.0").start();
+        framework.installBundle("failed", "1.0.0").start();
+    }
+
+    private String getState(final String symbolicName) throws InvalidSyntaxException {
+        ServiceReference[] references = framework.getSystemBundleContext().getServiceReferences(
+                TrackedBundle.class.getName(), "(symbolicName=" + symbolicName + ")");
+        if (references == null) {
+            return null;
+        }
+        Assert.assertEquals(1, references.length);
+        return (String) references[0].getProperty(AbstractBundleTrackerCustomizer.STATE);
+    }
+
+    private static List<String> filter(final List<String> handledEvents, final String symbolicName) {
+        List<String> result = new ArrayList<String>();
+        synchronized (handledEvents) {
+            for (String handledEvent : handledEvents) {
+                if (handledEvent.endsWith(":" + symbolicName)) {
+                    result.add(handledEvent);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.LoggerFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Tests that the callbacks of the {@link MultiRequisiteManager} do not allocate when the logging is off.
+ */
+public class CallbackAllocationTest extends MultiRequisiteManagerTestBase {
+
+    /**
+     * Tracker that only stores the listeners of the added dependent objects, so the test can call them directly.
+     */
+    private static class CapturingRequisiteTracker extends TestRequisiteTracker {
+
+        private final Map<TestDependentObject, RequisiteListener<TestDependentObject>> listeners =
+                new ConcurrentHashMap<TestDependentObject, RequisiteListener<TestDependentObject>>();
+
+        public CapturingRequisiteTracker(final BundleContext context) throws InvalidSyntaxException {
+            super(context, false);
+        }
+
+        @Override
+        public void addDependentObject(final TestDependentObject dependentObject,
+                final RequisiteListener<TestDependentObject> requisiteListener) {
+            listeners.put(dependentObject, requisiteListener);
+        }
+
+        public RequisiteListener<TestDependentObject> getListener(final TestDependentObject dependentObject) {
+            return listeners.get(dependentObject);
+        }
+
+        @Override
+        public void removeDependentObject(final TestDependentObject dependentObject) {
+            listeners.remove(dependentObject);
+        }
+    }
+
+    private static final int TOGGLE_COUNT = 200000;
+
+    /**
+     * The callbacks that do not start or stop the dependent object must not allocate when the INFO level is off.
+     */
+    @Test
+    public void testCallbacksWithoutTransitionDoNotAllocate() throws InvalidSyntaxException {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof ThreadMXBean);
+        ThreadMXBean allocationMXBean = (ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported()
+                && allocationMXBean.isThreadAllocatedMemoryEnabled());
+        Assume.assumeFalse(LoggerFactory.getLogger(MultiRequisiteManager.class).isInfoEnabled());
+
+        CapturingRequisiteTracker capturingTracker = new CapturingRequisiteTracker(context);
+        Map<String, AbstractRequisiteTracker<TestDependentObject>> capturingTrackers =
+                new LinkedHashMap<String, AbstractRequisiteTracker<TestDependentObject>>();
+        capturingTrackers.put(FIRST, capturingTracker);
+        capturingTrackers.put(SECOND, new CapturingRequisiteTracker(context));
+        TestDependentObject dependentObject = new TestDependentObject(0, "a");
+        manager.registerDependentObject(dependentObject, capturingTrackers);
+        RequisiteListener<TestDependentObject> listener = capturingTracker.getListener(dependentObject);
+        ServiceReference reference = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a")).getReference();
+
+        // Warming up, so the measured loop is compiled
+        for (int i = 0; i < TOGGLE_COUNT; i++) {
+            listener.requisiteAvailable(dependentObject, reference);
+            listener.requisiteRemoved(dependentObject, reference);
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytesBefore = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < TOGGLE_COUNT; i++) {
+            listener.requisiteAvailable(dependentObject, reference);
+            listener.requisiteRemoved(dependentObject, reference);
+        }
+        long allocatedBytes = allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBytesBefore;
+
+        // A few bytes are allowed for the measurement itself, but not one object per toggle
+        Assert.assertTrue("Allocated " + allocatedBytes + " bytes", allocatedBytes < TOGGLE_COUNT);
+        Assert.assertTrue(startedObjects.isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.everit.osgi.util.core.requisite.AbstractWrongPairingContainer;
+import org.everit.osgi.util.core.requisite.CompactWrongPairingContainer;
+import org.everit.osgi.util.core.requisite.WrongPairingContainer;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the {@link CompactWrongPairingContainer} alone, compared with the default {@link WrongPairingContainer}
+ * and as the container of a requisite tracker.
+ */
+public class CompactWrongPairingContainerTest {
+
+    private static final int REFERENCE_COUNT = 20;
+
+    private static final int DEPENDENT_OBJECT_COUNT = 50;
+
+    private static final int OPERATION_COUNT = 20000;
+
+    private static List<ServiceReference> registerServices(final int count) {
+        BundleContext context = new InMemoryFramework().getSystemBundleContext();
+        List<ServiceReference> result = new ArrayList<ServiceReference>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(), null)
+                    .getReference());
+        }
+        return result;
+    }
+
+    private void assertSameContent(final AbstractWrongPairingContainer<Integer> expected,
+            final AbstractWrongPairingContainer<Integer> actual, final List<ServiceReference> references) {
+        Assert.assertEquals(expected.getWrongPairingCount(), actual.getWrongPairingCount());
+        for (ServiceReference reference : references) {
+            Assert.assertEquals(new HashSet<Integer>(expected.getWrongPairedDependentObjects(reference)),
+                    new HashSet<Integer>(actual.getWrongPairedDependentObjects(reference)));
+            for (int i = 0; i < DEPENDENT_OBJECT_COUNT; i++) {
+                Integer dependentObject = Integer.valueOf(i);
+                Assert.assertEquals(expected.isWrongPairing(dependentObject, reference),
+                        actual.isWrongPairing(dependentObject, reference));
+            }
+        }
+    }
+
+    @Test
+    public void testFootprintShrinksWhenEmptied() {
+        List<ServiceReference> references = registerServices(REFERENCE_COUNT);
+        CompactWrongPairingContainer<Integer> container = new CompactWrongPairingContainer<Integer>();
+        long emptyFootprint = container.getFootprint();
+        for (int i = 0; i < DEPENDENT_OBJECT_COUNT; i++) {
+            for (ServiceReference reference : references) {
+                container.addWrongPairing(Integer.valueOf(i), reference);
+            }
+        }
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT * REFERENCE_COUNT, container.getWrongPairingCount());
+        Assert.assertTrue(container.getFootprint() > emptyFootprint);
+
+        for (int i = 0; i < DEPENDENT_OBJECT_COUNT; i++) {
+            container.removeDependentObject(Integer.valueOf(i));
+        }
+        Assert.assertEquals(0, container.getWrongPairingCount());
+        Assert.assertEquals(emptyFootprint, container.getFootprint());
+    }
+
+    @Test
+    public void testTrackerStoresWrongPairingsInCompactContainer() throws InvalidSyntaxException {
+        BundleContext context = new InMemoryFramework().getSystemBundleContext();
+        CompactWrongPairingContainer<TestDependentObject> container =
+                new CompactWrongPairingContainer<TestDependentObject>();
+        TestRequisiteTracker tracker = new TestRequisiteTracker(context, false);
+        tracker.setWrongPairingContainer(container);
+        tracker.open();
+        try {
+            ServiceRegistration registration = context.registerService(TestRequisiteTracker.SERVICE_CLASS,
+                    new Object(), TestRequisiteTracker.driverProperties("a"));
+            RecordingRequisiteListener listener = new RecordingRequisiteListener();
+            TestDependentObject other = new TestDependentObject(0, "b");
+            tracker.addDependentObject(other, listener);
+            Assert.assertTrue(container.isWrongPairing(other, registration.getReference()));
+
+            ServiceRegistration suitableRegistration = context.registerService(TestRequisiteTracker.SERVICE_CLASS,
+                    new Object(), TestRequisiteTracker.driverProperties("b"));
+            Assert.assertNotNull(listener.getUsedReference(other));
+
+            // The stored pair is not evaluated again when the dependent object looks for a new reference
+            int evaluationCount = tracker.getEvaluationCount();
+            suitableRegistration.unregister();
+            Assert.assertNull(listener.getUsedReference(other));
+            Assert.assertEquals(evaluationCount, tracker.getEvaluationCount());
+
+            registration.unregister();
+            Assert.assertEquals(0, container.getWrongPairingCount());
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void testRandomOperationsMatchDefaultContainer() {
+        List<ServiceReference> references = registerServices(REFERENCE_COUNT);
+        WrongPairingContainer<Integer> expected = new WrongPairingContainer<Integer>();
+        CompactWrongPairingContainer<Integer> actual = new CompactWrongPairingContainer<Integer>();
+        Random random = new Random(1);
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            Integer dependentObject = Integer.valueOf(random.nextInt(DEPENDENT_OBJECT_COUNT));
+            ServiceReference reference = references.get(random.nextInt(REFERENCE_COUNT));
+            int operation = random.nextInt(10);
+            if (operation < 7) {
+                expected.addWrongPairing(dependentObject, reference);
+                actual.addWrongPairing(dependentObject, reference);
+            } else if (operation < 9) {
+                expected.removeDependentObject(dependentObject);
+                actual.removeDependentObject(dependentObject);
+            } else {
+                expected.removeReference(reference);
+                actual.removeReference(reference);
+            }
+            if ((i % 1000) == 0) {
+                assertSameContent(expected, actual, references);
+            }
+        }
+        assertSameContent(expected, actual, references);
+    }
+}
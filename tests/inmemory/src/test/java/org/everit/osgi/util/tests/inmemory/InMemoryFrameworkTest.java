@@ -0,0 +1,200 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.everit.osgi.util.testsupport.InMemoryBundle;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Tests of the {@link InMemoryFramework} itself that the other tests and the benchmarks rely on.
+ */
+public class InMemoryFrameworkTest {
+
+    private static final String SERVICE_CLASS = "org.everit.osgi.util.tests.inmemory.TestService";
+
+    /**
+     * A bundle listener that records the type of the events.
+     */
+    private static class RecordingBundleListener implements SynchronousBundleListener {
+
+        private final List<Integer> eventTypes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void bundleChanged(final BundleEvent event) {
+            eventTypes.add(Integer.valueOf(event.getType()));
+        }
+    }
+
+    /**
+     * A service listener that records the type of the events.
+     */
+    private static class RecordingServiceListener implements ServiceListener {
+
+        private final List<Integer> eventTypes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void serviceChanged(final ServiceEvent event) {
+            eventTypes.add(Integer.valueOf(event.getType()));
+        }
+    }
+
+    private static Hashtable<String, Object> properties(final String name) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("name", name);
+        return properties;
+    }
+
+    private static List<Integer> types(final int... types) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int type : types) {
+            result.add(Integer.valueOf(type));
+        }
+        return result;
+    }
+
+    /**
+     * The bundle listeners get the lifecycle events in the order of the state changes.
+     */
+    @Test
+    public void testBundleLifecycle() throws BundleException {
+        InMemoryFramework framework = new InMemoryFramework();
+        Assert.assertEquals(Bundle.ACTIVE, framework.getSystemBundle().getState());
+        RecordingBundleListener listener = new RecordingBundleListener();
+        BundleContext systemContext = framework.getSystemBundleContext();
+        systemContext.addBundleListener(listener);
+
+        InMemoryBundle bundle = framework.installBundle("test.bundle", "1.0.0");
+        Assert.assertEquals(Bundle.INSTALLED, bundle.getState());
+        bundle.start();
+        Assert.assertEquals(Bundle.ACTIVE, bundle.getState());
+        long lastModified = bundle.getLastModified();
+        bundle.update();
+        Assert.assertEquals(Bundle.ACTIVE, bundle.getState());
+        Assert.assertTrue(bundle.getLastModified() > lastModified);
+        bundle.stop();
+        Assert.assertEquals(Bundle.RESOLVED, bundle.getState());
+        bundle.uninstall();
+        Assert.assertEquals(Bundle.UNINSTALLED, bundle.getState());
+
+        Assert.assertEquals(types(BundleEvent.INSTALLED,
+                BundleEvent.RESOLVED, BundleEvent.STARTING, BundleEvent.STARTED,
+                BundleEvent.STOPPING, BundleEvent.STOPPED, BundleEvent.UNRESOLVED, BundleEvent.UPDATED,
+                BundleEvent.RESOLVED, BundleEvent.STARTING, BundleEvent.STARTED,
+                BundleEvent.STOPPING, BundleEvent.STOPPED,
+                BundleEvent.UNRESOLVED, BundleEvent.UNINSTALLED), listener.eventTypes);
+        Assert.assertEquals(Arrays.asList(framework.getSystemBundle()), Arrays.asList(systemContext.getBundles()));
+
+        systemContext.removeBundleListener(listener);
+        Assert.assertEquals(0, framework.getBundleListenerCount());
+    }
+
+    /**
+     * Stopping a bundle unregisters its services and removes the listeners of its context.
+     */
+    @Test
+    public void testStoppedBundleCleansUp() throws BundleException {
+        InMemoryFramework framework = new InMemoryFramework();
+        InMemoryBundle bundle = framework.installBundle("test.bundle", "1.0.0");
+        bundle.start();
+        BundleContext bundleContext = bundle.getBundleContext();
+        bundleContext.registerService(SERVICE_CLASS, new Object(), properties("first"));
+        bundleContext.addServiceListener(new RecordingServiceListener());
+        bundleContext.addBundleListener(new RecordingBundleListener());
+        Assert.assertEquals(1, framework.getServiceCount());
+        Assert.assertEquals(1, bundle.getRegisteredServices().length);
+
+        bundle.stop();
+        Assert.assertEquals(0, framework.getServiceCount());
+        Assert.assertEquals(0, framework.getServiceListenerCount());
+        Assert.assertEquals(0, framework.getBundleListenerCount());
+    }
+
+    /**
+     * A filtered listener gets the events of the matching services and an end match event when a modification makes
+     * a service not match anymore.
+     */
+    @Test
+    public void testServiceEvents() throws InvalidSyntaxException {
+        InMemoryFramework framework = new InMemoryFramework();
+        BundleContext context = framework.getSystemBundleContext();
+        RecordingServiceListener listener = new RecordingServiceListener();
+        context.addServiceListener(listener, "(name=first)");
+
+        ServiceRegistration first = context.registerService(SERVICE_CLASS, new Object(), properties("first"));
+        ServiceRegistration second = context.registerService(SERVICE_CLASS, new Object(), properties("second"));
+        first.setProperties(properties("first"));
+        first.setProperties(properties("renamed"));
+        second.setProperties(properties("first"));
+        second.unregister();
+        first.unregister();
+
+        Assert.assertEquals(types(ServiceEvent.REGISTERED, ServiceEvent.MODIFIED, ServiceEvent.MODIFIED_ENDMATCH,
+                ServiceEvent.MODIFIED, ServiceEvent.UNREGISTERING), listener.eventTypes);
+
+        context.removeServiceListener(listener);
+        Assert.assertEquals(0, framework.getServiceListenerCount());
+    }
+
+    /**
+     * The lookups return the registered services that match the class and the filter.
+     */
+    @Test
+    public void testServiceLookup() throws InvalidSyntaxException {
+        InMemoryFramework framework = new InMemoryFramework();
+        BundleContext context = framework.getSystemBundleContext();
+        Object service = new Object();
+        ServiceRegistration first = context.registerService(SERVICE_CLASS, service, properties("first"));
+        context.registerService(SERVICE_CLASS, new Object(), properties("second"));
+        Assert.assertEquals(2, framework.getServiceCount());
+
+        ServiceReference[] references = context.getServiceReferences(SERVICE_CLASS, "(name=first)");
+        Assert.assertEquals(1, references.length);
+        Assert.assertEquals(first.getReference(), references[0]);
+        Assert.assertSame(service, context.getService(references[0]));
+        Assert.assertTrue(context.ungetService(references[0]));
+        Assert.assertEquals(2, context.getServiceReferences(SERVICE_CLASS, null).length);
+        Assert.assertNull(context.getServiceReferences("org.everit.osgi.util.tests.inmemory.OtherTestService", null));
+
+        first.unregister();
+        Assert.assertEquals(1, framework.getServiceCount());
+        Assert.assertNull(context.getServiceReferences(SERVICE_CLASS, "(name=first)"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the re-evaluation of the users of a modified service.
+ */
+public class ModifiedServiceTest extends RequisiteTrackerTestBase {
+
+    /**
+     * A modification that keeps the service suitable does not take it away from its users.
+     */
+    @Test
+    public void testModificationKeepsSuitableUsers() {
+        TestRequisiteTracker tracker = createTracker(true);
+        tracker.open();
+        ServiceRegistration registration = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0)));
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        TestDependentObject dependentObject = new TestDependentObject(0, driverName(0));
+        tracker.addDependentObject(dependentObject, listener);
+
+        registration.setProperties(TestRequisiteTracker.driverProperties(driverName(0), 1));
+        Assert.assertEquals(registration.getReference(), listener.getUsedReference(dependentObject));
+        Assert.assertEquals(1, listener.getAvailableCount());
+        Assert.assertEquals(0, listener.getRemovedCount());
+    }
+
+    /**
+     * A modification that makes the service unsuitable for its user pairs it with an awaiting dependent object.
+     */
+    @Test
+    public void testModifiedServiceReevaluatesUsers() {
+        TestRequisiteTracker tracker = createTracker(true);
+        tracker.open();
+        ServiceRegistration registration = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0)));
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        TestDependentObject first = new TestDependentObject(0, driverName(0));
+        TestDependentObject second = new TestDependentObject(1, driverName(1));
+        tracker.addDependentObject(first, listener);
+        tracker.addDependentObject(second, listener);
+        Assert.assertEquals(registration.getReference(), listener.getUsedReference(first));
+        Assert.assertNull(listener.getUsedReference(second));
+
+        registration.setProperties(TestRequisiteTracker.driverProperties(driverName(1)));
+        Assert.assertNull(listener.getUsedReference(first));
+        Assert.assertEquals(registration.getReference(), listener.getUsedReference(second));
+        Assert.assertEquals(1, tracker.getAwaitingObjectCount());
+        Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+    }
+}
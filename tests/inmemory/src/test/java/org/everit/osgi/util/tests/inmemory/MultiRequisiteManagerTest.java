@@ -0,0 +1,130 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tests of the start and stop notifications of the {@link MultiRequisiteManager}.
+ */
+public class MultiRequisiteManagerTest extends MultiRequisiteManagerTestBase {
+
+    @Test(timeout = 60000)
+    public void testConcurrentTransitionsAlternate() throws InterruptedException {
+        final Map<TestDependentObject, Boolean> startedFlags = new ConcurrentHashMap<TestDependentObject, Boolean>();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        MultiRequisiteManager<TestDependentObject> alternationCheckingManager =
+                new MultiRequisiteManager<TestDependentObject>(new MultiRequisiteListener<TestDependentObject>() {
+
+                    @Override
+                    public void startDependentObject(final TestDependentObject dependentObject,
+                            final Map<String, ServiceReference> references) {
+                        if (Boolean.TRUE.equals(startedFlags.put(dependentObject, Boolean.TRUE))) {
+                            failures.add("Started twice: " + dependentObject);
+                        }
+                        Thread.yield();
+                    }
+
+                    @Override
+                    public void stopDependentObject(final TestDependentObject dependentObject) {
+                        if (!Boolean.TRUE.equals(startedFlags.put(dependentObject, Boolean.FALSE))) {
+                            failures.add("Stopped without start: " + dependentObject);
+                        }
+                        Thread.yield();
+                    }
+                });
+        final List<TestDependentObject> dependentObjects = new ArrayList<TestDependentObject>();
+        for (int i = 0; i < 20; i++) {
+            TestDependentObject dependentObject = new TestDependentObject(i, "a");
+            dependentObjects.add(dependentObject);
+            alternationCheckingManager.registerDependentObject(dependentObject, requisiteTrackers());
+        }
+
+        // One thread flips the first requisite, the other one the second, so the start and stop calls race
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String serviceClass : Arrays.asList(TestRequisiteTracker.SERVICE_CLASS, SECOND_SERVICE_CLASS)) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        context.registerService(serviceClass, new Object(),
+                                TestRequisiteTracker.driverProperties("a")).unregister();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(failures.toString(), 0, failures.size());
+        for (TestDependentObject dependentObject : dependentObjects) {
+            Assert.assertNotEquals(Boolean.TRUE, startedFlags.get(dependentObject));
+            Assert.assertFalse(alternationCheckingManager.getReadiness(dependentObject).isSatisfied());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRemovalFromStartCallback() {
+        final TestDependentObject dependentObject = new TestDependentObject(0, "a");
+        manager = new MultiRequisiteManager<TestDependentObject>(new MultiRequisiteListener<TestDependentObject>() {
+
+            @Override
+            public void startDependentObject(final TestDependentObject dependentObject,
+                    final Map<String, ServiceReference> references) {
+                startedObjects.add(dependentObject);
+                // The removal is run after the registration returned
+                manager.removeDependentObject(dependentObject);
+                Assert.assertNotNull(manager.getReadiness(dependentObject));
+            }
+
+            @Override
+            public void stopDependentObject(final TestDependentObject dependentObject) {
+                startedObjects.remove(dependentObject);
+            }
+        });
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a"));
+        context.registerService(SECOND_SERVICE_CLASS, new Object(), TestRequisiteTracker.driverProperties("a"));
+        manager.registerDependentObject(dependentObject, requisiteTrackers());
+
+        Assert.assertNull(manager.getReadiness(dependentObject));
+        Assert.assertTrue(startedObjects.isEmpty());
+        Assert.assertEquals(0, firstTracker.getPairedObjectCount() + firstTracker.getAwaitingObjectCount());
+        Assert.assertEquals(0, secondTracker.getPairedObjectCount() + secondTracker.getAwaitingObjectCount());
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Base of the {@link MultiRequisiteManager} tests. Opens a tracker for two service classes and creates a manager that
+ * checks that the start and stop calls of every dependent object alternate.
+ */
+public abstract class MultiRequisiteManagerTestBase extends RequisiteTrackerTestBase {
+
+    protected static final String FIRST = "first";
+
+    protected static final String SECOND = "second";
+
+    protected static final String SECOND_SERVICE_CLASS = "org.everit.osgi.util.tests.inmemory.OtherTestService";
+
+    protected final Set<TestDependentObject> startedObjects = Collections
+            .newSetFromMap(new ConcurrentHashMap<TestDependentObject, Boolean>());
+
+    protected TestRequisiteTracker firstTracker;
+
+    protected TestRequisiteTracker secondTracker;
+
+    protected MultiRequisiteManager<TestDependentObject> manager;
+
+    @Before
+    public void createManager() {
+        firstTracker = createTracker(TestRequisiteTracker.SERVICE_CLASS, true);
+        secondTracker = createTracker(SECOND_SERVICE_CLASS, true);
+        firstTracker.open();
+        secondTracker.open();
+        manager = new MultiRequisiteManager<TestDependentObject>(new MultiRequisiteListener<TestDependentObject>() {
+
+            @Override
+            public void startDependentObject(final TestDependentObject dependentObject,
+                    final Map<String, ServiceReference> references) {
+                Assert.assertEquals(2, references.size());
+                Assert.assertTrue("Started twice: " + dependentObject, startedObjects.add(dependentObject));
+            }
+
+            @Override
+            public void stopDependentObject(final TestDependentObject dependentObject) {
+                Assert.assertTrue("Stopped without start: " + dependentObject, startedObjects.remove(dependentObject));
+            }
+        });
+    }
+
+    protected Map<String, AbstractRequisiteTracker<TestDependentObject>> requisiteTrackers() {
+        Map<String, AbstractRequisiteTracker<TestDependentObject>> result =
+                new LinkedHashMap<String, AbstractRequisiteTracker<TestDependentObject>>();
+        result.put(FIRST, firstTracker);
+        result.put(SECOND, secondTracker);
+        return result;
+    }
+}
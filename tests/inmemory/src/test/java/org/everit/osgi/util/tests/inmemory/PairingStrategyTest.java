@@ -0,0 +1,77 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import org.everit.osgi.util.core.requisite.DefaultPairingStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the pairing strategies of the requisite tracker.
+ */
+public class PairingStrategyTest extends RequisiteTrackerTestBase {
+
+    @Test
+    public void testHighestRankingStrategy() {
+        TestRequisiteTracker tracker = createTracker(false);
+        tracker.setPairingStrategy(DefaultPairingStrategy.HIGHEST_RANKING);
+        tracker.open();
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0), 1));
+        ServiceRegistration highest = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0), 5));
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0), 3));
+
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        TestDependentObject dependentObject = new TestDependentObject(0, driverName(0));
+        tracker.addDependentObject(dependentObject, listener);
+        Assert.assertEquals(highest.getReference(), listener.getUsedReference(dependentObject));
+    }
+
+    @Test
+    public void testLeastLoadedStrategy() {
+        TestRequisiteTracker tracker = createTracker(false);
+        tracker.setPairingStrategy(DefaultPairingStrategy.LEAST_LOADED);
+        tracker.open();
+        ServiceRegistration first = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0)));
+        ServiceRegistration second = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0)));
+
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        for (int i = 0; i < 10; i++) {
+            tracker.addDependentObject(new TestDependentObject(i, driverName(0)), listener);
+        }
+        int firstUserCount = 0;
+        for (ServiceReference reference : listener.getUsedReferences().values()) {
+            if (reference.equals(first.getReference())) {
+                firstUserCount++;
+            } else {
+                Assert.assertEquals(second.getReference(), reference);
+            }
+        }
+        Assert.assertEquals(5, firstUserCount);
+    }
+}
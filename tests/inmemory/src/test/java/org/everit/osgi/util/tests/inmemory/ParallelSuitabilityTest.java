@@ -0,0 +1,97 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.everit.osgi.util.core.requisite.DefaultPairingStrategy;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the parallel evaluation of the suitability of the references.
+ */
+public class ParallelSuitabilityTest extends RequisiteTrackerTestBase {
+
+    @Test
+    public void testParallelSuitabilityPairsLikeSequential() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        TestRequisiteTracker parallelTracker = createTracker(false);
+        parallelTracker.setSuitabilityExecutor(executor);
+        try {
+            parallelTracker.setPairingStrategy(DefaultPairingStrategy.HIGHEST_RANKING);
+            TestRequisiteTracker sequentialTracker = createTracker(false);
+            sequentialTracker.setPairingStrategy(DefaultPairingStrategy.HIGHEST_RANKING);
+            parallelTracker.open();
+            sequentialTracker.open();
+            for (int i = 0; i < 3 * DRIVER_COUNT; i++) {
+                context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                        TestRequisiteTracker.driverProperties(driverName(i % DRIVER_COUNT), i));
+            }
+            List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+            RecordingRequisiteListener parallelListener = new RecordingRequisiteListener();
+            RecordingRequisiteListener sequentialListener = new RecordingRequisiteListener();
+            Map<TestDependentObject, RequisiteListener<TestDependentObject>> parallelDependentObjects =
+                    new LinkedHashMap<TestDependentObject, RequisiteListener<TestDependentObject>>();
+            for (TestDependentObject dependentObject : dependentObjects) {
+                parallelDependentObjects.put(dependentObject, parallelListener);
+            }
+            parallelTracker.addDependentObjects(parallelDependentObjects);
+            addDependentObjects(sequentialTracker, dependentObjects, sequentialListener);
+
+            assertPairedWithDriver(parallelListener, dependentObjects);
+            Assert.assertEquals(sequentialListener.getUsedReferences(), parallelListener.getUsedReferences());
+        } finally {
+            parallelTracker.close();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * An executor that does not accept the evaluations makes the tracker evaluate on the calling thread.
+     */
+    @Test
+    public void testRejectedEvaluationRunsOnCallingThread() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        TestRequisiteTracker tracker = createTracker(false);
+        tracker.setSuitabilityExecutor(executor);
+        tracker.open();
+        registerServices(DRIVER_COUNT);
+        List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        Map<TestDependentObject, RequisiteListener<TestDependentObject>> dependentObjectsWithListeners =
+                new LinkedHashMap<TestDependentObject, RequisiteListener<TestDependentObject>>();
+        for (TestDependentObject dependentObject : dependentObjects) {
+            dependentObjectsWithListeners.put(dependentObject, listener);
+        }
+        tracker.addDependentObjects(dependentObjectsWithListeners);
+
+        assertPairedWithDriver(listener, dependentObjects);
+        Assert.assertEquals(0, tracker.getAwaitingObjectCount());
+    }
+}
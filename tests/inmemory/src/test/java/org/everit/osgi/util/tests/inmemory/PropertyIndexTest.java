@@ -0,0 +1,54 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the property-indexed matching of the requisite tracker.
+ */
+public class PropertyIndexTest extends RequisiteTrackerTestBase {
+
+    @Test
+    public void testIndexLimitsEvaluations() {
+        TestRequisiteTracker indexedTracker = createTracker(true);
+        TestRequisiteTracker plainTracker = createTracker(false);
+        indexedTracker.open();
+        plainTracker.open();
+        List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+        RecordingRequisiteListener indexedListener = new RecordingRequisiteListener();
+        RecordingRequisiteListener plainListener = new RecordingRequisiteListener();
+        addDependentObjects(indexedTracker, dependentObjects, indexedListener);
+        addDependentObjects(plainTracker, dependentObjects, plainListener);
+        registerServices(DRIVER_COUNT);
+
+        assertPairedWithDriver(indexedListener, dependentObjects);
+        assertPairedWithDriver(plainListener, dependentObjects);
+        // Every dependent object is checked only against the reference with its driver name
+        Assert.assertEquals(DEPENDENT_OBJECT_COUNT, indexedTracker.getEvaluationCount());
+        Assert.assertTrue(plainTracker.getEvaluationCount() > DEPENDENT_OBJECT_COUNT);
+    }
+}
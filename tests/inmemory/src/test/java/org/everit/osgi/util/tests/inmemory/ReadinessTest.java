@@ -0,0 +1,100 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.everit.osgi.util.core.requisite.DependentObjectReadiness;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the readiness reporting of the {@link MultiRequisiteManager}.
+ */
+public class ReadinessTest extends MultiRequisiteManagerTestBase {
+
+    @Test
+    public void testReadiness() {
+        TestDependentObject dependentObject = new TestDependentObject(0, "a");
+        manager.registerDependentObject(dependentObject, requisiteTrackers());
+        DependentObjectReadiness<TestDependentObject> readiness = manager.getReadiness(dependentObject);
+        Assert.assertFalse(readiness.isSatisfied());
+        Assert.assertEquals(Arrays.asList(FIRST, SECOND), readiness.getMissingRequisiteIds());
+        Assert.assertEquals(1, manager.getUnsatisfiedDependentObjects().size());
+
+        context.registerService(SECOND_SERVICE_CLASS, new Object(), TestRequisiteTracker.driverProperties("a"));
+        readiness = manager.getReadiness(dependentObject);
+        Assert.assertEquals(Arrays.asList(FIRST), readiness.getMissingRequisiteIds());
+        Assert.assertTrue(readiness.getSatisfactionDurations().containsKey(SECOND));
+        Assert.assertTrue(startedObjects.isEmpty());
+
+        ServiceRegistration registration = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a"));
+        readiness = manager.getReadiness(dependentObject);
+        Assert.assertTrue(readiness.isSatisfied());
+        Assert.assertTrue(readiness.getTimeToReady() >= 0);
+        Assert.assertEquals(Collections.singleton(dependentObject), startedObjects);
+        Assert.assertEquals(0, manager.getUnsatisfiedDependentObjectCount());
+        Assert.assertEquals(1, manager.getTimeToReady().getCount());
+
+        registration.unregister();
+        Assert.assertTrue(startedObjects.isEmpty());
+        Assert.assertEquals(Arrays.asList(FIRST), manager.getReadiness(dependentObject).getMissingRequisiteIds());
+
+        // A restart is not recorded as time to ready again
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a"));
+        Assert.assertEquals(Collections.singleton(dependentObject), startedObjects);
+        Assert.assertEquals(1, manager.getTimeToReady().getCount());
+
+        manager.removeDependentObject(dependentObject);
+        Assert.assertTrue(startedObjects.isEmpty());
+        Assert.assertNull(manager.getReadiness(dependentObject));
+    }
+
+    /**
+     * Only the dependent objects that miss a requisite are reported as unsatisfied.
+     */
+    @Test
+    public void testUnsatisfiedDependentObjects() {
+        TestDependentObject satisfiedObject = new TestDependentObject(0, "a");
+        TestDependentObject unsatisfiedObject = new TestDependentObject(1, "b");
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties("a"));
+        context.registerService(SECOND_SERVICE_CLASS, new Object(), TestRequisiteTracker.driverProperties("a"));
+        context.registerService(SECOND_SERVICE_CLASS, new Object(), TestRequisiteTracker.driverProperties("b"));
+        manager.registerDependentObject(satisfiedObject, requisiteTrackers());
+        manager.registerDependentObject(unsatisfiedObject, requisiteTrackers());
+
+        List<DependentObjectReadiness<TestDependentObject>> unsatisfiedObjects =
+                manager.getUnsatisfiedDependentObjects();
+        Assert.assertEquals(1, unsatisfiedObjects.size());
+        Assert.assertSame(unsatisfiedObject, unsatisfiedObjects.get(0).getDependentObject());
+        Assert.assertEquals(Arrays.asList(FIRST), unsatisfiedObjects.get(0).getMissingRequisiteIds());
+        Assert.assertEquals(1, manager.getUnsatisfiedDependentObjectCount());
+        Assert.assertEquals(Collections.singleton(satisfiedObject), startedObjects);
+    }
+}
@@ -0,0 +1,84 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * {@link RequisiteListener} that remembers the reference every dependent object uses and collects the notifications
+ * that do not alternate.
+ */
+public class RecordingRequisiteListener implements RequisiteListener<TestDependentObject> {
+
+    private final Map<TestDependentObject, ServiceReference> usedReferences =
+            new ConcurrentHashMap<TestDependentObject, ServiceReference>();
+
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    private final AtomicInteger availableCount = new AtomicInteger();
+
+    private final AtomicInteger removedCount = new AtomicInteger();
+
+    public int getAvailableCount() {
+        return availableCount.get();
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public int getRemovedCount() {
+        return removedCount.get();
+    }
+
+    public ServiceReference getUsedReference(final TestDependentObject dependentObject) {
+        return usedReferences.get(dependentObject);
+    }
+
+    public Map<TestDependentObject, ServiceReference> getUsedReferences() {
+        return usedReferences;
+    }
+
+    @Override
+    public void requisiteAvailable(final TestDependentObject dependentObject, final ServiceReference requisite) {
+        availableCount.incrementAndGet();
+        if (usedReferences.put(dependentObject, requisite) != null) {
+            failures.add("Requisite available twice: " + dependentObject);
+        }
+    }
+
+    @Override
+    public void requisiteRemoved(final TestDependentObject dependentObject, final ServiceReference requisite) {
+        removedCount.incrementAndGet();
+        if (!requisite.equals(usedReferences.remove(dependentObject))) {
+            failures.add("Requisite removed without available: " + dependentObject);
+        }
+    }
+}
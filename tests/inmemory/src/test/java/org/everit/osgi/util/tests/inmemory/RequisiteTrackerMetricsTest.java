@@ -0,0 +1,88 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.everit.osgi.util.core.requisite.RequisiteTrackerStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the metrics of the pairing activity.
+ */
+public class RequisiteTrackerMetricsTest extends RequisiteTrackerTestBase {
+
+    /**
+     * The statistics are readable through the platform MBean server until they are unregistered.
+     */
+    @Test
+    public void testMBeanRegistration() throws JMException {
+        TestRequisiteTracker tracker = createTracker(false);
+        RequisiteTrackerStatistics statistics = new RequisiteTrackerStatistics(tracker);
+        tracker.setMetrics(statistics);
+        tracker.open();
+        registerServices(DRIVER_COUNT);
+        addDependentObjects(tracker, createDependentObjects(2), new RecordingRequisiteListener());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = statistics.registerMBean(server, "metricsTest");
+        try {
+            Assert.assertEquals(Long.valueOf(2), server.getAttribute(objectName, "PairCount"));
+            Assert.assertEquals(Integer.valueOf(2), server.getAttribute(objectName, "PairedObjectCount"));
+            server.invoke(objectName, "reset", null, null);
+            Assert.assertEquals(Long.valueOf(0), server.getAttribute(objectName, "PairCount"));
+        } finally {
+            statistics.unregisterMBean(server, "metricsTest");
+        }
+        Assert.assertFalse(server.isRegistered(objectName));
+    }
+
+    @Test
+    public void testMetrics() {
+        TestRequisiteTracker tracker = createTracker(false);
+        RequisiteTrackerStatistics statistics = new RequisiteTrackerStatistics(tracker);
+        tracker.setMetrics(statistics);
+        tracker.open();
+        registerServices(DRIVER_COUNT);
+        List<TestDependentObject> dependentObjects = createDependentObjects(10);
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        addDependentObjects(tracker, dependentObjects, listener);
+        for (TestDependentObject dependentObject : dependentObjects.subList(0, 4)) {
+            tracker.removeDependentObject(dependentObject);
+        }
+
+        Assert.assertEquals(10, statistics.getPairCount());
+        Assert.assertEquals(4, statistics.getUnpairCount());
+        Assert.assertEquals(6, statistics.getPairedObjectCount());
+        Assert.assertEquals(14, statistics.getListenerCallCount());
+        Assert.assertEquals(0, statistics.getFailedListenerCallCount());
+        Assert.assertEquals(tracker.getEvaluationCount(), statistics.getSuitabilityEvaluationCount());
+        Assert.assertEquals(10, statistics.getSuitableVerdictCount());
+        Assert.assertEquals(14, statistics.getListenerLatency().getCount());
+    }
+}
@@ -0,0 +1,171 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.everit.osgi.util.core.requisite.SerialExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the pairing features of the requisite tracker on the in-memory framework.
+ */
+public class RequisiteTrackerTest extends RequisiteTrackerTestBase {
+
+    /**
+     * Creates a listener that blocks in the first notification about the dependent object until the latch is opened.
+     */
+    private RecordingRequisiteListener createBlockingListener(final TestDependentObject dependentObject,
+            final CountDownLatch notifying, final CountDownLatch released, final Runnable reentry) {
+        return new RecordingRequisiteListener() {
+
+            @Override
+            public void requisiteAvailable(final TestDependentObject notifiedObject,
+                    final ServiceReference requisite) {
+                super.requisiteAvailable(notifiedObject, requisite);
+                if ((notifiedObject == dependentObject) && (notifying.getCount() > 0)) {
+                    notifying.countDown();
+                    awaitLatch(released);
+                    reentry.run();
+                }
+            }
+        };
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testReaddDuringNotification() throws InterruptedException {
+        final TestRequisiteTracker tracker = createTracker(false);
+        tracker.open();
+        registerServices(1);
+        final TestDependentObject dependentObject = new TestDependentObject(0, driverName(0));
+        CountDownLatch notifying = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        final RecordingRequisiteListener listener = createBlockingListener(dependentObject, notifying, released,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+        Thread notifyingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracker.addDependentObject(dependentObject, listener);
+            }
+        });
+        notifyingThread.start();
+        notifying.await();
+
+        tracker.removeDependentObject(dependentObject);
+        tracker.addDependentObject(dependentObject, listener);
+        Assert.assertEquals(1, listener.getAvailableCount());
+        released.countDown();
+        notifyingThread.join();
+
+        // The new registration is paired after the pairing of the removed one ended
+        Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+        Assert.assertEquals(2, listener.getAvailableCount());
+        Assert.assertEquals(1, listener.getRemovedCount());
+        Assert.assertNotNull(listener.getUsedReference(dependentObject));
+        Assert.assertEquals(1, tracker.getPairedObjectCount());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testRemovalDuringNotificationDoesNotWait() throws InterruptedException {
+        final TestRequisiteTracker tracker = createTracker(false);
+        tracker.open();
+        registerServices(1);
+        final TestDependentObject dependentObject = new TestDependentObject(0, driverName(0));
+        final TestDependentObject otherDependentObject = new TestDependentObject(1, driverName(0));
+        final Object lock = new Object();
+        CountDownLatch notifying = new CountDownLatch(1);
+        CountDownLatch lockHeld = new CountDownLatch(1);
+        final AtomicReference<RecordingRequisiteListener> listener = new AtomicReference<RecordingRequisiteListener>();
+        // The listener needs the lock that the removing thread holds and calls the tracker again
+        listener.set(createBlockingListener(dependentObject, notifying, lockHeld, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    tracker.addDependentObject(otherDependentObject, listener.get());
+                }
+            }
+        }));
+        Thread notifyingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracker.addDependentObject(dependentObject, listener.get());
+            }
+        });
+        notifyingThread.start();
+        notifying.await();
+
+        synchronized (lock) {
+            lockHeld.countDown();
+            tracker.removeDependentObject(dependentObject);
+        }
+        notifyingThread.join();
+
+        RecordingRequisiteListener recordingListener = listener.get();
+        Assert.assertEquals(recordingListener.getFailures().toString(), 0, recordingListener.getFailures().size());
+        Assert.assertEquals(2, recordingListener.getAvailableCount());
+        Assert.assertEquals(1, recordingListener.getRemovedCount());
+        Assert.assertNull(recordingListener.getUsedReference(dependentObject));
+        Assert.assertNotNull(recordingListener.getUsedReference(otherDependentObject));
+        Assert.assertEquals(1, tracker.getPairedObjectCount());
+        Assert.assertEquals(0, tracker.getAwaitingObjectCount());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testSerialServiceRemovalIsAwaited() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SerialExecutor serialExecutor = new SerialExecutor(executor);
+            TestRequisiteTracker tracker = createTracker(false);
+            tracker.setSerialExecutor(serialExecutor);
+            tracker.open();
+            List<ServiceRegistration> registrations = registerServices(DRIVER_COUNT);
+            List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+            RecordingRequisiteListener listener = new RecordingRequisiteListener();
+            addDependentObjects(tracker, dependentObjects, listener);
+            Assert.assertTrue(serialExecutor.awaitIdle(TIMEOUT));
+            assertPairedWithDriver(listener, dependentObjects);
+
+            // The users are released before the unregistration returns
+            ServiceReference reference = registrations.get(0).getReference();
+            registrations.get(0).unregister();
+            for (TestDependentObject dependentObject : dependentObjects) {
+                Assert.assertFalse(reference.equals(listener.getUsedReference(dependentObject)));
+            }
+            Assert.assertEquals(DEPENDENT_OBJECT_COUNT / DRIVER_COUNT, listener.getRemovedCount());
+        } finally {
+            closeTrackers();
+            executor.shutdown();
+        }
+    }
+
+}
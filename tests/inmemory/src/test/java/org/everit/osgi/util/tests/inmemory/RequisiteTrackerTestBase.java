@@ -0,0 +1,129 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Base of the requisite tracker tests. Starts a new in-memory framework for every test and closes the trackers that
+ * the test created.
+ */
+public abstract class RequisiteTrackerTestBase {
+
+    protected static final int DRIVER_COUNT = 4;
+
+    protected static final int DEPENDENT_OBJECT_COUNT = 40;
+
+    protected static final long TIMEOUT = 10000;
+
+    protected BundleContext context;
+
+    private final List<TestRequisiteTracker> trackers = new ArrayList<TestRequisiteTracker>();
+
+    protected static void awaitLatch(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected static String driverName(final int index) {
+        return "driver" + index;
+    }
+
+    protected static List<TestDependentObject> createDependentObjects(final int count) {
+        List<TestDependentObject> result = new ArrayList<TestDependentObject>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new TestDependentObject(i, driverName(i % DRIVER_COUNT)));
+        }
+        return result;
+    }
+
+    protected void addDependentObjects(final TestRequisiteTracker tracker,
+            final List<TestDependentObject> dependentObjects, final RequisiteListener<TestDependentObject> listener) {
+        for (TestDependentObject dependentObject : dependentObjects) {
+            tracker.addDependentObject(dependentObject, listener);
+        }
+    }
+
+    protected void assertPairedWithDriver(final RecordingRequisiteListener listener,
+            final List<TestDependentObject> dependentObjects) {
+        Assert.assertEquals(listener.getFailures().toString(), 0, listener.getFailures().size());
+        for (TestDependentObject dependentObject : dependentObjects) {
+            ServiceReference reference = listener.getUsedReference(dependentObject);
+            Assert.assertNotNull("Not paired: " + dependentObject, reference);
+            Assert.assertEquals(dependentObject.getDriverName(),
+                    reference.getProperty(TestRequisiteTracker.DRIVER_NAME));
+        }
+    }
+
+    @After
+    public void closeTrackers() {
+        for (TestRequisiteTracker tracker : trackers) {
+            tracker.close();
+        }
+        trackers.clear();
+    }
+
+    protected TestRequisiteTracker createTracker(final boolean indexed) {
+        return createTracker(TestRequisiteTracker.SERVICE_CLASS, indexed);
+    }
+
+    protected TestRequisiteTracker createTracker(final String serviceClass, final boolean indexed) {
+        try {
+            TestRequisiteTracker tracker = new TestRequisiteTracker(context, serviceClass, indexed);
+            trackers.add(tracker);
+            return tracker;
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected List<ServiceRegistration> registerServices(final int count) {
+        List<ServiceRegistration> result = new ArrayList<ServiceRegistration>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                    TestRequisiteTracker.driverProperties(driverName(i % DRIVER_COUNT))));
+        }
+        return result;
+    }
+
+    @Before
+    public void startFramework() {
+        context = new InMemoryFramework().getSystemBundleContext();
+    }
+}
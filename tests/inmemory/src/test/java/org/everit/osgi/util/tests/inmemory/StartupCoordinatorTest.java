@@ -0,0 +1,314 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.StartupCoordinator;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the {@link StartupCoordinator} with dependent objects that publish the requisites of each other.
+ */
+public class StartupCoordinatorTest {
+
+    /**
+     * Starts a dependent object by publishing a service with its driver name.
+     */
+    private class PublishingListener implements MultiRequisiteListener<TestDependentObject> {
+
+        private final boolean unpublishOnStop;
+
+        public PublishingListener(final boolean unpublishOnStop) {
+            this.unpublishOnStop = unpublishOnStop;
+        }
+
+        @Override
+        public void startDependentObject(final TestDependentObject dependentObject,
+                final Map<String, ServiceReference> references) {
+            transitions.add("start:" + dependentObject);
+            if (!publications.containsKey(dependentObject)) {
+                String driverName = publishedDriverNames.get(dependentObject);
+                publications.put(dependentObject, context.registerService(TestRequisiteTracker.SERVICE_CLASS,
+                        new Object(), TestRequisiteTracker.driverProperties(driverName)));
+            }
+        }
+
+        @Override
+        public void stopDependentObject(final TestDependentObject dependentObject) {
+            transitions.add("stop:" + dependentObject);
+            if (unpublishOnStop) {
+                ServiceRegistration registration = publications.remove(dependentObject);
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+        }
+    }
+
+    private static final long TIMEOUT = 10000;
+
+    private static final String REQUISITE_ID = "requisite";
+
+    private static final String ROOT_DRIVER_NAME = "root";
+
+    private final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Map<TestDependentObject, ServiceRegistration> publications =
+            new ConcurrentHashMap<TestDependentObject, ServiceRegistration>();
+
+    private final Map<TestDependentObject, String> publishedDriverNames = new HashMap<TestDependentObject, String>();
+
+    private BundleContext context;
+
+    private ExecutorService executor;
+
+    private StartupCoordinator<TestDependentObject> coordinator;
+
+    private TestRequisiteTracker tracker;
+
+    private static void awaitCondition(final String message, final Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.isTrue()) {
+            Assert.assertTrue(message, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * A condition that is polled by {@link StartupCoordinatorTest#awaitCondition(String, Condition)}.
+     */
+    private interface Condition {
+
+        boolean isTrue();
+    }
+
+    private void assertOrder(final String... expectedTransitions) {
+        List<String> snapshot = new ArrayList<String>(transitions);
+        int nextIndex = 0;
+        for (String transition : expectedTransitions) {
+            int index = snapshot.subList(nextIndex, snapshot.size()).indexOf(transition);
+            Assert.assertTrue(transition + " is not after the previous one in " + snapshot, index >= 0);
+            nextIndex += index + 1;
+        }
+    }
+
+    private TestDependentObject createDependentObject(final int id, final String requiredDriverName,
+            final String publishedDriverName) {
+        TestDependentObject dependentObject = new TestDependentObject(id, requiredDriverName);
+        publishedDriverNames.put(dependentObject, publishedDriverName);
+        return dependentObject;
+    }
+
+    private MultiRequisiteManager<TestDependentObject> createManager(final boolean unpublishOnStop) {
+        return new MultiRequisiteManager<TestDependentObject>(coordinator.coordinate(new PublishingListener(
+                unpublishOnStop)));
+    }
+
+    private void registerDependentObjects(final MultiRequisiteManager<TestDependentObject> manager,
+            final TestDependentObject... dependentObjects) {
+        Map<String, AbstractRequisiteTracker<TestDependentObject>> requisiteTrackers =
+                new LinkedHashMap<String, AbstractRequisiteTracker<TestDependentObject>>();
+        requisiteTrackers.put(REQUISITE_ID, tracker);
+        for (TestDependentObject dependentObject : dependentObjects) {
+            manager.registerDependentObject(dependentObject, requisiteTrackers);
+        }
+    }
+
+    @Before
+    public void setUp() throws InvalidSyntaxException {
+        context = new InMemoryFramework().getSystemBundleContext();
+        executor = Executors.newFixedThreadPool(2);
+        coordinator = new StartupCoordinator<TestDependentObject>(context, executor);
+        coordinator.open();
+        tracker = new TestRequisiteTracker(context, false);
+        tracker.open();
+    }
+
+    @After
+    public void tearDown() {
+        tracker.close();
+        coordinator.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCycleOfRestarts() throws InterruptedException {
+        // The first one is restarted with the service of the second one, so they are the producers of each other
+        final TestDependentObject first = createDependentObject(1, ROOT_DRIVER_NAME, "first");
+        final TestDependentObject second = createDependentObject(2, "first", ROOT_DRIVER_NAME);
+        MultiRequisiteManager<TestDependentObject> manager = createManager(false);
+        registerDependentObjects(manager, first, second);
+        ServiceRegistration root = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertEquals(Collections.singleton(first), coordinator.getProducers(second));
+
+        root.unregister();
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        assertOrder("start:" + first, "start:" + second, "stop:" + first, "start:" + first);
+        Assert.assertEquals(Collections.singleton(second), coordinator.getProducers(first));
+        Assert.assertEquals(Collections.singleton(first), coordinator.getProducers(second));
+
+        List<TestDependentObject> criticalPath = coordinator.getCriticalPath();
+        Assert.assertEquals(2, criticalPath.size());
+        Assert.assertTrue(criticalPath.containsAll(Arrays.asList(first, second)));
+        Assert.assertTrue(coordinator.getCriticalPathNanos() >= coordinator.getStartNanos(first));
+    }
+
+    /**
+     * The stop that the manager requests after a failed start does not reach the listener.
+     */
+    @Test
+    public void testFailedStartIsNotStopped() throws InterruptedException {
+        final TestDependentObject dependentObject = createDependentObject(1, ROOT_DRIVER_NAME, "first");
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final PublishingListener publishingListener = new PublishingListener(true);
+        MultiRequisiteManager<TestDependentObject> manager = new MultiRequisiteManager<TestDependentObject>(
+                coordinator.coordinate(new MultiRequisiteListener<TestDependentObject>() {
+
+                    @Override
+                    public void startDependentObject(final TestDependentObject startedObject,
+                            final Map<String, ServiceReference> references) {
+                        if (failing.get()) {
+                            transitions.add("failed:" + startedObject);
+                            throw new IllegalStateException("Start failed");
+                        }
+                        publishingListener.startDependentObject(startedObject, references);
+                    }
+
+                    @Override
+                    public void stopDependentObject(final TestDependentObject stoppedObject) {
+                        publishingListener.stopDependentObject(stoppedObject);
+                    }
+                }));
+        registerDependentObjects(manager, dependentObject);
+        ServiceRegistration root = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertTrue(coordinator.getStartFailure(dependentObject) instanceof IllegalStateException);
+
+        root.unregister();
+        awaitCondition("The failed dependent object did not leave the graph", new Condition() {
+            @Override
+            public boolean isTrue() {
+                return coordinator.getCriticalPath().isEmpty();
+            }
+        });
+        Assert.assertEquals(Arrays.asList("failed:" + dependentObject), transitions);
+
+        // The next start succeeds, so its stop is passed to the listener again
+        failing.set(false);
+        root = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertNull(coordinator.getStartFailure(dependentObject));
+        root.unregister();
+        awaitCondition("The dependent object did not leave the graph", new Condition() {
+            @Override
+            public boolean isTrue() {
+                return coordinator.getCriticalPath().isEmpty();
+            }
+        });
+        Assert.assertEquals(Arrays.asList("failed:" + dependentObject, "start:" + dependentObject,
+                "stop:" + dependentObject), transitions);
+        Assert.assertTrue(publications.isEmpty());
+    }
+
+    @Test
+    public void testStartsFollowTheGraph() throws InterruptedException {
+        TestDependentObject first = createDependentObject(1, ROOT_DRIVER_NAME, "first");
+        TestDependentObject second = createDependentObject(2, "first", "second");
+        TestDependentObject third = createDependentObject(3, "second", "third");
+        MultiRequisiteManager<TestDependentObject> manager = createManager(true);
+        registerDependentObjects(manager, third, second, first);
+        Assert.assertTrue(transitions.isEmpty());
+
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertEquals(0, coordinator.getPendingStartCount());
+        assertOrder("start:" + first, "start:" + second, "start:" + third);
+        Assert.assertEquals(Collections.emptySet(), coordinator.getProducers(first));
+        Assert.assertEquals(Collections.singleton(first), coordinator.getProducers(second));
+        Assert.assertEquals(Collections.singleton(second), coordinator.getProducers(third));
+        Assert.assertEquals(Arrays.asList(first, second, third), coordinator.getCriticalPath());
+        Assert.assertTrue(coordinator.getStartupNanos() > 0);
+
+        coordinator.clear();
+        Assert.assertEquals(Collections.emptySet(), coordinator.getProducers(second));
+        Assert.assertEquals(-1, coordinator.getStartNanos(second));
+        Assert.assertEquals(0, coordinator.getStartupNanos());
+    }
+
+    @Test
+    public void testStopPropagatesAndLeavesTheGraph() throws InterruptedException {
+        TestDependentObject first = createDependentObject(1, ROOT_DRIVER_NAME, "first");
+        TestDependentObject second = createDependentObject(2, "first", "second");
+        TestDependentObject third = createDependentObject(3, "second", "third");
+        MultiRequisiteManager<TestDependentObject> manager = createManager(true);
+        registerDependentObjects(manager, first, second, third);
+        ServiceRegistration root = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertEquals(3, coordinator.getCriticalPath().size());
+
+        root.unregister();
+        awaitCondition("The graph is not empty after the stops", new Condition() {
+            @Override
+            public boolean isTrue() {
+                return coordinator.getCriticalPath().isEmpty();
+            }
+        });
+        assertOrder("stop:" + first, "stop:" + second, "stop:" + third);
+        Assert.assertTrue(publications.isEmpty());
+        Assert.assertEquals(-1, coordinator.getStartNanos(first));
+
+        // Started again as new nodes
+        context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(ROOT_DRIVER_NAME));
+        Assert.assertTrue(coordinator.awaitStartup(TIMEOUT));
+        Assert.assertEquals(Arrays.asList(first, second, third), coordinator.getCriticalPath());
+    }
+}
@@ -0,0 +1,59 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Dependent object of the tests that needs a service with the same driver name.
+ */
+public class TestDependentObject {
+
+    private final int id;
+
+    private final String driverName;
+
+    public TestDependentObject(final int id, final String driverName) {
+        this.id = id;
+        this.driverName = driverName;
+    }
+
+    /**
+     * Creates the dependent object from its string representation, e.g. from the label of a trace.
+     */
+    public static TestDependentObject valueOf(final String value) {
+        int separatorIndex = value.lastIndexOf('#');
+        return new TestDependentObject(Integer.parseInt(value.substring(separatorIndex + 1)), value.substring(0,
+                separatorIndex));
+    }
+
+    public String getDriverName() {
+        return driverName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return driverName + "#" + id;
+    }
+}
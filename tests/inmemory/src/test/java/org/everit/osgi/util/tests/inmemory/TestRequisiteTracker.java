@@ -0,0 +1,118 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tracker of the tests. A reference is suitable for a dependent object if its driver name property equals the driver
+ * name of the dependent object. The tracker counts the suitability evaluations and can index the pairs by the driver
+ * name.
+ */
+public class TestRequisiteTracker extends AbstractRequisiteTracker<TestDependentObject> {
+
+    public static final String DRIVER_NAME = "driverName";
+
+    public static final String SERVICE_CLASS = "org.everit.osgi.util.tests.inmemory.TestService";
+
+    private final boolean indexed;
+
+    private final AtomicInteger evaluationCount = new AtomicInteger();
+
+    public TestRequisiteTracker(final BundleContext context, final boolean indexed) throws InvalidSyntaxException {
+        this(context, SERVICE_CLASS, indexed);
+    }
+
+    public TestRequisiteTracker(final BundleContext context, final String serviceClass, final boolean indexed)
+            throws InvalidSyntaxException {
+        super(context, "(objectClass=" + serviceClass + ")");
+        this.indexed = indexed;
+    }
+
+    public static Hashtable<String, Object> driverProperties(final String driverName) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(DRIVER_NAME, driverName);
+        return properties;
+    }
+
+    public static Hashtable<String, Object> driverProperties(final String driverName, final int ranking) {
+        Hashtable<String, Object> properties = driverProperties(driverName);
+        properties.put(Constants.SERVICE_RANKING, Integer.valueOf(ranking));
+        return properties;
+    }
+
+    @Override
+    protected Comparable<ServiceReference> createComparableFromReference(final ServiceReference reference) {
+        final Object driverName = reference.getProperty(DRIVER_NAME);
+        return new Comparable<ServiceReference>() {
+
+            @Override
+            public int compareTo(final ServiceReference o) {
+                Object newDriverName = o.getProperty(DRIVER_NAME);
+                if ((driverName == null) ? (newDriverName == null) : driverName.equals(newDriverName)) {
+                    return 0;
+                }
+                return 1;
+            }
+        };
+    }
+
+    @Override
+    protected Object createSuitabilityFingerprint(final ServiceReference reference) {
+        return reference.getProperty(DRIVER_NAME);
+    }
+
+    /**
+     * The number of times {@link #isReferenceSuitable(TestDependentObject, ServiceReference)} was called.
+     */
+    public int getEvaluationCount() {
+        return evaluationCount.get();
+    }
+
+    @Override
+    protected String[] getIndexedPropertyKeys() {
+        // Called from the super constructor, so the flag is not set yet. The values decide whether the index is used.
+        return new String[] { DRIVER_NAME };
+    }
+
+    @Override
+    protected Object[] getIndexValues(final TestDependentObject dependentObject) {
+        if (!indexed) {
+            return null;
+        }
+        return new Object[] { dependentObject.getDriverName() };
+    }
+
+    @Override
+    protected boolean isReferenceSuitable(final TestDependentObject dependentObject,
+            final ServiceReference reference) {
+        evaluationCount.incrementAndGet();
+        return dependentObject.getDriverName().equals(reference.getProperty(DRIVER_NAME));
+    }
+}
@@ -0,0 +1,259 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.DefaultPairingStrategy;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.trace.Trace;
+import org.everit.osgi.util.core.requisite.trace.TraceEvent;
+import org.everit.osgi.util.core.requisite.trace.TraceEventType;
+import org.everit.osgi.util.core.requisite.trace.TraceRecorder;
+import org.everit.osgi.util.testsupport.InMemoryFramework;
+import org.everit.osgi.util.testsupport.TraceReplayer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Records random service and dependent object changes, reads the dump back and replays it on a new framework.
+ */
+public class TraceRecorderTest {
+
+    private static final String OTHER_SERVICE_CLASS = "org.everit.osgi.util.tests.inmemory.OtherTestService";
+
+    private static final int STEP_COUNT = 2000;
+
+    private static final int DRIVER_COUNT = 5;
+
+    private static final int LONG_STRING_LENGTH = 70000;
+
+    private static MultiRequisiteManager<TestDependentObject> createManager() {
+        return new MultiRequisiteManager<TestDependentObject>(new MultiRequisiteListener<TestDependentObject>() {
+
+            @Override
+            public void startDependentObject(final TestDependentObject dependentObject,
+                    final Map<String, ServiceReference> references) {
+            }
+
+            @Override
+            public void stopDependentObject(final TestDependentObject dependentObject) {
+            }
+        });
+    }
+
+    private static TestRequisiteTracker createTracker(final BundleContext context, final String serviceClass)
+            throws InvalidSyntaxException {
+        TestRequisiteTracker tracker = new TestRequisiteTracker(context, serviceClass, false);
+        tracker.setPairingStrategy(DefaultPairingStrategy.HIGHEST_RANKING);
+        return tracker;
+    }
+
+    private static String createLongString() {
+        StringBuilder sb = new StringBuilder(LONG_STRING_LENGTH);
+        for (int i = 0; i < LONG_STRING_LENGTH; i++) {
+            sb.append((char) ('\u00e1' + (i % 20)));
+        }
+        return sb.toString();
+    }
+
+    private static String driverName(final Random random) {
+        return "driver" + random.nextInt(DRIVER_COUNT);
+    }
+
+    private static Map<TraceEventType, Integer> countByType(final List<TraceEvent> events) {
+        Map<TraceEventType, Integer> result = new LinkedHashMap<TraceEventType, Integer>();
+        for (TraceEvent event : events) {
+            Integer count = result.get(event.getType());
+            result.put(event.getType(), (count == null) ? 1 : (count + 1));
+        }
+        return result;
+    }
+
+    @Test
+    public void testDependentObjectIsNotRetained() throws InterruptedException {
+        TraceRecorder recorder = new TraceRecorder(16);
+        int sourceId = recorder.registerSource("direct");
+        TestDependentObject dependentObject = new TestDependentObject(1, "driver0");
+        recorder.record(TraceEventType.DEPENDENT_OBJECT_ADDED, sourceId, null, dependentObject, null);
+        recorder.record(TraceEventType.DEPENDENT_OBJECT_REMOVED, sourceId, null, dependentObject, null);
+
+        WeakReference<TestDependentObject> reference = new WeakReference<TestDependentObject>(dependentObject);
+        dependentObject = null;
+        for (int i = 0; (i < 100) && (reference.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(reference.get());
+        List<TraceEvent> events = recorder.getEvents();
+        Assert.assertEquals(events.get(0).getDependentObjectId(), events.get(1).getDependentObjectId());
+        Assert.assertEquals("driver0#1", events.get(1).getDependentObjectLabel());
+    }
+
+    @Test
+    public void testLongStringsAreDumped() throws IOException {
+        String longString = createLongString();
+        TraceRecorder recorder = new TraceRecorder(16);
+        int sourceId = recorder.registerSource(longString);
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put(longString, longString);
+        attributes.put("array", new String[] { longString });
+        recorder.record(TraceEventType.DEPENDENT_OBJECT_ADDED, sourceId, null, longString, attributes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.dump(out);
+        Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(longString, trace.getSourceName(sourceId));
+        TraceEvent event = trace.getEvents().get(0);
+        Assert.assertEquals(longString, trace.getDependentObjectLabel(event.getDependentObjectId()));
+        Assert.assertEquals(longString, event.getDependentObjectLabel());
+        Assert.assertEquals(longString, event.getAttributes().get(longString));
+        Assert.assertArrayEquals(new String[] { longString }, (String[]) event.getAttributes().get("array"));
+    }
+
+    @Test
+    public void testRecordDumpAndReplay() throws InvalidSyntaxException, IOException {
+        BundleContext context = new InMemoryFramework().getSystemBundleContext();
+        TraceRecorder recorder = new TraceRecorder(1 << 16);
+        TestRequisiteTracker directTracker = createTracker(context, TestRequisiteTracker.SERVICE_CLASS);
+        TestRequisiteTracker firstTracker = createTracker(context, TestRequisiteTracker.SERVICE_CLASS);
+        TestRequisiteTracker secondTracker = createTracker(context, OTHER_SERVICE_CLASS);
+        directTracker.setTraceRecorder(recorder, "direct");
+        firstTracker.setTraceRecorder(recorder, "first");
+        secondTracker.setTraceRecorder(recorder, "second");
+        directTracker.open();
+        firstTracker.open();
+        secondTracker.open();
+        MultiRequisiteManager<TestDependentObject> manager = createManager();
+        manager.setTraceRecorder(recorder, "manager");
+        Map<String, AbstractRequisiteTracker<TestDependentObject>> requisiteTrackers =
+                new LinkedHashMap<String, AbstractRequisiteTracker<TestDependentObject>>();
+        requisiteTrackers.put("first", firstTracker);
+        requisiteTrackers.put("second", secondTracker);
+
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        Map<Integer, TestDependentObject> directObjects = new LinkedHashMap<Integer, TestDependentObject>();
+        Map<Integer, TestDependentObject> managedObjects = new LinkedHashMap<Integer, TestDependentObject>();
+        List<ServiceRegistration> registrations = new ArrayList<ServiceRegistration>();
+        Random random = new Random(1);
+        for (int step = 0; step < STEP_COUNT; step++) {
+            int operation = random.nextInt(5);
+            if (operation == 0) {
+                String serviceClass = random.nextBoolean() ? TestRequisiteTracker.SERVICE_CLASS : OTHER_SERVICE_CLASS;
+                registrations.add(context.registerService(serviceClass, new Object(),
+                        TestRequisiteTracker.driverProperties(driverName(random), step)));
+            } else if ((operation == 1) && !registrations.isEmpty()) {
+                registrations.remove(random.nextInt(registrations.size())).unregister();
+            } else if ((operation == 2) && !registrations.isEmpty()) {
+                registrations.get(random.nextInt(registrations.size())).setProperties(
+                        TestRequisiteTracker.driverProperties(driverName(random), step));
+            } else if (operation == 3) {
+                Integer id = Integer.valueOf(random.nextInt(50));
+                TestDependentObject dependentObject = directObjects.remove(id);
+                if (dependentObject != null) {
+                    directTracker.removeDependentObject(dependentObject);
+                } else {
+                    dependentObject = new TestDependentObject(id, driverName(random));
+                    directObjects.put(id, dependentObject);
+                    directTracker.addDependentObject(dependentObject, listener);
+                }
+            } else {
+                Integer id = Integer.valueOf(1000 + random.nextInt(50));
+                TestDependentObject dependentObject = managedObjects.remove(id);
+                if (dependentObject != null) {
+                    manager.removeDependentObject(dependentObject);
+                } else {
+                    dependentObject = new TestDependentObject(id, driverName(random));
+                    managedObjects.put(id, dependentObject);
+                    manager.registerDependentObject(dependentObject, requisiteTrackers);
+                }
+            }
+        }
+        directTracker.close();
+        firstTracker.close();
+        secondTracker.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.dump(out);
+        Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(Arrays.asList("direct", "first", "second", "manager"), trace.getSourceNames());
+        Assert.assertEquals(recorder.getRecordedCount(), trace.getEvents().size());
+        Assert.assertEquals(countByType(recorder.getEvents()), countByType(trace.getEvents()));
+        Assert.assertEquals(listener.getAvailableCount(),
+                countByType(trace.getEvents()).get(TraceEventType.REQUISITE_AVAILABLE).intValue()
+                        - countAvailableOfManagedObjects(trace));
+
+        InMemoryFramework replayFramework = new InMemoryFramework();
+        BundleContext replayContext = replayFramework.getSystemBundleContext();
+        TestRequisiteTracker replayDirectTracker = createTracker(replayContext, TestRequisiteTracker.SERVICE_CLASS);
+        TestRequisiteTracker replayFirstTracker = createTracker(replayContext, TestRequisiteTracker.SERVICE_CLASS);
+        TestRequisiteTracker replaySecondTracker = createTracker(replayContext, OTHER_SERVICE_CLASS);
+        replayDirectTracker.open();
+        replayFirstTracker.open();
+        replaySecondTracker.open();
+        TraceReplayer<TestDependentObject> replayer = new TraceReplayer<TestDependentObject>(replayFramework,
+                new TraceReplayer.DependentObjectFactory<TestDependentObject>() {
+
+                    @Override
+                    public TestDependentObject createDependentObject(final int dependentObjectId,
+                            final String label) {
+                        return TestDependentObject.valueOf(label);
+                    }
+                });
+        replayer.addTracker("direct", replayDirectTracker).addTracker("first", replayFirstTracker)
+                .addTracker("second", replaySecondTracker).addMultiRequisiteManager("manager", createManager());
+        TraceReplayer.ReplayResult result = replayer.replay(trace);
+        Assert.assertEquals(0, result.getSkippedEventCount());
+        Assert.assertTrue(result.toString(), result.isNotificationCountMatching());
+        Assert.assertEquals(directObjects.size(), replayDirectTracker.getPairedObjectCount()
+                + replayDirectTracker.getAwaitingObjectCount());
+        replayDirectTracker.close();
+        replayFirstTracker.close();
+        replaySecondTracker.close();
+    }
+
+    private int countAvailableOfManagedObjects(final Trace trace) {
+        int result = 0;
+        for (TraceEvent event : trace.getEvents()) {
+            if ((event.getType() == TraceEventType.REQUISITE_AVAILABLE)
+                    && !"direct".equals(trace.getSourceName(event.getSourceId()))) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
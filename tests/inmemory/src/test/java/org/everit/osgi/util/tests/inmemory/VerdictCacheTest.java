@@ -0,0 +1,85 @@
+package org.everit.osgi.util.tests.inmemory;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+
+import org.everit.osgi.util.core.requisite.SuitabilityVerdictCache;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests of the memoized suitability verdicts.
+ */
+public class VerdictCacheTest extends RequisiteTrackerTestBase {
+
+    /**
+     * A full cache evicts the least recently used verdict.
+     */
+    @Test
+    public void testLeastRecentlyUsedVerdictIsEvicted() {
+        SuitabilityVerdictCache<TestDependentObject> verdictCache = new SuitabilityVerdictCache<TestDependentObject>(
+                2);
+        TestDependentObject dependentObject = new TestDependentObject(0, driverName(0));
+        verdictCache.put(dependentObject, driverName(0), true);
+        verdictCache.put(dependentObject, driverName(1), false);
+        Assert.assertEquals(Boolean.TRUE, verdictCache.get(dependentObject, driverName(0)));
+        verdictCache.put(dependentObject, driverName(2), false);
+
+        Assert.assertEquals(2, verdictCache.size());
+        Assert.assertEquals(1, verdictCache.getEvictionCount());
+        Assert.assertNull(verdictCache.get(dependentObject, driverName(1)));
+        Assert.assertEquals(Boolean.TRUE, verdictCache.get(dependentObject, driverName(0)));
+        Assert.assertEquals(Boolean.FALSE, verdictCache.get(dependentObject, driverName(2)));
+
+        verdictCache.removeDependentObject(dependentObject);
+        Assert.assertEquals(0, verdictCache.size());
+    }
+
+    @Test
+    public void testVerdictCacheSkipsRestartedProvider() {
+        TestRequisiteTracker tracker = createTracker(false);
+        SuitabilityVerdictCache<TestDependentObject> verdictCache = new SuitabilityVerdictCache<TestDependentObject>(
+                1000);
+        tracker.setVerdictCache(verdictCache);
+        tracker.open();
+        List<ServiceRegistration> registrations = registerServices(DRIVER_COUNT);
+        List<TestDependentObject> dependentObjects = createDependentObjects(DEPENDENT_OBJECT_COUNT);
+        RecordingRequisiteListener listener = new RecordingRequisiteListener();
+        addDependentObjects(tracker, dependentObjects, listener);
+
+        // The provider restarts with the same properties
+        registrations.get(0).unregister();
+        int evaluationCount = tracker.getEvaluationCount();
+        ServiceRegistration restarted = context.registerService(TestRequisiteTracker.SERVICE_CLASS, new Object(),
+                TestRequisiteTracker.driverProperties(driverName(0)));
+
+        assertPairedWithDriver(listener, dependentObjects);
+        Assert.assertEquals(restarted.getReference(), listener.getUsedReference(dependentObjects.get(0)));
+        Assert.assertEquals(evaluationCount, tracker.getEvaluationCount());
+        Assert.assertTrue(verdictCache.getHitCount() > 0);
+
+        tracker.removeDependentObject(dependentObjects.get(0));
+        Assert.assertNull(verdictCache.get(dependentObjects.get(0), driverName(0)));
+    }
+}
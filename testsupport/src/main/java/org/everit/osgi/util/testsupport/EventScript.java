@@ -0,0 +1,307 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A sequence of service and bundle events that can be replayed against an {@link InMemoryFramework}. Services and
+ * bundles are referred by aliases that are resolved when the script runs, so a script can modify or remove what an
+ * earlier step of it created. Several scripts can be run parallel to inject events from many threads.
+ * 
+ * <pre>
+ * new EventScript(framework)
+ *         .registerService(&quot;db&quot;, DataSource.class.getName(), properties)
+ *         .modifyService(&quot;db&quot;, otherProperties)
+ *         .unregisterService(&quot;db&quot;)
+ *         .run();
+ * </pre>
+ */
+public class EventScript implements Runnable {
+
+    /**
+     * A step that may fail with a checked exception.
+     */
+    private interface Step {
+
+        void execute() throws BundleException;
+    }
+
+    private final InMemoryFramework framework;
+
+    private final BundleContext context;
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    private final Map<String, ServiceRegistration> registrations = new ConcurrentHashMap<String, ServiceRegistration>();
+
+    private final Map<String, InMemoryBundle> bundles = new ConcurrentHashMap<String, InMemoryBundle>();
+
+    /**
+     * Creates a script that registers the services with the system bundle.
+     */
+    public EventScript(final InMemoryFramework framework) {
+        this(framework, framework.getSystemBundleContext());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param framework
+     *            The framework that installs the bundles of the script.
+     * @param context
+     *            The context that registers the services of the script.
+     */
+    public EventScript(final InMemoryFramework framework, final BundleContext context) {
+        this.framework = framework;
+        this.context = context;
+    }
+
+    /**
+     * Runs the scripts on separate threads that start at the same time and waits until all of them finish.
+     * 
+     * @throws IllegalStateException
+     *             if any of the scripts failed. The failure of the first script is the cause.
+     */
+    public static void runConcurrently(final EventScript... scripts) throws InterruptedException {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>(scripts.length);
+        for (int i = 0; i < scripts.length; i++) {
+            final EventScript script = scripts[i];
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        script.run();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }, "EventScript-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.size() + " of " + scripts.length + " scripts failed",
+                    failures.get(0));
+        }
+    }
+
+    /**
+     * The bundle that was installed by the script with the alias or <code>null</code>.
+     */
+    public InMemoryBundle getBundle(final String alias) {
+        return bundles.get(alias);
+    }
+
+    /**
+     * The service that was registered by the script with the alias or <code>null</code>.
+     */
+    public ServiceRegistration getRegistration(final String alias) {
+        return registrations.get(alias);
+    }
+
+    /**
+     * Installs a bundle.
+     */
+    public EventScript installBundle(final String alias, final String symbolicName, final String version) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() {
+                bundles.put(alias, framework.installBundle(symbolicName, version));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Changes the properties of a service registered by the script.
+     */
+    public EventScript modifyService(final String alias, final Dictionary<String, ?> properties) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() {
+                requireRegistration(alias).setProperties(properties);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Registers a service with a new object.
+     */
+    public EventScript registerService(final String alias, final String clazz, final Dictionary<String, ?> properties) {
+        return registerService(alias, clazz, new Object(), properties);
+    }
+
+    /**
+     * Registers a service.
+     */
+    public EventScript registerService(final String alias, final String clazz, final Object service,
+            final Dictionary<String, ?> properties) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() {
+                registrations.put(alias, context.registerService(clazz, service, properties));
+            }
+        });
+        return this;
+    }
+
+    private InMemoryBundle requireBundle(final String alias) {
+        InMemoryBundle bundle = bundles.get(alias);
+        if (bundle == null) {
+            throw new IllegalStateException("No bundle was installed with alias " + alias);
+        }
+        return bundle;
+    }
+
+    private ServiceRegistration requireRegistration(final String alias) {
+        ServiceRegistration registration = registrations.get(alias);
+        if (registration == null) {
+            throw new IllegalStateException("No service was registered with alias " + alias);
+        }
+        return registration;
+    }
+
+    /**
+     * Executes the steps in the order they were added.
+     * 
+     * @throws IllegalStateException
+     *             if a bundle operation fails.
+     */
+    @Override
+    public void run() {
+        for (Step step : steps) {
+            try {
+                step.execute();
+            } catch (BundleException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Starts a bundle installed by the script.
+     */
+    public EventScript startBundle(final String alias) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() throws BundleException {
+                requireBundle(alias).start();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds a custom step, e.g. a verification between the events.
+     */
+    public EventScript step(final Runnable runnable) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() {
+                runnable.run();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Stops a bundle installed by the script.
+     */
+    public EventScript stopBundle(final String alias) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() throws BundleException {
+                requireBundle(alias).stop();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Uninstalls a bundle installed by the script.
+     */
+    public EventScript uninstallBundle(final String alias) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() throws BundleException {
+                requireBundle(alias).uninstall();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Unregisters a service registered by the script.
+     */
+    public EventScript unregisterService(final String alias) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() {
+                requireRegistration(alias).unregister();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Updates a bundle installed by the script.
+     */
+    public EventScript updateBundle(final String alias) {
+        steps.add(new Step() {
+
+            @Override
+            public void execute() throws BundleException {
+                requireBundle(alias).update();
+            }
+        });
+        return this;
+    }
+}
@@ -0,0 +1,358 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * A bundle of an {@link InMemoryFramework}. The state changes fire the same bundle events in the same order as a real
+ * framework, the events are delivered on the thread that changes the state. A bundle has no content, so the resource
+ * and class loading functions find nothing.
+ */
+public class InMemoryBundle implements Bundle {
+
+    private final InMemoryFramework framework;
+
+    private final long bundleId;
+
+    private final String location;
+
+    private final String symbolicName;
+
+    private final Version version;
+
+    private final Hashtable<String, String> headers = new Hashtable<String, String>();
+
+    private volatile int state = Bundle.INSTALLED;
+
+    private volatile long lastModified;
+
+    private volatile InMemoryBundleContext context;
+
+    /**
+     * Synchronizes the state changes of the bundle.
+     */
+    private final Object helper = new Object();
+
+    InMemoryBundle(final InMemoryFramework framework, final long bundleId, final String location,
+            final String symbolicName, final String version, final Dictionary<String, String> additionalHeaders) {
+        this.framework = framework;
+        this.bundleId = bundleId;
+        this.location = location;
+        this.symbolicName = symbolicName;
+        this.version = Version.parseVersion(version);
+        if (additionalHeaders != null) {
+            for (Enumeration<String> keys = additionalHeaders.keys(); keys.hasMoreElements();) {
+                String key = keys.nextElement();
+                headers.put(key, additionalHeaders.get(key));
+            }
+        }
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        headers.put(Constants.BUNDLE_VERSION, this.version.toString());
+        lastModified = System.currentTimeMillis();
+    }
+
+    void activateSystemBundle() {
+        context = new InMemoryBundleContext(framework, this);
+        state = Bundle.ACTIVE;
+    }
+
+    private void checkNotSystemBundle(final String operation) throws BundleException {
+        if (bundleId == 0) {
+            throw new BundleException("The system bundle of the in-memory framework cannot be " + operation);
+        }
+    }
+
+    private void checkNotUninstalled() {
+        if (state == Bundle.UNINSTALLED) {
+            throw new IllegalStateException("Bundle is uninstalled: " + this);
+        }
+    }
+
+    @Override
+    public Enumeration<?> findEntries(final String path, final String filePattern, final boolean recurse) {
+        return null;
+    }
+
+    @Override
+    public BundleContext getBundleContext() {
+        return context;
+    }
+
+    @Override
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    @Override
+    public URL getEntry(final String path) {
+        return null;
+    }
+
+    @Override
+    public Enumeration<?> getEntryPaths(final String path) {
+        return null;
+    }
+
+    @Override
+    public Dictionary<?, ?> getHeaders() {
+        return new Hashtable<String, String>(headers);
+    }
+
+    @Override
+    public Dictionary<?, ?> getHeaders(final String locale) {
+        return getHeaders();
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getLocation() {
+        return location;
+    }
+
+    @Override
+    public ServiceReference[] getRegisteredServices() {
+        checkNotUninstalled();
+        List<InMemoryServiceRegistration> registrations = framework.getServicesOf(this);
+        if (registrations.isEmpty()) {
+            return null;
+        }
+        ServiceReference[] result = new ServiceReference[registrations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = registrations.get(i).getReferenceInternal();
+        }
+        return result;
+    }
+
+    @Override
+    public URL getResource(final String name) {
+        return null;
+    }
+
+    @Override
+    public Enumeration<?> getResources(final String name) {
+        return null;
+    }
+
+    /**
+     * Service usage is not tracked per bundle.
+     */
+    @Override
+    public ServiceReference[] getServicesInUse() {
+        return null;
+    }
+
+    @Override
+    public Map<?, ?> getSignerCertificates(final int signersType) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    @Override
+    public Version getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean hasPermission(final Object permission) {
+        return true;
+    }
+
+    @Override
+    public Class<?> loadClass(final String name) throws ClassNotFoundException {
+        throw new ClassNotFoundException(name);
+    }
+
+    private void nextLastModified() {
+        lastModified = Math.max(System.currentTimeMillis(), lastModified + 1);
+    }
+
+    /**
+     * Resolves the bundle if it is installed and fires the {@link BundleEvent#RESOLVED} event.
+     */
+    public void resolve() {
+        synchronized (helper) {
+            checkNotUninstalled();
+            if (state == Bundle.INSTALLED) {
+                state = Bundle.RESOLVED;
+                framework.fireBundleEvent(BundleEvent.RESOLVED, this);
+            }
+        }
+    }
+
+    @Override
+    public void start() throws BundleException {
+        start(0);
+    }
+
+    /**
+     * Starts the bundle. If {@link Bundle#START_ACTIVATION_POLICY} is set, the bundle stays in the
+     * {@link Bundle#STARTING} state and fires a {@link BundleEvent#LAZY_ACTIVATION} event until it is started without
+     * the option.
+     */
+    @Override
+    public void start(final int options) throws BundleException {
+        synchronized (helper) {
+            checkNotUninstalled();
+            if (state == Bundle.ACTIVE) {
+                return;
+            }
+            resolve();
+            boolean lazy = (options & Bundle.START_ACTIVATION_POLICY) != 0;
+            if (state == Bundle.RESOLVED) {
+                context = new InMemoryBundleContext(framework, this);
+                state = Bundle.STARTING;
+                if (lazy) {
+                    framework.fireBundleEvent(BundleEvent.LAZY_ACTIVATION, this);
+                    return;
+                }
+            } else if (lazy) {
+                // Waiting for lazy activation already
+                return;
+            }
+            framework.fireBundleEvent(BundleEvent.STARTING, this);
+            state = Bundle.ACTIVE;
+            framework.fireBundleEvent(BundleEvent.STARTED, this);
+        }
+    }
+
+    @Override
+    public void stop() throws BundleException {
+        stop(0);
+    }
+
+    /**
+     * Stops the bundle, unregisters its services and invalidates its context.
+     */
+    @Override
+    public void stop(final int options) throws BundleException {
+        checkNotSystemBundle("stopped");
+        synchronized (helper) {
+            checkNotUninstalled();
+            if ((state != Bundle.ACTIVE) && (state != Bundle.STARTING)) {
+                return;
+            }
+            state = Bundle.STOPPING;
+            framework.fireBundleEvent(BundleEvent.STOPPING, this);
+            for (InMemoryServiceRegistration registration : framework.getServicesOf(this)) {
+                if (!registration.isUnregistered()) {
+                    registration.unregister();
+                }
+            }
+            context.invalidate();
+            context = null;
+            state = Bundle.RESOLVED;
+            framework.fireBundleEvent(BundleEvent.STOPPED, this);
+        }
+    }
+
+    /**
+     * Overrides the time of the last modification, e.g. to simulate a bundle that was installed by an earlier run of
+     * the framework and did not change since then.
+     */
+    public void setLastModified(final long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return symbolicName + "_" + version + " [" + bundleId + "]";
+    }
+
+    private void unresolve() {
+        if (state == Bundle.RESOLVED) {
+            state = Bundle.INSTALLED;
+            framework.fireBundleEvent(BundleEvent.UNRESOLVED, this);
+        }
+    }
+
+    /**
+     * Stops and unresolves the bundle if necessary and fires the {@link BundleEvent#UNINSTALLED} event.
+     */
+    @Override
+    public void uninstall() throws BundleException {
+        checkNotSystemBundle("uninstalled");
+        synchronized (helper) {
+            checkNotUninstalled();
+            stop();
+            unresolve();
+            state = Bundle.UNINSTALLED;
+            nextLastModified();
+            framework.removeBundle(this);
+            framework.fireBundleEvent(BundleEvent.UNINSTALLED, this);
+        }
+    }
+
+    /**
+     * Stops and unresolves the bundle, changes its last modification time and fires the {@link BundleEvent#UPDATED}
+     * event. A bundle that was active is started again.
+     */
+    @Override
+    public void update() throws BundleException {
+        checkNotSystemBundle("updated");
+        synchronized (helper) {
+            checkNotUninstalled();
+            boolean active = (state == Bundle.ACTIVE) || (state == Bundle.STARTING);
+            stop();
+            unresolve();
+            nextLastModified();
+            framework.fireBundleEvent(BundleEvent.UPDATED, this);
+            if (active) {
+                start();
+            }
+        }
+    }
+
+    @Override
+    public void update(final InputStream input) throws BundleException {
+        update();
+    }
+}
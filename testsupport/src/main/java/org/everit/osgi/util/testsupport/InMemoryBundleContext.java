@@ -0,0 +1,229 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Dictionary;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * The context of an {@link InMemoryBundle}. It is valid from the start of the bundle until its stop. The in-memory
+ * framework does not fire framework events, so framework listeners are accepted but never called.
+ */
+class InMemoryBundleContext implements BundleContext {
+
+    private final InMemoryFramework framework;
+
+    private final InMemoryBundle bundle;
+
+    private volatile boolean valid = true;
+
+    public InMemoryBundleContext(final InMemoryFramework framework, final InMemoryBundle bundle) {
+        this.framework = framework;
+        this.bundle = bundle;
+    }
+
+    @Override
+    public void addBundleListener(final BundleListener listener) {
+        checkValid();
+        framework.addBundleListener(this, listener);
+    }
+
+    @Override
+    public void addFrameworkListener(final FrameworkListener listener) {
+        checkValid();
+    }
+
+    @Override
+    public void addServiceListener(final ServiceListener listener) {
+        try {
+            addServiceListener(listener, null);
+        } catch (InvalidSyntaxException e) {
+            // Cannot happen without filter
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void addServiceListener(final ServiceListener listener, final String filter)
+            throws InvalidSyntaxException {
+        checkValid();
+        framework.addServiceListener(this, listener, filter);
+    }
+
+    private void checkValid() {
+        if (!valid) {
+            throw new IllegalStateException("BundleContext of " + bundle + " is no longer valid");
+        }
+    }
+
+    @Override
+    public Filter createFilter(final String filter) throws InvalidSyntaxException {
+        checkValid();
+        return FrameworkUtil.createFilter(filter);
+    }
+
+    @Override
+    public ServiceReference[] getAllServiceReferences(final String clazz, final String filter)
+            throws InvalidSyntaxException {
+        checkValid();
+        return framework.getServiceReferences(clazz, filter);
+    }
+
+    @Override
+    public Bundle getBundle() {
+        checkValid();
+        return bundle;
+    }
+
+    @Override
+    public Bundle getBundle(final long id) {
+        checkValid();
+        return framework.getBundle(id);
+    }
+
+    @Override
+    public Bundle[] getBundles() {
+        checkValid();
+        return framework.getBundles();
+    }
+
+    @Override
+    public File getDataFile(final String filename) {
+        checkValid();
+        return framework.getDataFile(bundle, filename);
+    }
+
+    @Override
+    public String getProperty(final String key) {
+        return framework.getProperty(key);
+    }
+
+    @Override
+    public Object getService(final ServiceReference reference) {
+        checkValid();
+        return ((InMemoryServiceReference) reference).getRegistration().getService(bundle);
+    }
+
+    @Override
+    public ServiceReference getServiceReference(final String clazz) {
+        checkValid();
+        ServiceReference[] references;
+        try {
+            references = framework.getServiceReferences(clazz, null);
+        } catch (InvalidSyntaxException e) {
+            // Cannot happen without filter
+            throw new IllegalStateException(e);
+        }
+        if (references == null) {
+            return null;
+        }
+        ServiceReference result = references[0];
+        for (int i = 1; i < references.length; i++) {
+            if (references[i].compareTo(result) > 0) {
+                result = references[i];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ServiceReference[] getServiceReferences(final String clazz, final String filter)
+            throws InvalidSyntaxException {
+        checkValid();
+        return framework.getServiceReferences(clazz, filter);
+    }
+
+    /**
+     * Called when the bundle stops. Removes the listeners of the context.
+     */
+    void invalidate() {
+        valid = false;
+        framework.removeAllListeners(this);
+    }
+
+    /**
+     * Not supported, bundles can be installed by {@link InMemoryFramework#installBundle(String, String)}.
+     */
+    @Override
+    public Bundle installBundle(final String location) throws BundleException {
+        throw new BundleException("Installing bundles by location is not supported by the in-memory framework: "
+                + location);
+    }
+
+    /**
+     * Not supported, bundles can be installed by {@link InMemoryFramework#installBundle(String, String)}.
+     */
+    @Override
+    public Bundle installBundle(final String location, final InputStream input) throws BundleException {
+        return installBundle(location);
+    }
+
+    @Override
+    public ServiceRegistration registerService(final String clazz, final Object service,
+            @SuppressWarnings("rawtypes") final Dictionary properties) {
+        return registerService(new String[] { clazz }, service, properties);
+    }
+
+    @Override
+    public ServiceRegistration registerService(final String[] clazzes, final Object service,
+            @SuppressWarnings("rawtypes") final Dictionary properties) {
+        checkValid();
+        return framework.registerService(bundle, clazzes, service, properties);
+    }
+
+    @Override
+    public void removeBundleListener(final BundleListener listener) {
+        checkValid();
+        framework.removeBundleListener(this, listener);
+    }
+
+    @Override
+    public void removeFrameworkListener(final FrameworkListener listener) {
+        checkValid();
+    }
+
+    @Override
+    public void removeServiceListener(final ServiceListener listener) {
+        checkValid();
+        framework.removeServiceListener(this, listener);
+    }
+
+    @Override
+    public boolean ungetService(final ServiceReference reference) {
+        checkValid();
+        return ((InMemoryServiceReference) reference).getRegistration().ungetService(bundle);
+    }
+}
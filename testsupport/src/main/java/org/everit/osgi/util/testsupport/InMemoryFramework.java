@@ -0,0 +1,413 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * A service registry and bundle container that implements enough of the OSGi core API to drive
+ * {@link org.osgi.util.tracker.ServiceTracker}s and {@link org.osgi.util.tracker.BundleTracker}s in a plain JVM. The
+ * events are delivered synchronously on the thread that caused them, so a single threaded test sees the callbacks in a
+ * deterministic order and a multi threaded test sees them concurrently as it would with a real framework. Filters are
+ * the standard LDAP filters of {@link FrameworkUtil#createFilter(String)}.
+ * 
+ * <p>
+ * There is no class loading, no permission checking and no service factory support: every bundle can see every
+ * service and {@link BundleContext#getService(ServiceReference)} returns the registered object.
+ * </p>
+ */
+public class InMemoryFramework {
+
+    /**
+     * A service listener registered by a bundle context.
+     */
+    private static class ServiceListenerEntry {
+
+        private final InMemoryBundleContext context;
+
+        private final ServiceListener listener;
+
+        private final Filter filter;
+
+        public ServiceListenerEntry(final InMemoryBundleContext context, final ServiceListener listener,
+                final Filter filter) {
+            this.context = context;
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * A bundle listener registered by a bundle context.
+     */
+    private static class BundleListenerEntry {
+
+        private final InMemoryBundleContext context;
+
+        private final BundleListener listener;
+
+        public BundleListenerEntry(final InMemoryBundleContext context, final BundleListener listener) {
+            this.context = context;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The symbolic name of the system bundle.
+     */
+    public static final String SYSTEM_BUNDLE_SYMBOLIC_NAME = "org.everit.osgi.util.testsupport.framework";
+
+    private final AtomicLong bundleIdSequence = new AtomicLong();
+
+    private final AtomicLong serviceIdSequence = new AtomicLong();
+
+    private final Map<Long, InMemoryBundle> bundles = new ConcurrentSkipListMap<Long, InMemoryBundle>();
+
+    /**
+     * The live registrations ordered by service id.
+     */
+    private final Map<Long, InMemoryServiceRegistration> registrations =
+            new ConcurrentSkipListMap<Long, InMemoryServiceRegistration>();
+
+    private final List<ServiceListenerEntry> serviceListeners = new CopyOnWriteArrayList<ServiceListenerEntry>();
+
+    private final List<BundleListenerEntry> bundleListeners = new CopyOnWriteArrayList<BundleListenerEntry>();
+
+    private final Map<String, String> properties = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The directory of the persistent storage areas of the bundles or <code>null</code> if there is no file system
+     * support.
+     */
+    private final File storageDirectory;
+
+    private final InMemoryBundle systemBundle;
+
+    /**
+     * Creates a framework without file system support.
+     */
+    public InMemoryFramework() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param storageDirectory
+     *            The directory where the bundles get their persistent storage area or <code>null</code> if
+     *            {@link BundleContext#getDataFile(String)} should return <code>null</code>.
+     */
+    public InMemoryFramework(final File storageDirectory) {
+        this.storageDirectory = storageDirectory;
+        systemBundle = new InMemoryBundle(this, bundleIdSequence.getAndIncrement(), Constants.SYSTEM_BUNDLE_LOCATION,
+                SYSTEM_BUNDLE_SYMBOLIC_NAME, "1.0.0", null);
+        bundles.put(Long.valueOf(systemBundle.getBundleId()), systemBundle);
+        systemBundle.activateSystemBundle();
+    }
+
+    void addBundleListener(final InMemoryBundleContext context, final BundleListener listener) {
+        for (BundleListenerEntry entry : bundleListeners) {
+            if ((entry.context == context) && (entry.listener == listener)) {
+                return;
+            }
+        }
+        bundleListeners.add(new BundleListenerEntry(context, listener));
+    }
+
+    /**
+     * Adds the service listener or replaces its filter if the context registered it already.
+     */
+    void addServiceListener(final InMemoryBundleContext context, final ServiceListener listener, final String filter)
+            throws InvalidSyntaxException {
+        Filter parsedFilter = null;
+        if (filter != null) {
+            parsedFilter = FrameworkUtil.createFilter(filter);
+        }
+        removeServiceListener(context, listener);
+        serviceListeners.add(new ServiceListenerEntry(context, listener, parsedFilter));
+    }
+
+    File getDataFile(final InMemoryBundle bundle, final String filename) {
+        if (storageDirectory == null) {
+            return null;
+        }
+        File bundleDirectory = new File(storageDirectory, "bundle" + bundle.getBundleId());
+        if (!bundleDirectory.isDirectory() && !bundleDirectory.mkdirs()) {
+            throw new IllegalStateException("Cannot create storage area " + bundleDirectory.getAbsolutePath());
+        }
+        return new File(bundleDirectory, filename);
+    }
+
+    void fireBundleEvent(final int type, final InMemoryBundle bundle) {
+        BundleEvent event = new BundleEvent(type, bundle);
+        boolean synchronousOnly = (type == BundleEvent.STARTING) || (type == BundleEvent.STOPPING)
+                || (type == BundleEvent.LAZY_ACTIVATION);
+        for (BundleListenerEntry entry : bundleListeners) {
+            if (!synchronousOnly || (entry.listener instanceof SynchronousBundleListener)) {
+                entry.listener.bundleChanged(event);
+            }
+        }
+    }
+
+    /**
+     * Delivers a service event. In case of a modification the listeners whose filter matched the previous properties
+     * but does not match the new ones get a {@link ServiceEvent#MODIFIED_ENDMATCH} event.
+     */
+    void fireServiceEvent(final int type, final InMemoryServiceReference reference,
+            final Dictionary<String, Object> previousProperties) {
+        ServiceEvent event = new ServiceEvent(type, reference);
+        ServiceEvent endMatchEvent = null;
+        for (ServiceListenerEntry entry : serviceListeners) {
+            if ((entry.filter == null) || entry.filter.match(reference)) {
+                entry.listener.serviceChanged(event);
+            } else if ((previousProperties != null) && entry.filter.match(previousProperties)) {
+                if (endMatchEvent == null) {
+                    endMatchEvent = new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, reference);
+                }
+                entry.listener.serviceChanged(endMatchEvent);
+            }
+        }
+    }
+
+    InMemoryBundle getBundle(final long id) {
+        return bundles.get(Long.valueOf(id));
+    }
+
+    Bundle[] getBundles() {
+        Collection<InMemoryBundle> values = bundles.values();
+        return values.toArray(new Bundle[values.size()]);
+    }
+
+    /**
+     * The number of bundle listeners of all bundle contexts.
+     */
+    public int getBundleListenerCount() {
+        return bundleListeners.size();
+    }
+
+    String getProperty(final String key) {
+        String value = properties.get(key);
+        if (value == null) {
+            value = System.getProperty(key);
+        }
+        return value;
+    }
+
+    /**
+     * The number of registered services including the ones of the system bundle.
+     */
+    public int getServiceCount() {
+        return registrations.size();
+    }
+
+    /**
+     * The number of service listeners of all bundle contexts.
+     */
+    public int getServiceListenerCount() {
+        return serviceListeners.size();
+    }
+
+    /**
+     * The references of the registered services that have the class in their object class and match the filter.
+     * 
+     * @return The references or <code>null</code> if there is no matching service.
+     */
+    ServiceReference[] getServiceReferences(final String clazz, final String filter)
+            throws InvalidSyntaxException {
+        Filter parsedFilter = null;
+        if (filter != null) {
+            parsedFilter = FrameworkUtil.createFilter(filter);
+        }
+        List<ServiceReference> result = new ArrayList<ServiceReference>();
+        for (InMemoryServiceRegistration registration : registrations.values()) {
+            InMemoryServiceReference reference = registration.getReferenceInternal();
+            if (((clazz == null) || Arrays.asList(reference.getObjectClass()).contains(clazz))
+                    && ((parsedFilter == null) || parsedFilter.match(reference))) {
+                result.add(reference);
+            }
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        return result.toArray(new ServiceReference[result.size()]);
+    }
+
+    /**
+     * The registered services of a bundle.
+     */
+    List<InMemoryServiceRegistration> getServicesOf(final InMemoryBundle bundle) {
+        List<InMemoryServiceRegistration> result = new ArrayList<InMemoryServiceRegistration>();
+        for (InMemoryServiceRegistration registration : registrations.values()) {
+            if (registration.getBundle() == bundle) {
+                result.add(registration);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The system bundle that is always active.
+     */
+    public InMemoryBundle getSystemBundle() {
+        return systemBundle;
+    }
+
+    /**
+     * The context of the system bundle that can be passed to the trackers under test.
+     */
+    public BundleContext getSystemBundleContext() {
+        return systemBundle.getBundleContext();
+    }
+
+    /**
+     * Installs a bundle and fires the {@link BundleEvent#INSTALLED} event.
+     * 
+     * @param symbolicName
+     *            The symbolic name of the bundle.
+     * @param version
+     *            The version of the bundle.
+     * @return The installed bundle.
+     */
+    public InMemoryBundle installBundle(final String symbolicName, final String version) {
+        return installBundle(symbolicName, version, null);
+    }
+
+    /**
+     * Installs a bundle with additional manifest headers and fires the {@link BundleEvent#INSTALLED} event.
+     * 
+     * @param symbolicName
+     *            The symbolic name of the bundle.
+     * @param version
+     *            The version of the bundle.
+     * @param headers
+     *            Additional manifest headers or <code>null</code>.
+     * @return The installed bundle.
+     */
+    public InMemoryBundle installBundle(final String symbolicName, final String version,
+            final Dictionary<String, String> headers) {
+        long bundleId = bundleIdSequence.getAndIncrement();
+        InMemoryBundle bundle = new InMemoryBundle(this, bundleId, "inmemory:" + symbolicName + "/" + bundleId,
+                symbolicName, version, headers);
+        bundles.put(Long.valueOf(bundleId), bundle);
+        fireBundleEvent(BundleEvent.INSTALLED, bundle);
+        return bundle;
+    }
+
+    /**
+     * Registers a service and fires the {@link ServiceEvent#REGISTERED} event.
+     */
+    InMemoryServiceRegistration registerService(final InMemoryBundle bundle, final String[] clazzes,
+            final Object service, final Dictionary<?, ?> serviceProperties) {
+        if ((clazzes == null) || (clazzes.length == 0)) {
+            throw new IllegalArgumentException("At least one class name must be specified");
+        }
+        if (service == null) {
+            throw new IllegalArgumentException("Service object cannot be null");
+        }
+        long serviceId = serviceIdSequence.incrementAndGet();
+        InMemoryServiceRegistration registration = new InMemoryServiceRegistration(this, bundle, serviceId,
+                clazzes.clone(), service, serviceProperties);
+        registrations.put(Long.valueOf(serviceId), registration);
+        fireServiceEvent(ServiceEvent.REGISTERED, registration.getReferenceInternal(), null);
+        return registration;
+    }
+
+    /**
+     * Removes every listener of a context that is not valid anymore.
+     */
+    void removeAllListeners(final InMemoryBundleContext context) {
+        for (ServiceListenerEntry entry : serviceListeners) {
+            if (entry.context == context) {
+                serviceListeners.remove(entry);
+            }
+        }
+        for (BundleListenerEntry entry : bundleListeners) {
+            if (entry.context == context) {
+                bundleListeners.remove(entry);
+            }
+        }
+    }
+
+    void removeBundle(final InMemoryBundle bundle) {
+        bundles.remove(Long.valueOf(bundle.getBundleId()));
+    }
+
+    void removeBundleListener(final InMemoryBundleContext context, final BundleListener listener) {
+        for (BundleListenerEntry entry : bundleListeners) {
+            if ((entry.context == context) && (entry.listener == listener)) {
+                bundleListeners.remove(entry);
+            }
+        }
+    }
+
+    void removeServiceListener(final InMemoryBundleContext context, final ServiceListener listener) {
+        for (ServiceListenerEntry entry : serviceListeners) {
+            if ((entry.context == context) && (entry.listener == listener)) {
+                serviceListeners.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Sets a framework property that is returned by {@link BundleContext#getProperty(String)} instead of the system
+     * property with the same name.
+     */
+    public void setProperty(final String key, final String value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.put(key, value);
+        }
+    }
+
+    /**
+     * Removes the registration from the registry after the {@link ServiceEvent#UNREGISTERING} event was delivered.
+     */
+    void unregisterService(final InMemoryServiceRegistration registration) {
+        fireServiceEvent(ServiceEvent.UNREGISTERING, registration.getReferenceInternal(), null);
+        registrations.remove(Long.valueOf(registration.getServiceId()));
+    }
+}
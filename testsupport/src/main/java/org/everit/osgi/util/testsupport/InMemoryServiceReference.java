@@ -0,0 +1,160 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The reference of an {@link InMemoryServiceRegistration}. The property keys are case insensitive and the references
+ * are ordered by service ranking and service id as the specification requires. The properties are replaced as a whole
+ * when the registration is modified, so a reader never sees half of a modification.
+ */
+public class InMemoryServiceReference implements ServiceReference {
+
+    private final InMemoryServiceRegistration registration;
+
+    /**
+     * The properties with case insensitive keys. The map is never changed after it is published.
+     */
+    private volatile Map<String, Object> properties;
+
+    InMemoryServiceReference(final InMemoryServiceRegistration registration,
+            final Dictionary<?, ?> serviceProperties) {
+        this.registration = registration;
+        setProperties(serviceProperties);
+    }
+
+    private static int getRanking(final ServiceReference reference) {
+        Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+        if (ranking instanceof Integer) {
+            return ((Integer) ranking).intValue();
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareTo(final Object reference) {
+        ServiceReference other = (ServiceReference) reference;
+        int ranking = getRanking(this);
+        int otherRanking = getRanking(other);
+        if (ranking != otherRanking) {
+            return (ranking < otherRanking) ? -1 : 1;
+        }
+        long id = registration.getServiceId();
+        long otherId = ((Long) other.getProperty(Constants.SERVICE_ID)).longValue();
+        if (id == otherId) {
+            return 0;
+        }
+        // Lower service id means higher order
+        return (id < otherId) ? 1 : -1;
+    }
+
+    @Override
+    public Bundle getBundle() {
+        if (registration.isUnregistered()) {
+            return null;
+        }
+        return registration.getBundle();
+    }
+
+    String[] getObjectClass() {
+        return registration.getObjectClass();
+    }
+
+    /**
+     * A copy of the current properties that can be matched against a filter after the properties changed.
+     */
+    Dictionary<String, Object> getPropertiesAsDictionary() {
+        return new Hashtable<String, Object>(properties);
+    }
+
+    @Override
+    public Object getProperty(final String key) {
+        Object value = properties.get(key);
+        if (value instanceof String[]) {
+            return ((String[]) value).clone();
+        }
+        return value;
+    }
+
+    @Override
+    public String[] getPropertyKeys() {
+        Map<String, Object> currentProperties = properties;
+        return currentProperties.keySet().toArray(new String[currentProperties.size()]);
+    }
+
+    InMemoryServiceRegistration getRegistration() {
+        return registration;
+    }
+
+    @Override
+    public Bundle[] getUsingBundles() {
+        return registration.getUsingBundles();
+    }
+
+    /**
+     * Every bundle sees the same classes in the in-memory framework.
+     */
+    @Override
+    public boolean isAssignableTo(final Bundle bundle, final String className) {
+        return true;
+    }
+
+    /**
+     * Replaces the properties. The object class and the service id cannot be changed.
+     * 
+     * @throws IllegalArgumentException
+     *             if two keys differ only in case.
+     */
+    final void setProperties(final Dictionary<?, ?> serviceProperties) {
+        Map<String, Object> newProperties = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+        if (serviceProperties != null) {
+            for (Enumeration<?> keys = serviceProperties.keys(); keys.hasMoreElements();) {
+                Object key = keys.nextElement();
+                if (!(key instanceof String)) {
+                    throw new IllegalArgumentException("Service property key is not a String: " + key);
+                }
+                if (newProperties.containsKey(key)) {
+                    throw new IllegalArgumentException("Service property keys differ only in case: " + key);
+                }
+                newProperties.put((String) key, serviceProperties.get(key));
+            }
+        }
+        newProperties.put(Constants.OBJECTCLASS, registration.getObjectClass());
+        newProperties.put(Constants.SERVICE_ID, Long.valueOf(registration.getServiceId()));
+        properties = newProperties;
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryServiceReference" + properties;
+    }
+}
@@ -0,0 +1,188 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A service registered in an {@link InMemoryFramework}. Modifying and unregistering the service fires the same events
+ * as a real framework.
+ */
+public class InMemoryServiceRegistration implements ServiceRegistration {
+
+    private final InMemoryFramework framework;
+
+    private final InMemoryBundle bundle;
+
+    private final long serviceId;
+
+    private final String[] objectClass;
+
+    private final Object service;
+
+    private final InMemoryServiceReference reference;
+
+    /**
+     * The number of {@link org.osgi.framework.BundleContext#getService(ServiceReference)} calls that are not followed
+     * by an {@link org.osgi.framework.BundleContext#ungetService(ServiceReference)} call by bundle.
+     */
+    private final Map<Bundle, Integer> useCounts = new HashMap<Bundle, Integer>();
+
+    private final AtomicBoolean unregistering = new AtomicBoolean(false);
+
+    private volatile boolean unregistered = false;
+
+    InMemoryServiceRegistration(final InMemoryFramework framework, final InMemoryBundle bundle,
+            final long serviceId, final String[] objectClass, final Object service,
+            final Dictionary<?, ?> serviceProperties) {
+        this.framework = framework;
+        this.bundle = bundle;
+        this.serviceId = serviceId;
+        this.objectClass = objectClass;
+        this.service = service;
+        this.reference = new InMemoryServiceReference(this, serviceProperties);
+    }
+
+    InMemoryBundle getBundle() {
+        return bundle;
+    }
+
+    String[] getObjectClass() {
+        return objectClass;
+    }
+
+    @Override
+    public ServiceReference getReference() {
+        if (unregistered) {
+            throw new IllegalStateException("Service is unregistered: " + serviceId);
+        }
+        return reference;
+    }
+
+    InMemoryServiceReference getReferenceInternal() {
+        return reference;
+    }
+
+    /**
+     * Returns the service object and counts the usage of the bundle.
+     * 
+     * @return The service object or <code>null</code> if the service is unregistered.
+     */
+    Object getService(final Bundle user) {
+        synchronized (useCounts) {
+            if (unregistered) {
+                return null;
+            }
+            Integer useCount = useCounts.get(user);
+            if (useCount == null) {
+                useCounts.put(user, Integer.valueOf(1));
+            } else {
+                useCounts.put(user, Integer.valueOf(useCount.intValue() + 1));
+            }
+            return service;
+        }
+    }
+
+    long getServiceId() {
+        return serviceId;
+    }
+
+    Bundle[] getUsingBundles() {
+        synchronized (useCounts) {
+            if (useCounts.isEmpty()) {
+                return null;
+            }
+            return useCounts.keySet().toArray(new Bundle[useCounts.size()]);
+        }
+    }
+
+    boolean isUnregistered() {
+        return unregistered;
+    }
+
+    /**
+     * Replaces the properties and fires a {@link ServiceEvent#MODIFIED} event to the listeners whose filter matches
+     * the new properties and a {@link ServiceEvent#MODIFIED_ENDMATCH} event to the ones whose filter matched only the
+     * previous properties.
+     */
+    @Override
+    public void setProperties(@SuppressWarnings("rawtypes") final Dictionary properties) {
+        if (unregistered) {
+            throw new IllegalStateException("Service is unregistered: " + serviceId);
+        }
+        Dictionary<String, Object> previousProperties = reference.getPropertiesAsDictionary();
+        reference.setProperties(properties);
+        framework.fireServiceEvent(ServiceEvent.MODIFIED, reference, previousProperties);
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryServiceRegistration[" + serviceId + "]";
+    }
+
+    /**
+     * Releases one usage of the service by the bundle.
+     * 
+     * @return <code>false</code> if the bundle did not use the service.
+     */
+    boolean ungetService(final Bundle user) {
+        synchronized (useCounts) {
+            Integer useCount = useCounts.get(user);
+            if (useCount == null) {
+                return false;
+            }
+            if (useCount.intValue() == 1) {
+                useCounts.remove(user);
+            } else {
+                useCounts.put(user, Integer.valueOf(useCount.intValue() - 1));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fires the {@link ServiceEvent#UNREGISTERING} event and removes the service from the registry.
+     * 
+     * @throws IllegalStateException
+     *             if the service is unregistered already.
+     */
+    @Override
+    public void unregister() {
+        if (!unregistering.compareAndSet(false, true)) {
+            throw new IllegalStateException("Service is unregistered already: " + serviceId);
+        }
+        framework.unregisterService(this);
+        synchronized (useCounts) {
+            unregistered = true;
+            useCounts.clear();
+        }
+    }
+}
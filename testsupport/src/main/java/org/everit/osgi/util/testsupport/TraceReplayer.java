@@ -0,0 +1,524 @@
+package org.everit.osgi.util.testsupport;
+
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.everit.osgi.util.core.requisite.trace.Trace;
+import org.everit.osgi.util.core.requisite.trace.TraceEvent;
+import org.everit.osgi.util.core.requisite.trace.TraceEventType;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Feeds a recorded {@link Trace} into fresh trackers and managers that are opened on an {@link InMemoryFramework}.
+ * The events are replayed on the calling thread in the order of their sequence numbers. Services are registered,
+ * modified and unregistered in the framework, so the trackers get the service events the same way as in the original
+ * run. Dependent objects are added to the tracker or registered to the manager that has the name of the recorded
+ * source, events of unknown sources only count as skipped.
+ * <p>
+ * The listener notifications of the trace are not replayed, they are what the replay should produce. The replayer
+ * counts the recorded notifications and the ones its own listener gets for the dependent objects it adds to trackers
+ * directly, so a difference shows that the replay went another way. The notifications of the dependent objects of a
+ * manager reach the {@link org.everit.osgi.util.core.requisite.MultiRequisiteListener} of the manager. The
+ * {@link org.everit.osgi.util.core.requisite.DefaultPairingStrategy#FIRST_FIT} strategy picks references in hash order,
+ * so the trackers should use a deterministic pairing strategy when the notifications are compared.
+ * <p>
+ * A tracker that stops tracking a service because its properties do not match the filter anymore cannot be told apart
+ * from an unregistration if no other tracker recorded the modification. The replayer unregisters a service at its
+ * last recorded removal only.
+ * 
+ * @param <D>
+ *            The type of the dependent objects.
+ */
+public class TraceReplayer<D> {
+
+    /**
+     * Creates the dependent objects of the replay.
+     * 
+     * @param <D>
+     *            The type of the dependent objects.
+     */
+    public interface DependentObjectFactory<D> {
+
+        /**
+         * Creates the dependent object that has the id in the trace. Called once per id.
+         * 
+         * @param dependentObjectId
+         *            The id of the dependent object in the trace.
+         * @param label
+         *            The string representation of the recorded dependent object or <code>null</code> if it is not in
+         *            the trace.
+         */
+        D createDependentObject(int dependentObjectId, String label);
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class ReplayResult {
+
+        private final int replayedEventCount;
+
+        private final int skippedEventCount;
+
+        private final long elapsedNanos;
+
+        private final long recordedAvailableCount;
+
+        private final long recordedRemovedCount;
+
+        private final long availableCount;
+
+        private final long removedCount;
+
+        public ReplayResult(final int replayedEventCount, final int skippedEventCount, final long elapsedNanos,
+                final long recordedAvailableCount, final long recordedRemovedCount, final long availableCount,
+                final long removedCount) {
+            this.replayedEventCount = replayedEventCount;
+            this.skippedEventCount = skippedEventCount;
+            this.elapsedNanos = elapsedNanos;
+            this.recordedAvailableCount = recordedAvailableCount;
+            this.recordedRemovedCount = recordedRemovedCount;
+            this.availableCount = availableCount;
+            this.removedCount = removedCount;
+        }
+
+        /**
+         * The number of requisite available notifications of the directly added dependent objects during the replay.
+         */
+        public long getAvailableCount() {
+            return availableCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * The number of replayed events per second.
+         */
+        public double getEventsPerSecond() {
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+            return (replayedEventCount * 1000000000.0) / elapsedNanos;
+        }
+
+        /**
+         * The number of requisite available notifications of the directly added dependent objects in the trace.
+         */
+        public long getRecordedAvailableCount() {
+            return recordedAvailableCount;
+        }
+
+        /**
+         * The number of requisite removed notifications of the directly added dependent objects in the trace.
+         */
+        public long getRecordedRemovedCount() {
+            return recordedRemovedCount;
+        }
+
+        /**
+         * The number of requisite removed notifications of the directly added dependent objects during the replay.
+         */
+        public long getRemovedCount() {
+            return removedCount;
+        }
+
+        public int getReplayedEventCount() {
+            return replayedEventCount;
+        }
+
+        public int getSkippedEventCount() {
+            return skippedEventCount;
+        }
+
+        /**
+         * Whether the directly added dependent objects got as many notifications as in the trace.
+         */
+        public boolean isNotificationCountMatching() {
+            return (availableCount == recordedAvailableCount) && (removedCount == recordedRemovedCount);
+        }
+
+        @Override
+        public String toString() {
+            return "ReplayResult [replayed: " + replayedEventCount + ", skipped: " + skippedEventCount
+                    + ", elapsedNanos: " + elapsedNanos + ", available: " + availableCount + "/"
+                    + recordedAvailableCount + ", removed: " + removedCount + "/" + recordedRemovedCount + "]";
+        }
+    }
+
+    /**
+     * The state of one {@link #replay(Trace)} call.
+     */
+    private class Replay {
+
+        private final Trace trace;
+
+        private final Map<Long, ServiceRegistration> registrations = new HashMap<Long, ServiceRegistration>();
+
+        private final Map<Long, Map<String, Object>> properties = new HashMap<Long, Map<String, Object>>();
+
+        /**
+         * The index of the last event of each service that has properties.
+         */
+        private final Map<Long, Integer> lastPropertyEventIndexes = new HashMap<Long, Integer>();
+
+        private final Map<Integer, D> dependentObjects = new HashMap<Integer, D>();
+
+        /**
+         * The number of tracker level add events of each managed dependent object that come from the registration
+         * to the manager and must not be replayed again.
+         */
+        private final Map<Integer, Integer> pendingManagedAdds = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> pendingManagedRemoves = new HashMap<Integer, Integer>();
+
+        /**
+         * The ids of the dependent objects that were registered to a manager last time, their notifications are not
+         * counted.
+         */
+        private final Set<Integer> managedDependentObjectIds = new HashSet<Integer>();
+
+        /**
+         * The number of requisites of the dependent objects that are registered to a manager.
+         */
+        private final Map<Integer, Integer> managedRequisiteCounts = new HashMap<Integer, Integer>();
+
+        private final AtomicLong availableCount = new AtomicLong();
+
+        private final AtomicLong removedCount = new AtomicLong();
+
+        private final RequisiteListener<D> listener = new RequisiteListener<D>() {
+
+            @Override
+            public void requisiteAvailable(final D dependentObject, final ServiceReference requisite) {
+                availableCount.incrementAndGet();
+            }
+
+            @Override
+            public void requisiteRemoved(final D dependentObject, final ServiceReference requisite) {
+                removedCount.incrementAndGet();
+            }
+        };
+
+        private long recordedAvailableCount = 0;
+
+        private long recordedRemovedCount = 0;
+
+        private int skippedEventCount = 0;
+
+        public Replay(final Trace trace) {
+            this.trace = trace;
+            List<TraceEvent> events = trace.getEvents();
+            for (int i = 0; i < events.size(); i++) {
+                TraceEvent event = events.get(i);
+                if ((event.getType() == TraceEventType.SERVICE_ADDING)
+                        || (event.getType() == TraceEventType.SERVICE_MODIFIED)) {
+                    lastPropertyEventIndexes.put(Long.valueOf(event.getServiceId()), Integer.valueOf(i));
+                }
+            }
+        }
+
+        private void applyProperties(final TraceEvent event) {
+            Long serviceId = Long.valueOf(event.getServiceId());
+            Map<String, Object> newProperties = event.getAttributes();
+            ServiceRegistration registration = registrations.get(serviceId);
+            if (registration == null) {
+                Object objectClass = newProperties.get(Constants.OBJECTCLASS);
+                if (!(objectClass instanceof String[])) {
+                    skippedEventCount++;
+                    return;
+                }
+                registrations.put(serviceId, framework.getSystemBundleContext().registerService(
+                        (String[]) objectClass, new Object(), toDictionary(newProperties)));
+            } else if (!propertiesEqual(properties.get(serviceId), newProperties)) {
+                registration.setProperties(toDictionary(newProperties));
+            }
+            properties.put(serviceId, newProperties);
+        }
+
+        private void countNotification(final TraceEvent event) {
+            Integer id = Integer.valueOf(event.getDependentObjectId());
+            if ((getTracker(event) == null) || managedDependentObjectIds.contains(id)) {
+                return;
+            }
+            if (event.getType() == TraceEventType.REQUISITE_AVAILABLE) {
+                recordedAvailableCount++;
+            } else {
+                recordedRemovedCount++;
+            }
+        }
+
+        private D getDependentObject(final int dependentObjectId) {
+            Integer id = Integer.valueOf(dependentObjectId);
+            D dependentObject = dependentObjects.get(id);
+            if (dependentObject == null) {
+                dependentObject = dependentObjectFactory.createDependentObject(dependentObjectId,
+                        trace.getDependentObjectLabel(dependentObjectId));
+                dependentObjects.put(id, dependentObject);
+            }
+            return dependentObject;
+        }
+
+        private AbstractRequisiteTracker<D> getTracker(final TraceEvent event) {
+            String sourceName = trace.getSourceName(event.getSourceId());
+            if (sourceName == null) {
+                return null;
+            }
+            return trackers.get(sourceName);
+        }
+
+        /**
+         * Decrements the pending count of the dependent object.
+         * 
+         * @return <code>true</code> if the event belonged to the manager.
+         */
+        private boolean consumePending(final Map<Integer, Integer> pendingCounts, final int dependentObjectId) {
+            Integer id = Integer.valueOf(dependentObjectId);
+            Integer pending = pendingCounts.get(id);
+            if (pending == null) {
+                return false;
+            }
+            if (pending.intValue() <= 1) {
+                pendingCounts.remove(id);
+            } else {
+                pendingCounts.put(id, Integer.valueOf(pending.intValue() - 1));
+            }
+            return true;
+        }
+
+        private void registerToManager(final TraceEvent event) {
+            String sourceName = trace.getSourceName(event.getSourceId());
+            MultiRequisiteManager<D> manager = (sourceName == null) ? null : managers.get(sourceName);
+            if (manager == null) {
+                skippedEventCount++;
+                return;
+            }
+            Map<String, AbstractRequisiteTracker<D>> requisiteTrackers =
+                    new LinkedHashMap<String, AbstractRequisiteTracker<D>>();
+            for (Entry<String, Object> entry : event.getAttributes().entrySet()) {
+                AbstractRequisiteTracker<D> tracker = trackers.get(entry.getValue());
+                if (tracker == null) {
+                    skippedEventCount++;
+                    return;
+                }
+                requisiteTrackers.put(entry.getKey(), tracker);
+            }
+            Integer id = Integer.valueOf(event.getDependentObjectId());
+            Integer requisiteCount = Integer.valueOf(requisiteTrackers.size());
+            managedRequisiteCounts.put(id, requisiteCount);
+            managedDependentObjectIds.add(id);
+            pendingManagedAdds.put(id, requisiteCount);
+            manager.registerDependentObject(getDependentObject(event.getDependentObjectId()), requisiteTrackers);
+        }
+
+        private void removeFromManager(final TraceEvent event) {
+            String sourceName = trace.getSourceName(event.getSourceId());
+            MultiRequisiteManager<D> manager = (sourceName == null) ? null : managers.get(sourceName);
+            Integer id = Integer.valueOf(event.getDependentObjectId());
+            Integer requisiteCount = managedRequisiteCounts.remove(id);
+            if ((manager == null) || (requisiteCount == null)) {
+                skippedEventCount++;
+                return;
+            }
+            pendingManagedAdds.remove(id);
+            pendingManagedRemoves.put(id, requisiteCount);
+            manager.removeDependentObject(getDependentObject(event.getDependentObjectId()));
+        }
+
+        public ReplayResult run() {
+            List<TraceEvent> events = trace.getEvents();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < events.size(); i++) {
+                replayEvent(i, events.get(i));
+            }
+            long elapsedNanos = System.nanoTime() - startTime;
+            return new ReplayResult(events.size() - skippedEventCount, skippedEventCount, elapsedNanos,
+                    recordedAvailableCount, recordedRemovedCount, availableCount.get(), removedCount.get());
+        }
+
+        private void replayEvent(final int index, final TraceEvent event) {
+            switch (event.getType()) {
+            case SERVICE_ADDING:
+            case SERVICE_MODIFIED:
+                applyProperties(event);
+                break;
+            case SERVICE_REMOVED:
+                unregister(index, event);
+                break;
+            case DEPENDENT_OBJECT_ADDED:
+                if (!consumePending(pendingManagedAdds, event.getDependentObjectId())) {
+                    AbstractRequisiteTracker<D> tracker = getTracker(event);
+                    if (tracker == null) {
+                        skippedEventCount++;
+                    } else {
+                        managedDependentObjectIds.remove(Integer.valueOf(event.getDependentObjectId()));
+                        tracker.addDependentObject(getDependentObject(event.getDependentObjectId()), listener);
+                    }
+                }
+                break;
+            case DEPENDENT_OBJECT_REMOVED:
+                if (!consumePending(pendingManagedRemoves, event.getDependentObjectId())) {
+                    AbstractRequisiteTracker<D> tracker = getTracker(event);
+                    if (tracker == null) {
+                        skippedEventCount++;
+                    } else {
+                        tracker.removeDependentObject(getDependentObject(event.getDependentObjectId()));
+                    }
+                }
+                break;
+            case REQUISITE_AVAILABLE:
+            case REQUISITE_REMOVED:
+                countNotification(event);
+                break;
+            case MULTI_DEPENDENT_OBJECT_REGISTERED:
+                registerToManager(event);
+                break;
+            case MULTI_DEPENDENT_OBJECT_REMOVED:
+                removeFromManager(event);
+                break;
+            default:
+                skippedEventCount++;
+            }
+        }
+
+        private void unregister(final int index, final TraceEvent event) {
+            Long serviceId = Long.valueOf(event.getServiceId());
+            Integer lastPropertyEventIndex = lastPropertyEventIndexes.get(serviceId);
+            ServiceRegistration registration = registrations.get(serviceId);
+            if ((registration != null)
+                    && ((lastPropertyEventIndex == null) || (lastPropertyEventIndex.intValue() < index))) {
+                registrations.remove(serviceId);
+                properties.remove(serviceId);
+                registration.unregister();
+            }
+        }
+    }
+
+    private final InMemoryFramework framework;
+
+    private final DependentObjectFactory<D> dependentObjectFactory;
+
+    private final Map<String, AbstractRequisiteTracker<D>> trackers =
+            new HashMap<String, AbstractRequisiteTracker<D>>();
+
+    private final Map<String, MultiRequisiteManager<D>> managers = new HashMap<String, MultiRequisiteManager<D>>();
+
+    /**
+     * Constructor.
+     * 
+     * @param framework
+     *            The framework that the services are registered to. The trackers must be opened on a context of this
+     *            framework.
+     * @param dependentObjectFactory
+     *            The factory of the dependent objects.
+     */
+    public TraceReplayer(final InMemoryFramework framework, final DependentObjectFactory<D> dependentObjectFactory) {
+        if (framework == null) {
+            throw new IllegalArgumentException("Framework cannot be null");
+        }
+        if (dependentObjectFactory == null) {
+            throw new IllegalArgumentException("Dependent object factory cannot be null");
+        }
+        this.framework = framework;
+        this.dependentObjectFactory = dependentObjectFactory;
+    }
+
+    private static boolean propertiesEqual(final Map<String, Object> properties, final Map<String, Object> other) {
+        if ((properties == null) || (properties.size() != other.size())) {
+            return false;
+        }
+        for (Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            Object otherValue = other.get(entry.getKey());
+            if ((value instanceof Object[]) && (otherValue instanceof Object[])) {
+                if (!Arrays.equals((Object[]) value, (Object[]) otherValue)) {
+                    return false;
+                }
+            } else if ((value == null) ? (otherValue != null) : !value.equals(otherValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The properties without the ones the framework sets.
+     */
+    private static Hashtable<String, Object> toDictionary(final Map<String, Object> properties) {
+        Hashtable<String, Object> result = new Hashtable<String, Object>();
+        for (Entry<String, Object> entry : properties.entrySet()) {
+            String key = entry.getKey();
+            if ((entry.getValue() != null) && !Constants.OBJECTCLASS.equalsIgnoreCase(key)
+                    && !Constants.SERVICE_ID.equalsIgnoreCase(key)) {
+                result.put(key, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Registers a manager that gets the dependent objects that were registered to the recorded manager with the
+     * same name. The trackers of the manager must be added with {@link #addTracker(String, AbstractRequisiteTracker)}.
+     * 
+     * @return This replayer.
+     */
+    public TraceReplayer<D> addMultiRequisiteManager(final String sourceName, final MultiRequisiteManager<D> manager) {
+        managers.put(sourceName, manager);
+        return this;
+    }
+
+    /**
+     * Registers an opened tracker that gets the dependent objects that were added to the recorded tracker with the
+     * same name.
+     * 
+     * @return This replayer.
+     */
+    public TraceReplayer<D> addTracker(final String sourceName, final AbstractRequisiteTracker<D> tracker) {
+        trackers.put(sourceName, tracker);
+        return this;
+    }
+
+    /**
+     * Replays the trace. The services that the replay registered stay registered, so the state of the trackers can be
+     * checked after the replay.
+     */
+    public ReplayResult replay(final Trace trace) {
+        return new Replay(trace).run();
+    }
+}